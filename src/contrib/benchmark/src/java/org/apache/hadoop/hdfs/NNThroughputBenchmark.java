@@ -786,6 +786,120 @@ public class NNThroughputBenchmark {
 		}
 	}
 
+	/**
+	 * Directory creation statistics.
+	 *
+	 * Measure how many mkdirs calls the name-node can handle per second.
+	 * Directory names are generated the same way as file names for create.
+	 */
+	class MkdirsStats extends CreateFileStats {
+		// Operation types
+		static final String OP_MKDIRS_NAME = "mkdirs";
+		static final String OP_MKDIRS_USAGE = "-op " + OP_MKDIRS_NAME
+				+ " [-threads T] [-files N] [-filesPerDir P]";
+
+		MkdirsStats(List<String> args) {
+			super(args);
+		}
+
+		String getOpName() {
+			return OP_MKDIRS_NAME;
+		}
+
+		long executeOp(int daemonId, int inputIdx, String ignore)
+				throws IOException {
+			long start = System.currentTimeMillis();
+			nameNode.mkdirs(fileNames[daemonId][inputIdx],
+					FsPermission.getDefault());
+			long end = System.currentTimeMillis();
+			return end - start;
+		}
+	}
+
+	/**
+	 * Mixed operation statistics.
+	 *
+	 * Each thread runs a mix of mkdirs, open and create calls against the
+	 * same directory tree, which shows how well namespace mutations in
+	 * different directories scale with the number of handler threads.
+	 * The percentage of mkdirs and open calls is configurable, the rest
+	 * are file creations.
+	 */
+	class MixedStats extends OpenFileStats {
+		// Operation types
+		static final String OP_MIXED_NAME = "mixed";
+		static final String OP_MIXED_USAGE = "-op " + OP_MIXED_NAME
+				+ OP_USAGE_ARGS + " [-mkdirsPercent M] [-openPercent O]";
+
+		private int mkdirsPercent;
+		private int openPercent;
+
+		MixedStats(List<String> args) {
+			super(args);
+		}
+
+		String getOpName() {
+			return OP_MIXED_NAME;
+		}
+
+		void parseArguments(List<String> args) {
+			mkdirsPercent = 20;
+			openPercent = 40;
+			int idx = args.indexOf("-mkdirsPercent");
+			if (idx >= 0) {
+				if (idx + 1 == args.size())
+					printUsage();
+				mkdirsPercent = Integer.parseInt(args.get(idx + 1));
+				args.remove(idx + 1);
+				args.remove(idx);
+			}
+			idx = args.indexOf("-openPercent");
+			if (idx >= 0) {
+				if (idx + 1 == args.size())
+					printUsage();
+				openPercent = Integer.parseInt(args.get(idx + 1));
+				args.remove(idx + 1);
+				args.remove(idx);
+			}
+			if (mkdirsPercent < 0 || openPercent < 0
+					|| mkdirsPercent + openPercent > 100)
+				printUsage();
+			super.parseArguments(args);
+		}
+
+		/**
+		 * The operation is chosen by the input index, so that every run with
+		 * the same arguments issues the same sequence of calls.
+		 */
+		long executeOp(int daemonId, int inputIdx, String clientName)
+				throws IOException {
+			String name = fileNames[daemonId][inputIdx];
+			int bucket = inputIdx % 100;
+			long start = System.currentTimeMillis();
+			if (bucket < mkdirsPercent) {
+				nameNode.mkdirs(name + ".d", FsPermission.getDefault());
+			} else if (bucket < mkdirsPercent + openPercent) {
+				nameNode.getBlockLocations(name, 0L, BLOCK_SIZE);
+			} else {
+				nameNode.create(name + ".c", FsPermission.getDefault(),
+						getClientName(daemonId), true, replication, BLOCK_SIZE);
+			}
+			long end = System.currentTimeMillis();
+			return end - start;
+		}
+
+		void printResults() {
+			LOG.info("--- " + getOpName() + " mix ---");
+			LOG.info("mkdirsPercent = " + mkdirsPercent);
+			LOG.info("openPercent = " + openPercent);
+
+			res.println("--- " + getOpName() + " mix ---");
+			res.println("mkdirsPercent = " + mkdirsPercent);
+			res.println("openPercent = " + openPercent);
+			super.printResults();
+		}
+	}
+
 	/**
 	 * Minimal data-node simulator.
 	 */
@@ -1273,6 +1387,8 @@ public class NNThroughputBenchmark {
 				+ OpenFileStats.OP_OPEN_USAGE + " | \n\t"
 				+ DeleteFileStats.OP_DELETE_USAGE + " | \n\t"
 				+ RenameFileStats.OP_RENAME_USAGE + " | \n\t"
+				+ MkdirsStats.OP_MKDIRS_USAGE + " | \n\t"
+				+ MixedStats.OP_MIXED_USAGE + " | \n\t"
 				+ BlockReportStats.OP_BLOCK_REPORT_USAGE + " | \n\t"
 				+ ReplicationStats.OP_REPLICATION_USAGE + " | \n\t"
 				+ CleanAllStats.OP_CLEAN_USAGE);
@@ -1314,6 +1430,14 @@ public class NNThroughputBenchmark {
 				opStat = bench.new RenameFileStats(args);
 				ops.add(opStat);
 			}
+			if (runAll || MkdirsStats.OP_MKDIRS_NAME.equals(type)) {
+				opStat = bench.new MkdirsStats(args);
+				ops.add(opStat);
+			}
+			if (runAll || MixedStats.OP_MIXED_NAME.equals(type)) {
+				opStat = bench.new MixedStats(args);
+				ops.add(opStat);
+			}
 			if (runAll || BlockReportStats.OP_BLOCK_REPORT_NAME.equals(type)) {
 				opStat = bench.new BlockReportStats(args);
 				ops.add(opStat);
@@ -398,7 +398,10 @@ public class AvatarDataNode extends DataNode {
         data.initialize(storage);
         
       }
+      long loadStart = now();
       data.addNamespace(namespaceId, storage.getNameSpaceDataDir(namespaceId), conf);
+      myMetrics.blockMapLoadTime.set(now() - loadStart);
+      myMetrics.startupTime.set(now() - createTime);
       if (blockScanner != null) {
         blockScanner.start();
         blockScanner.addNamespace(namespaceId);
@@ -29,6 +29,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileRange;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.PositionedReadable;
 import org.apache.hadoop.fs.Seekable;
@@ -203,6 +204,18 @@ public class RaidUtils {
       readFully(position, buffer, 0, buffer.length);
     }
 
+    public void readVectored(List<FileRange> ranges) throws IOException {
+      for (FileRange range : ranges) {
+        if (range.getEnd() > endOffset) {
+          throw new IOException("Premature EOF");
+        }
+        ByteBuffer buf = range.getBuffer();
+        for (int i = 0; i < range.getLength(); i++) {
+          buf.put((byte) 0);
+        }
+      }
+    }
+
     public List<ByteBuffer> readFullyScatterGather(long position, int length)
       throws IOException {
       throw new IOException("ScatterGather not implemeted for Raid.");
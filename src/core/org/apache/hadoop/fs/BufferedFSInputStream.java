@@ -19,6 +19,8 @@ package org.apache.hadoop.fs;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 
 /**
@@ -27,7 +29,7 @@ import java.io.IOException;
 
 
 public class BufferedFSInputStream extends BufferedInputStream
-implements Seekable, PositionedReadable {
+implements Seekable, PositionedReadable, ByteBufferReadable {
   /**
    * Creates a <code>BufferedFSInputStream</code>
    * with the specified buffer size,
@@ -82,6 +84,31 @@ implements Seekable, PositionedReadable {
     return ((FSInputStream)in).seekToNewSource(targetPos);
   }
 
+  /**
+   * Read into a ByteBuffer: the buffered bytes first, then straight from
+   * the underlying stream when at least a buffer of bytes is to be read.
+   */
+  public synchronized int read(ByteBuffer buffer) throws IOException {
+    byte[] b = buf;
+    if (b == null) {
+      throw new IOException("Stream closed");
+    }
+    if (!buffer.hasRemaining()) {
+      return 0;
+    }
+    int avail = count - pos;
+    if (avail > 0) {
+      int n = Math.min(avail, buffer.remaining());
+      buffer.put(b, pos, n);
+      pos += n;
+      return n;
+    }
+    if (buffer.remaining() >= b.length && markpos < 0) {
+      return ((FSInputStream)in).read(buffer);
+    }
+    return FSInputStream.readThroughArray(this, buffer);
+  }
+
   public int read(long position, byte[] buffer, int offset, int length) throws IOException {
     return ((FSInputStream)in).read(position, buffer, offset, length) ;
   }
@@ -93,4 +120,8 @@ implements Seekable, PositionedReadable {
   public void readFully(long position, byte[] buffer) throws IOException {
     ((FSInputStream)in).readFully(position, buffer);
   }
+
+  public void readVectored(List<FileRange> ranges) throws IOException {
+    ((FSInputStream)in).readVectored(ranges);
+  }
 }
@@ -0,0 +1,34 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Stream that can read into a ByteBuffer. */
+public interface ByteBufferReadable {
+  /**
+   * Read up to buf.remaining() bytes into buf, from its position, which is
+   * advanced by the number of bytes read. A stream may fill a direct buffer
+   * without an intermediate copy through an array.
+   *
+   * @return the number of bytes read, -1 at the end of the stream, 0 if
+   *         buf has no bytes remaining
+   */
+  int read(ByteBuffer buf) throws IOException;
+}
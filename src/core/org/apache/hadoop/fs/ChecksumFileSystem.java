@@ -20,12 +20,14 @@ package org.apache.hadoop.fs;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.List;
 import java.util.zip.CRC32;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.Progressable;
 import org.apache.hadoop.util.StringUtils;
 
@@ -111,6 +113,9 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
     private FSDataInputStream sums;
     
     private static final int HEADER_LENGTH = 8;
+    // the ranges of a vectored read closer than this are read together
+    private static final int VECTORED_READ_MERGE_GAP = 16 * 1024;
+    private static final int VECTORED_READ_MERGE_MAX = 1024 * 1024;
     
     private int bytesPerSum = 1;
     private long fileLen = -1L;
@@ -178,6 +183,48 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
       return nread;
     }
     
+    /**
+     * Read the ranges with positional reads of the data and the checksum
+     * files, reading the ranges close to each other together, and verify
+     * the chunks of each read at once. If a checksum does not match, the
+     * ranges of the read are read again one by one, which reports the
+     * error and tries the other copies.
+     */
+    public void readVectored(List<FileRange> ranges) throws IOException {
+      if (!needChecksum()) {
+        datas.readVectored(ranges);
+        return;
+      }
+      long fileLength = getFileLength();
+      FileRange.checkRanges(ranges, fileLength);
+      DataChecksum checksum = DataChecksum.newDataChecksum(
+          DataChecksum.CHECKSUM_CRC32, bytesPerSum);
+      for (List<FileRange> group : FileRange.coalesce(ranges,
+          VECTORED_READ_MERGE_GAP, VECTORED_READ_MERGE_MAX)) {
+        long start = getChunkPosition(group.get(0).getOffset());
+        long end = Math.min(fileLength,
+            getChunkPosition(FileRange.getEnd(group) + bytesPerSum - 1));
+        byte[] data = new byte[(int) (end - start)];
+        byte[] checksums =
+          new byte[4 * ((data.length + bytesPerSum - 1) / bytesPerSum)];
+        datas.readFully(start, data, 0, data.length);
+        sums.readFully(getChecksumFilePos(start), checksums, 0,
+                       checksums.length);
+        try {
+          checksum.verifyChunkedSums(data, 0, data.length, checksums, 0,
+                                     file.toString(), start);
+        } catch (ChecksumException e) {
+          LOG.info("Checksum error in " + file + " at " + e.getPos()
+              + ", reading the ranges one by one");
+          FileRange.readFully(this, group);
+          continue;
+        }
+        for (FileRange range : group) {
+          range.fill(data, start);
+        }
+      }
+    }
+
     public void close() throws IOException {
       datas.close();
       if( sums != null ) {
@@ -67,7 +67,11 @@ public class DU {
   
   public NamespaceSliceDU addNamespace(int namespaceId, File path, Configuration conf)
       throws IOException{
-    NamespaceSliceDU nsdu = new NamespaceSliceDU(path, conf);
+    return addNamespace(namespaceId, new NamespaceSliceDU(path, conf));
+  }
+
+  protected NamespaceSliceDU addNamespace(int namespaceId,
+      NamespaceSliceDU nsdu) {
     NamespaceSliceDU oldVal = namespaceSliceDUMap.putIfAbsent(namespaceId, nsdu);
     return oldVal != null? oldVal: nsdu; 
   }
@@ -115,7 +119,7 @@ public class DU {
   
   public class NamespaceSliceDU extends Shell {
     private String dirPath;
-    private AtomicLong used = new AtomicLong();
+    protected final AtomicLong used = new AtomicLong();
     private volatile IOException duException = null;
     final Object exceptionLock = new Object();
     
@@ -125,6 +129,17 @@ public class DU {
       //populate the used variable
       run();
     }
+
+    /**
+     * Keeps track of the disk usage of a namespace without running du.
+     * @param path the path to check disk usage in
+     * @param used the disk space already used
+     */
+    protected NamespaceSliceDU(File path, long used) throws IOException {
+      super(0);
+      dirPath = path.getCanonicalPath();
+      this.used.set(used);
+    }
     
     public void run() throws IOException{
       super.run();
@@ -176,6 +191,13 @@ public class DU {
     }
 
     protected void parseExecResult(BufferedReader lines) throws IOException {
+      this.used.set(parseUsed(lines));
+    }
+
+    /**
+     * @return the disk space in bytes reported by du
+     */
+    protected long parseUsed(BufferedReader lines) throws IOException {
       String line = lines.readLine();
       if (line == null) {
         throw new IOException("Expecting a line not the end of stream");
@@ -184,7 +206,7 @@ public class DU {
       if(tokens.length == 0) {
         throw new IOException("Illegal du output");
       }
-      this.used.set(Long.parseLong(tokens[0])*1024);
+      return Long.parseLong(tokens[0])*1024;
     }
 
     public String toString() {
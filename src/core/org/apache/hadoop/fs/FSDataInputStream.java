@@ -18,11 +18,13 @@
 package org.apache.hadoop.fs;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 /** Utility that wraps a {@link FSInputStream} in a {@link DataInputStream}
  * and buffers input through a {@link BufferedInputStream}. */
 public class FSDataInputStream extends DataInputStream
-    implements Seekable, PositionedReadable {
+    implements Seekable, PositionedReadable, ByteBufferReadable {
 
   public FSDataInputStream(InputStream in)
     throws IOException {
@@ -55,6 +57,21 @@ public class FSDataInputStream extends DataInputStream
     throws IOException {
     ((PositionedReadable)in).readFully(position, buffer, 0, buffer.length);
   }
+
+  /**
+   * Read into a ByteBuffer. The bytes are read through an array unless the
+   * wrapped stream is {@link ByteBufferReadable}.
+   */
+  public int read(ByteBuffer buf) throws IOException {
+    if (in instanceof ByteBufferReadable) {
+      return ((ByteBufferReadable)in).read(buf);
+    }
+    return FSInputStream.readThroughArray(in, buf);
+  }
+
+  public void readVectored(List<FileRange> ranges) throws IOException {
+    ((PositionedReadable)in).readVectored(ranges);
+  }
   
   public boolean seekToNewSource(long targetPos) throws IOException {
     return ((Seekable)in).seekToNewSource(targetPos); 
@@ -23,6 +23,7 @@ import java.util.zip.Checksum;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.StringUtils;
 
 /**
@@ -237,8 +238,14 @@ abstract public class FSInputChecker extends FSInputStream {
         read = readChunk(chunkPos, b, off, len, checksum);
         if( read > 0 ) {
           if( needChecksum() ) {
-            sum.update(b, off, read);
-            verifySum(chunkPos);
+            if (sum instanceof DataChecksum) {
+              // verify the chunk in one call, natively when possible
+              ((DataChecksum)sum).verifyChunkedSums(b, off, read,
+                  checksum, 0, String.valueOf(file), chunkPos);
+            } else {
+              sum.update(b, off, read);
+              verifySum(chunkPos);
+            }
           }
           chunkPos += read;
         } 
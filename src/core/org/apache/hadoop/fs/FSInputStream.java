@@ -18,6 +18,8 @@
 package org.apache.hadoop.fs;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 /****************************************************************
  * FSInputStream is a generic old InputStream with a little bit
@@ -25,7 +27,10 @@ import java.io.*;
  *
  *****************************************************************/
 public abstract class FSInputStream extends InputStream
-    implements Seekable, PositionedReadable {
+    implements Seekable, PositionedReadable, ByteBufferReadable {
+  // the most bytes read at once through an array into a direct buffer
+  private static final int MAX_COPY_SIZE = 64 * 1024;
+
   /**
    * Seek to the given offset from the start of the file.
    * The next read() will be from that location.  Can't
@@ -75,4 +80,40 @@ public abstract class FSInputStream extends InputStream
     throws IOException {
     readFully(position, buffer, 0, buffer.length);
   }
+
+  /**
+   * Read into a ByteBuffer through {@link #read(byte[], int, int)}, into
+   * its array or into a temporary array for a direct buffer.
+   */
+  public int read(ByteBuffer buf) throws IOException {
+    return readThroughArray(this, buf);
+  }
+
+  static int readThroughArray(InputStream in, ByteBuffer buf)
+    throws IOException {
+    if (!buf.hasRemaining()) {
+      return 0;
+    }
+    if (buf.hasArray()) {
+      int nread = in.read(buf.array(), buf.arrayOffset() + buf.position(),
+                          buf.remaining());
+      if (nread > 0) {
+        buf.position(buf.position() + nread);
+      }
+      return nread;
+    }
+    byte[] tmp = new byte[Math.min(buf.remaining(), MAX_COPY_SIZE)];
+    int nread = in.read(tmp, 0, tmp.length);
+    if (nread > 0) {
+      buf.put(tmp, 0, nread);
+    }
+    return nread;
+  }
+
+  /**
+   * Read the ranges one after the other in the order of the file.
+   */
+  public void readVectored(List<FileRange> ranges) throws IOException {
+    FileRange.readFully(this, ranges);
+  }
 }
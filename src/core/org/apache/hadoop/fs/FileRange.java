@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A range of a file to read with {@link PositionedReadable#readVectored}.
+ * The bytes of the range are put into the buffer of the range, from its
+ * position, which is advanced by the length of the range.
+ */
+public class FileRange {
+  private final long offset;
+  private final int length;
+  private final ByteBuffer buffer;
+
+  /**
+   * @param offset the position of the range in the file
+   * @param length the number of bytes to read
+   * @param buffer the buffer to read the bytes into, with at least length
+   *               bytes remaining
+   */
+  public FileRange(long offset, int length, ByteBuffer buffer) {
+    if (offset < 0 || length < 0) {
+      throw new IllegalArgumentException("Invalid range: offset " + offset
+          + " length " + length);
+    }
+    if (buffer.remaining() < length) {
+      throw new IllegalArgumentException("The buffer of the range at "
+          + offset + " has " + buffer.remaining() + " bytes remaining, "
+          + length + " needed");
+    }
+    this.offset = offset;
+    this.length = length;
+    this.buffer = buffer;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  /** @return the position in the file after the range */
+  public long getEnd() {
+    return offset + length;
+  }
+
+  public ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  public String toString() {
+    return "range " + offset + "+" + length;
+  }
+
+  /**
+   * Put the bytes of the range into its buffer.
+   * @param data the bytes of the file from dataOffset
+   */
+  void fill(byte[] data, long dataOffset) {
+    buffer.put(data, (int) (offset - dataOffset), length);
+  }
+
+  /**
+   * Read a range with the positional reads of a stream.
+   */
+  static void readFully(PositionedReadable in, FileRange range)
+      throws IOException {
+    ByteBuffer buf = range.buffer;
+    if (buf.hasArray()) {
+      in.readFully(range.offset, buf.array(),
+          buf.arrayOffset() + buf.position(), range.length);
+      buf.position(buf.position() + range.length);
+    } else {
+      byte[] data = new byte[range.length];
+      in.readFully(range.offset, data, 0, range.length);
+      buf.put(data);
+    }
+  }
+
+  /**
+   * Read ranges one after the other with the positional reads of a stream.
+   */
+  public static void readFully(PositionedReadable in, List<FileRange> ranges)
+      throws IOException {
+    for (FileRange range : sort(ranges)) {
+      readFully(in, range);
+    }
+  }
+
+  /** @return the ranges sorted by offset */
+  static List<FileRange> sort(List<FileRange> ranges) {
+    List<FileRange> sorted = new ArrayList<FileRange>(ranges);
+    Collections.sort(sorted, new Comparator<FileRange>() {
+      public int compare(FileRange a, FileRange b) {
+        return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+      }
+    });
+    return sorted;
+  }
+
+  /**
+   * Check that the ranges are within a file.
+   * @throws EOFException if a range ends after the end of the file
+   */
+  public static void checkRanges(List<FileRange> ranges, long fileLength)
+      throws EOFException {
+    for (FileRange range : ranges) {
+      if (range.getEnd() > fileLength) {
+        throw new EOFException("The " + range + " ends after the end of"
+            + " the file at " + fileLength);
+      }
+    }
+  }
+
+  /**
+   * Group the ranges that are close enough to be read with one read.
+   * @param ranges the ranges in any order
+   * @param maxGap the maximum number of bytes between two ranges of a group
+   * @param maxSize the maximum number of bytes of a group, unless it is a
+   *                single range
+   * @return the groups ordered by offset, the ranges of each group ordered
+   *         by offset
+   */
+  public static List<List<FileRange>> coalesce(List<FileRange> ranges,
+                                               long maxGap, long maxSize) {
+    List<List<FileRange>> groups = new ArrayList<List<FileRange>>();
+    List<FileRange> group = null;
+    long groupStart = 0;
+    long groupEnd = 0;
+    for (FileRange range : sort(ranges)) {
+      if (group != null && range.offset - groupEnd <= maxGap &&
+          Math.max(groupEnd, range.getEnd()) - groupStart <= maxSize) {
+        group.add(range);
+        groupEnd = Math.max(groupEnd, range.getEnd());
+      } else {
+        group = new ArrayList<FileRange>();
+        group.add(range);
+        groups.add(group);
+        groupStart = range.offset;
+        groupEnd = range.getEnd();
+      }
+    }
+    return groups;
+  }
+
+  /** @return the position in the file after the ranges of a group */
+  public static long getEnd(List<FileRange> group) {
+    long end = 0;
+    for (FileRange range : group) {
+      end = Math.max(end, range.getEnd());
+    }
+    return end;
+  }
+
+  /**
+   * Read a group of ranges with one positional read of a stream.
+   */
+  public static void readGroup(PositionedReadable in, List<FileRange> group)
+      throws IOException {
+    if (group.size() == 1) {
+      readFully(in, group.get(0));
+      return;
+    }
+    long start = group.get(0).offset;
+    byte[] data = new byte[(int) (getEnd(group) - start)];
+    in.readFully(start, data, 0, data.length);
+    for (FileRange range : group) {
+      range.fill(data, start);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Disk space usage kept up to date by the owner of the directories instead
+ * of the unix 'du' program. The usage of a namespace is seeded when it is
+ * added, and then changed with {@link NamespaceSliceDU#incDfsUsed(long)} and
+ * {@link NamespaceSliceDU#decDfsUsed(long)}. 'du' only runs every
+ * reconciliation interval to check the tracked value, which is corrected
+ * when the two differ by more than the tolerance.
+ */
+public class IncrementalDU extends DU {
+  private final float tolerance;
+
+  /**
+   * @param path the path to check disk usage in
+   * @param reconcileInterval run du at this interval, 0 to never run it
+   * @param tolerance the fraction of the usage reported by du the tracked
+   *        usage may differ by before it is corrected
+   * @throws IOException if the path cannot be resolved
+   */
+  public IncrementalDU(File path, long reconcileInterval, float tolerance)
+      throws IOException {
+    super(path, reconcileInterval);
+    this.tolerance = tolerance;
+  }
+
+  /**
+   * Track the disk usage of a namespace.
+   * @param namespaceId the namespace
+   * @param path the directory of the namespace
+   * @param used the disk space used by the namespace when it is added
+   */
+  public NamespaceSliceDU addNamespace(int namespaceId, File path, long used)
+      throws IOException {
+    return addNamespace(namespaceId, new TrackedNamespaceSliceDU(path, used));
+  }
+
+  class TrackedNamespaceSliceDU extends NamespaceSliceDU {
+    // the tracked usage when du started
+    private long trackedAtStart;
+
+    TrackedNamespaceSliceDU(File path, long used) throws IOException {
+      super(path, used);
+    }
+
+    /**
+     * @return the tracked disk space used, without running du
+     */
+    public long getUsed() throws IOException {
+      return used.get();
+    }
+
+    public void run() throws IOException {
+      trackedAtStart = used.get();
+      super.run();
+    }
+
+    protected void parseExecResult(BufferedReader lines) throws IOException {
+      long measured = parseUsed(lines);
+      long drift = measured - trackedAtStart;
+      if (Math.abs(drift) > tolerance * measured) {
+        LOG.warn("Disk usage of " + getDirPath() + " was " + trackedAtStart
+            + " bytes but du reports " + measured + " bytes. Correcting it.");
+        // du measured the usage as of when it started, so correct the
+        // drift from the value at that time and keep the changes made
+        // while du was running
+        used.addAndGet(drift);
+      } else if (LOG.isDebugEnabled()) {
+        LOG.debug("Disk usage of " + getDirPath() + " was " + trackedAtStart
+            + " bytes, du reports " + measured + " bytes");
+      }
+    }
+
+    public String toString() {
+      return "tracked " + getDirPath() + "\n" + used + "\t" + getDirPath();
+    }
+  }
+}
@@ -23,6 +23,7 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.DataChecksum;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.znerd.xmlenc.XMLOutputter;
@@ -47,10 +48,34 @@ public class MD5MD5CRC32FileChecksum extends FileChecksum {
     this.crcPerBlock = crcPerBlock;
     this.md5 = md5;
   }
+
+  /**
+   * Create the checksum of a file whose blocks have CRCs of the given
+   * type, a {@link DataChecksum} type.
+   */
+  public static MD5MD5CRC32FileChecksum newInstance(int bytesPerCRC,
+      long crcPerBlock, MD5Hash md5, int crcType) {
+    switch (crcType) {
+    case DataChecksum.CHECKSUM_CRC32:
+      return new MD5MD5CRC32FileChecksum(bytesPerCRC, crcPerBlock, md5);
+    case DataChecksum.CHECKSUM_CRC32C:
+      return new MD5MD5CRC32CastagnoliFileChecksum(bytesPerCRC, crcPerBlock,
+          md5);
+    default:
+      throw new IllegalArgumentException("Unsupported CRC type "
+          + DataChecksum.getChecksumTypeName(crcType));
+    }
+  }
+
+  /** @return the {@link DataChecksum} type of the CRCs */
+  public int getCrcType() {
+    return DataChecksum.CHECKSUM_CRC32;
+  }
   
   /** {@inheritDoc} */ 
   public String getAlgorithmName() {
-    return "MD5-of-" + crcPerBlock + "MD5-of-" + bytesPerCRC + "CRC32";
+    return "MD5-of-" + crcPerBlock + "MD5-of-" + bytesPerCRC
+        + DataChecksum.getChecksumTypeName(getCrcType());
   }
 
   /** {@inheritDoc} */ 
@@ -83,6 +108,10 @@ public class MD5MD5CRC32FileChecksum extends FileChecksum {
       xml.attribute("bytesPerCRC", "" + that.bytesPerCRC);
       xml.attribute("crcPerBlock", "" + that.crcPerBlock);
       xml.attribute("md5", "" + that.md5);
+      if (that.getCrcType() != DataChecksum.CHECKSUM_CRC32) {
+        xml.attribute("crcType",
+            DataChecksum.getChecksumTypeName(that.getCrcType()));
+      }
     }
     xml.endTag();
   }
@@ -93,16 +122,21 @@ public class MD5MD5CRC32FileChecksum extends FileChecksum {
     final String bytesPerCRC = attrs.getValue("bytesPerCRC");
     final String crcPerBlock = attrs.getValue("crcPerBlock");
     final String md5 = attrs.getValue("md5");
+    // written by the servers that know other types than CRC32
+    final String crcType = attrs.getValue("crcType");
     if (bytesPerCRC == null || crcPerBlock == null || md5 == null) {
       return null;
     }
 
     try {
-      return new MD5MD5CRC32FileChecksum(Integer.valueOf(bytesPerCRC),
-          Integer.valueOf(crcPerBlock), new MD5Hash(md5));
+      return newInstance(Integer.valueOf(bytesPerCRC),
+          Integer.valueOf(crcPerBlock), new MD5Hash(md5),
+          crcType == null ? DataChecksum.CHECKSUM_CRC32
+                          : DataChecksum.getChecksumTypeByName(crcType));
     } catch(Exception e) {
       throw new SAXException("Invalid attributes: bytesPerCRC=" + bytesPerCRC
-          + ", crcPerBlock=" + crcPerBlock + ", md5=" + md5, e);
+          + ", crcPerBlock=" + crcPerBlock + ", md5=" + md5
+          + ", crcType=" + crcType, e);
     }
   }
 
@@ -18,6 +18,7 @@
 package org.apache.hadoop.fs;
 
 import java.io.*;
+import java.util.List;
 import org.apache.hadoop.fs.*;
 
 /** Stream that permits positional reading. */
@@ -44,4 +45,14 @@ public interface PositionedReadable {
    * change the current offset of a file, and is thread-safe.
    */
   public void readFully(long position, byte[] buffer) throws IOException;
+
+  /**
+   * Read several ranges of the file, each into the buffer of the range.
+   * The ranges may be read in any order and concurrently, and nearby
+   * ranges may be read together; the ranges may overlap but their buffers
+   * must not. This does not change the current offset of a file, and is
+   * thread-safe.
+   * @throws EOFException if a range ends after the end of the file
+   */
+  public void readVectored(List<FileRange> ranges) throws IOException;
 }
@@ -21,6 +21,7 @@ package org.apache.hadoop.fs;
 import java.io.*;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.*;
 
@@ -142,17 +143,64 @@ public class RawLocalFileSystem extends FileSystem {
         throw new FSError(e);                   // assume native fs error
       }
     }
-    
+
+    /** Read straight into the buffer with the file channel. */
+    public int read(ByteBuffer buf) throws IOException {
+      try {
+        int value = fis.getChannel().read(buf);
+        if (value > 0) {
+          this.position += value;
+          statistics.incrementBytesRead(value);
+        }
+        return value;
+      } catch (IOException e) {                 // unexpected exception
+        throw new FSError(e);                   // assume native fs error
+      }
+    }
+
     public int read(long position, byte[] b, int off, int len)
       throws IOException {
       ByteBuffer bb = ByteBuffer.wrap(b, off, len);
       try {
-        return fis.getChannel().read(bb, position);
+        int value = fis.getChannel().read(bb, position);
+        if (value > 0) {
+          statistics.incrementBytesRead(value);
+        }
+        return value;
       } catch (IOException e) {
         throw new FSError(e);
       }
     }
-    
+
+    /**
+     * Read each range straight into its buffer with the positional reads
+     * of the file channel, so that a direct buffer is not copied.
+     */
+    public void readVectored(List<FileRange> ranges) throws IOException {
+      FileChannel channel = fis.getChannel();
+      for (FileRange range : FileRange.sort(ranges)) {
+        ByteBuffer bb = range.getBuffer().duplicate();
+        bb.limit(bb.position() + range.getLength());
+        long pos = range.getOffset();
+        try {
+          while (bb.hasRemaining()) {
+            int n = channel.read(bb, pos);
+            if (n < 0) {
+              throw new EOFException("End of file reached before reading "
+                  + range + " fully.");
+            }
+            statistics.incrementBytesRead(n);
+            pos += n;
+          }
+        } catch (EOFException e) {
+          throw e;
+        } catch (IOException e) {
+          throw new FSError(e);
+        }
+        range.getBuffer().position(bb.position());
+      }
+    }
+
     public long skip(long n) throws IOException {
       long value = fis.skip(n);
       if (value > 0) {
@@ -19,6 +19,7 @@
 package org.apache.hadoop.io;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.rmi.server.UID;
 import java.security.MessageDigest;
@@ -1765,23 +1766,30 @@ public class SequenceFile {
     /** Read a compressed buffer */
     private synchronized void readBuffer(DataInputBuffer buffer, 
                                          CompressionInputStream filter) throws IOException {
-      // Read data into a temporary buffer
-      DataOutputBuffer dataBuffer = new DataOutputBuffer();
-
-      try {
-        int dataBufferLength = WritableUtils.readVInt(in);
-        dataBuffer.write(in, dataBufferLength);
-      
-        // Set up 'buffer' connected to the input-stream
-        buffer.reset(dataBuffer.getData(), 0, dataBuffer.getLength());
-      } finally {
-        dataBuffer.close();
+      // Read data into the array of the buffer, if it is large enough
+      int dataBufferLength = WritableUtils.readVInt(in);
+      byte[] data = buffer.getData();
+      if (data.length < dataBufferLength) {
+        data = new byte[dataBufferLength];
       }
+      readFully(ByteBuffer.wrap(data, 0, dataBufferLength));
+
+      // Set up 'buffer' connected to the input-stream
+      buffer.reset(data, 0, dataBufferLength);
 
       // Reset the codec
       filter.resetState();
     }
     
+    /** Read bytes from the file until the buffer is full. */
+    private void readFully(ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining()) {
+        if (in.read(buf) < 0) {
+          throw new EOFException("End of file reached in " + file);
+        }
+      }
+    }
+
     /** Read the next 'compressed' block */
     private synchronized void readBlock() throws IOException {
       // Check if we need to throw away a whole block of 
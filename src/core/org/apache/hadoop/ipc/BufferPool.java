@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte buffers shared by the threads of a {@link Server}.
+ *
+ * The buffers are allocated in power of two sizes from
+ * {@link #MIN_BUFFER_SIZE} up to the maximum buffer size, and at most
+ * the configured number of bytes is kept in the pool; the buffers
+ * returned beyond that are left to the garbage collector. Larger buffers
+ * are allocated on each request and never pooled.
+ */
+class BufferPool {
+  static final int MIN_SHIFT = 10;
+  static final int MIN_BUFFER_SIZE = 1 << MIN_SHIFT;
+
+  private final boolean direct;
+  private final int maxBufferSize;
+  private final long maxPooledBytes;
+  private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+  private final AtomicLong pooledBytes = new AtomicLong();
+  private final AtomicLong allocatedBytes = new AtomicLong();
+
+  /**
+   * @param direct whether to allocate direct buffers
+   * @param maxBufferSize the size of the largest pooled buffers
+   * @param maxPooledBytes the maximum number of bytes kept in the pool
+   */
+  @SuppressWarnings("unchecked")
+  BufferPool(boolean direct, int maxBufferSize, long maxPooledBytes) {
+    this.direct = direct;
+    this.maxBufferSize = Math.max(MIN_BUFFER_SIZE, maxBufferSize);
+    this.maxPooledBytes = maxPooledBytes;
+    int classes = getSizeClass(this.maxBufferSize) + 1;
+    free = (ConcurrentLinkedQueue<ByteBuffer>[])
+        new ConcurrentLinkedQueue<?>[classes];
+    for (int i = 0; i < classes; i++) {
+      free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+  }
+
+  /** @return the index of the smallest size class holding size bytes */
+  static int getSizeClass(int size) {
+    if (size <= MIN_BUFFER_SIZE) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+  }
+
+  private ByteBuffer allocate(int capacity) {
+    allocatedBytes.addAndGet(capacity);
+    return direct ?
+        ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  /**
+   * Get a buffer with its position at 0 and its limit at the given size.
+   */
+  ByteBuffer get(int size) {
+    if (size > maxBufferSize) {
+      return allocate(size);
+    }
+    int sizeClass = getSizeClass(size);
+    ByteBuffer buffer = free[sizeClass].poll();
+    if (buffer == null) {
+      buffer = allocate(MIN_BUFFER_SIZE << sizeClass);
+    } else {
+      pooledBytes.addAndGet(-buffer.capacity());
+    }
+    buffer.clear();
+    buffer.limit(size);
+    return buffer;
+  }
+
+  /**
+   * Return a buffer obtained from {@link #get(int)} to the pool.
+   * The buffer must not be used after that.
+   */
+  void put(ByteBuffer buffer) {
+    int capacity = buffer.capacity();
+    if (buffer.isDirect() != direct || capacity > maxBufferSize
+        || Integer.bitCount(capacity) != 1 || capacity < MIN_BUFFER_SIZE) {
+      return;
+    }
+    if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+      pooledBytes.addAndGet(-capacity);
+      return;
+    }
+    free[getSizeClass(capacity)].offer(buffer);
+  }
+
+  /** @return the number of bytes allocated by the pool so far */
+  long getAllocatedBytes() {
+    return allocatedBytes.get();
+  }
+
+  /** @return the number of bytes in the buffers kept in the pool */
+  long getPooledBytes() {
+    return pooledBytes.get();
+  }
+}
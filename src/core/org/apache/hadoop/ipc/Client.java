@@ -36,11 +36,15 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -84,6 +88,12 @@ public class Client {
 
   private SocketFactory socketFactory;           // how to create sockets
   private int refCount = 1;
+
+  public static final String IPC_CLIENT_ASYNC_CALLS_MAX_KEY =
+    "ipc.client.async.calls.max";
+  public static final int IPC_CLIENT_ASYNC_CALLS_MAX_DEFAULT = 100000;
+  // permits for the asynchronous calls in flight, null if unbounded
+  final private Semaphore asyncCallPermits;
   
   final private static String PING_INTERVAL_NAME = "ipc.ping.interval";
   final static int DEFAULT_PING_INTERVAL = 60000; // 1 min
@@ -199,6 +209,72 @@ public class Client {
     }
   }
 
+  /** A call whose value is collected through a {@link Future}. */
+  private class AsyncCall extends Call implements Future<Writable> {
+    private final InetSocketAddress addr;
+
+    AsyncCall(Writable param, InetSocketAddress addr) {
+      super(param);
+      this.addr = addr;
+    }
+
+    /** Wake up all the waiters and give back the permit of the call. */
+    protected synchronized void callComplete() {
+      if (done) {
+        return;
+      }
+      done = true;
+      notifyAll();
+      if (asyncCallPermits != null) {
+        asyncCallPermits.release();
+      }
+    }
+
+    /** The calls are not cancelled once sent. */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return false;
+    }
+
+    public synchronized boolean isDone() {
+      return done;
+    }
+
+    public synchronized Writable get()
+        throws InterruptedException, ExecutionException {
+      while (!done) {
+        wait();
+      }
+      return getValue();
+    }
+
+    public synchronized Writable get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+      while (!done) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new TimeoutException("Call to " + addr + " timed out");
+        }
+        wait(remaining);
+      }
+      return getValue();
+    }
+
+    private Writable getValue() throws ExecutionException {
+      if (error == null) {
+        return value;
+      }
+      if (error instanceof RemoteException) {
+        throw new ExecutionException(error);
+      }
+      throw new ExecutionException(wrapException(addr, error));
+    }
+  }
+
   /** Thread that reads responses and notifies callers.  Each connection owns a
    * socket connected to a remote address.  Calls are multiplexed through this
    * socket: responses may be delivered out of order. */
@@ -233,6 +309,8 @@ public class Client {
     };
     private final ExecutorService executor =
       Executors.newSingleThreadExecutor(daemonThreadFactory);
+    // number of calls submitted to the executor and not yet written
+    private final AtomicInteger pendingSends = new AtomicInteger();
 
     public Connection(ConnectionId remoteId) throws IOException {
       this.remoteId = remoteId;
@@ -512,12 +590,41 @@ public class Client {
      * Note: this is not called from the Connection thread, but by other
      * threads.
      */
-    public void sendParam(final Call call) throws InterruptedException {
+    public void sendParam(Call call) throws InterruptedException {
+      sendParam(call, true);
+    }
+
+    /** Initiates a call by sending the parameter to the remote server.
+     * The parameters are written in the order of the calls by the sender
+     * thread of the connection, which flushes the stream only once it has
+     * no other parameter to write so that pipelined calls share packets.
+     * @param call the call
+     * @param waitForSend whether to wait until the parameter is written
+     */
+    void sendParam(final Call call, boolean waitForSend)
+        throws InterruptedException {
       if (shouldCloseConnection.get()) {
         return;
       }
 
       final CountDownLatch latch = new CountDownLatch(1);
+      pendingSends.incrementAndGet();
+      try {
+        submitParam(call, latch);
+      } catch (RejectedExecutionException e) {
+        pendingSends.decrementAndGet();
+        throw e;
+      }
+
+      if (waitForSend && !latch.await(pingInterval, TimeUnit.MILLISECONDS)) {
+        markClosed(new IOException(
+          String.format("timeout waiting for sendParam, %d ms", pingInterval)
+        ));
+      }
+    }
+
+    /** Queue the writing of the parameter of a call to the sender thread. */
+    private void submitParam(final Call call, final CountDownLatch latch) {
       executor.submit(new Runnable() {
         @Override
         public void run() {
@@ -540,11 +647,14 @@ public class Client {
               int dataLength = d.getLength();
               out.writeInt(dataLength);      //first put the data length
               out.write(data, 0, dataLength);//write the data
-              out.flush();
+              if (pendingSends.get() == 1) {
+                out.flush();                 //no other call queued behind
+              }
             }
           } catch (IOException e) {
             markClosed(e);
           } finally {
+            pendingSends.decrementAndGet();
             latch.countDown();
             //the buffer is just an in-memory buffer, but it is still polite to
             // close early
@@ -552,12 +662,6 @@ public class Client {
           }
         }
       });
-
-      if (!latch.await(pingInterval, TimeUnit.MILLISECONDS)) {
-        markClosed(new IOException(
-          String.format("timeout waiting for sendParam, %d ms", pingInterval)
-        ));
-      }
     }
 
     /* Receive a response.
@@ -714,6 +818,10 @@ public class Client {
     if (LOG.isDebugEnabled()) {
       LOG.debug("The ping interval is" + this.pingInterval + "ms.");
     }
+    int maxAsyncCalls = conf.getInt(IPC_CLIENT_ASYNC_CALLS_MAX_KEY,
+                                    IPC_CLIENT_ASYNC_CALLS_MAX_DEFAULT);
+    this.asyncCallPermits =
+      maxAsyncCalls > 0 ? new Semaphore(maxAsyncCalls) : null;
     this.conf = conf;
     this.socketFactory = factory;
   }
@@ -838,6 +946,38 @@ public class Client {
     }
   }
 
+  /** Start a call, passing <code>param</code>, to the IPC server running at
+   * <code>address</code> which is servicing the <code>protocol</code> protocol,
+   * with the <code>ticket</code> credentials and <code>rpcTimeout</code>,
+   * without waiting for its value.  The call is pipelined with the other
+   * calls to the same server and its value is delivered through the returned
+   * future when the response arrives; an exception thrown by the remote code
+   * or a network problem is the cause of the {@link ExecutionException}
+   * thrown by the future.
+   * Blocks while {@value #IPC_CLIENT_ASYNC_CALLS_MAX_KEY} asynchronous calls
+   * of this client are in flight. */
+  public Future<Writable> callAsync(Writable param, InetSocketAddress addr,
+                                    Class<?> protocol,
+                                    UserGroupInformation ticket,
+                                    int rpcTimeout)
+                                    throws InterruptedException, IOException {
+    if (asyncCallPermits != null) {
+      asyncCallPermits.acquire();
+    }
+    AsyncCall call = new AsyncCall(param, addr);
+    try {
+      Connection connection = getConnection(addr, protocol, ticket,
+                                            rpcTimeout, call);
+      connection.sendParam(call, false);
+    } catch (RejectedExecutionException e) {
+      call.setException(new IOException("connection has been closed", e));
+    } catch (IOException e) {
+      call.setException(e);                     // give back the permit
+      throw e;
+    }
+    return call;
+  }
+
   /**
    * Take an IOException and the address we were trying to connect to
    * and return an IOException with the input exception as the cause.
@@ -0,0 +1,344 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A call queue made of several FIFO queues of decreasing priority which
+ * shares the handlers fairly among the callers.
+ *
+ * A call is put in a queue according to the share of the recent calls
+ * made by its caller: a caller that made half of the recent calls or more
+ * goes to the lowest level, a quarter or more to the level above and so
+ * on; the others stay at the top level. The counts of the calls are
+ * halved every decay period so that a caller that slows down is promoted
+ * back. The handlers take the calls from the queues in weighted round
+ * robin, by default 8 calls from the top level for 4 from the next one
+ * and so on, and from the other queues when the current one is empty.
+ *
+ * The configuration keys are:
+ * <ul>
+ * <li>ipc.server.callqueue.levels, the number of queues (default 4)</li>
+ * <li>ipc.server.callqueue.weights, the number of calls taken from
+ * each queue in turn, top level first</li>
+ * <li>ipc.server.callqueue.decay.period.ms, how often the counts of the
+ * calls are decayed (default 5000)</li>
+ * </ul>
+ */
+public class FairCallQueue<E extends Schedulable> extends AbstractQueue<E>
+    implements BlockingQueue<E> {
+  public static final Log LOG = LogFactory.getLog(FairCallQueue.class);
+
+  public static final String IPC_CALLQUEUE_LEVELS_KEY =
+    "ipc.server.callqueue.levels";
+  public static final int IPC_CALLQUEUE_LEVELS_DEFAULT = 4;
+  public static final String IPC_CALLQUEUE_WEIGHTS_KEY =
+    "ipc.server.callqueue.weights";
+  public static final String IPC_CALLQUEUE_DECAY_PERIOD_KEY =
+    "ipc.server.callqueue.decay.period.ms";
+  public static final long IPC_CALLQUEUE_DECAY_PERIOD_DEFAULT = 5000;
+
+  private final BlockingQueue<E>[] queues;
+  // one permit per queued call, so that take() can block on all queues
+  private final Semaphore available = new Semaphore(0);
+
+  // weighted round robin state
+  private final int[] weights;
+  private int currentLevel = 0;
+  private int currentCredits;
+
+  // the share of the recent calls above which a caller is demoted
+  // to level i + 1
+  private final double[] thresholds;
+  private final ConcurrentHashMap<String, AtomicLong> callCounts =
+    new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicLong totalCalls = new AtomicLong();
+  private final long decayPeriod;
+  private volatile long lastDecay;
+
+  /**
+   * @param capacity the total capacity, shared equally among the queues
+   * @param conf configuration
+   */
+  @SuppressWarnings("unchecked")
+  public FairCallQueue(int capacity, Configuration conf) {
+    int levels = conf.getInt(IPC_CALLQUEUE_LEVELS_KEY,
+                             IPC_CALLQUEUE_LEVELS_DEFAULT);
+    if (levels < 1) {
+      throw new IllegalArgumentException(IPC_CALLQUEUE_LEVELS_KEY
+          + " must be positive: " + levels);
+    }
+    queues = (BlockingQueue<E>[]) new BlockingQueue<?>[levels];
+    for (int i = 0; i < levels; i++) {
+      queues[i] = new LinkedBlockingQueue<E>(Math.max(1, capacity / levels));
+    }
+
+    weights = new int[levels];
+    String[] configured = conf.getStrings(IPC_CALLQUEUE_WEIGHTS_KEY);
+    if (configured != null && configured.length != levels) {
+      throw new IllegalArgumentException(IPC_CALLQUEUE_WEIGHTS_KEY
+          + " must have " + levels + " values");
+    }
+    for (int i = 0; i < levels; i++) {
+      weights[i] = configured == null ?
+          1 << (levels - 1 - i) : Integer.parseInt(configured[i].trim());
+      if (weights[i] < 1) {
+        throw new IllegalArgumentException(IPC_CALLQUEUE_WEIGHTS_KEY
+            + " must be positive");
+      }
+    }
+    currentCredits = weights[0];
+
+    thresholds = new double[levels - 1];
+    for (int i = 0; i < thresholds.length; i++) {
+      thresholds[i] = 1.0 / (1 << (levels - 1 - i));
+    }
+    decayPeriod = conf.getLong(IPC_CALLQUEUE_DECAY_PERIOD_KEY,
+                               IPC_CALLQUEUE_DECAY_PERIOD_DEFAULT);
+    lastDecay = System.currentTimeMillis();
+    LOG.info("FairCallQueue with " + levels + " levels, capacity "
+        + capacity + ", decay period " + decayPeriod + " ms");
+  }
+
+  /** @return the number of queues */
+  public int getNumLevels() {
+    return queues.length;
+  }
+
+  /** @return the number of calls in the queue of the given level */
+  public int size(int level) {
+    return queues[level].size();
+  }
+
+  /** Halve the counts of the calls if the decay period elapsed */
+  private void decayIfNeeded() {
+    long now = System.currentTimeMillis();
+    if (now - lastDecay < decayPeriod) {
+      return;
+    }
+    synchronized (callCounts) {
+      if (now - lastDecay < decayPeriod) {
+        return;
+      }
+      lastDecay = now;
+      long total = 0;
+      for (Iterator<AtomicLong> it = callCounts.values().iterator();
+           it.hasNext();) {
+        AtomicLong count = it.next();
+        long decayed = count.get() / 2;
+        count.set(decayed);
+        if (decayed == 0) {
+          it.remove();
+        }
+        total += decayed;
+      }
+      totalCalls.set(total);
+    }
+  }
+
+  /**
+   * Count a call of the given caller.
+   * @return the level of the queue the call goes to
+   */
+  int getPriorityLevel(String identity) {
+    decayIfNeeded();
+    AtomicLong count = callCounts.get(identity);
+    if (count == null) {
+      count = new AtomicLong();
+      AtomicLong old = callCounts.putIfAbsent(identity, count);
+      if (old != null) {
+        count = old;
+      }
+    }
+    double share = (double)count.incrementAndGet()
+        / Math.max(1, totalCalls.incrementAndGet());
+    for (int level = thresholds.length; level > 0; level--) {
+      if (share >= thresholds[level - 1]) {
+        return level;
+      }
+    }
+    return 0;
+  }
+
+  private BlockingQueue<E> queueFor(E e) {
+    if (e == null) {
+      throw new NullPointerException();
+    }
+    int level = getPriorityLevel(e.getIdentity());
+    e.setPriorityLevel(level);
+    return queues[level];
+  }
+
+  /** @return the level the next call should be taken from */
+  private synchronized int nextLevel() {
+    if (currentCredits == 0) {
+      currentLevel = (currentLevel + 1) % queues.length;
+      currentCredits = weights[currentLevel];
+    }
+    currentCredits--;
+    return currentLevel;
+  }
+
+  /**
+   * Remove a call once a permit was acquired: there is at least one call
+   * in the queues for every permit acquired and not yet used.
+   */
+  private E removeNext() {
+    int start = nextLevel();
+    while (true) {
+      for (int i = 0; i < queues.length; i++) {
+        E e = queues[(start + i) % queues.length].poll();
+        if (e != null) {
+          return e;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void put(E e) throws InterruptedException {
+    queueFor(e).put(e);
+    available.release();
+  }
+
+  @Override
+  public boolean offer(E e, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    if (queueFor(e).offer(e, timeout, unit)) {
+      available.release();
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean offer(E e) {
+    if (queueFor(e).offer(e)) {
+      available.release();
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public E take() throws InterruptedException {
+    available.acquire();
+    return removeNext();
+  }
+
+  @Override
+  public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+    if (!available.tryAcquire(timeout, unit)) {
+      return null;
+    }
+    return removeNext();
+  }
+
+  @Override
+  public E poll() {
+    if (!available.tryAcquire()) {
+      return null;
+    }
+    return removeNext();
+  }
+
+  @Override
+  public E peek() {
+    for (BlockingQueue<E> q : queues) {
+      E e = q.peek();
+      if (e != null) {
+        return e;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public int size() {
+    return available.availablePermits();
+  }
+
+  @Override
+  public int remainingCapacity() {
+    int remaining = 0;
+    for (BlockingQueue<E> q : queues) {
+      remaining += q.remainingCapacity();
+    }
+    return remaining;
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c, int maxElements) {
+    int drained = 0;
+    while (drained < maxElements) {
+      E e = poll();
+      if (e == null) {
+        break;
+      }
+      c.add(e);
+      drained++;
+    }
+    return drained;
+  }
+
+  /**
+   * A weakly consistent iterator over a copy of the queues, top level
+   * first. It does not support removal.
+   */
+  @Override
+  public Iterator<E> iterator() {
+    List<E> copy = new ArrayList<E>();
+    for (BlockingQueue<E> q : queues) {
+      copy.addAll(q);
+    }
+    final Iterator<E> it = copy.iterator();
+    return new Iterator<E>() {
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+
+      public E next() {
+        return it.next();
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException("Remove is not supported.");
+      }
+    };
+  }
+}
@@ -30,6 +30,10 @@ import java.net.SocketTimeoutException;
 import java.io.*;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.net.SocketFactory;
 import javax.security.auth.Subject;
@@ -203,19 +207,33 @@ public class RPC {
     private boolean isClosed = false;
     final private int rpcTimeout;
     final private Class<?> protocol;
+    final private boolean async;
 
     public Invoker(InetSocketAddress address, UserGroupInformation ticket, 
                    Configuration conf, SocketFactory factory, int rpcTimeout,
                    Class<?> protocol) {
+      this(address, ticket, conf, factory, rpcTimeout, protocol, false);
+    }
+
+    Invoker(InetSocketAddress address, UserGroupInformation ticket,
+            Configuration conf, SocketFactory factory, int rpcTimeout,
+            Class<?> protocol, boolean async) {
       this.address = address;
       this.ticket = ticket;
       this.client = CLIENTS.getClient(conf, factory);
       this.rpcTimeout = rpcTimeout;
       this.protocol = protocol;
+      this.async = async;
     }
 
     public Object invoke(Object proxy, Method method, Object[] args)
       throws Throwable {
+      if (async && method.getDeclaringClass() != VersionedProtocol.class) {
+        Future<Writable> value = client.callAsync(new Invocation(method, args),
+            address, protocol, ticket, rpcTimeout);
+        ASYNC_RETURN.set(new AsyncReturn<Object>(value));
+        return defaultValue(method.getReturnType());
+      }
       final boolean logDebug = LOG.isDebugEnabled();
       long startTime = 0;
       if (logDebug) {
@@ -241,6 +259,82 @@ public class RPC {
     }
   }
 
+  /** The value of a call made through an asynchronous proxy. */
+  private static class AsyncReturn<V> implements Future<V> {
+    private final Future<Writable> value;
+
+    AsyncReturn(Future<Writable> value) {
+      this.value = value;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return value.cancel(mayInterruptIfRunning);
+    }
+
+    public boolean isCancelled() {
+      return value.isCancelled();
+    }
+
+    public boolean isDone() {
+      return value.isDone();
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get() throws InterruptedException, ExecutionException {
+      return (V)((ObjectWritable)value.get()).get();
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      return (V)((ObjectWritable)value.get(timeout, unit)).get();
+    }
+  }
+
+  // the value of the last call made by a thread through an asynchronous proxy
+  private static final ThreadLocal<Future<?>> ASYNC_RETURN =
+    new ThreadLocal<Future<?>>();
+
+  /** @return the value a proxy returns in place of the actual value */
+  private static Object defaultValue(Class<?> type) {
+    if (!type.isPrimitive() || type == Void.TYPE) {
+      return null;
+    } else if (type == Boolean.TYPE) {
+      return Boolean.FALSE;
+    } else if (type == Character.TYPE) {
+      return Character.valueOf((char)0);
+    } else if (type == Byte.TYPE) {
+      return Byte.valueOf((byte)0);
+    } else if (type == Short.TYPE) {
+      return Short.valueOf((short)0);
+    } else if (type == Integer.TYPE) {
+      return Integer.valueOf(0);
+    } else if (type == Long.TYPE) {
+      return Long.valueOf(0L);
+    } else if (type == Float.TYPE) {
+      return Float.valueOf(0f);
+    } else {
+      return Double.valueOf(0d);
+    }
+  }
+
+  /**
+   * Get the value of the last call the current thread made through a proxy
+   * returned by {@link #getAsyncProxy}. The proxy returns null, false or 0
+   * in place of the value, which is delivered by the future once the
+   * response arrives; a remote exception is the cause of the
+   * {@link ExecutionException} thrown by the future.
+   *
+   * @return the future value, null if there was no asynchronous call since
+   *         the previous invocation of this method
+   */
+  @SuppressWarnings("unchecked")
+  public static <V> Future<V> getAsyncReturn() {
+    Future<V> value = (Future<V>)ASYNC_RETURN.get();
+    ASYNC_RETURN.remove();
+    return value;
+  }
+
   /**
    * An exception indicating that the client and server have
    * incompatible versions. They are not able to communicate with each other.
@@ -523,7 +617,6 @@ public class RPC {
    * @return the proxy
    * @throws IOException if any error occurs
    */
-  @SuppressWarnings("unchecked")
   public static <T extends VersionedProtocol> ProtocolProxy<T> getProtocolProxy(
       Class<T> protocol,
 		                          long clientVersion,
@@ -532,9 +625,63 @@ public class RPC {
                                 Configuration conf,
                                 SocketFactory factory,
                                 int rpcTimeout) throws IOException {
+    return getProtocolProxy(protocol, clientVersion, addr, ticket, conf,
+        factory, rpcTimeout, false);
+  }
+
+  /**
+   * Construct a client-side proxy that implements the named protocol,
+   * talking to a server at the named address, whose calls return without
+   * waiting for the response. The calls are pipelined over the connection
+   * to the server; the value of a call is collected with
+   * {@link #getAsyncReturn()} right after it is made. The methods of
+   * {@link VersionedProtocol} remain synchronous.
+   *
+   * @param protocol protocol
+   * @param clientVersion client's version
+   * @param addr server address
+   * @param ticket security ticket
+   * @param conf configuration
+   * @param factory socket factory
+   * @param rpcTimeout max time for each rpc; 0 means no timeout
+   * @return the proxy
+   * @throws IOException if any error occurs
+   */
+  public static <T extends VersionedProtocol> T getAsyncProxy(
+      Class<T> protocol, long clientVersion, InetSocketAddress addr,
+      UserGroupInformation ticket, Configuration conf,
+      SocketFactory factory, int rpcTimeout) throws IOException {
+    return getProtocolProxy(protocol, clientVersion, addr, ticket, conf,
+        factory, rpcTimeout, true).getProxy();
+  }
+
+  /**
+   * Construct an asynchronous client-side proxy with the default
+   * SocketFactory and the login user.
+   * @see #getAsyncProxy(Class, long, InetSocketAddress, UserGroupInformation, Configuration, SocketFactory, int)
+   */
+  public static <T extends VersionedProtocol> T getAsyncProxy(
+      Class<T> protocol, long clientVersion, InetSocketAddress addr,
+      Configuration conf) throws IOException {
+    UserGroupInformation ugi = null;
+    try {
+      ugi = UserGroupInformation.login(conf);
+    } catch (LoginException le) {
+      throw new RuntimeException("Couldn't login!");
+    }
+    return getAsyncProxy(protocol, clientVersion, addr, ugi, conf,
+        NetUtils.getDefaultSocketFactory(conf), 0);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T extends VersionedProtocol> ProtocolProxy<T> getProtocolProxy(
+      Class<T> protocol, long clientVersion, InetSocketAddress addr,
+      UserGroupInformation ticket, Configuration conf, SocketFactory factory,
+      int rpcTimeout, boolean async) throws IOException {
     T proxy = (T) Proxy.newProxyInstance(
             protocol.getClassLoader(), new Class[] { protocol },
-            new Invoker(addr, ticket, conf, factory, rpcTimeout, protocol));
+            new Invoker(addr, ticket, conf, factory, rpcTimeout, protocol,
+                        async));
     String protocolName = protocol.getName();
     
     try {
@@ -0,0 +1,41 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+/**
+ * A call that a call queue of {@link Server} can schedule by the
+ * identity of its caller.
+ */
+public interface Schedulable {
+  /**
+   * @return the identity of the caller: the user name given in the
+   * connection header, or the address of the client if there is none
+   */
+  String getIdentity();
+
+  /**
+   * Set the level of the queue the call is put in, 0 being the level
+   * with the highest priority.
+   */
+  void setPriorityLevel(int level);
+
+  /**
+   * @return the level of the queue the call was put in
+   */
+  int getPriorityLevel();
+}
@@ -23,6 +23,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
@@ -110,6 +111,26 @@ public abstract class Server {
   public static final String IPC_SERVER_RPC_READ_THREADS_KEY =
                                         "ipc.server.read.threadpool.size";
   public static final int IPC_SERVER_RPC_READ_THREADS_DEFAULT = 1;
+  /**
+   * The class of the call queue: a {@link BlockingQueue} with a public
+   * constructor taking the capacity and the configuration, for example
+   * {@link FairCallQueue}. By default the calls are served in FIFO order.
+   */
+  public static final String IPC_SERVER_CALLQUEUE_IMPL_KEY =
+                                        "ipc.server.callqueue.impl";
+  /**
+   * How many bytes of request and of response buffers are kept for reuse
+   * by each server; 0 to allocate new buffers for every call.
+   */
+  public static final String IPC_SERVER_BUFFER_POOL_MAX_BYTES_KEY =
+                                        "ipc.server.buffer.pool.max.bytes";
+  public static final long IPC_SERVER_BUFFER_POOL_MAX_BYTES_DEFAULT =
+                                        16 * 1024 * 1024;
+  /**
+   * The maximum number of queued responses written to a connection
+   * with a single gathering write.
+   */
+  static final int MAX_GATHERED_RESPONSES = 16;
     
   public static final Log LOG = LogFactory.getLog(Server.class);
 
@@ -222,6 +243,10 @@ public abstract class Server {
 
   volatile private boolean running = true;         // true while server runs
   private BlockingQueue<Call> callQueue; // queued calls
+  // pools of the buffers the requests are read in and the responses
+  // are sent from, null if the buffers are not pooled
+  private BufferPool readPool;
+  private BufferPool responsePool;
 
   private List<Connection> connectionList = 
     Collections.synchronizedList(new LinkedList<Connection>());
@@ -264,7 +289,7 @@ public abstract class Server {
   }
 
   /** A call queued for handling. */
-  private static class Call {
+  private static class Call implements Schedulable {
     private int id;                               // the client's call id
     private Writable param;                       // the parameter passed
     private Connection connection;                // connection to client
@@ -273,6 +298,7 @@ public abstract class Server {
     private ByteBuffer response;                      // the response for this call
     private boolean delayResponse = false;
     private Responder responder;
+    private int priorityLevel = 0;    // level of the call queue it was put in
     
 
     public Call(int id, Writable param, Connection connection, Responder responder) { 
@@ -307,6 +333,21 @@ public abstract class Server {
     public synchronized boolean delayed() {
       return this.delayResponse;
     }
+
+    @Override
+    public String getIdentity() {
+      return connection == null ? "" : connection.identity;
+    }
+
+    @Override
+    public void setPriorityLevel(int level) {
+      this.priorityLevel = level;
+    }
+
+    @Override
+    public int getPriorityLevel() {
+      return priorityLevel;
+    }
   }
 
   /** Listens on the socket. Creates jobs for the handler threads*/
@@ -777,14 +818,29 @@ public abstract class Server {
                       call.connection);
           }
           //
-          // Send as much data as we can in the non-blocking fashion
+          // Send as much data as we can in the non-blocking fashion,
+          // together with the other responses waiting in direct buffers
           //
-          int numBytes = channelWrite(channel, call.response);
+          long numBytes;
+          if (call.response.isDirect() && numElements > 1) {
+            numBytes = gatherWrite(channel, call, responseQueue);
+          } else {
+            numBytes = channelWrite(channel, call.response);
+          }
           if (numBytes < 0) {
             return true;
           }
+          // remove the other responses sent by the gathering write
+          while (!responseQueue.isEmpty() &&
+                 !responseQueue.getFirst().response.hasRemaining()) {
+            Call sent = responseQueue.removeFirst();
+            sent.connection.decRpcCount();
+            releaseResponse(sent);
+            numElements--;
+          }
           if (!call.response.hasRemaining()) {
             call.connection.decRpcCount();
+            releaseResponse(call);
             if (numElements == 1) {    // last call fully processes.
               done = true;             // no more data for this channel.
             } else {
@@ -836,6 +892,29 @@ public abstract class Server {
       return done;
     }
 
+    /**
+     * Write the response of the given call followed by the responses in
+     * direct buffers queued after it with a single gathering write.
+     * @return the number of bytes written
+     */
+    private long gatherWrite(SocketChannel channel, Call first,
+                             LinkedList<Call> responseQueue)
+        throws IOException {
+      int n = 1 + Math.min(responseQueue.size(), MAX_GATHERED_RESPONSES - 1);
+      ByteBuffer[] srcs = new ByteBuffer[n];
+      srcs[0] = first.response;
+      int i = 1;
+      for (Iterator<Call> it = responseQueue.iterator();
+           i < n && it.hasNext(); i++) {
+        ByteBuffer response = it.next().response;
+        if (response == null || !response.isDirect()) {
+          break;
+        }
+        srcs[i] = response;
+      }
+      return channel.write(srcs, 0, i);
+    }
+
     //
     // Enqueue a response from the application.
     //
@@ -888,6 +967,8 @@ public abstract class Server {
     Class<?> protocol;
     
     Subject user = null;
+    // the caller the calls of this connection are scheduled by
+    String identity;
 
     // Fake 'call' for failed authorization response
     private final int AUTHROIZATION_FAILED_CALLID = -1;
@@ -908,6 +989,7 @@ public abstract class Server {
       } else {
         this.hostAddress = addr.getHostAddress();
       }
+      this.identity = hostAddress;
       this.remotePort = socket.getPort();
       this.responseQueue = new LinkedList<Call>();
       if (socketSendBufferSize != 0) {
@@ -1001,7 +1083,8 @@ public abstract class Server {
             dataLengthBuffer.clear();
             return 0;  //ping message
           }
-          data = ByteBuffer.allocate(dataLength);
+          data = readPool == null ?
+              ByteBuffer.allocate(dataLength) : readPool.get(dataLength);
           incRpcCount();  // Increment the rpc count
         }
         
@@ -1011,13 +1094,19 @@ public abstract class Server {
           dataLengthBuffer.clear();
           data.flip();
           if (headerRead) {
-            processData();
-            data = null;
+            try {
+              processData();
+            } finally {
+              releaseReadBuffer();
+            }
             return count;
           } else {
-            processHeader();
+            try {
+              processHeader();
+            } finally {
+              releaseReadBuffer();
+            }
             headerRead = true;
-            data = null;
             
             // Authorize the connection
             try {
@@ -1044,10 +1133,18 @@ public abstract class Server {
       }
     }
 
+    /** Return the buffer of the request just processed to the pool */
+    private void releaseReadBuffer() {
+      if (readPool != null) {
+        readPool.put(data);
+      }
+      data = null;
+    }
+
     /// Reads the connection header following version
     private void processHeader() throws IOException {
-      DataInputStream in =
-        new DataInputStream(new ByteArrayInputStream(data.array()));
+      DataInputStream in = new DataInputStream(
+          new ByteArrayInputStream(data.array(), 0, data.limit()));
       header.readFields(in);
       try {
         String protocolClassName = header.getProtocol();
@@ -1061,11 +1158,14 @@ public abstract class Server {
       // TODO: Get the user name from the GSS API for Kerberbos-based security
       // Create the user subject
       user = SecurityUtil.getSubject(header.getUgi());
+      if (header.getUgi() != null) {
+        identity = header.getUgi().getUserName();
+      }
     }
     
     private void processData() throws  IOException, InterruptedException {
-      DataInputStream dis =
-        new DataInputStream(new ByteArrayInputStream(data.array()));
+      DataInputStream dis = new DataInputStream(
+          new ByteArrayInputStream(data.array(), 0, data.limit()));
       int id = dis.readInt();                    // try to read an id
         
       if (LOG.isDebugEnabled())
@@ -1107,6 +1207,10 @@ public abstract class Server {
       while (running) {
         try {
           final Call call = callQueue.take(); // pop the queue; maybe blocked here
+          if (rpcMetrics.callQueueWaitTime != null) {
+            rpcMetrics.callQueueWaitTime[call.getPriorityLevel()].inc(
+                System.currentTimeMillis() - call.timestamp);
+          }
 
           if (LOG.isDebugEnabled())
             LOG.debug(getName() + ": has #" + call.id + " from " +
@@ -1202,7 +1306,16 @@ public abstract class Server {
                                    IPC_SERVER_RPC_MAX_RESPONSE_SIZE_DEFAULT);
     this.readThreads = conf.getInt(IPC_SERVER_RPC_READ_THREADS_KEY,
                                    IPC_SERVER_RPC_READ_THREADS_DEFAULT);
-    this.callQueue  = new LinkedBlockingQueue<Call>(maxQueueSize); 
+    this.callQueue  = createCallQueue(conf, maxQueueSize);
+    long maxPooledBytes = conf.getLong(IPC_SERVER_BUFFER_POOL_MAX_BYTES_KEY,
+        IPC_SERVER_BUFFER_POOL_MAX_BYTES_DEFAULT);
+    if (maxPooledBytes > 0) {
+      // requests are deserialized from the arrays of heap buffers,
+      // responses are written from direct buffers which the channels
+      // do not copy again
+      this.readPool = new BufferPool(false, maxRespSize, maxPooledBytes);
+      this.responsePool = new BufferPool(true, maxRespSize, maxPooledBytes);
+    }
     this.maxIdleTime = 2*conf.getInt("ipc.client.connection.maxidletime", 1000);
     this.maxConnectionsToNuke = conf.getInt("ipc.client.kill.max", 10);
     this.thresholdIdleConnections = conf.getInt("ipc.client.idlethreshold", 4000);
@@ -1256,7 +1369,48 @@ public abstract class Server {
       WritableUtils.writeString(out, errorClass);
       WritableUtils.writeString(out, error);
     }
-    call.setResponse(ByteBuffer.wrap(response.toByteArray()));
+    call.setResponse(toResponseBuffer(response));
+  }
+
+  /**
+   * Copy a serialized response to a pooled direct buffer, or to a new
+   * heap buffer if the buffers are not pooled or the response is too
+   * large to be pooled.
+   */
+  private ByteBuffer toResponseBuffer(ByteArrayOutputStream response)
+      throws IOException {
+    if (responsePool == null || response.size() > maxRespSize) {
+      return ByteBuffer.wrap(response.toByteArray());
+    }
+    final ByteBuffer buffer = responsePool.get(response.size());
+    response.writeTo(new OutputStream() {
+      @Override
+      public void write(int b) {
+        buffer.put((byte)b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        buffer.put(b, off, len);
+      }
+    });
+    buffer.flip();
+    return buffer;
+  }
+
+  /** Return the buffer of a response fully sent to the pool */
+  private void releaseResponse(Call call) {
+    ByteBuffer response = call.response;
+    call.response = null;
+    if (responsePool != null && response != null) {
+      responsePool.put(response);
+    }
+  }
+
+  /** @return the number of bytes allocated by the buffer pools so far */
+  long getPoolAllocatedBytes() {
+    return readPool == null ? 0 :
+      readPool.getAllocatedBytes() + responsePool.getAllocatedBytes();
   }
   
   Configuration getConf() {
@@ -1360,6 +1514,49 @@ public abstract class Server {
   public int getCallQueueLen() {
     return callQueue.size();
   }
+
+  /**
+   * The number of levels of the call queue.
+   * @return the number of levels, 1 unless the call queue is a
+   * {@link FairCallQueue}
+   */
+  public int getNumCallQueueLevels() {
+    if (callQueue instanceof FairCallQueue) {
+      return ((FairCallQueue<Call>)callQueue).getNumLevels();
+    }
+    return 1;
+  }
+
+  /**
+   * The number of rpc calls in the queue of the given level.
+   * @param level the level of the call queue
+   * @return The number of rpc calls in the queue of the level.
+   */
+  public int getCallQueueLen(int level) {
+    if (callQueue instanceof FairCallQueue) {
+      return ((FairCallQueue<Call>)callQueue).size(level);
+    }
+    return callQueue.size();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static BlockingQueue<Call> createCallQueue(Configuration conf,
+      int maxQueueSize) throws IOException {
+    Class<?> queueClass = conf.getClass(IPC_SERVER_CALLQUEUE_IMPL_KEY,
+        LinkedBlockingQueue.class, BlockingQueue.class);
+    if (queueClass == LinkedBlockingQueue.class) {
+      return new LinkedBlockingQueue<Call>(maxQueueSize);
+    }
+    try {
+      return (BlockingQueue<Call>)queueClass.getConstructor(
+          int.class, Configuration.class).newInstance(maxQueueSize, conf);
+    } catch (Exception e) {
+      IOException ioe = new IOException("Cannot create call queue "
+          + queueClass.getName());
+      ioe.initCause(e);
+      throw ioe;
+    }
+  }
   
   
   /**
@@ -60,6 +60,18 @@ public class RpcMetrics implements Updater {
         + hostName + ", port=" + port);
 
     context.registerUpdater(this);
+
+    // one set of metrics for each level of a multi level call queue
+    int levels = server.getNumCallQueueLevels();
+    if (levels > 1) {
+      callQueueLens = new MetricsIntValue[levels];
+      callQueueWaitTime = new MetricsTimeVaryingRate[levels];
+      for (int i = 0; i < levels; i++) {
+        callQueueLens[i] = new MetricsIntValue("callQueueLen" + i, registry);
+        callQueueWaitTime[i] =
+          new MetricsTimeVaryingRate("CallQueueWaitTime" + i, registry);
+      }
+    }
     
     // Need to clean up the interface to RpcMgt - don't need both metrics and server params
     rpcMBean = new RpcActivityMBean(registry, hostName, port);
@@ -80,6 +92,10 @@ public class RpcMetrics implements Updater {
           new MetricsIntValue("NumOpenConnections", registry);
   public MetricsIntValue callQueueLen = 
           new MetricsIntValue("callQueueLen", registry);
+  /** Per level call queue lengths, null with a single level call queue */
+  public MetricsIntValue[] callQueueLens;
+  /** Per level call queue wait times, null with a single level call queue */
+  public MetricsTimeVaryingRate[] callQueueWaitTime;
   
   /**
    * Push the metrics to the monitoring subsystem on doUpdate() call.
@@ -91,6 +107,11 @@ public class RpcMetrics implements Updater {
       // the metrics do not have be copied here.
       numOpenConnections.set(myServer.getNumOpenConnections());
       callQueueLen.set(myServer.getCallQueueLen());
+      if (callQueueLens != null) {
+        for (int i = 0; i < callQueueLens.length; i++) {
+          callQueueLens[i].set(myServer.getCallQueueLen(i));
+        }
+      }
       for (MetricsBase m : registry.getMetricsList()) {
         m.pushMetric(metricsRecord);
       }
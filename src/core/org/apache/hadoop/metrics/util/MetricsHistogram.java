@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.metrics.util;
+
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.util.StringUtils;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The MetricsHistogram class is a {@link MetricsTimeVaryingRate} that
+ * also keeps the distribution of the times of the operations.
+ * The times are counted in buckets whose upper bounds grow in a
+ * 1, 2, 5 sequence (1, 2, 5, 10, 20, 50, ... msec), and the 50th, 90th
+ * and 99th percentiles of the previous interval are published along
+ * with the number of operations and the average time.
+ * A percentile is reported as the upper bound of the bucket it falls in.
+ */
+public class MetricsHistogram extends MetricsTimeVaryingRate {
+
+  private static final Log LOG =
+    LogFactory.getLog("org.apache.hadoop.metrics.util");
+
+  /** The percentiles published at each interval */
+  static final int[] PERCENTILES = {50, 90, 99};
+
+  /** Upper bounds (inclusive) of the buckets; the last bucket is unbounded */
+  static final long[] BOUNDS;
+  static {
+    BOUNDS = new long[3 * 7];
+    long decade = 1;
+    for (int i = 0; i < BOUNDS.length; i += 3) {
+      BOUNDS[i] = decade;
+      BOUNDS[i + 1] = 2 * decade;
+      BOUNDS[i + 2] = 5 * decade;
+      decade *= 10;
+    }
+  }
+
+  private final long[] currentCounts = new long[BOUNDS.length + 1];
+  private final long[] previousPercentiles = new long[PERCENTILES.length];
+
+  /**
+   * Constructor - create a new metric
+   * @param nam the name of the metrics to be used to publish the metric
+   * @param registry - where the metrics object will be registered
+   */
+  public MetricsHistogram(final String nam, final MetricsRegistry registry,
+                          final String description) {
+    super(nam, registry, description);
+  }
+
+  /**
+   * Constructor - create a new metric
+   * @param nam the name of the metrics to be used to publish the metric
+   * @param registry - where the metrics object will be registered
+   * A description of {@link #NO_DESCRIPTION} is used
+   */
+  public MetricsHistogram(final String nam, MetricsRegistry registry) {
+    this(nam, registry, NO_DESCRIPTION);
+  }
+
+  static int getBucket(final long time) {
+    int low = 0;
+    int high = BOUNDS.length;
+    // find the first bucket whose bound is not less than time
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (BOUNDS[mid] < time) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Increment the metrics for numOps operations
+   * @param numOps - number of operations
+   * @param time - time for numOps operations
+   */
+  @Override
+  public synchronized void inc(final int numOps, final long time) {
+    super.inc(numOps, time);
+    currentCounts[getBucket(time/numOps)] += numOps;
+  }
+
+  /**
+   * Increment the metrics for one operation
+   * @param time for one operation
+   */
+  @Override
+  public synchronized void inc(final long time) {
+    super.inc(time);
+    currentCounts[getBucket(time)]++;
+  }
+
+  private void intervalHeartBeat() {
+    long total = 0;
+    for (long count : currentCounts) {
+      total += count;
+    }
+    int bucket = 0;
+    long seen = currentCounts[0];
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      if (total == 0) {
+        previousPercentiles[i] = 0;
+        continue;
+      }
+      // the number of operations at or below the percentile
+      long rank = (total * PERCENTILES[i] + 99) / 100;
+      while (seen < rank) {
+        seen += currentCounts[++bucket];
+      }
+      previousPercentiles[i] = bucket < BOUNDS.length ?
+          BOUNDS[bucket] : Long.MAX_VALUE;
+    }
+    for (int i = 0; i < currentCounts.length; i++) {
+      currentCounts[i] = 0;
+    }
+  }
+
+  /**
+   * Push the delta metrics to the mr, including the percentiles of
+   * the previous interval as &lt;name&gt;_p50, _p90 and _p99.
+   *
+   * @param mr
+   */
+  @Override
+  public synchronized void pushMetric(final MetricsRecord mr) {
+    super.pushMetric(mr);
+    intervalHeartBeat();
+    try {
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        mr.setMetric(getName() + "_p" + PERCENTILES[i],
+                     previousPercentiles[i]);
+      }
+    } catch (Exception e) {
+      LOG.info("pushMetric failed for " + getName() + "\n" +
+          StringUtils.stringifyException(e));
+    }
+  }
+
+  /**
+   * The given percentile of the times of the operations in the previous
+   * interval, rounded up to the bound of its bucket.
+   * @param percentile one of 50, 90 or 99
+   * @return the percentile, 0 if there were no operations
+   */
+  public synchronized long getPreviousIntervalPercentile(int percentile) {
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      if (PERCENTILES[i] == percentile) {
+        return previousPercentiles[i];
+      }
+    }
+    throw new IllegalArgumentException("Percentile " + percentile
+        + " is not tracked");
+  }
+}
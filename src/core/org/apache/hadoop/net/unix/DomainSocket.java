@@ -0,0 +1,317 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.net.unix;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.util.NativeCodeLoader;
+
+/**
+ * A stream socket in the UNIX domain, implemented in the native hadoop
+ * library. Besides bytes, it can pass open file descriptors to the peer,
+ * which is how a DataNode hands the block files to a local client without
+ * giving the client access to its data directories.
+ *
+ * The socket is only usable when {@link #isAvailable()} returns true.
+ */
+public class DomainSocket implements Closeable {
+  private static final Log LOG = LogFactory.getLog(DomainSocket.class);
+
+  private static final boolean available;
+
+  static {
+    boolean loaded = false;
+    if (NativeCodeLoader.isNativeCodeLoaded()) {
+      try {
+        anchorNative();
+        loaded = true;
+      } catch (UnsatisfiedLinkError e) {
+        LOG.warn("The native-hadoop library does not support UNIX domain"
+            + " sockets: " + e);
+      }
+    }
+    available = loaded;
+  }
+
+  /**
+   * The string in a socket path replaced with the port of the data
+   * transfer server, so that the DataNodes of a host use different paths.
+   */
+  public static final String PORT_PATTERN = "_PORT";
+
+  private final String path;
+  private final int fd;
+  // closed and refCount are guarded by this. The fd is only closed once the
+  // socket is closed and no native call is using it, since the number of a
+  // closed fd can be reused for an unrelated file.
+  private boolean closed = false;
+  private int refCount = 0;
+
+  private DomainSocket(String path, int fd) {
+    this.path = path;
+    this.fd = fd;
+  }
+
+  /** @return true if the native library supports the domain sockets */
+  public static boolean isAvailable() {
+    return available;
+  }
+
+  private static void checkAvailable() throws IOException {
+    if (!available) {
+      throw new IOException("UNIX domain sockets are not available");
+    }
+  }
+
+  /** @return the path with {@link #PORT_PATTERN} replaced by the port */
+  public static String getEffectivePath(String path, int port) {
+    return path.replace(PORT_PATTERN, String.valueOf(port));
+  }
+
+  /**
+   * Create a socket listening at the given path. An existing file at the
+   * path is removed first.
+   */
+  public static DomainSocket bindAndListen(String path, int backlog)
+      throws IOException {
+    checkAvailable();
+    return new DomainSocket(path, bind0(path, backlog));
+  }
+
+  /**
+   * Check that no other user can replace the socket at the given path:
+   * each directory above it must be owned by the user of the process or by
+   * root, and must not be writable by its group or by others.
+   * @throws IOException if a directory is not secure
+   */
+  public static void validateSocketPathSecurity(String path)
+      throws IOException {
+    checkAvailable();
+    validateSocketPathSecurity0(new File(path).getAbsolutePath());
+  }
+
+  /** Connect to the socket listening at the given path. */
+  public static DomainSocket connect(String path) throws IOException {
+    checkAvailable();
+    return new DomainSocket(path, connect0(path));
+  }
+
+  /** Wait for a connection on a listening socket. */
+  public DomainSocket accept() throws IOException {
+    reference();
+    try {
+      return new DomainSocket(path, accept0(fd));
+    } finally {
+      unreference();
+    }
+  }
+
+  /**
+   * Set the timeout of the reads and writes on this socket; a blocked
+   * operation then fails with a {@link java.net.SocketTimeoutException}.
+   * @param millis the timeout in milliseconds, 0 for no timeout
+   */
+  public void setTimeout(int millis) throws IOException {
+    reference();
+    try {
+      setTimeout0(fd, millis);
+    } finally {
+      unreference();
+    }
+  }
+
+  /** @return the path of the socket */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * Count a native call using the fd.
+   * @throws IOException if the socket is closed
+   */
+  private synchronized void reference() throws IOException {
+    if (closed) {
+      throw new IOException("socket " + path + " is closed");
+    }
+    refCount++;
+  }
+
+  /**
+   * Count the end of a native call using the fd, and close the fd if the
+   * socket was closed and this was the last call.
+   */
+  private void unreference() {
+    if (release()) {
+      try {
+        close0(fd);
+      } catch (IOException e) {
+        LOG.warn("Could not close " + this, e);
+      }
+    }
+  }
+
+  /** @return true if the fd must be closed */
+  private synchronized boolean release() {
+    return --refCount == 0 && closed;
+  }
+
+  /**
+   * Send bytes together with open file descriptors, which the peer gets
+   * with {@link #receiveFileDescriptors}. The descriptors stay open here.
+   */
+  public void sendFileDescriptors(FileDescriptor[] descriptors,
+      byte[] b, int off, int len) throws IOException {
+    reference();
+    try {
+      sendFileDescriptors0(fd, descriptors, b, off, len);
+    } finally {
+      unreference();
+    }
+  }
+
+  /**
+   * Receive bytes and the file descriptors sent with them. The entries of
+   * <code>descriptors</code> past the number of descriptors received are
+   * set to null; the caller owns the descriptors received.
+   * @return the number of bytes read, -1 at the end of the stream
+   */
+  public int receiveFileDescriptors(FileDescriptor[] descriptors,
+      byte[] b, int off, int len) throws IOException {
+    reference();
+    try {
+      return receiveFileDescriptors0(fd, descriptors, b, off, len);
+    } finally {
+      unreference();
+    }
+  }
+
+  /** @return a stream reading from this socket */
+  public InputStream getInputStream() {
+    return new InputStream() {
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+        reference();
+        try {
+          if (len == 0) {
+            return 0;
+          }
+          return readArray0(fd, b, off, len);
+        } finally {
+          unreference();
+        }
+      }
+
+      public void close() throws IOException {
+        DomainSocket.this.close();
+      }
+    };
+  }
+
+  /** @return a stream writing to this socket */
+  public OutputStream getOutputStream() {
+    return new OutputStream() {
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException {
+        reference();
+        try {
+          writeArray0(fd, b, off, len);
+        } finally {
+          unreference();
+        }
+      }
+
+      public void close() throws IOException {
+        DomainSocket.this.close();
+      }
+    };
+  }
+
+  /**
+   * Close the socket. The threads blocked on it are woken up, and the fd
+   * is closed when the last of them returns.
+   */
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      // keep the fd open while shutting it down
+      refCount++;
+    }
+    try {
+      shutdown0(fd);
+    } finally {
+      if (release()) {
+        close0(fd);
+      }
+    }
+  }
+
+  /**
+   * Close a listening socket and remove its file.
+   */
+  public void closeAndUnlink() throws IOException {
+    try {
+      close();
+    } finally {
+      unlink0(path);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "DomainSocket(" + path + ", fd=" + fd + ")";
+  }
+
+  private static native void anchorNative();
+  private static native int bind0(String path, int backlog) throws IOException;
+  private static native int accept0(int fd) throws IOException;
+  private static native int connect0(String path) throws IOException;
+  private static native void setTimeout0(int fd, int millis)
+      throws IOException;
+  private static native int readArray0(int fd, byte[] b, int off, int len)
+      throws IOException;
+  private static native void writeArray0(int fd, byte[] b, int off, int len)
+      throws IOException;
+  private static native void sendFileDescriptors0(int fd,
+      FileDescriptor[] descriptors, byte[] b, int off, int len)
+      throws IOException;
+  private static native int receiveFileDescriptors0(int fd,
+      FileDescriptor[] descriptors, byte[] b, int off, int len)
+      throws IOException;
+  private static native void shutdown0(int fd) throws IOException;
+  private static native void close0(int fd) throws IOException;
+  private static native void unlink0(String path) throws IOException;
+  private static native void validateSocketPathSecurity0(String path)
+      throws IOException;
+}
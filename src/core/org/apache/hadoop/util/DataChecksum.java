@@ -22,6 +22,9 @@ import java.util.zip.Checksum;
 import java.util.zip.CRC32;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.fs.ChecksumException;
 
 /**
  * This class provides inteface and utilities for processing checksums for
@@ -36,9 +39,36 @@ public class DataChecksum implements Checksum {
   // checksum types
   public static final int CHECKSUM_NULL    = 0;
   public static final int CHECKSUM_CRC32   = 1;
+  public static final int CHECKSUM_CRC32C  = 2;
   
   private static final int CHECKSUM_NULL_SIZE  = 0;
   private static final int CHECKSUM_CRC32_SIZE = 4;
+  private static final int CHECKSUM_CRC32C_SIZE = 4;
+
+  private static final String[] CHECKSUM_NAMES = {"NULL", "CRC32", "CRC32C"};
+
+  /**
+   * @return the checksum type of a name: NULL, CRC32 or CRC32C
+   * @throws IllegalArgumentException if the name is not a checksum type
+   */
+  public static int getChecksumTypeByName( String name ) {
+    for ( int type = 0; type < CHECKSUM_NAMES.length; type++ ) {
+      if ( CHECKSUM_NAMES[type].equalsIgnoreCase( name.trim() ) ) {
+        return type;
+      }
+    }
+    throw new IllegalArgumentException( "Unknown checksum type " + name );
+  }
+
+  /**
+   * @return the name of a checksum type
+   */
+  public static String getChecksumTypeName( int type ) {
+    if ( type >= 0 && type < CHECKSUM_NAMES.length ) {
+      return CHECKSUM_NAMES[type];
+    }
+    return "UNKNOWN(" + type + ")";
+  }
   
   
   public static DataChecksum newDataChecksum( int type, int bytesPerChecksum ) {
@@ -53,12 +83,16 @@ public class DataChecksum implements Checksum {
     case CHECKSUM_CRC32 :
       return new DataChecksum( CHECKSUM_CRC32, new CRC32(), 
                                CHECKSUM_CRC32_SIZE, bytesPerChecksum );
+    case CHECKSUM_CRC32C :
+      return new DataChecksum( CHECKSUM_CRC32C, new PureJavaCrc32C(),
+                               CHECKSUM_CRC32C_SIZE, bytesPerChecksum );
     default:
       return null;  
     }
   }
 
-  // This constructor uses the specified summer instance
+  // This constructor uses the specified summer instance for CRC32. The
+  // summer is an implementation of CRC32, so CRC32C uses its own.
   public static DataChecksum newDataChecksum( int type, int bytesPerChecksum, Checksum sum ) {
     if ( bytesPerChecksum <= 0 ) {
       return null;
@@ -71,6 +105,9 @@ public class DataChecksum implements Checksum {
     case CHECKSUM_CRC32 :
       return new DataChecksum( CHECKSUM_CRC32, sum, 
                                CHECKSUM_CRC32_SIZE, bytesPerChecksum );
+    case CHECKSUM_CRC32C :
+      return new DataChecksum( CHECKSUM_CRC32C, new PureJavaCrc32C(),
+                               CHECKSUM_CRC32C_SIZE, bytesPerChecksum );
     default:
       return null;  
     }
@@ -151,7 +188,7 @@ public class DataChecksum implements Checksum {
        return 0;
      }
 
-     if ( type == CHECKSUM_CRC32 ) {
+     if ( type == CHECKSUM_CRC32 || type == CHECKSUM_CRC32C ) {
        out.writeInt( (int) summer.getValue() );
      } else {
        throw new IOException( "Unknown Checksum " + type );
@@ -175,7 +212,7 @@ public class DataChecksum implements Checksum {
         return 0;
       }
 
-      if ( type == CHECKSUM_CRC32 ) {
+      if ( type == CHECKSUM_CRC32 || type == CHECKSUM_CRC32C ) {
         int checksum = (int) summer.getValue();
         buf[offset+0] = (byte) ((checksum >>> 24) & 0xff);
         buf[offset+1] = (byte) ((checksum >>> 16) & 0xff);
@@ -197,7 +234,8 @@ public class DataChecksum implements Checksum {
     * @return true if the checksum matches and false otherwise.
     */
    public boolean compare( byte buf[], int offset ) {
-     if ( size > 0 && type == CHECKSUM_CRC32 ) {
+     if ( size > 0 && ( type == CHECKSUM_CRC32 ||
+                        type == CHECKSUM_CRC32C ) ) {
        int checksum = ( (buf[offset+0] & 0xff) << 24 ) | 
                       ( (buf[offset+1] & 0xff) << 16 ) |
                       ( (buf[offset+2] & 0xff) << 8 )  |
@@ -207,9 +245,191 @@ public class DataChecksum implements Checksum {
      return size == 0;
    }
    
+   /**
+    * Verify the checksums of the chunks of the remaining bytes of
+    * <i>data</i> against the checksums at the position of <i>checksums</i>,
+    * one per chunk of bytesPerChecksum bytes. The positions of the buffers
+    * and the current checksum are not changed.
+    * @param fileName the name of the file, for the error message
+    * @param basePos the position in the file of the data
+    * @throws ChecksumException at the position of the first corrupt chunk
+    */
+   public void verifyChunkedSums( ByteBuffer data, ByteBuffer checksums,
+                                  String fileName, long basePos )
+                                  throws ChecksumException {
+     if ( size <= 0 ) {
+       return;
+     }
+     if ( data.hasArray() && checksums.hasArray() ) {
+       verifyChunkedSums( data.array(), data.arrayOffset() + data.position(),
+                          data.remaining(), checksums.array(),
+                          checksums.arrayOffset() + checksums.position(),
+                          fileName, basePos );
+       return;
+     }
+     if ( useNative() && data.isDirect() && checksums.isDirect() ) {
+       NativeCrc32.verifyChunkedSums( bytesPerChecksum, type, checksums, data,
+                                      fileName, basePos );
+       return;
+     }
+     data = data.duplicate();
+     checksums = checksums.duplicate();
+     byte[] chunk = new byte[Math.min( data.remaining(), bytesPerChecksum )];
+     long pos = basePos;
+     while ( data.hasRemaining() ) {
+       int n = Math.min( data.remaining(), bytesPerChecksum );
+       data.get( chunk, 0, n );
+       chunkSummer.reset();
+       chunkSummer.update( chunk, 0, n );
+       int expected = checksums.getInt();
+       int calculated = (int) chunkSummer.getValue();
+       if ( expected != calculated ) {
+         throw checksumError( fileName, pos, expected, calculated );
+       }
+       pos += n;
+     }
+   }
+
+   /**
+    * Verify the checksums of the chunks of data[dataOff, dataOff+dataLen)
+    * against the checksums at checksums[checksumsOff], one per chunk of
+    * bytesPerChecksum bytes. The current checksum is not changed.
+    * @param fileName the name of the file, for the error message
+    * @param basePos the position in the file of data[dataOff]
+    * @throws ChecksumException at the position of the first corrupt chunk
+    */
+   public void verifyChunkedSums( byte[] data, int dataOff, int dataLen,
+                                  byte[] checksums, int checksumsOff,
+                                  String fileName, long basePos )
+                                  throws ChecksumException {
+     if ( size <= 0 ) {
+       return;
+     }
+     if ( useNative() ) {
+       NativeCrc32.verifyChunkedSumsByteArray( bytesPerChecksum, type,
+           checksums, checksumsOff, data, dataOff, dataLen, fileName, basePos );
+       return;
+     }
+     int remaining = dataLen;
+     int off = dataOff;
+     int sumOff = checksumsOff;
+     while ( remaining > 0 ) {
+       int n = Math.min( remaining, bytesPerChecksum );
+       chunkSummer.reset();
+       chunkSummer.update( data, off, n );
+       int expected = readInt( checksums, sumOff );
+       int calculated = (int) chunkSummer.getValue();
+       if ( expected != calculated ) {
+         throw checksumError( fileName, basePos + off - dataOff,
+                              expected, calculated );
+       }
+       off += n;
+       sumOff += size;
+       remaining -= n;
+     }
+   }
+
+   /**
+    * Store the checksums of the chunks of the remaining bytes of
+    * <i>data</i> at the position of <i>checksums</i>, one per chunk of
+    * bytesPerChecksum bytes. The positions of the buffers and the current
+    * checksum are not changed.
+    */
+   public void calculateChunkedSums( ByteBuffer data, ByteBuffer checksums ) {
+     if ( size <= 0 ) {
+       return;
+     }
+     if ( data.hasArray() && checksums.hasArray() ) {
+       calculateChunkedSums( data.array(), data.arrayOffset() + data.position(),
+                             data.remaining(), checksums.array(),
+                             checksums.arrayOffset() + checksums.position() );
+       return;
+     }
+     if ( useNative() && data.isDirect() && checksums.isDirect() ) {
+       NativeCrc32.calculateChunkedSums( bytesPerChecksum, type,
+                                         checksums, data );
+       return;
+     }
+     data = data.duplicate();
+     checksums = checksums.duplicate();
+     byte[] chunk = new byte[Math.min( data.remaining(), bytesPerChecksum )];
+     while ( data.hasRemaining() ) {
+       int n = Math.min( data.remaining(), bytesPerChecksum );
+       data.get( chunk, 0, n );
+       chunkSummer.reset();
+       chunkSummer.update( chunk, 0, n );
+       checksums.putInt( (int) chunkSummer.getValue() );
+     }
+   }
+
+   /**
+    * Store the checksums of the chunks of data[dataOff, dataOff+dataLen)
+    * at checksums[checksumsOff], one per chunk of bytesPerChecksum bytes.
+    * The current checksum is not changed.
+    */
+   public void calculateChunkedSums( byte[] data, int dataOff, int dataLen,
+                                     byte[] checksums, int checksumsOff ) {
+     if ( size <= 0 ) {
+       return;
+     }
+     if ( useNative() ) {
+       NativeCrc32.calculateChunkedSumsByteArray( bytesPerChecksum, type,
+           checksums, checksumsOff, data, dataOff, dataLen );
+       return;
+     }
+     int remaining = dataLen;
+     int off = dataOff;
+     int sumOff = checksumsOff;
+     while ( remaining > 0 ) {
+       int n = Math.min( remaining, bytesPerChecksum );
+       chunkSummer.reset();
+       chunkSummer.update( data, off, n );
+       writeInt( checksums, sumOff, (int) chunkSummer.getValue() );
+       off += n;
+       sumOff += size;
+       remaining -= n;
+     }
+   }
+
+   /**
+    * The native library computes CRC32C faster than Java, and CRC32 faster
+    * than PureJavaCrc32, but java.util.zip.CRC32 is faster for CRC32 on
+    * the JVMs which compile it to the CRC instructions of the CPU.
+    */
+   private boolean useNative() {
+     boolean faster = type == CHECKSUM_CRC32C ||
+         ( type == CHECKSUM_CRC32 && chunkSummer instanceof PureJavaCrc32 );
+     return faster && NativeCrc32.isAvailable();
+   }
+
+   private static ChecksumException checksumError( String fileName, long pos,
+                                                   int expected,
+                                                   int calculated ) {
+     return new ChecksumException( "Checksum error: " + fileName + " at " +
+                                   pos + " exp: " + expected +
+                                   " got: " + calculated, pos );
+   }
+
+   private static int readInt( byte[] buf, int offset ) {
+     return ( (buf[offset+0] & 0xff) << 24 ) |
+            ( (buf[offset+1] & 0xff) << 16 ) |
+            ( (buf[offset+2] & 0xff) << 8 )  |
+            ( (buf[offset+3] & 0xff) );
+   }
+
+   private static void writeInt( byte[] buf, int offset, int value ) {
+     buf[offset+0] = (byte) ((value >>> 24) & 0xff);
+     buf[offset+1] = (byte) ((value >>> 16) & 0xff);
+     buf[offset+2] = (byte) ((value >>> 8) & 0xff);
+     buf[offset+3] = (byte) (value & 0xff);
+   }
+   
   private final int type;
   private final int size;
   private final Checksum summer;
+  // computes the chunked checksums without the native library, with the
+  // same implementation as summer but without disturbing its running value
+  private final Checksum chunkSummer;
   private final int bytesPerChecksum;
   private int inSum = 0;
   
@@ -217,6 +437,15 @@ public class DataChecksum implements Checksum {
                         int sumSize, int chunkSize ) {
     type = checksumType;
     summer = checksum;
+    if ( checksumType == CHECKSUM_CRC32C ) {
+      chunkSummer = new PureJavaCrc32C();
+    } else if ( checksumType != CHECKSUM_CRC32 ) {
+      chunkSummer = checksum;
+    } else if ( checksum instanceof PureJavaCrc32 ) {
+      chunkSummer = new PureJavaCrc32();
+    } else {
+      chunkSummer = new CRC32();
+    }
     size = sumSize;
     bytesPerChecksum = chunkSize;
   }
@@ -234,6 +463,24 @@ public class DataChecksum implements Checksum {
   public int getNumBytesInSum() {
     return inSum;
   }
+
+  /** Two checksums are equal if they have the same type and chunk size. */
+  public boolean equals( Object other ) {
+    if ( !(other instanceof DataChecksum) ) {
+      return false;
+    }
+    DataChecksum o = (DataChecksum) other;
+    return o.type == type && o.bytesPerChecksum == bytesPerChecksum;
+  }
+
+  public int hashCode() {
+    return 31 * type + bytesPerChecksum;
+  }
+
+  public String toString() {
+    return "DataChecksum(type=" + getChecksumTypeName( type ) +
+           ", chunkSize=" + bytesPerChecksum + ")";
+  }
   
   public static final int SIZE_OF_INTEGER = Integer.SIZE / Byte.SIZE;
   static public int getChecksumHeaderSize() {
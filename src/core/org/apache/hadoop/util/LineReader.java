@@ -20,8 +20,10 @@ package org.apache.hadoop.util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ByteBufferReadable;
 import org.apache.hadoop.io.Text;
 
 /**
@@ -32,6 +34,8 @@ public class LineReader {
   private int bufferSize = DEFAULT_BUFFER_SIZE;
   private InputStream in;
   private byte[] buffer;
+  // the buffer as a ByteBuffer, if the stream can read into one
+  private ByteBuffer byteBuffer;
   // the number of bytes of real data in the buffer
   private int bufferLength = 0;
   // the current position in the buffer
@@ -61,6 +65,9 @@ public class LineReader {
     this.in = in;
     this.bufferSize = bufferSize;
     this.buffer = new byte[this.bufferSize];
+    if (in instanceof ByteBufferReadable) {
+      this.byteBuffer = ByteBuffer.wrap(buffer);
+    }
   }
 
   /**
@@ -75,6 +82,19 @@ public class LineReader {
     this(in, conf.getInt("io.file.buffer.size", DEFAULT_BUFFER_SIZE));
   }
 
+  /**
+   * Read the next bytes of the stream into the buffer. A stream that can
+   * read into a ByteBuffer fills the buffer a packet at a time.
+   * @return the number of bytes read, -1 at the end of the stream
+   */
+  private int fillBuffer() throws IOException {
+    if (byteBuffer == null) {
+      return in.read(buffer);
+    }
+    byteBuffer.clear();
+    return ((ByteBufferReadable) in).read(byteBuffer);
+  }
+
   /**
    * Close the underlying stream.
    * @throws IOException
@@ -131,7 +151,7 @@ public class LineReader {
         startPosn = bufferPosn = 0;
         if (prevCharCR)
           ++bytesConsumed; //account for CR from previous read
-        bufferLength = in.read(buffer);
+        bufferLength = fillBuffer();
         if (bufferLength <= 0)
           break; // EOF
       }
@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.ChecksumException;
+
+/**
+ * Chunked CRC32 and CRC32C computation and verification in the native
+ * hadoop library. The checksums of all the chunks of a buffer are computed
+ * in one call with a slicing-by-8 CRC, which avoids a JNI call per chunk of
+ * {@link java.util.zip.CRC32} and the per-byte loop of {@link PureJavaCrc32}.
+ * CRC32C uses the crc32 instruction of SSE4.2 when the processor has it.
+ *
+ * The checksums are stored as big endian ints, one per chunk of
+ * bytesPerSum bytes, the last chunk may be shorter. This is only used by
+ * {@link DataChecksum}.
+ */
+class NativeCrc32 {
+  private static final Log LOG = LogFactory.getLog(NativeCrc32.class);
+
+  private static final boolean available;
+
+  static {
+    boolean loaded = false;
+    if (NativeCodeLoader.isNativeCodeLoaded()) {
+      try {
+        anchorNative();
+        loaded = true;
+      } catch (UnsatisfiedLinkError e) {
+        LOG.warn("The native-hadoop library does not support chunked CRC32"
+            + " checksums: " + e);
+      }
+    }
+    available = loaded;
+  }
+
+  /**
+   * @return true if the native-hadoop library computes chunked checksums
+   */
+  static boolean isAvailable() {
+    return available;
+  }
+
+  /**
+   * Verify the checksums of the remaining bytes of data against the
+   * checksums at the position of sums. Both buffers must be direct and
+   * their positions are not changed.
+   * @param fileName the name of the file, for the error message
+   * @param basePos the position of data in the file
+   * @throws ChecksumException at the position of the first corrupt chunk
+   */
+  static void verifyChunkedSums(int bytesPerSum, int checksumType,
+      ByteBuffer sums, ByteBuffer data, String fileName, long basePos)
+      throws ChecksumException {
+    checkSumsLength(bytesPerSum, sums.remaining(), data.remaining());
+    nativeComputeChunkedSums(bytesPerSum, checksumType,
+        sums, sums.position(), data, data.position(), data.remaining(),
+        fileName, basePos, true);
+  }
+
+  /**
+   * Store the checksums of the remaining bytes of data at the position of
+   * sums. Both buffers must be direct and their positions are not changed.
+   */
+  static void calculateChunkedSums(int bytesPerSum, int checksumType,
+      ByteBuffer sums, ByteBuffer data) {
+    checkSumsLength(bytesPerSum, sums.remaining(), data.remaining());
+    nativeComputeChunkedSums(bytesPerSum, checksumType,
+        sums, sums.position(), data, data.position(), data.remaining(),
+        null, 0, false);
+  }
+
+  /**
+   * Verify the checksums of data[dataOffset, dataOffset + dataLength)
+   * against the checksums at sums[sumsOffset].
+   * @param fileName the name of the file, for the error message
+   * @param basePos the position of data[dataOffset] in the file
+   * @throws ChecksumException at the position of the first corrupt chunk
+   */
+  static void verifyChunkedSumsByteArray(int bytesPerSum, int checksumType,
+      byte[] sums, int sumsOffset, byte[] data, int dataOffset,
+      int dataLength, String fileName, long basePos)
+      throws ChecksumException {
+    checkBounds(data.length, dataOffset, dataLength);
+    checkBounds(sums.length, sumsOffset, 0);
+    checkSumsLength(bytesPerSum, sums.length - sumsOffset, dataLength);
+    nativeComputeChunkedSumsByteArray(bytesPerSum, checksumType,
+        sums, sumsOffset, data, dataOffset, dataLength,
+        fileName, basePos, true);
+  }
+
+  /**
+   * Store the checksums of data[dataOffset, dataOffset + dataLength) at
+   * sums[sumsOffset].
+   */
+  static void calculateChunkedSumsByteArray(int bytesPerSum,
+      int checksumType, byte[] sums, int sumsOffset, byte[] data,
+      int dataOffset, int dataLength) {
+    checkBounds(data.length, dataOffset, dataLength);
+    checkBounds(sums.length, sumsOffset, 0);
+    checkSumsLength(bytesPerSum, sums.length - sumsOffset, dataLength);
+    nativeComputeChunkedSumsByteArray(bytesPerSum, checksumType,
+        sums, sumsOffset, data, dataOffset, dataLength, null, 0, false);
+  }
+
+  private static void checkBounds(int length, int offset, int len) {
+    if (offset < 0 || len < 0 || offset > length - len) {
+      throw new IndexOutOfBoundsException("offset " + offset + " length "
+          + len + " in an array of " + length + " bytes");
+    }
+  }
+
+  private static void checkSumsLength(int bytesPerSum, int sumsLength,
+      int dataLength) {
+    if (bytesPerSum <= 0) {
+      throw new IllegalArgumentException("Invalid bytesPerSum " + bytesPerSum);
+    }
+    int numChunks = (int) (((long) dataLength + bytesPerSum - 1) / bytesPerSum);
+    if (sumsLength < 0
+        || sumsLength / DataChecksum.SIZE_OF_INTEGER < numChunks) {
+      throw new IndexOutOfBoundsException(numChunks + " checksums do not fit"
+          + " in " + sumsLength + " bytes");
+    }
+  }
+
+  private static native void anchorNative();
+
+  private static native void nativeComputeChunkedSums(int bytesPerSum,
+      int checksumType, ByteBuffer sums, int sumsOffset, ByteBuffer data,
+      int dataOffset, int dataLength, String fileName, long basePos,
+      boolean verify);
+
+  private static native void nativeComputeChunkedSumsByteArray(
+      int bytesPerSum, int checksumType, byte[] sums, int sumsOffset,
+      byte[] data, int dataOffset, int dataLength, String fileName,
+      long basePos, boolean verify);
+}
@@ -26,6 +26,7 @@ import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.ipc.*;
 import org.apache.hadoop.net.NetUtils;
 import org.apache.hadoop.net.NodeBase;
+import org.apache.hadoop.net.unix.DomainSocket;
 import org.apache.hadoop.conf.*;
 import org.apache.hadoop.hdfs.DistributedFileSystem.DiskStatus;
 import org.apache.hadoop.hdfs.protocol.*;
@@ -52,6 +53,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentHashMap;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import javax.net.SocketFactory;
 import javax.security.auth.login.LoginException;
@@ -60,6 +62,12 @@ import javax.security.auth.login.LoginException;
  * the same machine as the datanode, then the client can read
  * files directly from the local file system rathen than going
  * thorugh the datanode. This improves performance dramatically.
+ *
+ * If dfs.domain.socket.path is set, the datanode passes open
+ * descriptors of the block files to the client over a UNIX domain
+ * socket, so the client does not need to be able to read the data
+ * directories of the datanode. The descriptors are cached and reused
+ * by the next readers of the same block.
  */
 public class BlockReaderLocal extends BlockReader {
 
@@ -67,15 +75,31 @@ public class BlockReaderLocal extends BlockReader {
 
   private Configuration conf;
   private long length;
+  // the end of the range to read, at the end of a chunk with checksums
+  private long endOffset;
   private BlockPathInfo pathinfo;
   private FileInputStream dataIn;  // reader for the data file
   private FileInputStream checksumIn;
   private DFSClientMetrics metrics;
+  private Block block;
+  // the cached descriptors this reader uses, null if it opened the files
+  private FileInputStreamCache.Entry fdEntry;
+  // true once a read or a skip did not finish, which may have left the
+  // files at an unknown position or closed their channels on an interrupt
+  private boolean failed = false;
+  // the number of bytes of data read at once into a ByteBuffer
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // true if the reader reads many chunks at once, see read(ByteBuffer)
+  private boolean bufferMode = false;
+  // the verified data which is not read yet, and its checksums
+  private ByteBuffer dataBuf = null;
+  private ByteBuffer checksumBuf = null;
   
   static private volatile ProtocolProxy<ClientDatanodeProtocol> datanode;
   static private final LRUCache<Block, BlockPathInfo> cache = 
     new LRUCache<Block, BlockPathInfo>(10000);
   static private final Path src = new Path("/BlockReaderLocal:localfile");
+  static private volatile FileInputStreamCache fdCache;
   
   /**
    * The only way this object can be instantiated.
@@ -84,6 +108,13 @@ public class BlockReaderLocal extends BlockReader {
     String file, int namespaceid, Block blk, DatanodeInfo node, 
     long startOffset, long length,
     DFSClientMetrics metrics, boolean verifyChecksum) throws IOException {
+    String domainSocketPath = conf.get("dfs.domain.socket.path", "");
+    if (domainSocketPath.length() > 0 && DomainSocket.isAvailable()) {
+      return newBlockReader(conf, file, namespaceid, blk,
+          DomainSocket.getEffectivePath(domainSocketPath, node.getPort()),
+          startOffset, length, metrics, verifyChecksum);
+    }
+
     // check in cache first
     BlockPathInfo pathinfo = cache.get(blk);
 
@@ -127,19 +158,8 @@ public class BlockReaderLocal extends BlockReader {
         // get the metadata file
         File metafile = new File(pathinfo.getMetaPath());
         FileInputStream checksumIn = new FileInputStream(metafile);
-    
-        // read and handle the common header here. For now just a version
-        BlockMetadataHeader header = BlockMetadataHeader.readHeader(new DataInputStream(checksumIn), new PureJavaCrc32());
-        short version = header.getVersion();
-      
-        if (version != FSDataset.METADATA_VERSION) {
-          LOG.warn("Wrong version (" + version + ") for metadata file for "
-              + blk + " ignoring ...");
-        }
-        DataChecksum checksum = header.getChecksum();
-
-        return new BlockReaderLocal(conf, file, blk, startOffset, length,
-            pathinfo, metrics, checksum, verifyChecksum, dataIn, checksumIn);
+        return newBlockReader(conf, file, blk, startOffset, length,
+            pathinfo, pathinfo.getNumBytes(), metrics, dataIn, checksumIn);
       }
       else {
         return new BlockReaderLocal(conf, file, blk, startOffset, length,
@@ -156,6 +176,132 @@ public class BlockReaderLocal extends BlockReader {
     }
   }
 
+  /**
+   * Create a reader verifying the checksums of the data.
+   * @param checksumIn the meta file, positioned at its start
+   */
+  private static BlockReaderLocal newBlockReader(Configuration conf,
+      String file, Block blk, long startOffset, long length,
+      BlockPathInfo pathinfo, long blockLength, DFSClientMetrics metrics,
+      FileInputStream dataIn, FileInputStream checksumIn) throws IOException {
+    // read and handle the common header here. For now just a version
+    BlockMetadataHeader header = BlockMetadataHeader.readHeader(new DataInputStream(checksumIn), new PureJavaCrc32());
+    short version = header.getVersion();
+
+    if (version != FSDataset.METADATA_VERSION) {
+      LOG.warn("Wrong version (" + version + ") for metadata file for "
+          + blk + " ignoring ...");
+    }
+    DataChecksum checksum = header.getChecksum();
+
+    return new BlockReaderLocal(conf, file, blk, startOffset, length,
+        pathinfo, blockLength, metrics, checksum, true, dataIn, checksumIn);
+  }
+
+  /**
+   * Create a reader of the block files passed by the datanode through
+   * its domain socket.
+   */
+  private static BlockReaderLocal newBlockReader(Configuration conf,
+      String file, int namespaceid, Block blk, String socketPath,
+      long startOffset, long length,
+      DFSClientMetrics metrics, boolean verifyChecksum) throws IOException {
+    FileInputStreamCache cache = getFdCache(conf);
+    FileInputStreamCache.Entry entry =
+      cache.get(blk.getBlockId(), blk.getGenerationStamp());
+    if (entry == null) {
+      entry = requestFileDescriptors(conf, socketPath, namespaceid, blk);
+    }
+    try {
+      // the previous reader left the files at some position
+      entry.dataIn.getChannel().position(0);
+      entry.metaIn.getChannel().position(0);
+      BlockReaderLocal reader;
+      if (verifyChecksum) {
+        reader = newBlockReader(conf, file, blk, startOffset, length, null,
+            entry.blockLength, metrics, entry.dataIn, entry.metaIn);
+      } else {
+        reader = new BlockReaderLocal(conf, file, blk, startOffset, length,
+            null, metrics, entry.dataIn);
+      }
+      reader.block = blk;
+      reader.fdEntry = entry;
+      return reader;
+    } catch (IOException e) {
+      entry.close();
+      throw e;
+    }
+  }
+
+  private static synchronized FileInputStreamCache getFdCache(
+      Configuration conf) {
+    if (fdCache == null) {
+      fdCache = new FileInputStreamCache(
+          conf.getInt("dfs.read.shortcircuit.fd.cache.size", 256),
+          conf.getLong("dfs.read.shortcircuit.fd.cache.expiry.ms", 60000));
+    }
+    return fdCache;
+  }
+
+  /**
+   * Ask the datanode listening at the given domain socket for the block
+   * and meta files of a block.
+   */
+  private static FileInputStreamCache.Entry requestFileDescriptors(
+      Configuration conf, String socketPath, int namespaceid, Block blk)
+      throws IOException {
+    DomainSocket sock = DomainSocket.connect(socketPath);
+    FileInputStream dataIn = null;
+    FileInputStream metaIn = null;
+    try {
+      sock.setTimeout(conf.getInt("dfs.socket.timeout",
+                                  HdfsConstants.READ_TIMEOUT));
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(sock.getOutputStream(), 32));
+      out.writeShort(DataTransferProtocol.DATA_TRANSFER_VERSION);
+      out.writeByte(DataTransferProtocol.OP_REQUEST_SHORT_CIRCUIT_FDS);
+      out.writeInt(namespaceid);
+      out.writeLong(blk.getBlockId());
+      out.writeLong(blk.getGenerationStamp());
+      out.flush();
+
+      FileDescriptor[] fds = new FileDescriptor[2];
+      byte[] buf = new byte[512];
+      int n = sock.receiveFileDescriptors(fds, buf, 0, buf.length);
+      if (fds[0] != null) {
+        dataIn = new FileInputStream(fds[0]);
+      }
+      if (fds[1] != null) {
+        metaIn = new FileInputStream(fds[1]);
+      }
+      if (n < 0) {
+        throw new EOFException("Unexpected end of stream from " + socketPath);
+      }
+      // the rest of the reply follows the bytes sent with the descriptors
+      DataInputStream in = new DataInputStream(new SequenceInputStream(
+          new ByteArrayInputStream(buf, 0, n), sock.getInputStream()));
+      short status = in.readShort();
+      if (status != DataTransferProtocol.OP_STATUS_SUCCESS) {
+        throw new IOException("Cannot get the files of " + blk + " from "
+            + socketPath + ": " + Text.readString(in));
+      }
+      long blockLength = in.readLong();
+      if (dataIn == null || metaIn == null) {
+        throw new IOException("No file descriptors received from "
+            + socketPath + " for " + blk);
+      }
+      FileInputStreamCache.Entry entry =
+        new FileInputStreamCache.Entry(dataIn, metaIn, blockLength);
+      dataIn = null;
+      metaIn = null;
+      return entry;
+    } finally {
+      IOUtils.closeStream(dataIn);
+      IOUtils.closeStream(metaIn);
+      sock.close();
+    }
+  }
+
   private BlockReaderLocal(Configuration conf, String hdfsfile, Block block,      
                           long startOffset, long length,
                           BlockPathInfo pathinfo, DFSClientMetrics metrics,
@@ -170,13 +316,15 @@ public class BlockReaderLocal extends BlockReader {
     this.length = length;    
     this.metrics = metrics;
     this.dataIn = dataIn;
+    this.endOffset = length >= 0 ? startOffset + length : Long.MAX_VALUE;
     
     dataIn.skip(startOffset);
   }
   
   private BlockReaderLocal(Configuration conf, String hdfsfile, Block block,      
                           long startOffset, long length,
-                          BlockPathInfo pathinfo, DFSClientMetrics metrics,
+                          BlockPathInfo pathinfo, long blockLength,
+                          DFSClientMetrics metrics,
                           DataChecksum checksum, boolean verifyChecksum,
                           FileInputStream dataIn, FileInputStream checksumIn) 
                           throws IOException {
@@ -195,7 +343,6 @@ public class BlockReaderLocal extends BlockReader {
     this.checksumIn = checksumIn;
     this.checksum = checksum;
     
-    long blockLength = pathinfo.getNumBytes();
        
     /* If bytesPerChecksum is very large, then the metadata file
      * is mostly corrupted. For now just truncate bytesPerchecksum to
@@ -218,19 +365,20 @@ public class BlockReaderLocal extends BlockReader {
     // size in our cache.
     if (startOffset > blockLength
         || (length + startOffset) > blockLength) {
-      File blkFile = new File(pathinfo.getBlockPath());
-      long newlength = blkFile.length();
-      LOG.warn("BlockReaderLocal found short block " + blkFile +
+      long newlength = dataIn.getChannel().size();
+      LOG.warn("BlockReaderLocal found short block " + block +
                " requested offset " +
                startOffset + " length " + length +
                " but known size of block is " + blockLength +
                ", size on disk is " + newlength);
       if (newlength > blockLength) {
         blockLength = newlength;
-        pathinfo.setNumBytes(newlength);
+        if (pathinfo != null) {
+          pathinfo.setNumBytes(newlength);
+        }
       }
     }
-    long endOffset = blockLength;
+    endOffset = blockLength;
     if (startOffset < 0 || startOffset > endOffset
         || (length + startOffset) > endOffset) {
       String msg = " Offset " + startOffset + " and length " + length
@@ -269,10 +417,24 @@ public class BlockReaderLocal extends BlockReader {
   
   @Override
   public synchronized int read(byte[] buf, int off, int len)
-                           throws IOException {    
+                           throws IOException {
+    boolean done = false;
+    try {
+      int n = readInternal(buf, off, len);
+      done = true;
+      return n;
+    } finally {
+      failed |= !done;
+    }
+  }
+
+  private int readInternal(byte[] buf, int off, int len) throws IOException {
     if (LOG.isDebugEnabled()) {
       LOG.debug("BlockChecksumFileSystem read off " + off + " len " + len);
     }   
+    if (bufferMode) {
+      return read(ByteBuffer.wrap(buf, off, len));
+    }
     metrics.readsFromLocalFile.inc();
     if (checksum == null) {
       return dataIn.read(buf, off, len);
@@ -282,16 +444,133 @@ public class BlockReaderLocal extends BlockReader {
     }
   }
   
+  /**
+   * Read into a ByteBuffer. Without checksums the bytes are read from the
+   * block file straight into buf. Otherwise a reader whose first read is
+   * into a ByteBuffer reads many chunks at once into direct buffers,
+   * verifies their checksums at once and copies the data into buf; the
+   * reads into arrays of such a reader go through the same path.
+   */
+  @Override
+  public synchronized int read(ByteBuffer buf) throws IOException {
+    boolean done = false;
+    try {
+      int n = readInternal(buf);
+      done = true;
+      return n;
+    } finally {
+      failed |= !done;
+    }
+  }
+
+  private int readInternal(ByteBuffer buf) throws IOException {
+    if (checksum == null) {
+      metrics.readsFromLocalFile.inc();
+      // the block file may be longer than the range while it is written
+      FileChannel dataChannel = dataIn.getChannel();
+      long left = endOffset - dataChannel.position();
+      if (left <= 0) {
+        return -1;
+      }
+      if (buf.remaining() <= left) {
+        return dataChannel.read(buf);
+      }
+      ByteBuffer part = buf.duplicate();
+      part.limit(part.position() + (int) left);
+      int n = dataChannel.read(part);
+      buf.position(part.position());
+      return n;
+    }
+    if (!bufferMode) {
+      if (lastChunkLen >= 0) {
+        return super.read(buf);
+      }
+      bufferMode = true;
+    }
+    metrics.readsFromLocalFile.inc();
+    if (!buf.hasRemaining()) {
+      return 0;
+    }
+    while (dataBuf == null || !dataBuf.hasRemaining()) {
+      if (gotEOS) {
+        return -1;
+      }
+      fillBuffer();
+    }
+    return copy(dataBuf, buf);
+  }
+
+  /**
+   * Read the next chunks of the block file up to endOffset into dataBuf,
+   * and verify them against their checksums in the meta file. The chunks
+   * past endOffset may be partly written.
+   */
+  private void fillBuffer() throws IOException {
+    if (dataBuf == null) {
+      int chunks = Math.max(1, BUFFER_SIZE / bytesPerChecksum);
+      dataBuf = ByteBuffer.allocateDirect(chunks * bytesPerChecksum);
+      checksumBuf = ByteBuffer.allocateDirect(chunks * checksumSize);
+    }
+    dataBuf.clear();
+    long left = endOffset - lastChunkOffset;
+    if (left < dataBuf.capacity()) {
+      dataBuf.limit((int) Math.max(0, left));
+    }
+    FileChannel dataChannel = dataIn.getChannel();
+    while (dataBuf.hasRemaining()) {
+      if (dataChannel.read(dataBuf) < 0) {
+        gotEOS = true;
+        break;
+      }
+    }
+    dataBuf.flip();
+    int dataLen = dataBuf.remaining();
+    if (dataLen >= left) {
+      gotEOS = true;
+    }
+
+    if (dataLen > 0 && checksumIn != null) {
+      checksumBuf.clear();
+      checksumBuf.limit(
+          ((dataLen + bytesPerChecksum - 1) / bytesPerChecksum) * checksumSize);
+      FileChannel checksumChannel = checksumIn.getChannel();
+      while (checksumBuf.hasRemaining()) {
+        if (checksumChannel.read(checksumBuf) < 0) {
+          throw new IOException("Could not read checksum at offset " +
+              checksumChannel.position() + " from the meta file.");
+        }
+      }
+      checksumBuf.flip();
+      checksum.verifyChunkedSums(dataBuf, checksumBuf, file.toString(),
+                                 lastChunkOffset);
+    }
+
+    // the first chunk starts before startOffset
+    if (lastChunkOffset < startOffset) {
+      dataBuf.position((int) Math.min(startOffset - lastChunkOffset, dataLen));
+    }
+    lastChunkOffset += dataLen;
+    lastChunkLen = dataLen;
+  }
+
   @Override
   public synchronized long skip(long n) throws IOException {
     if (LOG.isDebugEnabled()) {
       LOG.debug("BlockChecksumFileSystem skip " + n);
     }
-    if (checksum == null) {
-      return dataIn.skip(n);
-    }
-    else {
-      return super.skip(n);
+    boolean done = false;
+    try {
+      long skipped;
+      if (checksum == null) {
+        skipped = dataIn.skip(n);
+      }
+      else {
+        skipped = super.skip(n);
+      }
+      done = true;
+      return skipped;
+    } finally {
+      failed |= !done;
     }
   }
   
@@ -358,6 +637,18 @@ public class BlockReaderLocal extends BlockReader {
     if (LOG.isDebugEnabled()) {
       LOG.debug("BlockChecksumFileSystem close");
     }
+    if (fdEntry != null) {
+      FileInputStreamCache.Entry entry = fdEntry;
+      fdEntry = null;
+      if (!failed && entry.dataIn.getChannel().isOpen() &&
+          entry.metaIn.getChannel().isOpen()) {
+        // keep the descriptors for the next reader of the block
+        fdCache.put(block.getBlockId(), block.getGenerationStamp(), entry);
+      } else {
+        entry.close();
+      }
+      return;
+    }
     dataIn.close();
     if (checksumIn != null) {
       checksumIn.close();
@@ -21,8 +21,11 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -30,22 +33,32 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.CRC32;
 
 import javax.net.SocketFactory;
 import javax.security.auth.login.LoginException;
@@ -62,6 +75,7 @@ import org.apache.hadoop.fs.FSInputChecker;
 import org.apache.hadoop.fs.FSInputStream;
 import org.apache.hadoop.fs.FSOutputSummer;
 import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileRange;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocatedFileStatus;
@@ -154,6 +168,10 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   private int datanodeWriteExtentionTimeout;
   private int timeoutValue;  // read timeout for the socket
   final int writePacketSize;
+  final int maxWritePacketSize;
+  // the buffers of the packets of the output streams
+  final PacketBufferPool packetBufferPool;
+  private final int checksumType; // of the files written by this client
   private final FileSystem.Statistics stats;
   private int maxBlockAcquireFailures;
   private final int hdfsTimeout;    // timeout value for a DFS operation.
@@ -162,6 +180,19 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   protected Integer dataTransferVersion = -1;
   private boolean shortCircuitLocalReads = false;
   private final InetAddress localHost;
+  // the latencies of the datanodes, to order the replicas to read
+  final DatanodeLatencyStats datanodeLatencies;
+  // the threads of the hedged preads, null if preads are not hedged
+  private final ThreadPoolExecutor hedgedReadPool;
+  private final long hedgedReadThresholdMillis;
+  // the threads of the vectored reads, null if the ranges are read in turn
+  private final ThreadPoolExecutor vectoredReadPool;
+  private final long vectoredReadMergeGap;
+  private final long vectoredReadMergeMax;
+  // the connections to the datanodes kept open after reads
+  final SocketCache socketCache;
+  // the statuses and block locations of files, null if they are not cached
+  final MetadataCache metadataCache;
   private InetSocketAddress nameNodeAddr;
 
   /**
@@ -345,8 +376,36 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     this.socketFactory = NetUtils.getSocketFactory(conf, ClientProtocol.class);
     // dfs.write.packet.size is an internal config variable
     this.writePacketSize = conf.getInt("dfs.write.packet.size", 64*1024);
+    this.maxWritePacketSize = Math.max(writePacketSize,
+        conf.getInt("dfs.write.packet.size.max", 512*1024));
+    this.packetBufferPool = new PacketBufferPool(
+        conf.getLong("dfs.client.write.packet.pool.bytes", 8*1024*1024));
+    this.checksumType = DataChecksum.getChecksumTypeByName(
+        conf.get("dfs.checksum.type", "CRC32C"));
     this.maxBlockAcquireFailures = getMaxBlockAcquireFailures(conf);
     this.localHost = InetAddress.getLocalHost();
+    this.datanodeLatencies = new DatanodeLatencyStats(
+        conf.getLong("dfs.client.datanode.latency.expiry.ms", 60 * 1000));
+    this.hedgedReadThresholdMillis =
+      conf.getLong("dfs.client.hedged.read.threshold.millis", 500);
+    this.hedgedReadPool = createReadPool(
+        conf.getInt("dfs.client.hedged.read.threadpool.size", 0),
+        "DFSClient hedged read");
+    this.vectoredReadPool = createReadPool(
+        conf.getInt("dfs.client.read.vectored.threads", 4),
+        "DFSClient vectored read");
+    this.vectoredReadMergeGap =
+      conf.getLong("dfs.client.read.vectored.merge.gap", 128 * 1024);
+    this.vectoredReadMergeMax =
+      conf.getLong("dfs.client.read.vectored.merge.max", 4 * 1024 * 1024);
+    this.socketCache = new SocketCache(
+        conf.getInt("dfs.client.socketcache.capacity", 16),
+        conf.getLong("dfs.client.socketcache.expiry.ms", 3000));
+    int metadataCacheCapacity =
+      conf.getInt("dfs.client.metadatacache.capacity", 0);
+    this.metadataCache = metadataCacheCapacity <= 0 ? null :
+      new MetadataCache(metadataCacheCapacity,
+          conf.getLong("dfs.client.metadatacache.expiry.ms", 60000));
 
     // The hdfsTimeout is currently the same as the ipc timeout
     this.hdfsTimeout = Client.getTimeout(conf);
@@ -414,6 +473,32 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     }
   }
   
+  /**
+   * Create a pool of threads reading from the datanodes on behalf of all
+   * the input streams of the client.
+   * @return the pool, null if size is not positive
+   */
+  private static ThreadPoolExecutor createReadPool(int size,
+                                                   final String name) {
+    if (size <= 0) {
+      return null;
+    }
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private int counter = 0;
+
+      public synchronized Thread newThread(Runnable r) {
+        Thread t = new Daemon(r);
+        t.setName(name + " #" + counter++);
+        return t;
+      }
+    };
+    // a read is rejected rather than queued once all the threads are busy
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(1, size, 60,
+        TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threadFactory);
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
   static int getMaxBlockAcquireFailures(Configuration conf) {
     return conf.getInt("dfs.client.max.block.acquire.failures",
                        MAX_BLOCK_ACQUIRE_FAILURES);
@@ -442,6 +527,17 @@ public class DFSClient implements FSConstants, java.io.Closeable {
 
       // close connections to the namenode
       RPC.stopProxy(rpcNamenode);
+
+      if (hedgedReadPool != null) {
+        hedgedReadPool.shutdownNow();
+      }
+      if (vectoredReadPool != null) {
+        vectoredReadPool.shutdownNow();
+      }
+      socketCache.clear();
+      if (metadataCache != null) {
+        metadataCache.clear();
+      }
     }
   }
 
@@ -547,8 +643,21 @@ public class DFSClient implements FSConstants, java.io.Closeable {
    */
   public BlockLocation[] getBlockLocations(String src, long start,
     long length) throws IOException {
+    long generation = 0;
+    if (metadataCache != null) {
+      LocatedBlocks cached = metadataCache.getBlockLocations(src, start, length);
+      if (cached != null) {
+        metrics.incMetadataCacheHits();
+        return DFSUtil.locatedBlocks2Locations(cached);
+      }
+      metrics.incMetadataCacheMisses();
+      generation = metadataCache.getGeneration();
+    }
     LocatedBlocks blocks = callGetBlockLocations(namenode, src, start, length,
         isMetaInfoSuppoted(namenodeProtocolProxy));
+    if (metadataCache != null && !leasechecker.isWriting(src)) {
+      metadataCache.putBlockLocations(src, blocks, generation);
+    }
     return DFSUtil.locatedBlocks2Locations(blocks);
   }
 
@@ -808,6 +917,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         overwrite, createParent, replication, blockSize, progress, buffersize,
           bytesPerChecksum, forceSync, doParallelWrites);
       leasechecker.put(src, result);
+      invalidateMetadata(src);
       metrics.incNumCreateFileOps();
       if (stats != null) {
         stats.incrementFilesCreated();
@@ -819,6 +929,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           "abandonFile", String.class, String.class)) {
         try {
           namenode.abandonFile(src, clientName);
+          invalidateMetadata(src);
         } catch (RemoteException e) {
           if (e.unwrapRemoteException() instanceof LeaseExpiredException) {
             LOG.debug(String.format(
@@ -844,10 +955,14 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   boolean recoverLease(String src, boolean discardLastBlock) throws IOException {
     checkOpen();
 
-    if (this.namenodeProtocolProxy == null) {
-      return versionBasedRecoverLease(src);
+    try {
+      if (this.namenodeProtocolProxy == null) {
+        return versionBasedRecoverLease(src);
+      }
+      return methodBasedRecoverLease(src, discardLastBlock);
+    } finally {
+      invalidateMetadata(src);
     }
-    return methodBasedRecoverLease(src, discardLastBlock);
   }
 
   /** recover lease based on version */
@@ -964,6 +1079,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         }
       }
     }
+    invalidateMetadata(src);
   }
 
   /**
@@ -985,6 +1101,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     int namespaceId = 0;
     
     try {
+      // the length of the file to append to must be the current one
+      invalidateMetadata(src);
       stat = getFileInfo(src);
       if (namenodeProtocolProxy != null
           && namenodeProtocolProxy.isMethodSupported(
@@ -1008,6 +1126,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       OutputStream result = new DFSOutputStream(src, buffersize, progress,
           lastBlock, stat, conf.getInt("io.bytes.per.checksum", 512), namespaceId);
       leasechecker.put(src, result);
+      invalidateMetadata(src);
       success = true;
 
       return result;
@@ -1020,6 +1139,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       if (!success) {
         try {
           namenode.abandonFile(src, clientName);
+          invalidateMetadata(src);
         } catch (RemoteException e) {
           if (e.unwrapRemoteException() instanceof LeaseExpiredException) {
             LOG.debug(String.format(
@@ -1052,6 +1172,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       throw re.unwrapRemoteException(AccessControlException.class,
                                      NSQuotaExceededException.class,
                                      DSQuotaExceededException.class);
+    } finally {
+      invalidateMetadata(src);
     }
   }
 
@@ -1077,6 +1199,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       throw re.unwrapRemoteException(AccessControlException.class,
                                      NSQuotaExceededException.class,
                                      DSQuotaExceededException.class);
+    } finally {
+      invalidateMetadata(trg);
+      for (String src : srcs) {
+        invalidateMetadata(src);
+      }
     }
   }
   
@@ -1092,6 +1219,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       throw re.unwrapRemoteException(AccessControlException.class,
                                      NSQuotaExceededException.class,
                                      DSQuotaExceededException.class);
+    } finally {
+      invalidateMetadata(src);
+      invalidateMetadata(dst);
     }
   }
 
@@ -1102,7 +1232,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   @Deprecated
   public boolean delete(String src) throws IOException {
     checkOpen();
-    return namenode.delete(src, true);
+    try {
+      return namenode.delete(src, true);
+    } finally {
+      invalidateMetadata(src);
+    }
   }
 
   /**
@@ -1116,6 +1250,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       return namenode.delete(src, recursive);
     } catch(RemoteException re) {
       throw re.unwrapRemoteException(AccessControlException.class);
+    } finally {
+      invalidateMetadata(src);
     }
   }
 
@@ -1180,14 +1316,32 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   public FileStatus[] listPaths(String src) throws IOException {
     checkOpen();
     metrics.incLsCalls();
+    long generation = 0;
+    if (metadataCache != null) {
+      FileStatus[] cached = metadataCache.getListing(src);
+      if (cached != null) {
+        metrics.incMetadataCacheHits();
+        return cached;
+      }
+      metrics.incMetadataCacheMisses();
+      generation = metadataCache.getGeneration();
+    }
+    FileStatus[] listing;
     try {
       if (namenodeProtocolProxy == null) {
-        return versionBasedListPath(src);
+        listing = versionBasedListPath(src);
+      } else {
+        listing = methodBasedListPath(src);
       }
-      return methodBasedListPath(src);
     } catch(RemoteException re) {
       throw re.unwrapRemoteException(AccessControlException.class);
     }
+    // the lengths of the files this client writes change until they are
+    // closed
+    if (metadataCache != null && !leasechecker.isWritingUnder(src)) {
+      metadataCache.putListing(src, listing, generation);
+    }
+    return listing;
   }
 
   private FileStatus[] versionBasedListPath(String src) throws IOException {
@@ -1414,14 +1568,42 @@ public class DFSClient implements FSConstants, java.io.Closeable {
 
   public FileStatus getFileInfo(String src) throws IOException {
     checkOpen();
+    long generation = 0;
+    if (metadataCache != null) {
+      FileStatus cached = metadataCache.getFileStatus(src);
+      if (cached != null) {
+        metrics.incMetadataCacheHits();
+        return cached;
+      }
+      metrics.incMetadataCacheMisses();
+      generation = metadataCache.getGeneration();
+    }
+    FileStatus status;
     try {
       if (namenodeProtocolProxy == null) {
-        return versionBasedGetFileInfo(src);
+        status = versionBasedGetFileInfo(src);
+      } else {
+        status = methodBasedGetFileInfo(src);
       }
-      return methodBasedGetFileInfo(src);
     } catch(RemoteException re) {
       throw re.unwrapRemoteException(AccessControlException.class);
     }
+    // the status of a file this client writes changes until it is closed
+    if (metadataCache != null && !leasechecker.isWriting(src)) {
+      metadataCache.putFileStatus(src, status, generation);
+    }
+    return status;
+  }
+
+  /**
+   * Drop the cached metadata of a path and of the paths under it, after
+   * this client changed it. It must be called once the namenode made the
+   * change, so that the metadata fetched before is not cached.
+   */
+  private void invalidateMetadata(String src) {
+    if (metadataCache != null) {
+      metadataCache.invalidate(src);
+    }
   }
 
   /** Get file info: decide which rpc to call based on protocol version */
@@ -1443,6 +1625,26 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     }
   }
 
+  /**
+   * The checksum of the data written by this client: of the configured
+   * type, unless the datanodes of the cluster do not know CRC32C.
+   */
+  private DataChecksum createWriteChecksum(int bytesPerChecksum)
+      throws IOException {
+    int type = checksumType;
+    if (type == DataChecksum.CHECKSUM_CRC32C &&
+        getDataTransferProtocolVersion() < DataTransferProtocol.CRC32C_VERSION) {
+      type = DataChecksum.CHECKSUM_CRC32;
+    }
+    DataChecksum checksum = DataChecksum.newDataChecksum(type,
+        bytesPerChecksum, new PureJavaCrc32());
+    if (checksum == null) {
+      throw new IOException("Invalid io.bytes.per.checksum " +
+                            bytesPerChecksum);
+    }
+    return checksum;
+  }
+
   /**
    * Get the checksum of a file.
    * @param src The file path
@@ -1455,19 +1657,44 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         src, namenode, namenodeProtocolProxy, socketFactory, socketTimeout);
   }
 
+  /**
+   * Get the CRC type of a file from the checksum of its first block, which
+   * costs much less than the checksum of the whole file.
+   * @param src The file path
+   * @return The CRC type
+   */
+  int getFileCrcType(String src) throws IOException {
+    checkOpen();
+    return getFileChecksum(dataTransferVersion, src, 1, namenode,
+        namenodeProtocolProxy, socketFactory, socketTimeout).getCrcType();
+  }
+
   /**
    * Get the checksum of a file.
    * @param src The file path
-   * @return The checksum
+   * @return The checksum, null if the blocks of the file have CRCs of
+   *         different types
    */
   public static MD5MD5CRC32FileChecksum getFileChecksum(
       int dataTransferVersion, String src,
       ClientProtocol namenode, ProtocolProxy<ClientProtocol> namenodeProxy,
       SocketFactory socketFactory, int socketTimeout
       ) throws IOException {
-    //get all block locations
+    return getFileChecksum(dataTransferVersion, src, Long.MAX_VALUE,
+        namenode, namenodeProxy, socketFactory, socketTimeout);
+  }
+
+  /**
+   * Get the checksum of the blocks of a file in the range [0, length).
+   */
+  private static MD5MD5CRC32FileChecksum getFileChecksum(
+      int dataTransferVersion, String src, long length,
+      ClientProtocol namenode, ProtocolProxy<ClientProtocol> namenodeProxy,
+      SocketFactory socketFactory, int socketTimeout
+      ) throws IOException {
+    //get the block locations
     final LocatedBlocks locatedBlocks = callGetBlockLocations(
-        namenode, src, 0, Long.MAX_VALUE, isMetaInfoSuppoted(namenodeProxy));
+        namenode, src, 0, length, isMetaInfoSuppoted(namenodeProxy));
     int namespaceId = 0;
     if (locatedBlocks instanceof LocatedBlocksWithMetaInfo) {
       LocatedBlocksWithMetaInfo lBlocks = (LocatedBlocksWithMetaInfo)locatedBlocks;
@@ -1480,6 +1707,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     final DataOutputBuffer md5out = new DataOutputBuffer();
     int bytesPerCRC = 0;
     long crcPerBlock = 0;
+    int crcType = DataChecksum.CHECKSUM_CRC32;
+    boolean mixedCrcTypes = false;
 
     //get block checksum for each block
     for(int i = 0; i < locatedblocks.size(); i++) {
@@ -1547,6 +1776,17 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           final MD5Hash md5 = MD5Hash.read(in);
           md5.write(md5out);
 
+          //read crc type
+          int ct = DataChecksum.CHECKSUM_CRC32;
+          if (dataTransferVersion >= DataTransferProtocol.CRC32C_VERSION) {
+            ct = in.readByte();
+          }
+          if (i == 0) {
+            crcType = ct;
+          } else if (ct != crcType) {
+            mixedCrcTypes = true;
+          }
+
           done = true;
 
           if (LOG.isDebugEnabled()) {
@@ -1572,9 +1812,17 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       }
     }
 
+    if (mixedCrcTypes) {
+      // appends with another checksum type than the one of the file
+      LOG.info("The blocks of " + src + " have different checksum types,"
+          + " its checksum cannot be compared with other files");
+      return null;
+    }
+
     //compute file MD5
     final MD5Hash fileMD5 = MD5Hash.digest(md5out.getData());
-    return new MD5MD5CRC32FileChecksum(bytesPerCRC, crcPerBlock, fileMD5);
+    return MD5MD5CRC32FileChecksum.newInstance(bytesPerCRC, crcPerBlock,
+        fileMD5, crcType);
   }
 
   /**
@@ -1591,6 +1839,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     } catch(RemoteException re) {
       throw re.unwrapRemoteException(AccessControlException.class,
                                      FileNotFoundException.class);
+    } finally {
+      invalidateMetadata(src);
     }
   }
 
@@ -1609,6 +1859,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     } catch(RemoteException re) {
       throw re.unwrapRemoteException(AccessControlException.class,
                                      FileNotFoundException.class);
+    } finally {
+      invalidateMetadata(src);
     }
   }
 
@@ -1836,6 +2088,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       throw re.unwrapRemoteException(AccessControlException.class,
                                      NSQuotaExceededException.class,
                                      DSQuotaExceededException.class);
+    } finally {
+      invalidateMetadata(src);
     }
   }
 
@@ -1886,20 +2140,23 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     } catch(RemoteException re) {
       throw re.unwrapRemoteException(AccessControlException.class,
                                      FileNotFoundException.class);
+    } finally {
+      invalidateMetadata(src);
     }
   }
 
   /**
    * Pick the best node from which to stream the data.
-   * Entries in <i>nodes</i> are already in the priority order
+   * Entries in <i>nodes</i> are already in the priority order, but the
+   * nodes that were slow recently are tried last.
    */
   private DatanodeInfo bestNode(DatanodeInfo nodes[],
                                 AbstractMap<DatanodeInfo, DatanodeInfo> deadNodes)
                                 throws IOException {
     if (nodes != null) {
-      for (int i = 0; i < nodes.length; i++) {
-        if (!deadNodes.containsKey(nodes[i])) {
-            return nodes[i];
+      for (DatanodeInfo node : datanodeLatencies.order(nodes)) {
+        if (!deadNodes.containsKey(node)) {
+            return node;
         }
       }
     }
@@ -1950,6 +2207,19 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       pendingCreates.remove(src);
     }
 
+    /** @return whether this client has a file open for writing */
+    synchronized boolean isWriting(String src) {
+      return pendingCreates.containsKey(src);
+    }
+
+    /** @return true if a file under the directory is being written */
+    synchronized boolean isWritingUnder(String dir) {
+      String prefix = dir.endsWith(Path.SEPARATOR) ? dir
+          : dir + Path.SEPARATOR;
+      SortedMap<String, OutputStream> under = pendingCreates.tailMap(prefix);
+      return !under.isEmpty() && under.firstKey().startsWith(prefix);
+    }
+
     void interruptAndJoin() throws InterruptedException {
       Daemon daemonCopy = null;
       synchronized (this) {
@@ -2036,8 +2306,21 @@ public class DFSClient implements FSConstants, java.io.Closeable {
    */
   public static class BlockReader extends FSInputChecker {
 
-    private Socket dnSock; //for now just sending checksumOk.
+    private Socket dnSock; //for sending the status of the read.
     private DataInputStream in;
+    // true if the datanode can serve another request on the connection
+    // once the range is read
+    private boolean reuseConnection = false;
+    private boolean connectionReusable = false;
+    // the channel of the socket, null if the socket has none
+    private ReadableByteChannel channel;
+    // true if the reader reads a packet at a time, see read(ByteBuffer)
+    private boolean packetMode = false;
+    // the checksums and the data of the current packet in packet mode
+    private ByteBuffer packetBuf = null;
+    // the data of the current packet which is not read yet
+    private ByteBuffer dataBuf = null;
+    private byte[] bufferedBytes = null;
     protected DataChecksum checksum;
     protected long lastChunkOffset = -1;
     protected long lastChunkLen = -1;
@@ -2066,7 +2349,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     @Override
     public synchronized int read(byte[] buf, int off, int len)
                                  throws IOException {
+      if (packetMode) {
+        return read(ByteBuffer.wrap(buf, off, len));
+      }
 
+      boolean eosBefore = gotEOS;
       //for the first read, skip the extra bytes at the front.
       if (lastChunkLen < 0 && startOffset > firstChunkOffset && len > 0) {
         // Skip these bytes. But don't call this.skip()!
@@ -2080,17 +2367,161 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         }
       }
 
-      boolean eosBefore = gotEOS;
       int nRead = super.read(buf, off, len);
 
-      // if gotEOS was set in the previous read and checksum is enabled :
-      if (dnSock != null && gotEOS && !eosBefore && nRead >= 0 && needChecksum()) {
-        //checksum is verified and there are no errors.
-        checksumOk(dnSock);
+      // if gotEOS was set in the previous read
+      if (dnSock != null && gotEOS && !eosBefore && nRead >= 0) {
+        endOfRange();
       }
       return nRead;
     }
 
+    /**
+     * Read into a ByteBuffer. A reader whose first read is into a
+     * ByteBuffer reads a packet at a time: the packet is read from the
+     * socket channel into a direct buffer, the checksums of all its chunks
+     * are verified at once, and the data is copied into buf with a single
+     * copy. The reads into arrays of such a reader go through the same
+     * path. Otherwise the bytes are read through an array a chunk at a
+     * time, see {@link FSInputChecker}.
+     */
+    @Override
+    public synchronized int read(ByteBuffer buf) throws IOException {
+      if (!packetMode) {
+        if (lastChunkLen >= 0 || in == null) {
+          return super.read(buf);
+        }
+        packetMode = true;
+      }
+      if (!buf.hasRemaining()) {
+        return 0;
+      }
+      while (dataBuf == null || !dataBuf.hasRemaining()) {
+        if (gotEOS) {
+          return -1;
+        }
+        readPacket();
+      }
+      return copy(dataBuf, buf);
+    }
+
+    /**
+     * Copy as many bytes as possible from a buffer to another one.
+     * @return the number of bytes copied
+     */
+    protected static int copy(ByteBuffer from, ByteBuffer to) {
+      int n = Math.min(from.remaining(), to.remaining());
+      if (n == from.remaining()) {
+        to.put(from);
+      } else {
+        ByteBuffer part = from.duplicate();
+        part.limit(part.position() + n);
+        to.put(part);
+        from.position(from.position() + n);
+      }
+      return n;
+    }
+
+    /**
+     * Read the next packet into packetBuf and verify its checksums.
+     */
+    private void readPacket() throws IOException {
+      //Read packet headers.
+      int packetLen = in.readInt();
+      long offsetInBlock = in.readLong();
+      long seqno = in.readLong();
+      boolean lastPacketInBlock = in.readBoolean();
+      int dataLen = in.readInt();
+
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("DFSClient readPacket got seqno " + seqno +
+                  " offsetInBlock " + offsetInBlock +
+                  " lastPacketInBlock " + lastPacketInBlock +
+                  " packetLen " + packetLen);
+      }
+
+      // Sanity check the lengths
+      if ( dataLen < 0 ||
+           ( (dataLen % bytesPerChecksum) != 0 && !lastPacketInBlock ) ||
+           (seqno != (lastSeqNo + 1)) ) {
+           throw new IOException("BlockReader: error in packet header" +
+                                 "(offsetInBlock : " + offsetInBlock +
+                                 ", dataLen : " + dataLen +
+                                 ", seqno : " + seqno +
+                                 " (last: " + lastSeqNo + "))");
+      }
+      lastSeqNo = seqno;
+
+      int checksumsLen =
+        ((dataLen + bytesPerChecksum - 1)/bytesPerChecksum)*checksumSize;
+      int len = checksumsLen + dataLen;
+      if (packetBuf == null || packetBuf.capacity() < len) {
+        packetBuf = ByteBuffer.allocateDirect(len);
+      }
+      packetBuf.clear();
+      packetBuf.limit(len);
+      readFully(packetBuf);
+      packetBuf.flip();
+
+      ByteBuffer checksums = packetBuf.duplicate();
+      checksums.limit(checksumsLen);
+      dataBuf = packetBuf.duplicate();
+      dataBuf.position(checksumsLen);
+      if (needChecksum()) {
+        checksum.verifyChunkedSums(dataBuf, checksums, file.toString(),
+                                   offsetInBlock);
+      }
+      // the first packet starts at the chunk of startOffset
+      if (offsetInBlock < startOffset) {
+        dataBuf.position(dataBuf.position() +
+            (int) Math.min(startOffset - offsetInBlock, dataLen));
+      }
+      lastChunkOffset = offsetInBlock;
+      lastChunkLen = dataLen;
+
+      if (lastPacketInBlock || dataLen == 0) {
+        gotEOS = true;
+        if (dnSock != null) {
+          endOfRange();
+        }
+      }
+    }
+
+    /**
+     * Fill a buffer from the socket. The bytes buffered by the stream of
+     * the reader are taken first, the rest is read from the socket channel
+     * straight into the buffer.
+     */
+    private void readFully(ByteBuffer buf) throws IOException {
+      int buffered = channel == null ? buf.remaining() :
+        Math.min(in.available(), buf.remaining());
+      while (buffered > 0) {
+        if (bufferedBytes == null) {
+          bufferedBytes = new byte[Math.min(buffered, 64 * 1024)];
+        }
+        int n = Math.min(buffered, bufferedBytes.length);
+        in.readFully(bufferedBytes, 0, n);
+        buf.put(bufferedBytes, 0, n);
+        buffered -= n;
+      }
+      while (buf.hasRemaining()) {
+        if (channel.read(buf) < 0) {
+          throw new EOFException("Premature EOF from datanode " +
+                                 dnSock.getRemoteSocketAddress());
+        }
+      }
+    }
+
+    /* Called when the reader has read its range. */
+    private void endOfRange() {
+      if (reuseConnection) {
+        completeRead();
+      } else if (needChecksum()) {
+        //checksum is verified and there are no errors.
+        sendStatus(dnSock, DataTransferProtocol.OP_STATUS_CHECKSUM_OK);
+      }
+    }
+
     @Override
     public synchronized long skip(long n) throws IOException {
       /* How can we make sure we don't throw a ChecksumException, at least
@@ -2242,7 +2673,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private BlockReader( String file, long blockId, DataInputStream in,
                          DataChecksum checksum, boolean verifyChecksum,
                          long startOffset, long firstChunkOffset,
-                         Socket dnSock ) {
+                         Socket dnSock, boolean reuseConnection,
+                         ReadableByteChannel channel ) {
       super(new Path("/blk_" + blockId + ":of:" + file)/*too non path-like?*/,
             1, verifyChecksum,
             checksum.getChecksumSize() > 0? checksum : null,
@@ -2250,6 +2682,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
             checksum.getChecksumSize());
 
       this.dnSock = dnSock;
+      this.reuseConnection = reuseConnection;
+      this.channel = channel;
       this.in = in;
       this.checksum = checksum;
       this.startOffset = Math.max( startOffset, 0 );
@@ -2332,9 +2766,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       // Get bytes in block, set streams
       //
 
+      InputStream sockIn = NetUtils.getInputStream(sock);
       DataInputStream in = new DataInputStream(
-          new BufferedInputStream(NetUtils.getInputStream(sock),
-                                  bufferSize));
+          new BufferedInputStream(sockIn, bufferSize));
 
       if ( in.readShort() != DataTransferProtocol.OP_STATUS_SUCCESS ) {
         throw new IOException("Got error in response to OP_READ_BLOCK " +
@@ -2357,7 +2791,10 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       }
 
       return new BlockReader( file, blockId, in, checksum, verifyChecksum,
-                              startOffset, firstChunkOffset, sock );
+                              startOffset, firstChunkOffset, sock,
+          dataTransferVersion >= DataTransferProtocol.READ_REUSE_VERSION,
+          sockIn instanceof ReadableByteChannel ?
+              (ReadableByteChannel) sockIn : null );
     }
 
     @Override
@@ -2374,21 +2811,53 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       return readFully(this, buf, offset, len);
     }
 
-    /* When the reader reaches end of a block and there are no checksum
-     * errors, we send OP_STATUS_CHECKSUM_OK to datanode to inform that
-     * checksum was verified and there was no error.
+    /**
+     * @return true if the range was read and the datanode can serve another
+     *         request on the connection of the reader
+     */
+    boolean isConnectionReusable() {
+      return connectionReusable;
+    }
+
+    /* When the reader reaches the end of its range, it reads the end of
+     * block marker of the datanode and replies with OP_STATUS_CHECKSUM_OK
+     * if the checksums were verified, OP_STATUS_SUCCESS otherwise. The
+     * datanode can then serve another request on the connection.
      */
-    private void checksumOk(Socket sock) {
+    private void completeRead() {
+      try {
+        int marker = in.readInt();
+        if (marker != 0) {
+          LOG.debug("Unexpected end of block marker " + marker +
+                    " from datanode " + dnSock.getInetAddress());
+          return;
+        }
+      } catch (IOException e) {
+        LOG.debug("Could not read from datanode " + dnSock.getInetAddress() +
+                  ": " + e.getMessage());
+        return;
+      }
+      connectionReusable = sendStatus(dnSock, needChecksum() ?
+          DataTransferProtocol.OP_STATUS_CHECKSUM_OK :
+          DataTransferProtocol.OP_STATUS_SUCCESS);
+    }
+
+    /* Sends the status of the read to the datanode, e.g.
+     * OP_STATUS_CHECKSUM_OK to inform that checksum was verified and there
+     * was no error. Returns false if the status could not be sent.
+     */
+    private boolean sendStatus(Socket sock, int status) {
       try {
         OutputStream out = NetUtils.getOutputStream(sock, HdfsConstants.WRITE_TIMEOUT);
-        byte buf[] = { (DataTransferProtocol.OP_STATUS_CHECKSUM_OK >>> 8) & 0xff,
-                       (DataTransferProtocol.OP_STATUS_CHECKSUM_OK) & 0xff };
+        byte buf[] = { (byte) ((status >>> 8) & 0xff), (byte) (status & 0xff) };
         out.write(buf);
         out.flush();
+        return true;
       } catch (IOException e) {
         // its ok not to be able to send this.
         LOG.debug("Could not write to datanode " + sock.getInetAddress() +
                   ": " + e.getMessage());
+        return false;
       }
     }
   }
@@ -2745,14 +3214,10 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       }
 
       if ( blockReader != null ) {
-        blockReader.close();
+        closeBlockReader(blockReader);
         blockReader = null;
       }
-
-      if (s != null) {
-        s.close();
-        s = null;
-      }
+      s = null;
 
       //
       // Compute desired block
@@ -2797,34 +3262,78 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                     + StringUtils.stringifyException(ex));
         }
 
+        long startTime = System.currentTimeMillis();
         try {
-          s = socketFactory.createSocket();
-          NetUtils.connect(s, targetAddr, socketTimeout);
-          s.setSoTimeout(socketTimeout);
-
-          blockReader = BlockReader.newBlockReader(
-              getDataTransferProtocolVersion(), namespaceId,
-              s, src, blk.getBlockId(),
-              blk.getGenerationStamp(),
-              offsetIntoBlock, blk.getNumBytes() - offsetIntoBlock,
-              buffersize, verifyChecksum, clientName);
+          blockReader = newRemoteBlockReader(targetAddr, blk,
+              offsetIntoBlock, blk.getNumBytes() - offsetIntoBlock);
+          s = blockReader.dnSock;
+          datanodeLatencies.record(chosenNode,
+              System.currentTimeMillis() - startTime);
           return chosenNode;
         } catch (IOException ex) {
           // Put chosen node into dead list, continue
           LOG.warn("Failed to connect to " + targetAddr, ex);
+          datanodeLatencies.record(chosenNode, socketTimeout);
           addToDeadNodes(chosenNode);
-          if (s != null) {
-            try {
-              s.close();
-            } catch (IOException iex) {
-            }
-          }
           s = null;
         }
       }
       return chosenNode;
     }
 
+    /**
+     * Send a read request to a datanode, on a connection of the socket
+     * cache if there is one to the datanode. The datanode may have closed
+     * the cached connection since, so the request is sent again on a new
+     * connection if it fails.
+     */
+    private BlockReader newRemoteBlockReader(InetSocketAddress targetAddr,
+        Block blk, long startOffset, long len) throws IOException {
+      while (true) {
+        Socket sock = socketCache.get(targetAddr);
+        boolean cached = sock != null;
+        try {
+          if (!cached) {
+            sock = socketFactory.createSocket();
+            NetUtils.connect(sock, targetAddr, socketTimeout);
+            sock.setSoTimeout(socketTimeout);
+          }
+          BlockReader reader = BlockReader.newBlockReader(
+              getDataTransferProtocolVersion(), namespaceId,
+              sock, src, blk.getBlockId(), blk.getGenerationStamp(),
+              startOffset, len, buffersize, verifyChecksum, clientName);
+          if (cached) {
+            metrics.incReadConnectionsReused();
+          } else {
+            metrics.incReadConnectionsCreated();
+          }
+          return reader;
+        } catch (IOException e) {
+          IOUtils.closeSocket(sock);
+          if (!cached || Thread.currentThread().isInterrupted()) {
+            throw e;
+          }
+          LOG.debug("Cached connection to " + targetAddr + " failed: " + e);
+        }
+      }
+    }
+
+    /**
+     * Close a block reader. The connection of a reader which read its range
+     * goes to the socket cache, to send another read to the datanode on.
+     */
+    private void closeBlockReader(BlockReader reader) throws IOException {
+      Socket sock = reader.dnSock;
+      reader.close();
+      if (sock != null) {
+        if (reader.isConnectionReusable()) {
+          socketCache.put(sock);
+        } else {
+          sock.close();
+        }
+      }
+    }
+
     /**
      * Close it down!
      */
@@ -2836,14 +3345,10 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       checkOpen();
 
       if ( blockReader != null ) {
-        blockReader.close();
+        closeBlockReader(blockReader);
         blockReader = null;
       }
-
-      if (s != null) {
-        s.close();
-        s = null;
-      }
+      s = null;
       super.close();
       closed = true;
     }
@@ -2854,11 +3359,61 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       return ( ret <= 0 ) ? -1 : (oneByteBuf[0] & 0xff);
     }
 
+    /**
+     * The buffer of a read call, which the block reader reads into.
+     */
+    private abstract class ReadTarget {
+      /** Read at most len bytes from the block reader into the buffer. */
+      abstract int read(BlockReader reader, int len) throws IOException;
+
+      /** Forget the bytes of a failed read before reading again. */
+      void reset() {
+      }
+    }
+
+    private class ArrayReadTarget extends ReadTarget {
+      private final byte[] buf;
+      private final int off;
+
+      ArrayReadTarget(byte[] buf, int off) {
+        this.buf = buf;
+        this.off = off;
+      }
+
+      int read(BlockReader reader, int len) throws IOException {
+        return reader.read(buf, off, len);
+      }
+    }
+
+    private class ByteBufferReadTarget extends ReadTarget {
+      private final ByteBuffer buf;
+      private final int position;
+
+      ByteBufferReadTarget(ByteBuffer buf) {
+        this.buf = buf;
+        this.position = buf.position();
+      }
+
+      int read(BlockReader reader, int len) throws IOException {
+        int limit = buf.limit();
+        buf.limit(buf.position() + len);
+        try {
+          return reader.read(buf);
+        } finally {
+          buf.limit(limit);
+        }
+      }
+
+      void reset() {
+        buf.position(position);
+      }
+    }
+
     /* This is a used by regular read() and handles ChecksumExceptions.
      * name readBuffer() is chosen to imply similarity to readBuffer() in
      * ChecksuFileSystem
      */
-    private synchronized int readBuffer(byte buf[], int off, int len)
+    private synchronized int readBuffer(ReadTarget target, int len)
                                                     throws IOException {
       IOException ioe;
 
@@ -2873,7 +3428,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       while (true) {
         // retry as many times as seekToNewSource allows.
         try {
-          return blockReader.read(buf, off, len);          
+          return target.read(blockReader, len);
         } catch ( ChecksumException ce ) {
           LOG.warn("Found Checksum error for " + currentBlock + " from " +
                    currentNode.getName() + " at " + ce.getPos());
@@ -2902,6 +3457,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         if (!sourceFound) {
           throw ioe;
         }
+        target.reset();
         retryCurrentNode = false;
       }
     }
@@ -2911,6 +3467,20 @@ public class DFSClient implements FSConstants, java.io.Closeable {
      */
     @Override
     public synchronized int read(byte buf[], int off, int len) throws IOException {
+      return read(new ArrayReadTarget(buf, off), len);
+    }
+
+    /**
+     * Read into a ByteBuffer. The block readers of a stream read with
+     * ByteBuffers read a packet into a direct buffer at a time, and verify
+     * the checksums of the packet at once.
+     */
+    public synchronized int read(ByteBuffer buf) throws IOException {
+      return read(new ByteBufferReadTarget(buf), buf.remaining());
+    }
+
+    private synchronized int read(ReadTarget target, int len)
+        throws IOException {
       checkOpen();
       if (closed) {
         throw new IOException("Stream closed");
@@ -2926,7 +3496,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
               currentNode = blockSeekTo(pos);
             }
             int realLen = (int) Math.min((long) len, (blockEnd - pos + 1L));
-            int result = readBuffer(buf, off, realLen);
+            int result = readBuffer(target, realLen);
 
             if (result >= 0) {
               pos += result;
@@ -2953,6 +3523,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
             if (--retries == 0) {
               throw e;
             }
+            target.reset();
           }
         }
       }
@@ -3015,74 +3586,207 @@ public class DFSClient implements FSConstants, java.io.Closeable {
 
     private void fetchBlockByteRange(LocatedBlock block, long start,
                                      long end, byte[] buf, int offset) throws IOException {
-      //
-      // Connect to best DataNode for desired Block, with potential offset
-      //
-      Socket dn = null;
-
       while (true) {
         // cached block locations may have been updated by chooseDatNode()
         // or fetchBlockAt(). Always get the latest list of locations at the
         // start of the loop.
         block = getBlockAt(block.getStartOffset(), false);
         DNAddrPair retval = chooseDataNode(block);
-        DatanodeInfo chosenNode = retval.info;
-        InetSocketAddress targetAddr = retval.addr;
-        BlockReader reader = null;
-        int len = (int) (end - start + 1);
-
-         try {
-           if (LOG.isDebugEnabled()) {
-             LOG.debug("fetchBlockByteRange shortCircuitLocalReads " +
-                      shortCircuitLocalReads +
-                      " localhst " + localHost +
-                      " targetAddr " + targetAddr);
-           }
-           // first try reading the block locally.
-           if (shortCircuitLocalReads && NetUtils.isLocalAddress(targetAddr.getAddress())) {
-             reader = BlockReaderLocal.newBlockReader(conf, src,
-                                                  namespaceId, block.getBlock(),
-                                                  chosenNode,
-                                                  start,
-                                                  len,
-                                                  metrics,
-                                                  verifyChecksum);
-            } else {
-              // go to the datanode
-              dn = socketFactory.createSocket();
-              NetUtils.connect(dn, targetAddr, socketTimeout);
-              dn.setSoTimeout(socketTimeout);
-              reader = BlockReader.newBlockReader(getDataTransferProtocolVersion(),
-                                              namespaceId,
-                                              dn, src,
-                                              block.getBlock().getBlockId(),
-                                              block.getBlock().getGenerationStamp(),
-                                              start, len, buffersize,
-                                              verifyChecksum, clientName);
+        if (fetchBlockByteRange(block, retval, start, end, buf, offset)) {
+          return;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+          throw new InterruptedIOException("Interrupted while reading "
+              + block.getBlock() + " of " + src);
+        }
+      }
+    }
+
+    /**
+     * Read a range of a block from one datanode.
+     * @return true if the range was read, false if the read failed. The
+     *         datanode is put into the dead list unless the read was
+     *         cancelled.
+     */
+    private boolean fetchBlockByteRange(LocatedBlock block,
+        DNAddrPair retval, long start, long end, byte[] buf, int offset) {
+      //
+      // Connect to the given DataNode for desired Block, with potential offset
+      //
+      DatanodeInfo chosenNode = retval.info;
+      InetSocketAddress targetAddr = retval.addr;
+      BlockReader reader = null;
+      int len = (int) (end - start + 1);
+      long startTime = System.currentTimeMillis();
+
+       try {
+         if (LOG.isDebugEnabled()) {
+           LOG.debug("fetchBlockByteRange shortCircuitLocalReads " +
+                    shortCircuitLocalReads +
+                    " localhst " + localHost +
+                    " targetAddr " + targetAddr);
+         }
+         // first try reading the block locally.
+         if (shortCircuitLocalReads && NetUtils.isLocalAddress(targetAddr.getAddress())) {
+           reader = BlockReaderLocal.newBlockReader(conf, src,
+                                                namespaceId, block.getBlock(),
+                                                chosenNode,
+                                                start,
+                                                len,
+                                                metrics,
+                                                verifyChecksum);
+          } else {
+            // go to the datanode
+            reader = newRemoteBlockReader(targetAddr, block.getBlock(),
+                                          start, len);
+            datanodeLatencies.record(chosenNode,
+                System.currentTimeMillis() - startTime);
+          }
+          int nread = reader.readAll(buf, offset, len);
+          if (nread != len) {
+            throw new IOException("truncated return from reader.read(): " +
+                                  "excpected " + len + ", got " + nread);
+          }
+          return true;
+      } catch (ChecksumException e) {
+        LOG.warn("fetchBlockByteRange(). Got a checksum exception for " +
+                 src + " at " + block.getBlock() + ":" +
+                 e.getPos() + " from " + chosenNode.getName());
+        reportChecksumFailure(src, block.getBlock(), chosenNode);
+      } catch (IOException e) {
+        if (Thread.currentThread().isInterrupted()) {
+          // cancelled, e.g. because a hedged read of the range finished first
+          datanodeLatencies.record(chosenNode,
+              System.currentTimeMillis() - startTime);
+          return false;
+        }
+        LOG.warn("Failed to connect to " + targetAddr +
+                 " for file " + src +
+                 " for block " + block.getBlock().getBlockId() + ":"  +
+                 StringUtils.stringifyException(e));
+        datanodeLatencies.record(chosenNode, socketTimeout);
+      } finally {
+        if (reader != null) {
+          try {
+            closeBlockReader(reader);
+          } catch (IOException e) {
+            LOG.debug("Exception while closing the reader of " + src, e);
+          }
+        }
+      }
+      // Put chosen node into dead list
+      addToDeadNodes(chosenNode);
+      return false;
+    }
+
+    /**
+     * Read a range of a block like {@link #fetchBlockByteRange}, but if the
+     * datanode has not returned the range within the hedged read threshold,
+     * read it from another datanode too and take the first read to finish.
+     * The reads run in the hedged read pool of the client; if the pool is
+     * full, the range is read in the calling thread without hedging.
+     */
+    private void hedgedFetchBlockByteRange(LocatedBlock block, long start,
+        long end, byte[] buf, int offset) throws IOException {
+      int len = (int) (end - start + 1);
+      ExecutorCompletionService<byte[]> reads =
+        new ExecutorCompletionService<byte[]>(hedgedReadPool);
+      List<Future<byte[]>> running = new ArrayList<Future<byte[]>>();
+      List<Future<byte[]>> hedges = new ArrayList<Future<byte[]>>();
+      Set<DatanodeInfo> tried = new HashSet<DatanodeInfo>();
+      try {
+        while (true) {
+          block = getBlockAt(block.getStartOffset(), false);
+          if (running.isEmpty()) {
+            DNAddrPair first = chooseDataNode(block);
+            Future<byte[]> read = submitRead(reads, block, first, start, end);
+            if (read == null) {
+              fetchBlockByteRange(block, start, end, buf, offset);
+              return;
             }
-            int nread = reader.readAll(buf, offset, len);
-            if (nread != len) {
-              throw new IOException("truncated return from reader.read(): " +
-                                    "excpected " + len + ", got " + nread);
+            running.add(read);
+            tried.add(first.info);
+          }
+
+          Future<byte[]> done;
+          if (running.size() == 1) {
+            done = reads.poll(hedgedReadThresholdMillis, TimeUnit.MILLISECONDS);
+            if (done == null) {
+              DNAddrPair hedge = chooseHedgeNode(block, tried);
+              Future<byte[]> read = hedge == null ? null
+                  : submitRead(reads, block, hedge, start, end);
+              if (read != null) {
+                running.add(read);
+                hedges.add(read);
+                tried.add(hedge.info);
+                metrics.incHedgedReadOps();
+              }
+              continue;
+            }
+          } else {
+            done = reads.take();
+          }
+          running.remove(done);
+
+          byte[] result;
+          try {
+            result = done.get();
+          } catch (ExecutionException e) {
+            throw new IOException("Failed to read " + block.getBlock()
+                + " of " + src, e.getCause());
+          }
+          if (result != null) {
+            System.arraycopy(result, 0, buf, offset, len);
+            if (hedges.contains(done)) {
+              metrics.incHedgedReadWins();
             }
             return;
-        } catch (ChecksumException e) {
-          LOG.warn("fetchBlockByteRange(). Got a checksum exception for " +
-                   src + " at " + block.getBlock() + ":" +
-                   e.getPos() + " from " + chosenNode.getName());
-          reportChecksumFailure(src, block.getBlock(), chosenNode);
-        } catch (IOException e) {
-          LOG.warn("Failed to connect to " + targetAddr +
-                   " for file " + src +
-                   " for block " + block.getBlock().getBlockId() + ":"  +
-                   StringUtils.stringifyException(e));
-        } finally {
-          IOUtils.closeStream(reader);
-          IOUtils.closeSocket(dn);
+          }
+          // the datanode failed, wait for the other reads or start a new one
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while reading "
+            + block.getBlock() + " of " + src);
+      } finally {
+        for (Future<byte[]> read : running) {
+          read.cancel(true);
+        }
+      }
+    }
+
+    /**
+     * Start reading a range of a block from a datanode into a new buffer.
+     * @return the buffer once the read completes, null if it failed, or
+     *         null if the hedged read pool is full
+     */
+    private Future<byte[]> submitRead(ExecutorCompletionService<byte[]> reads,
+        final LocatedBlock block, final DNAddrPair node,
+        final long start, final long end) {
+      try {
+        return reads.submit(new Callable<byte[]>() {
+          public byte[] call() {
+            byte[] buf = new byte[(int) (end - start + 1)];
+            return fetchBlockByteRange(block, node, start, end, buf, 0)
+                ? buf : null;
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        return null;
+      }
+    }
+
+    /**
+     * @return the best datanode of a block that is not dead and was not
+     *         tried yet, null if there is none
+     */
+    private DNAddrPair chooseHedgeNode(LocatedBlock block,
+                                       Set<DatanodeInfo> tried) {
+      for (DatanodeInfo node : datanodeLatencies.order(block.getLocations())) {
+        if (!deadNodes.containsKey(node) && !tried.contains(node)) {
+          return new DNAddrPair(node, NetUtils.createSocketAddr(node.getName()));
         }
-        // Put chosen node into dead list, continue
-        addToDeadNodes(chosenNode);
       }
+      return null;
     }
 
     /**
@@ -3120,8 +3824,13 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       for (LocatedBlock blk : blockRange) {
         long targetStart = position - blk.getStartOffset();
         long bytesToRead = Math.min(remaining, blk.getBlockSize() - targetStart);
-        fetchBlockByteRange(blk, targetStart,
-                            targetStart + bytesToRead - 1, buffer, offset);
+        if (hedgedReadPool != null) {
+          hedgedFetchBlockByteRange(blk, targetStart,
+                                    targetStart + bytesToRead - 1, buffer, offset);
+        } else {
+          fetchBlockByteRange(blk, targetStart,
+                              targetStart + bytesToRead - 1, buffer, offset);
+        }
         remaining -= bytesToRead;
         position += bytesToRead;
         offset += bytesToRead;
@@ -3137,6 +3846,61 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       return realLen;
     }
 
+    /**
+     * Read the ranges with positional reads, one read for the ranges close
+     * to each other. The reads run concurrently in the vectored read pool
+     * of the client.
+     */
+    @Override
+    public void readVectored(List<FileRange> ranges) throws IOException {
+      checkOpen();
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      FileRange.checkRanges(ranges, getFileLength());
+      List<List<FileRange>> groups = FileRange.coalesce(ranges,
+          vectoredReadMergeGap, vectoredReadMergeMax);
+      if (vectoredReadPool == null || groups.size() == 1) {
+        for (List<FileRange> group : groups) {
+          FileRange.readGroup(this, group);
+        }
+        return;
+      }
+
+      List<Future<Void>> reads = new ArrayList<Future<Void>>(groups.size());
+      try {
+        for (final List<FileRange> group : groups) {
+          try {
+            reads.add(vectoredReadPool.submit(new Callable<Void>() {
+              public Void call() throws IOException {
+                FileRange.readGroup(DFSInputStream.this, group);
+                return null;
+              }
+            }));
+          } catch (RejectedExecutionException e) {
+            // all the threads are busy
+            FileRange.readGroup(this, group);
+          }
+        }
+        for (Future<Void> read : reads) {
+          try {
+            read.get();
+          } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+              throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to read " + src, e.getCause());
+          }
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while reading " + src);
+      } finally {
+        for (Future<Void> read : reads) {
+          read.cancel(true);
+        }
+      }
+    }
+
     @Override
     public long skip(long n) throws IOException {
       if ( n > 0 ) {
@@ -3432,8 +4196,15 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private final long packetTimeout
       = conf.getLong("dfs.client.packet.timeout", 15000); // 15 seconds
     private Packet currentPacket = null;
-    private int maxPackets = 80; // each packet 64K, total 5MB
+    private static final int MAX_PACKETS = 80;
+    private static final int MIN_MAX_PACKETS = 8;
+    private static final int PACKETS_BEFORE_GROWTH = 64;
+    private int maxPackets = MAX_PACKETS; // each packet 64K, total 5MB
     // private int maxPackets = 1000; // each packet 64K, total 64MB
+    // the size of the full packets, grows up to maxWritePacketSize while
+    // the stream is written without being synced
+    private int adaptivePacketSize = writePacketSize;
+    private int fullPacketsSinceSync = 0;
     private DataStreamer streamer = new DataStreamer();;
     private ResponseProcessor response = null;
     private long currentSeqno = 0;
@@ -3518,7 +4289,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         currentSeqno++;
 
         buffer = null;
-        buf = new byte[pktSize];
+        buf = packetBufferPool.get(pktSize);
 
         checksumStart = DataNode.PKT_HEADER_LEN + SIZE_OF_INTEGER;
         checksumPos = checksumStart;
@@ -3607,6 +4378,21 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       private long getEndPosInCurrBlk() {
         return offsetInBlock + (dataPos - dataStart);
       }
+
+      /**
+       * Give the buffer of an acknowledged packet back to the pool.
+       */
+      void releaseBuffer() {
+        if (isHeartbeatPacket()) {
+          return;
+        }
+        byte[] b = buffer != null ? buffer.array() : buf;
+        buffer = null;
+        buf = null;
+        if (b != null) {
+          packetBufferPool.put(b);
+        }
+      }
       
       /**
        * Check if this packet is a heart beat packet
@@ -3660,6 +4446,25 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         getDataTransferProtocolVersion();
       }
 
+      /** Record an error of the pipeline, called with dataQueue locked. */
+      private void handleStreamerError(Throwable e) {
+        LOG.warn("DataStreamer Exception: " +
+                 StringUtils.stringifyException(e));
+        if (e instanceof IOException) {
+          setLastException((IOException)e);
+        }
+        hasError = true;
+        if (blockStream != null) {
+          // find the first datanode to which we could not write data.
+          int possibleError =  blockStream.getErrorIndex();
+          if (possibleError != -1) {
+            errorIndex = possibleError;
+            LOG.warn("DataStreamer bad datanode in pipeline:" +
+                     possibleError);
+          }
+        }
+      }
+
       private void waitForWork() throws IOException {
         if ( supportClientHeartbeat() ) {  // send heart beat
           long now = System.currentTimeMillis();
@@ -3705,6 +4510,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           }
 
           Packet one = null;
+          ByteBuffer buf = null;
           synchronized (dataQueue) {
 
             // process IO errors if any
@@ -3745,25 +4551,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                                       " Aborting file " + src);
               }
 
-              ByteBuffer buf = one.getBuffer();
+              buf = one.getBuffer();
 
-              // write out data to remote datanode
-              blockStream.write(buf.array(), buf.position(), buf.remaining());
-
-              if (one.lastPacketInBlock) {
-                blockStream.writeInt(0); // indicate end-of-block
-              }
-              blockStream.flush();
-              lastPacket = System.currentTimeMillis();
-              if (LOG.isDebugEnabled()) {
-                LOG.debug("DataStreamer block " + block +
-                          " wrote packet seqno:" + one.seqno +
-                          " size:" + buf.remaining() +
-                          " offsetInBlock:" + one.offsetInBlock +
-                          " lastPacketInBlock:" + one.lastPacketInBlock);
-              }
-
-              // move packet from dataQueue to ackQueue
+              // move packet from dataQueue to ackQueue before it is sent,
+              // its ack may arrive as soon as it is written. It is sent
+              // again from there if the pipeline fails.
               if (!one.isHeartbeatPacket()) {
                 dataQueue.removeFirst();
                 dataQueue.notifyAll();
@@ -3777,25 +4569,39 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                   numPendingHeartbeats++;
                   ackQueue.notifyAll();                  
                 }
-
-                LOG.info("Sending a heartbeat packet for block " + block);
               }
             } catch (Throwable e) {
-              LOG.warn("DataStreamer Exception: " +
-                       StringUtils.stringifyException(e));
-              if (e instanceof IOException) {
-                setLastException((IOException)e);
-              }
-              hasError = true;
-              if (blockStream != null) {
-                // find the first datanode to which we could not write data.
-                int possibleError =  blockStream.getErrorIndex();
-                if (possibleError != -1) {
-                  errorIndex = possibleError;
-                  LOG.warn("DataStreamer bad datanode in pipeline:" +
-                           possibleError);
-                }
-              }
+              handleStreamerError(e);
+            }
+          }
+
+          if (closed || hasError || !clientRunning) {
+            continue;
+          }
+
+          // write out data to remote datanode without holding dataQueue,
+          // so that the writer keeps filling packets meanwhile
+          try {
+            blockStream.write(buf.array(), buf.position(), buf.remaining());
+
+            if (one.lastPacketInBlock) {
+              blockStream.writeInt(0); // indicate end-of-block
+            }
+            blockStream.flush();
+            lastPacket = System.currentTimeMillis();
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("DataStreamer block " + block +
+                        " wrote packet seqno:" + one.seqno +
+                        " size:" + buf.remaining() +
+                        " offsetInBlock:" + one.offsetInBlock +
+                        " lastPacketInBlock:" + one.lastPacketInBlock);
+            }
+            if (one.isHeartbeatPacket()) {
+              LOG.info("Sending a heartbeat packet for block " + block);
+            }
+          } catch (Throwable e) {
+            synchronized (dataQueue) {
+              handleStreamerError(e);
             }
           }
 
@@ -3995,6 +4801,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
               ackQueue.removeFirst();
               ackQueue.notifyAll();
             }
+            one.releaseBuffer();
 
           } catch (Exception e) {
             if (!closed) {
@@ -4236,7 +5043,17 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         int bytesPerChecksum, short replication, boolean forceSync,
         boolean doParallelWrites)
     throws IOException {
-      super(new CRC32(), bytesPerChecksum, 4);
+      this(src, blockSize, progress, createWriteChecksum(bytesPerChecksum),
+           replication, forceSync, doParallelWrites);
+    }
+
+    private DFSOutputStream(String src, long blockSize, Progressable progress,
+        DataChecksum checksum, short replication, boolean forceSync,
+        boolean doParallelWrites)
+    throws IOException {
+      super(checksum, checksum.getBytesPerChecksum(),
+            checksum.getChecksumSize());
+      int bytesPerChecksum = checksum.getBytesPerChecksum();
       this.forceSync = forceSync;
       this.doParallelWrites = doParallelWrites;
       this.src = src;
@@ -4254,9 +5071,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                               "multiple of io.bytes.per.checksum");
 
       }
-      checksum = DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32,
-                                              bytesPerChecksum,
-                                              new PureJavaCrc32());
+      this.checksum = checksum;
     }
     
     /**
@@ -4756,7 +5571,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
             appendChunk = false;
             resetChecksumChunk(bytesPerChecksum);
           }
-          int psize = Math.min((int)(blockSize-bytesCurBlock), writePacketSize);
+          growPacketSize();
+          int psize = Math.min((int)(blockSize-bytesCurBlock),
+                               adaptivePacketSize);
           computePacketChunkSize(psize, bytesPerChecksum);
         }
       }
@@ -4765,6 +5582,34 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       //          " checksum length " + cklen);
     }
 
+    /**
+     * Double the size of the packets after PACKETS_BEFORE_GROWTH full
+     * packets were written without a sync: a stream that is written
+     * sequentially sends fewer, larger packets, each costing one header,
+     * one ack and a few system calls on every datanode of the pipeline. The
+     * number of queued packets shrinks accordingly so that the bytes queued
+     * stay the same. The datanodes take packets of any size.
+     */
+    private void growPacketSize() {
+      if (++fullPacketsSinceSync < PACKETS_BEFORE_GROWTH ||
+          adaptivePacketSize >= maxWritePacketSize) {
+        return;
+      }
+      fullPacketsSinceSync = 0;
+      setAdaptivePacketSize(Math.min(2 * adaptivePacketSize,
+                                     maxWritePacketSize));
+    }
+
+    private void setAdaptivePacketSize(int size) {
+      adaptivePacketSize = size;
+      maxPackets = Math.max(MIN_MAX_PACKETS,
+          (int)((long)MAX_PACKETS * writePacketSize / adaptivePacketSize));
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("DFSClient packet size of " + src + " is now " +
+                  adaptivePacketSize + ", maxPackets " + maxPackets);
+      }
+    }
+
     private synchronized void enqueueCurrentPacket() {
       synchronized (dataQueue) {
         if (currentPacket == null) return;
@@ -4793,6 +5638,12 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           long saveOffset = bytesCurBlock;
           Packet oldCurrentPacket = currentPacket;
 
+          // a synced stream waits for its packets, keep them small
+          fullPacketsSinceSync = 0;
+          if (adaptivePacketSize != writePacketSize) {
+            setAdaptivePacketSize(writePacketSize);
+          }
+
           // flush checksum buffer, but keep checksum buffer intact
           flushBuffer(true);
           // bytesCurBlock potentially incremented if there was buffered data
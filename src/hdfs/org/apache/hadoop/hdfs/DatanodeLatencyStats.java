@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+
+/**
+ * The latencies of the reads of a DFSClient from the datanodes, kept as a
+ * moving average per datanode.
+ *
+ * The replicas of a block are read in the order of the namenode, which
+ * puts the closest replica first, except that the replicas on the
+ * datanodes that were much slower than the fastest one recently are moved
+ * to the end. The latency of a datanode is forgotten after expiryMs, so
+ * that a datanode that was slow for a while (a long GC, a busy disk) is
+ * tried again.
+ */
+class DatanodeLatencyStats {
+  /** The weight of a new sample in the moving average */
+  static final double ALPHA = 0.3;
+  /** A datanode is slow if its latency is this many times the fastest */
+  static final double SLOW_FACTOR = 2.0;
+  /** and if it is at least this many milliseconds more than the fastest */
+  static final double MIN_SLOW_DIFF_MS = 5.0;
+
+  private static class Latency {
+    double average;
+    long updateTime;
+  }
+
+  private final long expiryMs;
+  private final Map<DatanodeInfo, Latency> latencies =
+    new HashMap<DatanodeInfo, Latency>();
+
+  DatanodeLatencyStats(long expiryMs) {
+    this.expiryMs = expiryMs;
+  }
+
+  /** Add the latency of a read from a datanode to its average. */
+  synchronized void record(DatanodeInfo node, long latencyMs) {
+    long now = System.currentTimeMillis();
+    Latency l = latencies.get(node);
+    if (l == null) {
+      l = new Latency();
+      latencies.put(node, l);
+    }
+    if (now - l.updateTime > expiryMs) {
+      l.average = latencyMs;
+    } else {
+      l.average = (1 - ALPHA) * l.average + ALPHA * latencyMs;
+    }
+    l.updateTime = now;
+  }
+
+  /**
+   * @return the average latency of the reads from a datanode in
+   * milliseconds, -1 if it has not been read from recently
+   */
+  synchronized double getLatency(DatanodeInfo node) {
+    Latency l = latencies.get(node);
+    if (l == null || System.currentTimeMillis() - l.updateTime > expiryMs) {
+      return -1;
+    }
+    return l.average;
+  }
+
+  /**
+   * Order the replicas of a block for reading.
+   * @param nodes the locations of the block in the order of the namenode
+   * @return the nodes, with the slow ones moved to the end from the
+   *         fastest to the slowest
+   */
+  DatanodeInfo[] order(DatanodeInfo[] nodes) {
+    if (nodes == null || nodes.length < 2) {
+      return nodes;
+    }
+    final double[] latency = new double[nodes.length];
+    double fastest = Double.MAX_VALUE;
+    for (int i = 0; i < nodes.length; i++) {
+      latency[i] = getLatency(nodes[i]);
+      if (latency[i] >= 0) {
+        fastest = Math.min(fastest, latency[i]);
+      }
+    }
+
+    List<DatanodeInfo> fast = new ArrayList<DatanodeInfo>(nodes.length);
+    List<Integer> slow = new ArrayList<Integer>();
+    for (int i = 0; i < nodes.length; i++) {
+      if (latency[i] > fastest * SLOW_FACTOR &&
+          latency[i] - fastest >= MIN_SLOW_DIFF_MS) {
+        slow.add(i);
+      } else {
+        fast.add(nodes[i]);
+      }
+    }
+    if (slow.isEmpty()) {
+      return nodes;
+    }
+    Collections.sort(slow, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Double.compare(latency[a], latency[b]);
+      }
+    });
+    DatanodeInfo[] ordered = fast.toArray(new DatanodeInfo[nodes.length]);
+    for (int i = 0; i < slow.size(); i++) {
+      ordered[fast.size() + i] = nodes[slow.get(i)];
+    }
+    return ordered;
+  }
+}
@@ -632,6 +632,15 @@ public class DistributedFileSystem extends FileSystem {
     return dfs.getFileChecksum(getPathName(f));
   }
 
+  /**
+   * Get the CRC type of a file, from the checksum of its first block.
+   * @see org.apache.hadoop.util.DataChecksum#CHECKSUM_CRC32
+   * @see org.apache.hadoop.util.DataChecksum#CHECKSUM_CRC32C
+   */
+  public int getFileCrcType(Path f) throws IOException {
+    return dfs.getFileCrcType(getPathName(f));
+  }
+
   /** {@inheritDoc }*/
   public void setPermission(Path p, FsPermission permission
       ) throws IOException {
@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.FileInputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * A cache of the block and meta files a DataNode passed to a local client,
+ * keyed by block id and generation stamp.
+ *
+ * An entry is used by one reader at a time: {@link #get} takes it out of
+ * the cache and the reader puts it back when it is closed. Entries older
+ * than the expiry time are closed, so that the client does not hold on to
+ * the files of deleted blocks, and so are the oldest entries when the
+ * cache is full.
+ */
+class FileInputStreamCache {
+
+  /** The open block and meta files of a block. */
+  static class Entry {
+    final FileInputStream dataIn;
+    final FileInputStream metaIn;
+    final long blockLength;
+    private final long createTime;
+
+    Entry(FileInputStream dataIn, FileInputStream metaIn, long blockLength) {
+      this.dataIn = dataIn;
+      this.metaIn = metaIn;
+      this.blockLength = blockLength;
+      this.createTime = System.currentTimeMillis();
+    }
+
+    void close() {
+      IOUtils.closeStream(dataIn);
+      IOUtils.closeStream(metaIn);
+    }
+  }
+
+  private static class Key {
+    final long blockId;
+    final long generationStamp;
+
+    Key(long blockId, long generationStamp) {
+      this.blockId = blockId;
+      this.generationStamp = generationStamp;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key)o;
+      return blockId == k.blockId && generationStamp == k.generationStamp;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int)(blockId ^ (blockId >>> 32) ^ generationStamp);
+    }
+  }
+
+  private final int capacity;
+  private final long expiryMillis;
+  // in the order the blocks were first cached
+  private final LinkedHashMap<Key, LinkedList<Entry>> entries =
+    new LinkedHashMap<Key, LinkedList<Entry>>();
+  private int size = 0;
+
+  /**
+   * @param capacity the maximum number of entries
+   * @param expiryMillis how long the entries can be reused
+   */
+  FileInputStreamCache(int capacity, long expiryMillis) {
+    this.capacity = capacity;
+    this.expiryMillis = expiryMillis;
+  }
+
+  /**
+   * Take the most recent entry of a block out of the cache.
+   * @return the entry, null if there is none
+   */
+  synchronized Entry get(long blockId, long generationStamp) {
+    Key key = new Key(blockId, generationStamp);
+    LinkedList<Entry> list = entries.get(key);
+    if (list == null) {
+      return null;
+    }
+    Entry entry = list.removeLast();
+    size--;
+    if (list.isEmpty()) {
+      entries.remove(key);
+    }
+    if (isExpired(entry, System.currentTimeMillis())) {
+      entry.close();
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Put an entry back into the cache. The expired entries and the oldest
+   * ones beyond the capacity are closed.
+   */
+  synchronized void put(long blockId, long generationStamp, Entry entry) {
+    long now = System.currentTimeMillis();
+    if (capacity <= 0 || isExpired(entry, now)) {
+      entry.close();
+      return;
+    }
+    Key key = new Key(blockId, generationStamp);
+    LinkedList<Entry> list = entries.get(key);
+    if (list == null) {
+      list = new LinkedList<Entry>();
+      entries.put(key, list);
+    }
+    list.addLast(entry);
+    size++;
+
+    for (Iterator<Map.Entry<Key, LinkedList<Entry>>> it =
+           entries.entrySet().iterator(); it.hasNext() && size > 0;) {
+      LinkedList<Entry> l = it.next().getValue();
+      while (!l.isEmpty() &&
+             (size > capacity || isExpired(l.getFirst(), now))) {
+        l.removeFirst().close();
+        size--;
+      }
+      if (l.isEmpty()) {
+        it.remove();
+      } else if (size <= capacity) {
+        break;
+      }
+    }
+  }
+
+  private boolean isExpired(Entry entry, long now) {
+    return now - entry.createTime > expiryMillis;
+  }
+
+  /** @return the number of entries in the cache */
+  synchronized int size() {
+    return size;
+  }
+
+  /** Close all the entries. */
+  synchronized void clear() {
+    for (LinkedList<Entry> list : entries.values()) {
+      for (Entry entry : list) {
+        entry.close();
+      }
+    }
+    entries.clear();
+    size = 0;
+  }
+}
@@ -0,0 +1,406 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+
+/**
+ * The statuses and block locations of files, and the listings of
+ * directories, that a DFSClient got from the namenode, so that it does not
+ * ask again for the paths which do not change.
+ *
+ * Like the LookasideCache it is a LRU cache: when it holds capacity paths
+ * the path used the longest ago is dropped. Only the statuses of files, not
+ * of directories, and the block locations of closed files are cached. The
+ * client drops the paths it changes, with the listings of the directories
+ * above them, but it does not know about the changes of the other clients,
+ * so the entries expire after expiryMs.
+ *
+ * A client may get the metadata of a file from the namenode just before it
+ * changes the file, and put it into the cache just after the change
+ * dropped it. So the callers take the generation of the cache before they
+ * ask the namenode, and the metadata is not put if the path, or a path
+ * above it, was dropped since. The generations of the last dropped paths
+ * are kept; when one is forgotten the puts of all the older generations
+ * are refused.
+ *
+ * The cached paths are indexed by their parent directory, so that a change
+ * only visits the paths under the changed one and the directories above it.
+ */
+class MetadataCache {
+
+  private static class Entry {
+    FileStatus status;
+    long statusTime;
+    LocatedBlocks blocks;
+    long blocksTime;
+    FileStatus[] listing;
+    long listingTime;
+  }
+
+  private final int capacity;
+  private final long expiryMs;
+  // the files in the order of their last use
+  private final LinkedHashMap<String, Entry> entries;
+  // the children of the directories above the cached paths
+  private final Map<String, Set<String>> children =
+    new HashMap<String, Set<String>>();
+  // incremented each time a path is dropped
+  private long generation = 0;
+  // the generations at which the last paths were dropped with their
+  // subtrees, and at which the listings above them were dropped
+  private final Map<String, Long> droppedPaths = newGenerations();
+  private final Map<String, Long> droppedListings = newGenerations();
+  // the puts of the generations below are refused
+  private long minGeneration = 0;
+
+  MetadataCache(final int capacity, long expiryMs) {
+    this.capacity = capacity;
+    this.expiryMs = expiryMs;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        if (size() <= capacity) {
+          return false;
+        }
+        remove(eldest.getKey());
+        unlink(eldest.getKey());
+        return false;
+      }
+    };
+  }
+
+  private Map<String, Long> newGenerations() {
+    return new LinkedHashMap<String, Long>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+        if (size() <= Math.max(capacity, 1)) {
+          return false;
+        }
+        minGeneration = Math.max(minGeneration, eldest.getValue());
+        return true;
+      }
+    };
+  }
+
+  /**
+   * @return a copy of the cached status of a file, which the caller may
+   *         change, null if it is not cached or has expired
+   */
+  synchronized FileStatus getFileStatus(String src) {
+    Entry entry = entries.get(src);
+    if (entry == null || entry.status == null) {
+      return null;
+    }
+    if (expired(entry.statusTime)) {
+      entry.status = null;
+      removeIfEmpty(src, entry);
+      return null;
+    }
+    return copy(entry.status);
+  }
+
+  /**
+   * @return the generation to pass to the put methods, taken before the
+   *         metadata is fetched
+   */
+  synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Cache the status of a file. The statuses of directories are not.
+   * @param generation the generation of the cache before the status was
+   *        fetched
+   */
+  synchronized void putFileStatus(String src, FileStatus status,
+                                  long generation) {
+    if (capacity <= 0 || status == null || status.isDir() ||
+        droppedSince(src, generation, false)) {
+      return;
+    }
+    Entry entry = getOrCreate(src);
+    entry.status = copy(status);
+    entry.statusTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Get the locations of the blocks of a file in a range, if the cached
+   * locations cover the range.
+   * @return the blocks which overlap the range, null if they are not cached
+   */
+  synchronized LocatedBlocks getBlockLocations(String src, long start,
+                                               long length) {
+    Entry entry = entries.get(src);
+    if (entry == null || entry.blocks == null || length <= 0) {
+      return null;
+    }
+    if (expired(entry.blocksTime)) {
+      entry.blocks = null;
+      removeIfEmpty(src, entry);
+      return null;
+    }
+
+    LocatedBlocks blocks = entry.blocks;
+    long fileLength = blocks.getFileLength();
+    long end = Math.min(fileLength,
+        length > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + length);
+    List<LocatedBlock> range = new ArrayList<LocatedBlock>();
+    int count = blocks.locatedBlockCount();
+    if (count == 0) {
+      return fileLength == 0 ? new LocatedBlocks(0, range, false) : null;
+    }
+    LocatedBlock first = blocks.get(0);
+    LocatedBlock last = blocks.get(count - 1);
+    if (start < first.getStartOffset() ||
+        end > last.getStartOffset() + last.getBlockSize()) {
+      return null;
+    }
+    for (LocatedBlock blk : blocks.getLocatedBlocks()) {
+      if (blk.getStartOffset() < end &&
+          blk.getStartOffset() + blk.getBlockSize() > start) {
+        range.add(blk);
+      }
+    }
+    return new LocatedBlocks(fileLength, range, false);
+  }
+
+  /**
+   * Cache the locations of the blocks of a file. If the file is under
+   * construction they are not, and its status is dropped.
+   * @param generation the generation of the cache before the locations
+   *        were fetched
+   */
+  synchronized void putBlockLocations(String src, LocatedBlocks blocks,
+                                      long generation) {
+    if (capacity <= 0 || blocks == null ||
+        droppedSince(src, generation, false)) {
+      return;
+    }
+    if (blocks.isUnderConstruction()) {
+      invalidate(src);
+      return;
+    }
+    Entry entry = getOrCreate(src);
+    entry.blocks = blocks;
+    entry.blocksTime = System.currentTimeMillis();
+  }
+
+  /**
+   * @return a copy of the cached listing of a directory, null if it is not
+   *         cached or has expired
+   */
+  synchronized FileStatus[] getListing(String src) {
+    Entry entry = entries.get(src);
+    if (entry == null || entry.listing == null) {
+      return null;
+    }
+    if (expired(entry.listingTime)) {
+      entry.listing = null;
+      removeIfEmpty(src, entry);
+      return null;
+    }
+    FileStatus[] listing = new FileStatus[entry.listing.length];
+    for (int i = 0; i < listing.length; i++) {
+      listing[i] = copy(entry.listing[i]);
+    }
+    return listing;
+  }
+
+  /**
+   * Cache the listing of a directory.
+   * @param generation the generation of the cache before the listing was
+   *        fetched
+   */
+  synchronized void putListing(String src, FileStatus[] listing,
+                               long generation) {
+    if (capacity <= 0 || listing == null ||
+        droppedSince(src, generation, true)) {
+      return;
+    }
+    FileStatus[] copies = new FileStatus[listing.length];
+    for (int i = 0; i < copies.length; i++) {
+      copies[i] = copy(listing[i]);
+    }
+    Entry entry = getOrCreate(src);
+    entry.listing = copies;
+    entry.listingTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Drop a path and all the paths under it, after a change to it. The
+   * listings of the directories above it are dropped too, since they hold
+   * the status of the path or of one of its parents.
+   */
+  synchronized void invalidate(String src) {
+    if (capacity <= 0) {
+      return;
+    }
+    generation++;
+    droppedPaths.put(src, generation);
+    removeSubtree(src);
+    unlink(src);
+    for (String dir = getParent(src); dir != null; dir = getParent(dir)) {
+      droppedListings.put(dir, generation);
+      Entry entry = entries.get(dir);
+      if (entry != null) {
+        entry.listing = null;
+        removeIfEmpty(dir, entry);
+      }
+    }
+  }
+
+  /**
+   * @return true if the metadata of a path fetched at the given generation
+   *         may be older than a change of the path
+   */
+  private boolean droppedSince(String src, long generation,
+                               boolean listing) {
+    if (generation == this.generation) {
+      return false;
+    }
+    if (generation < minGeneration) {
+      return true;
+    }
+    if (listing && droppedAfter(droppedListings, src, generation)) {
+      return true;
+    }
+    for (String path = src; path != null; path = getParent(path)) {
+      if (droppedAfter(droppedPaths, path, generation)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean droppedAfter(Map<String, Long> dropped,
+                                      String path, long generation) {
+    Long g = dropped.get(path);
+    return g != null && g > generation;
+  }
+
+  /** @return the number of files in the cache */
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /** Drop all the files. */
+  synchronized void clear() {
+    entries.clear();
+    children.clear();
+  }
+
+  private static FileStatus copy(FileStatus status) {
+    return new FileStatus(status.getLen(), status.isDir(),
+        status.getReplication(), status.getBlockSize(),
+        status.getModificationTime(), status.getAccessTime(),
+        status.getPermission(), status.getOwner(), status.getGroup(),
+        status.getPath());
+  }
+
+  private boolean expired(long time) {
+    return System.currentTimeMillis() - time > expiryMs;
+  }
+
+  private Entry getOrCreate(String src) {
+    Entry entry = entries.get(src);
+    if (entry == null) {
+      entry = new Entry();
+      entries.put(src, entry);
+      link(src);
+    }
+    return entry;
+  }
+
+  private void removeIfEmpty(String src, Entry entry) {
+    if (entry.status == null && entry.blocks == null &&
+        entry.listing == null) {
+      entries.remove(src);
+      unlink(src);
+    }
+  }
+
+  /** Add a path to the children of the directories above it. */
+  private void link(String path) {
+    for (String parent = getParent(path); parent != null;
+         path = parent, parent = getParent(parent)) {
+      Set<String> siblings = children.get(parent);
+      boolean linked = siblings != null || entries.containsKey(parent);
+      if (siblings == null) {
+        siblings = new HashSet<String>();
+        children.put(parent, siblings);
+      }
+      siblings.add(path);
+      if (linked) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Remove a path which is not cached anymore from the children of its
+   * parent, and the directories left with nothing under them.
+   */
+  private void unlink(String path) {
+    while (!entries.containsKey(path) && !children.containsKey(path)) {
+      String parent = getParent(path);
+      if (parent == null) {
+        return;
+      }
+      Set<String> siblings = children.get(parent);
+      if (siblings == null) {
+        return;
+      }
+      siblings.remove(path);
+      if (!siblings.isEmpty()) {
+        return;
+      }
+      children.remove(parent);
+      path = parent;
+    }
+  }
+
+  /** Drop a path and the paths under it, but not its own link. */
+  private void removeSubtree(String path) {
+    entries.remove(path);
+    Set<String> below = children.remove(path);
+    if (below != null) {
+      for (String child : below) {
+        removeSubtree(child);
+      }
+    }
+  }
+
+  /** @return the parent directory of a path, null for the root */
+  private static String getParent(String path) {
+    int slash = path.lastIndexOf(Path.SEPARATOR_CHAR);
+    if (slash < 0 || path.length() == 1) {
+      return null;
+    }
+    return slash == 0 ? Path.SEPARATOR : path.substring(0, slash);
+  }
+}
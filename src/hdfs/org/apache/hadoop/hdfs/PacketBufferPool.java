@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+/**
+ * A pool of the buffers of the packets written by the output streams of a
+ * DFSClient, keyed by size.
+ *
+ * A packet takes its buffer from the pool when it is created and gives it
+ * back once it is acknowledged by the pipeline, so that a stream writing
+ * at full speed does not allocate a new array for every packet. The pool
+ * holds at most maxBytes bytes; when it is full, the buffers of the size
+ * that was used the least recently are dropped first.
+ */
+class PacketBufferPool {
+  private final long maxBytes;
+  private long pooledBytes = 0;
+  // the free buffers by size, in access order
+  private final LinkedHashMap<Integer, LinkedList<byte[]>> buffers =
+    new LinkedHashMap<Integer, LinkedList<byte[]>>(16, 0.75f, true);
+
+  /**
+   * @param maxBytes the maximum number of bytes of the free buffers,
+   *                 0 disables the pool
+   */
+  PacketBufferPool(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return a buffer of exactly size bytes, whose content is undefined
+   */
+  synchronized byte[] get(int size) {
+    LinkedList<byte[]> free = buffers.get(size);
+    if (free != null && !free.isEmpty()) {
+      pooledBytes -= size;
+      return free.removeFirst();
+    }
+    return new byte[size];
+  }
+
+  /**
+   * Give a buffer back to the pool. It must not be used by the caller
+   * any more.
+   */
+  synchronized void put(byte[] buf) {
+    if (buf.length > maxBytes) {
+      return;
+    }
+    LinkedList<byte[]> free = buffers.get(buf.length);
+    if (free == null) {
+      free = new LinkedList<byte[]>();
+      buffers.put(buf.length, free);
+    }
+    free.addFirst(buf);
+    pooledBytes += buf.length;
+
+    // drop the buffers of the least recently used sizes
+    Iterator<LinkedList<byte[]>> it = buffers.values().iterator();
+    while (pooledBytes > maxBytes && it.hasNext()) {
+      LinkedList<byte[]> lru = it.next();
+      while (pooledBytes > maxBytes && !lru.isEmpty()) {
+        pooledBytes -= lru.removeLast().length;
+      }
+      if (lru.isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+
+  /** @return the number of bytes of the free buffers */
+  synchronized long getPooledBytes() {
+    return pooledBytes;
+  }
+}
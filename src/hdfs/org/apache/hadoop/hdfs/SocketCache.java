@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * The connections of a DFSClient to the datanodes that the datanodes kept
+ * open after a read, so that they can serve another read.
+ *
+ * A connection is used by one read at a time: it is taken out of the cache
+ * for a read and put back once the read is complete. When the cache is full
+ * the connection put back the longest ago is closed. A datanode closes a
+ * connection which does not get a request within its keep alive time, so
+ * the connections are dropped after expiryMs, which should be shorter.
+ */
+class SocketCache {
+
+  private static class Entry {
+    final SocketAddress address;
+    final Socket socket;
+    final long time;
+
+    Entry(Socket socket, long time) {
+      this.address = socket.getRemoteSocketAddress();
+      this.socket = socket;
+      this.time = time;
+    }
+  }
+
+  private final int capacity;
+  private final long expiryMs;
+  // the connection put back the last first
+  private final LinkedList<Entry> entries = new LinkedList<Entry>();
+
+  SocketCache(int capacity, long expiryMs) {
+    this.capacity = capacity;
+    this.expiryMs = expiryMs;
+  }
+
+  /**
+   * Take a connection to a datanode out of the cache.
+   * @return the connection, null if there is none for the datanode
+   */
+  synchronized Socket get(SocketAddress address) {
+    long now = System.currentTimeMillis();
+    for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+      Entry entry = it.next();
+      if (now - entry.time > expiryMs) {
+        // the next ones were put back earlier, they expired too
+        evictFrom(entry);
+        return null;
+      }
+      if (entry.address.equals(address)) {
+        it.remove();
+        if (!entry.socket.isClosed()) {
+          return entry.socket;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Put back a connection after a read.
+   */
+  synchronized void put(Socket socket) {
+    if (capacity <= 0 || socket.isClosed()) {
+      IOUtils.closeSocket(socket);
+      return;
+    }
+    while (entries.size() >= capacity) {
+      IOUtils.closeSocket(entries.removeLast().socket);
+    }
+    entries.addFirst(new Entry(socket, System.currentTimeMillis()));
+  }
+
+  /** @return the number of connections in the cache */
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /** Close all the connections of the cache. */
+  synchronized void clear() {
+    for (Entry entry : entries) {
+      IOUtils.closeSocket(entry.socket);
+    }
+    entries.clear();
+  }
+
+  /** Close the connections from an entry to the end of the list. */
+  private void evictFrom(Entry first) {
+    while (!entries.isEmpty()) {
+      Entry entry = entries.removeLast();
+      IOUtils.closeSocket(entry.socket);
+      if (entry == first) {
+        return;
+      }
+    }
+  }
+}
@@ -28,6 +28,12 @@ public class DFSClientMetrics implements Updater {
 	public MetricsTimeVaryingLong preadOps = new MetricsTimeVaryingLong(
 			"client.pread.operations", registry,
 	"The number of pread operation in DFSInputStream");
+	public MetricsTimeVaryingLong hedgedReadOps = new MetricsTimeVaryingLong(
+			"client.pread.hedged.operations", registry,
+	"The number of preads sent to a second datanode after the first was slow");
+	public MetricsTimeVaryingLong hedgedReadWins = new MetricsTimeVaryingLong(
+			"client.pread.hedged.wins", registry,
+	"The number of hedged preads that finished before the first read");
 	public MetricsTimeVaryingRate readLatency = new MetricsTimeVaryingRate(
 			"client.read.latency", registry,
 	"The elapsed time taken by DFSClient to perform reads");
@@ -37,6 +43,18 @@ public class DFSClientMetrics implements Updater {
 	public MetricsTimeVaryingLong readOps = new MetricsTimeVaryingLong(
 			"client.read.operations", registry,
 	"The number of read operation in DFSInputStream");
+	public MetricsTimeVaryingLong readConnectionsCreated = new MetricsTimeVaryingLong(
+			"client.read.connections.new", registry,
+	"The number of connections opened to datanodes for reads");
+	public MetricsTimeVaryingLong readConnectionsReused = new MetricsTimeVaryingLong(
+			"client.read.connections.reused", registry,
+	"The number of reads sent on a connection kept open by a datanode");
+	public MetricsTimeVaryingLong metadataCacheHits = new MetricsTimeVaryingLong(
+			"client.metadatacache.hits", registry,
+	"The number of file statuses and block locations found in the metadata cache");
+	public MetricsTimeVaryingLong metadataCacheMisses = new MetricsTimeVaryingLong(
+			"client.metadatacache.misses", registry,
+	"The number of file statuses and block locations fetched from the namenode");
 	public MetricsTimeVaryingRate syncLatency = new MetricsTimeVaryingRate(
 			"client.sync.latency", registry,
 	"The amount of elapsed time for syncs.");
@@ -95,6 +113,14 @@ public class DFSClientMetrics implements Updater {
 		preadOps.inc();
 	}
 	
+	public synchronized void incHedgedReadOps(){
+		hedgedReadOps.inc();
+	}
+
+	public synchronized void incHedgedReadWins(){
+		hedgedReadWins.inc();
+	}
+
 	public synchronized void incReadTime(long value) {
 		readLatency.inc(value);
 	}
@@ -107,6 +133,22 @@ public class DFSClientMetrics implements Updater {
 		readOps.inc();
 	}
 
+	public synchronized void incReadConnectionsCreated(){
+		readConnectionsCreated.inc();
+	}
+
+	public synchronized void incReadConnectionsReused(){
+		readConnectionsReused.inc();
+	}
+
+	public synchronized void incMetadataCacheHits(){
+		metadataCacheHits.inc();
+	}
+
+	public synchronized void incMetadataCacheMisses(){
+		metadataCacheMisses.inc();
+	}
+
 	public synchronized void incSyncTime(long value) {
 		syncLatency.inc(value);
 	}
@@ -144,6 +186,12 @@ public class DFSClientMetrics implements Updater {
 			for (MetricsBase m : registry.getMetricsList()) {
 				m.pushMetric(metricsRecord);
 			}
+			// the percentage of the reads of the last interval sent on a
+			// reused connection
+			long reused = readConnectionsReused.getPreviousIntervalValue();
+			long total = reused + readConnectionsCreated.getPreviousIntervalValue();
+			metricsRecord.setMetric("client.read.connections.reuse.percent",
+					total == 0 ? 0 : (float) (100.0 * reused / total));
 		}
 		metricsRecord.setMetric("client.ls.calls", getAndResetLsCalls());
 		metricsRecord.update();
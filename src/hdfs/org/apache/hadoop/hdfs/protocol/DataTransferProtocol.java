@@ -37,8 +37,15 @@ public interface DataTransferProtocol {
    * The block packet ack protocol: seqno, reply0, reply1, ...
    * Version 21:
    * 		namespace federation: all requests have an additional field namespace id
+   * Version 22:
+   *    CRC32C checksums, and the reply of OP_BLOCK_CHECKSUM ends with the
+   *    checksum type of the block
+   * Version 23:
+   *    after reading the range of an OP_READ_BLOCK, the client reads the end
+   *    of block marker and always replies with a status, and may then send
+   *    another request on the connection
    */
-  public static final int DATA_TRANSFER_VERSION = 21;
+  public static final int DATA_TRANSFER_VERSION = 23;
 
   // the lowest version that added force sync field.
   static final int FORCESYNC_FIELD_VERSION = 20;
@@ -46,6 +53,12 @@ public interface DataTransferProtocol {
   // the lowest version that supports namespace federation.
   static final int FEDERATION_VERSION = 21;
 
+  // the lowest version that supports CRC32C checksums.
+  static final int CRC32C_VERSION = 22;
+
+  // the lowest version where a connection can serve several reads.
+  static final int READ_REUSE_VERSION = 23;
+
   // Processed at datanode stream-handler
   public static final byte OP_WRITE_BLOCK = (byte) 80;
   public static final byte OP_READ_BLOCK = (byte) 81;
@@ -53,6 +66,8 @@ public interface DataTransferProtocol {
   public static final byte OP_REPLACE_BLOCK = (byte) 83;
   public static final byte OP_COPY_BLOCK = (byte) 84;
   public static final byte OP_BLOCK_CHECKSUM = (byte) 85;
+  // only served on the UNIX domain socket of the datanode
+  public static final byte OP_REQUEST_SHORT_CIRCUIT_FDS = (byte) 86;
   
   public static final int OP_STATUS_SUCCESS = 0;  
   public static final int OP_STATUS_ERROR = 1;  
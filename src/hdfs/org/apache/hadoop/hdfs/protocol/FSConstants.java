@@ -86,10 +86,12 @@ public interface FSConstants {
   // Version is reflected in the data storage file.
   // Versions are negative.
   // Decrement LAYOUT_VERSION to define a new version.
-  public static final int LAYOUT_VERSION = -35;
+  public static final int LAYOUT_VERSION = -37;
   // Current version: 
-  // -35: federation version
+  // -37: the fsimage may be saved in sections
+  // -36 is reserved for the lease reassignment, which this version lacks
   public static final int FEDERATION_VERSION = -35;
+  public static final int SECTIONED_IMAGE_VERSION = -37;
   
   public static final String DFS_SOFT_LEASE_KEY = "dfs.softlease.period";
   public static final String DFS_HARD_LEASE_KEY = "dfs.hardlease.period";
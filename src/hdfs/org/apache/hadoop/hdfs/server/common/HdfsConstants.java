@@ -77,6 +77,13 @@ public interface HdfsConstants {
   public static final String DFS_IMAGE_SAVE_ON_START_KEY =
     "dfs.image.save.on.start";
   public static final boolean DFS_IMAGE_SAVE_ON_START_DEFAULT = true;
+  public static final String DFS_IMAGE_SECTIONS_KEY = "dfs.image.sections";
+  public static final boolean DFS_IMAGE_SECTIONS_DEFAULT = false;
+  public static final String DFS_IMAGE_SECTION_INODES_KEY =
+    "dfs.image.section.inodes";
+  public static final int DFS_IMAGE_SECTION_INODES_DEFAULT = 100000;
+  public static final String DFS_IMAGE_THREADS_KEY = "dfs.image.threads";
+  public static final int DFS_IMAGE_THREADS_DEFAULT = 4;
 
   // The lease holder for recovery initiated by the NameNode
   public static final String NN_RECOVERY_LEASEHOLDER = "NN_Recovery";
@@ -0,0 +1,463 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Keeps the block and meta files of recently read finalized blocks open, so
+ * that reading a hot block again neither opens its files nor looks them up.
+ * The files of a block read at least dfs.datanode.blockcache.mmap.threshold
+ * times are also memory mapped, as long as the mapped blocks fit in
+ * dfs.datanode.blockcache.mmap.bytes, so that their checksums and data are
+ * read from memory. The least recently read blocks are evicted first.
+ * <p>
+ * A cached block is only closed once the streams opened on it are closed,
+ * so a block can be evicted or invalidated while it is being read.
+ */
+class BlockCache {
+  static final Log LOG = DataNode.LOG;
+
+  private final int maxBlocks;
+  private final long maxMappedBytes;
+  private final int mapThreshold;
+  private final DataNodeMetrics metrics; // null if the metrics are not published
+
+  // access ordered, the least recently read block first
+  private final LinkedHashMap<BlockKey, CachedBlock> blocks =
+    new LinkedHashMap<BlockKey, CachedBlock>(16, 0.75f, true);
+  private long mappedBytes = 0;
+  private long hits = 0;
+  private long lookups = 0;
+  // incremented by every invalidation, so that a block opened while it was
+  // invalidated is not added
+  private long invalidations = 0;
+
+  /**
+   * @param maxBlocks the number of blocks to keep open
+   * @param maxMappedBytes the size of the blocks and meta files that may be
+   *        mapped at once, 0 to never map them
+   * @param mapThreshold the number of reads after which a block is mapped
+   * @param metrics the metrics to update, or null
+   */
+  BlockCache(int maxBlocks, long maxMappedBytes, int mapThreshold,
+             DataNodeMetrics metrics) {
+    this.maxBlocks = Math.max(1, maxBlocks);
+    this.maxMappedBytes = Math.max(0, maxMappedBytes);
+    this.mapThreshold = Math.max(1, mapThreshold);
+    this.metrics = metrics;
+  }
+
+  /**
+   * Create the cache of a dataset from the configuration.
+   * @return the cache, null if the blocks are not cached
+   */
+  static BlockCache create(Configuration conf, DataNodeMetrics metrics) {
+    int maxBlocks = conf.getInt("dfs.datanode.blockcache.size", 0);
+    if (maxBlocks <= 0) {
+      return null;
+    }
+    return new BlockCache(maxBlocks,
+        conf.getLong("dfs.datanode.blockcache.mmap.bytes", 0),
+        conf.getInt("dfs.datanode.blockcache.mmap.threshold", 3), metrics);
+  }
+
+  /**
+   * Look up a cached block. A block that is found holds a reference that
+   * is passed on to the stream returned by
+   * {@link CachedBlock#openMetaInputStream()}, which must be called.
+   * @return the block, null if it is not cached
+   */
+  synchronized CachedBlock get(int namespaceId, Block block) {
+    CachedBlock cached = blocks.get(new BlockKey(namespaceId, block));
+    lookups++;
+    if (cached != null) {
+      hits++;
+      cached.refs++;
+      cached.reads++;
+      map(cached);
+    }
+    updateMetrics(cached != null);
+    return cached;
+  }
+
+  /**
+   * @return the number of invalidations so far, to pass to {@link #add}
+   */
+  synchronized long getInvalidations() {
+    return invalidations;
+  }
+
+  /**
+   * Open the files of a block and add them to the cache. The returned
+   * block holds a reference like the blocks returned by {@link #get}.
+   * @param invalidationsBefore the number of invalidations when the files
+   *        of the block were looked up; if a block was invalidated since,
+   *        the files may not be the ones of the block anymore and are not
+   *        cached
+   */
+  CachedBlock add(int namespaceId, Block block, File blockFile,
+                  File metaFile, long invalidationsBefore)
+      throws IOException {
+    CachedBlock cached = new CachedBlock(new BlockKey(namespaceId, block),
+        blockFile, metaFile);
+    synchronized (this) {
+      if (invalidations != invalidationsBefore) {
+        // the files may not be the ones of the block anymore, serve this
+        // read only
+        cached.evicted = true;
+        return cached;
+      }
+      CachedBlock old = blocks.put(cached.key, cached);
+      if (old != null) {
+        evict(old);
+      }
+      trim();
+    }
+    return cached;
+  }
+
+  /**
+   * Remove a block, which is deleted or about to change.
+   */
+  synchronized void invalidate(int namespaceId, Block block) {
+    invalidations++;
+    CachedBlock cached = blocks.remove(new BlockKey(namespaceId, block));
+    if (cached != null) {
+      evict(cached);
+    }
+  }
+
+  /**
+   * Remove all the blocks of a namespace.
+   */
+  synchronized void removeNamespace(int namespaceId) {
+    invalidations++;
+    for (Iterator<CachedBlock> it = blocks.values().iterator(); it.hasNext();) {
+      CachedBlock cached = it.next();
+      if (cached.key.namespaceId == namespaceId) {
+        it.remove();
+        evict(cached);
+      }
+    }
+  }
+
+  /**
+   * Remove all the blocks.
+   */
+  synchronized void clear() {
+    invalidations++;
+    List<CachedBlock> evicted = new ArrayList<CachedBlock>(blocks.values());
+    blocks.clear();
+    for (CachedBlock cached : evicted) {
+      evict(cached);
+    }
+  }
+
+  /** @return the number of cached blocks */
+  synchronized int size() {
+    return blocks.size();
+  }
+
+  /** @return the size of the mapped blocks and meta files */
+  synchronized long getMappedBytes() {
+    return mappedBytes;
+  }
+
+  /**
+   * Map a block that was read often enough, if it fits.
+   */
+  private void map(CachedBlock cached) {
+    long size = cached.dataLength + cached.metaLength;
+    if (cached.mappedData != null || cached.reads < mapThreshold
+        || size > maxMappedBytes) {
+      return;
+    }
+    try {
+      cached.mappedMeta = cached.metaChannel.map(
+          FileChannel.MapMode.READ_ONLY, 0, cached.metaLength);
+      cached.mappedData = cached.dataChannel.map(
+          FileChannel.MapMode.READ_ONLY, 0, cached.dataLength);
+    } catch (IOException e) {
+      LOG.warn("Cannot map " + cached, e);
+      cached.mappedMeta = null;
+      return;
+    }
+    mappedBytes += size;
+    trim();
+  }
+
+  private void unmap(CachedBlock cached) {
+    if (cached.mappedData != null) {
+      // the pages are unmapped once the streams reading them are collected
+      cached.mappedData = null;
+      cached.mappedMeta = null;
+      mappedBytes -= cached.dataLength + cached.metaLength;
+    }
+  }
+
+  /**
+   * Evict the least recently read blocks while there are too many, and
+   * unmap them while too much is mapped.
+   */
+  private void trim() {
+    Iterator<CachedBlock> it = blocks.values().iterator();
+    while (it.hasNext()
+        && (blocks.size() > maxBlocks || mappedBytes > maxMappedBytes)) {
+      CachedBlock cached = it.next();
+      if (blocks.size() > maxBlocks) {
+        it.remove();
+        evict(cached);
+      } else {
+        unmap(cached);
+      }
+    }
+    if (metrics != null) {
+      metrics.blockCacheMappedBytes.set(mappedBytes);
+    }
+  }
+
+  /** Called with the block removed from the map. */
+  private void evict(CachedBlock cached) {
+    unmap(cached);
+    cached.evicted = true;
+    if (cached.refs == 0) {
+      cached.close();
+    }
+  }
+
+  private void release(CachedBlock cached) {
+    synchronized (this) {
+      if (--cached.refs > 0 || !cached.evicted) {
+        return;
+      }
+    }
+    cached.close();
+  }
+
+  private void updateMetrics(boolean hit) {
+    if (metrics == null) {
+      return;
+    }
+    if (hit) {
+      metrics.blockCacheHits.inc();
+    } else {
+      metrics.blockCacheMisses.inc();
+    }
+    metrics.blockCacheHitPercent.set((int) (hits * 100 / lookups));
+  }
+
+  private static class BlockKey {
+    private final int namespaceId;
+    private final long blockId;
+    private final long generationStamp;
+
+    private BlockKey(int namespaceId, Block block) {
+      this.namespaceId = namespaceId;
+      this.blockId = block.getBlockId();
+      this.generationStamp = block.getGenerationStamp();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof BlockKey)) {
+        return false;
+      }
+      BlockKey that = (BlockKey) o;
+      return namespaceId == that.namespaceId && blockId == that.blockId
+          && generationStamp == that.generationStamp;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * namespaceId + (int) (blockId ^ (blockId >>> 32));
+    }
+  }
+
+  /**
+   * The open, and possibly mapped, files of a finalized block.
+   * The fields are guarded by the cache.
+   */
+  class CachedBlock implements BlockSender.InputStreamFactory {
+    private final BlockKey key;
+    private final FileChannel dataChannel;
+    private final FileChannel metaChannel;
+    private final long dataLength;
+    private final long metaLength;
+    private ByteBuffer mappedData;
+    private ByteBuffer mappedMeta;
+    private int refs = 1;
+    private int reads = 1;
+    private boolean evicted = false;
+
+    private CachedBlock(BlockKey key, File blockFile, File metaFile)
+        throws IOException {
+      this.key = key;
+      RandomAccessFile data = new RandomAccessFile(blockFile, "r");
+      RandomAccessFile meta = null;
+      try {
+        meta = new RandomAccessFile(metaFile, "r");
+        this.dataChannel = data.getChannel();
+        this.metaChannel = meta.getChannel();
+        this.dataLength = dataChannel.size();
+        this.metaLength = metaChannel.size();
+      } catch (IOException e) {
+        IOUtils.closeStream(data);
+        IOUtils.closeStream(meta);
+        throw e;
+      }
+    }
+
+    /**
+     * Open the meta file. Takes over the reference returned with the block.
+     */
+    InputStream openMetaInputStream() {
+      synchronized (BlockCache.this) {
+        return new CachedBlockInputStream(this, metaChannel, metaLength,
+            mappedMeta, 0);
+      }
+    }
+
+    /**
+     * Open the block file at the given offset.
+     */
+    @Override
+    public InputStream createStream(long offset) throws IOException {
+      synchronized (BlockCache.this) {
+        refs++;
+        return new CachedBlockInputStream(this, dataChannel, dataLength,
+            mappedData, offset);
+      }
+    }
+
+    private void close() {
+      IOUtils.closeStream(dataChannel);
+      IOUtils.closeStream(metaChannel);
+    }
+
+    public String toString() {
+      return "block " + key.blockId + "_" + key.generationStamp
+          + " of namespace " + key.namespaceId;
+    }
+  }
+
+  /**
+   * Reads a file of a cached block from its mapping, or with positional
+   * reads of its channel, which the streams of the block share.
+   */
+  class CachedBlockInputStream extends InputStream {
+    private final CachedBlock block;
+    private final FileChannel channel;
+    private final long length;
+    private final ByteBuffer mapped; // null if the file is not mapped
+    private long position;
+    private boolean closed = false;
+
+    private CachedBlockInputStream(CachedBlock block, FileChannel channel,
+        long length, ByteBuffer mapped, long position) {
+      this.block = block;
+      this.channel = channel;
+      this.length = length;
+      this.mapped = (mapped == null) ? null : mapped.duplicate();
+      this.position = position;
+    }
+
+    /** @return the channel of the file, to transfer it from */
+    FileChannel getChannel() {
+      return channel;
+    }
+
+    /** @return the offset in the file of the next byte read */
+    long getPosition() {
+      return position;
+    }
+
+    /** Count the bytes of the block that were sent to a client. */
+    void served(long bytes) {
+      if (metrics != null && bytes > 0) {
+        metrics.bytesReadFromCache.inc(bytes);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= length) {
+        return -1;
+      }
+      int n;
+      if (mapped != null) {
+        n = (int) Math.min(len, length - position);
+        mapped.position((int) position);
+        mapped.get(b, off, n);
+      } else {
+        n = channel.read(ByteBuffer.wrap(b, off, len), position);
+        if (n < 0) {
+          throw new EOFException("Premature EOF at " + position + " of "
+              + block);
+        }
+      }
+      position += n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = Math.max(0, Math.min(n, length - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(Integer.MAX_VALUE, length - position);
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        release(block);
+      }
+    }
+  }
+}
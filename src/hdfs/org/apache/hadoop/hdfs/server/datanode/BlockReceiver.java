@@ -28,12 +28,14 @@ import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 
 import org.apache.commons.logging.Log;
+import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.fs.FSInputChecker;
 import org.apache.hadoop.fs.FSOutputSummer;
 import org.apache.hadoop.hdfs.protocol.Block;
@@ -61,12 +63,21 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
   protected boolean finalized;
   private DataInputStream in = null; // from where data are read
   private DataChecksum checksum; // from where chunks of a block can be read
+  // the checksum of the block on disk, another type than checksum when an
+  // existing block is appended to with another type of checksum
+  private DataChecksum diskChecksum;
+  private boolean needsChecksumTranslation;
   private OutputStream out = null; // to block file at local disk
   private OutputStream cout = null; // output stream for cehcksum file
   private DataOutputStream checksumOut = null; // to crc file at local disk
   private int bytesPerChecksum;
   private int checksumSize;
   private ByteBuffer buf; // contains one full packet.
+  // the channels of in and mirrorOut, packets are received in a direct
+  // buffer and written from it when they are set
+  private ReadableByteChannel inChannel;
+  private WritableByteChannel mirrorChannel;
+  private byte[] checksumCopy; // checksums of a direct packet for checksumOut
   private int bufRead; //amount of valid data in the buf
   private int maxPacketReadLen;
   protected long offsetInBlock;
@@ -83,6 +94,9 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
   DatanodeInfo srcDataNode = null;
   private Checksum partialCrc = null;
   private DataNode datanode = null;
+  private FSDataset.FSVolume volume; // null if the dataset has no volumes
+  private VolumeIOScheduler ioScheduler; // null if the writes are not scheduled
+  private VolumeIOScheduler.Priority ioPriority;
   volatile private boolean mirrorError;
   private int namespaceId;
 
@@ -108,7 +122,21 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
       //
       streams = datanode.data.writeToBlock(namespaceId, this.block, isRecovery,
                               clientName == null || clientName.length() == 0);
+      this.diskChecksum = checksum;
+      if (isRecovery && streams != null) {
+        this.diskChecksum = readDiskChecksum();
+      }
+      this.needsChecksumTranslation =
+        diskChecksum.getChecksumType() != checksum.getChecksumType();
       replicaBeingWritten = datanode.data.getReplicaBeingWritten(namespaceId, this.block);
+      this.volume = datanode.getVolume(namespaceId, this.block);
+      if (volume != null) {
+        this.ioScheduler = volume.getIOScheduler();
+      }
+      // the writes of the datanodes are replication
+      this.ioPriority = (clientName == null || clientName.length() == 0)
+          ? VolumeIOScheduler.Priority.REPLICATION
+          : VolumeIOScheduler.Priority.FOREGROUND;
       this.finalized = false;
       if (streams != null) {
         this.out = streams.dataOut;
@@ -142,6 +170,32 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     }
   }
 
+  /**
+   * Read the checksum of the existing block that is being appended to.
+   * The checksums of the appended data are translated to its type since a
+   * block has a single type of checksum.
+   */
+  private DataChecksum readDiskChecksum() throws IOException {
+    FSDataset.BlockInputStreams instr = null;
+    DataChecksum onDisk;
+    try {
+      instr = datanode.data.getTmpInputStreams(namespaceId, block, 0, 0);
+      onDisk = BlockMetadataHeader.readHeader(
+          new DataInputStream(instr.checksumIn)).getChecksum();
+    } catch (EOFException e) {
+      return checksum; // no header was written yet
+    } finally {
+      IOUtils.closeStream(instr);
+    }
+    if (onDisk.getBytesPerChecksum() != bytesPerChecksum ||
+        onDisk.getChecksumSize() != checksumSize) {
+      throw new IOException("Cannot append to block " + block +
+                            " with checksum " + onDisk +
+                            " using checksum " + checksum);
+    }
+    return onDisk;
+  }
+
   /**
    * close files.
    */
@@ -229,35 +283,28 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
   /**
    * Verify multiple CRC chunks. 
    */
-  private void verifyChunks( byte[] dataBuf, int dataOff, int len, 
-                             byte[] checksumBuf, int checksumOff ) 
+  private void verifyChunks( ByteBuffer dataBuf, ByteBuffer checksumBuf,
+                             long packetOffset ) 
                              throws IOException {
-    while (len > 0) {
-      int chunkLen = Math.min(len, bytesPerChecksum);
-      
-      checksum.update(dataBuf, dataOff, chunkLen);
-
-      if (!checksum.compare(checksumBuf, checksumOff)) {
-        if (srcDataNode != null) {
-          try {
-            LOG.info("report corrupt block " + block + " from datanode " +
-                      srcDataNode + " to namenode");
-            LocatedBlock lb = new LocatedBlock(block, 
-                                            new DatanodeInfo[] {srcDataNode});
-            datanode.reportBadBlocks(namespaceId, new LocatedBlock[] {lb});
-          } catch (IOException e) {
-            LOG.warn("Failed to report bad block " + block + 
-                      " from datanode " + srcDataNode + " to namenode");
-          }
+    try {
+      checksum.verifyChunkedSums(dataBuf, checksumBuf,
+                                 block.toString(), packetOffset);
+    } catch (ChecksumException ce) {
+      LOG.warn(ce.getMessage());
+      if (srcDataNode != null) {
+        try {
+          LOG.info("report corrupt block " + block + " from datanode " +
+                    srcDataNode + " to namenode");
+          LocatedBlock lb = new LocatedBlock(block, 
+                                          new DatanodeInfo[] {srcDataNode});
+          datanode.reportBadBlocks(namespaceId, new LocatedBlock[] {lb});
+        } catch (IOException e) {
+          LOG.warn("Failed to report bad block " + block + 
+                    " from datanode " + srcDataNode + " to namenode");
         }
-        throw new IOException("Unexpected checksum mismatch " + 
-                              "while writing " + block + " from " + inAddr);
       }
-
-      checksum.reset();
-      dataOff += chunkLen;
-      checksumOff += checksumSize;
-      len -= chunkLen;
+      throw new IOException("Unexpected checksum mismatch " + 
+                            "while writing " + block + " from " + inAddr);
     }
   }
 
@@ -274,13 +321,9 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     //shift the remaining data on buf to the front
     if (buf.position() > 0) {
       int dataLeft = buf.remaining();
-      if (dataLeft > 0) {
-        byte[] b = buf.array();
-        System.arraycopy(b, buf.position(), b, 0, dataLeft);
-      }
-      buf.position(0);
+      buf.compact();
+      buf.flip();
       bufRead = dataLeft;
-      buf.limit(bufRead);
     }
   }
   
@@ -295,7 +338,8 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
                - buf.limit();
     }
     
-    int nRead = in.read(buf.array(), buf.limit(), toRead);
+    int nRead = inChannel == null ?
+        in.read(buf.array(), buf.limit(), toRead) : readToDirectBuf(toRead);
     
     if (nRead < 0) {
       throw new EOFException("while trying to read " + toRead + " bytes");
@@ -317,6 +361,65 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
   }
   
   
+  /**
+   * Reads upto toRead bytes from inChannel to the direct buf at buf.limit(),
+   * without changing buf. The bytes that in read ahead while the request
+   * was read are taken from in first.
+   */
+  private int readToDirectBuf(int toRead) throws IOException {
+    ByteBuffer dst = buf.duplicate();
+    dst.limit(buf.limit() + toRead);
+    dst.position(buf.limit());
+    // the socket stream under in has nothing available: this is what in
+    // buffered
+    int buffered = in.available();
+    if (buffered > 0) {
+      byte[] b = new byte[Math.min(buffered, toRead)];
+      int n = in.read(b, 0, b.length);
+      if (n > 0) {
+        dst.put(b, 0, n);
+      }
+      return n;
+    }
+    return inChannel.read(dst);
+  }
+
+  private ByteBuffer allocateBuffer(int capacity) {
+    return inChannel == null ? ByteBuffer.allocate(capacity)
+                             : ByteBuffer.allocateDirect(capacity);
+  }
+
+  /**
+   * Receive the packets in a direct buffer read from the channel of the
+   * socket, and write them from it to the channels of the mirror and the
+   * block file. That saves the three copies between the heap and the
+   * native buffers of the JDK that reading and writing a byte array costs.
+   * Must be called before receiveBlock(), it has no effect unless there is
+   * a channel for every stream.
+   *
+   * @param inChannel the channel of the socket in reads from
+   * @param mirrorChannel the channel of the socket of the mirror stream
+   * @param hasMirror whether the block is written to a mirror
+   */
+  void useChannels(ReadableByteChannel inChannel,
+                   WritableByteChannel mirrorChannel, boolean hasMirror) {
+    if (inChannel == null || (hasMirror && mirrorChannel == null) ||
+        !(out instanceof FileOutputStream)) {
+      return;
+    }
+    this.inChannel = inChannel;
+    this.mirrorChannel = mirrorChannel;
+  }
+
+  private static void writeFully(WritableByteChannel ch, ByteBuffer src)
+      throws IOException {
+    while (src.hasRemaining()) {
+      if (ch.write(src) < 0) {
+        throw new IOException("The stream is closed");
+      }
+    }
+  }
+
   /**
    * Reads (at least) one packet and returns the packet length.
    * buf.position() points to the start of the packet and 
@@ -340,8 +443,8 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
       int chunkSize = bytesPerChecksum + checksumSize;
       int chunksPerPacket = (datanode.writePacketSize - DataNode.PKT_HEADER_LEN - 
     SIZE_OF_INTEGER + chunkSize - 1)/chunkSize;
-      buf = ByteBuffer.allocate(DataNode.PKT_HEADER_LEN + SIZE_OF_INTEGER +
-                                Math.max(chunksPerPacket, 1) * chunkSize);
+      buf = allocateBuffer(DataNode.PKT_HEADER_LEN + SIZE_OF_INTEGER +
+                           Math.max(chunksPerPacket, 1) * chunkSize);
       buf.limit(0);
     }
     
@@ -388,11 +491,12 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
         spaceLeft = buf.capacity() - buf.limit();
       }
       if (toRead > spaceLeft) {
-        byte oldBuf[] = buf.array();
+        ByteBuffer oldBuf = buf.duplicate();
         int toCopy = buf.limit();
-        buf = ByteBuffer.allocate(toCopy + toRead);
-        System.arraycopy(oldBuf, 0, buf.array(), 0, toCopy);
-        buf.limit(toCopy);
+        oldBuf.position(0);
+        buf = allocateBuffer(toCopy + toRead);
+        buf.put(oldBuf);
+        buf.flip();
       }
       
       //now read:
@@ -456,8 +560,13 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     if (mirrorOut != null && !mirrorError) {
       try {
         long mirrorWriteStartTime = System.currentTimeMillis();
-        mirrorOut.write(buf.array(), buf.position(), buf.remaining());
-        mirrorOut.flush();
+        if (mirrorChannel != null) {
+          // mirrorOut is flushed after every write, nothing is left in it
+          writeFully(mirrorChannel, buf.duplicate());
+        } else {
+          mirrorOut.write(buf.array(), buf.position(), buf.remaining());
+          mirrorOut.flush();
+        }
         long mirrorWritePacketDuration = System.currentTimeMillis() - mirrorWriteStartTime;
         datanode.myMetrics.mirrorWritePacketLatency.inc(mirrorWritePacketDuration);
       } catch (IOException e) {
@@ -484,6 +593,7 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
       LOG.debug("Receiving empty packet for block " + block);
     } else {
       setBlockPosition(offsetInBlock);  // adjust file position
+      long packetOffset = offsetInBlock;
       
       offsetInBlock += len;
 
@@ -496,7 +606,10 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
       }
       int checksumOff = buf.position();
       int dataOff = checksumOff + checksumLen;
-      byte pktBuf[] = buf.array();
+      ByteBuffer dataBuf = buf.duplicate();
+      dataBuf.position(dataOff);
+      ByteBuffer checksumBuf = buf.duplicate();
+      checksumBuf.limit(dataOff);
 
       buf.position(buf.limit()); // move to the end of the data.
 
@@ -507,15 +620,26 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
        * protocol includes acks and only the last datanode needs to verify 
        * checksum.
        */
-      if (mirrorOut == null || clientName.length() == 0) {
-        verifyChunks(pktBuf, dataOff, len, pktBuf, checksumOff);
+      if (mirrorOut == null || clientName.length() == 0 ||
+          needsChecksumTranslation) {
+        verifyChunks(dataBuf, checksumBuf, packetOffset);
       }
 
+      boolean scheduled = ioScheduler != null && !finalized;
+      if (scheduled) {
+        ioScheduler.acquire(ioPriority);
+      }
       try {
         if (!finalized) {
           long writeStartTime = System.currentTimeMillis();
+          long writeStartNanos = System.nanoTime();
           //finally write to the disk :
-          out.write(pktBuf, dataOff, len);
+          if (buf.isDirect()) {
+            writeFully(((FileOutputStream)out).getChannel(),
+                       dataBuf.duplicate());
+          } else {
+            out.write(buf.array(), dataOff, len);
+          }
 
           // If this is a partial chunk, then verify that this is the only
           // chunk in the packet. Calculate new crc for this chunk.
@@ -527,13 +651,31 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
                                     " len = " + len + 
                                     " bytesPerChecksum " + bytesPerChecksum);
             }
-            partialCrc.update(pktBuf, dataOff, len);
+            if (buf.isDirect()) {
+              byte[] partial = new byte[len];
+              dataBuf.duplicate().get(partial);
+              partialCrc.update(partial, 0, len);
+            } else {
+              partialCrc.update(buf.array(), dataOff, len);
+            }
             byte[] buf = FSOutputSummer.convertToByteStream(partialCrc, checksumSize);
             checksumOut.write(buf);
             LOG.debug("Writing out partial crc for data len " + len);
             partialCrc = null;
           } else {
-            checksumOut.write(pktBuf, checksumOff, checksumLen);
+            if (needsChecksumTranslation) {
+              // the mirror got the packet as it was sent
+              diskChecksum.calculateChunkedSums(dataBuf, checksumBuf);
+            }
+            if (buf.isDirect()) {
+              if (checksumCopy == null || checksumCopy.length < checksumLen) {
+                checksumCopy = new byte[checksumLen];
+              }
+              checksumBuf.duplicate().get(checksumCopy, 0, checksumLen);
+              checksumOut.write(checksumCopy, 0, checksumLen);
+            } else {
+              checksumOut.write(buf.array(), checksumOff, checksumLen);
+            }
           }
           datanode.myMetrics.bytesWritten.inc(len);
 
@@ -543,6 +685,9 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
           // Record time taken to write packet
           long writePacketDuration = System.currentTimeMillis() - writeStartTime;
           datanode.myMetrics.writePacketLatency.inc(writePacketDuration);
+          if (volume != null) {
+            volume.recordWriteLatency((System.nanoTime() - writeStartNanos)/1000);
+          }
         }
       } catch (ClosedByInterruptException cix) {
         LOG.warn(
@@ -557,6 +702,10 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
       } catch (IOException iex) {
         datanode.checkDiskError(iex);
         throw iex;
+      } finally {
+        if (scheduled) {
+          ioScheduler.release(ioPriority);
+        }
       }
     }
     if (ackPacket != null) {
@@ -595,7 +744,7 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     try {
       // write data chunk header
       if (!finalized) {
-        BlockMetadataHeader.writeHeader(checksumOut, checksum);
+        BlockMetadataHeader.writeHeader(checksumOut, diskChecksum);
       }
       if (clientName.length() > 0) {
         responder = new Daemon(datanode.threadGroup, 
@@ -738,7 +887,7 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     // find offset of the beginning of partial chunk.
     //
     int sizePartialChunk = (int) (blkoff % bytesPerChecksum);
-    int checksumSize = checksum.getChecksumSize();
+    int checksumSize = diskChecksum.getChecksumSize();
     blkoff = blkoff - sizePartialChunk;
     LOG.info("computePartialChunkCrc sizePartialChunk " + 
               sizePartialChunk +
@@ -763,7 +912,8 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     }
 
     // compute crc of partial chunk from data read in the block file.
-    partialCrc = new CRC32();
+    partialCrc = DataChecksum.newDataChecksum(
+        diskChecksum.getChecksumType(), diskChecksum.getBytesPerChecksum());
     partialCrc.update(buf, 0, sizePartialChunk);
     LOG.info("Read in partial CRC chunk from disk for block " + block);
 
@@ -30,7 +30,6 @@ import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
 import org.apache.commons.logging.Log;
-import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.DataTransferProtocol;
 import org.apache.hadoop.hdfs.protocol.FSConstants;
@@ -70,6 +69,10 @@ public class BlockSender implements java.io.Closeable, FSConstants {
   private DataTransferThrottler throttler;
   private final String clientTraceFmt; // format of client trace log message
   private final MemoizedBlock memoizedBlock;
+  private VolumeIOScheduler ioScheduler; // null if the reads are not scheduled
+  private FSDataset.FSVolume volume; // null if the volume is unknown
+  private VolumeIOScheduler.Priority ioPriority =
+    VolumeIOScheduler.Priority.FOREGROUND;
 
   /**
    * Minimum buffer used while sending data to clients. Used only if
@@ -82,22 +85,50 @@ public class BlockSender implements java.io.Closeable, FSConstants {
   BlockSender(int namespaceId, Block block, long startOffset, long length,
               boolean corruptChecksumOk, boolean chunkOffsetOK,
               boolean verifyChecksum, DataNode datanode) throws IOException {
-    this(namespaceId, block, startOffset, length, corruptChecksumOk, chunkOffsetOK,
-         verifyChecksum, datanode, null);
+    this(namespaceId, block, datanode.data.getVisibleLength(namespaceId, block),
+         startOffset, length, corruptChecksumOk, chunkOffsetOK,
+         verifyChecksum, datanode, null, null);
   }
 
+  /**
+   * Send a block to a client. The block is read from the block cache of
+   * the datanode if it has one.
+   */
   BlockSender(int namespaceId, Block block, long startOffset, long length,
               boolean corruptChecksumOk, boolean chunkOffsetOK,
               boolean verifyChecksum, DataNode datanode, String clientTraceFmt)
       throws IOException {
-    this(namespaceId, block, datanode.data.getVisibleLength(namespaceId, block), startOffset, length,
+    this(namespaceId, block, datanode.data.getVisibleLength(namespaceId, block),
+         startOffset, length, corruptChecksumOk, chunkOffsetOK,
+         verifyChecksum, datanode, clientTraceFmt,
+         datanode.getCachedBlock(namespaceId, block));
+  }
+
+  /**
+   * @param cached the cached files of the block, or null to open them. The
+   *        reference held by the cached block is passed on to its meta file
+   *        stream, which is closed with the sender.
+   */
+  private BlockSender(int namespaceId, Block block, long blockLength,
+              long startOffset, long length,
+              boolean corruptChecksumOk, boolean chunkOffsetOK,
+              boolean verifyChecksum, DataNode datanode, String clientTraceFmt,
+              BlockCache.CachedBlock cached) throws IOException {
+    this(namespaceId, block, blockLength, startOffset, length,
         corruptChecksumOk, chunkOffsetOK, verifyChecksum,
         datanode.transferToAllowed,
-        (!corruptChecksumOk || datanode.data.metaFileExists(namespaceId, block))
+        cached != null
+          ? new DataInputStream(new BufferedInputStream(
+            cached.openMetaInputStream(), BUFFER_SIZE))
+          : (!corruptChecksumOk || datanode.data.metaFileExists(namespaceId, block))
           ? new DataInputStream(new BufferedInputStream(
             datanode.data.getMetaDataInputStream(namespaceId, block), BUFFER_SIZE))
-          : null, new BlockInputStreamFactory(namespaceId, block, datanode.data), 
+          : null,
+        cached != null ? cached
+          : new BlockInputStreamFactory(namespaceId, block, datanode.data), 
       clientTraceFmt);
+    this.volume = datanode.getVolume(namespaceId, block);
+    this.ioScheduler = volume == null ? null : volume.getIOScheduler();
   }
 
   public BlockSender(int namespaceId, Block block, long blockLength, long startOffset, long length,
@@ -202,6 +233,13 @@ public class BlockSender implements java.io.Closeable, FSConstants {
     }
   }
 
+  /**
+   * Set the priority class of the reads in the I/O scheduler of the volume.
+   */
+  void setIOPriority(VolumeIOScheduler.Priority priority) {
+    this.ioPriority = priority;
+  }
+
   /**
    * close opened files.
    */
@@ -293,50 +331,26 @@ public class BlockSender implements java.io.Closeable, FSConstants {
     int checksumOff = pkt.position();
     int checksumLen = numChunks * checksumSize;
     byte[] buf = pkt.array();
-    
-    if (checksumSize > 0 && checksumIn != null) {
-      try {
-        checksumIn.readFully(buf, checksumOff, checksumLen);
-      } catch (IOException e) {
-        LOG.warn(" Could not read or failed to veirfy checksum for data" +
-                 " at offset " + offset + " for block " + block + " got : "
-                 + StringUtils.stringifyException(e));
-        IOUtils.closeStream(checksumIn);
-        checksumIn = null;
-        if (corruptChecksumOk) {
-          if (checksumOff < checksumLen) {
-            // Just fill the array with zeros.
-            Arrays.fill(buf, checksumOff, checksumLen, (byte) 0);
-          }
-        } else {
-          throw e;
-        }
+    int dataOff = checksumOff + checksumLen;
+
+    // read the packet holding a slot of the volume, and send it once the
+    // slot is released so that a slow client does not keep the slot
+    if (ioScheduler != null) {
+      ioScheduler.acquire(ioPriority);
+    }
+    try {
+      readPacket(buf, checksumOff, checksumLen, dataOff, len);
+    } finally {
+      if (ioScheduler != null) {
+        ioScheduler.release(ioPriority);
       }
     }
-    
-    int dataOff = checksumOff + checksumLen;
-    
+
     if (blockInPosition < 0) {
       //normal transfer
-      IOUtils.readFully(blockIn, buf, dataOff, len);
-
       if (verifyChecksum) {
-        int dOff = dataOff;
-        int cOff = checksumOff;
-        int dLeft = len;
-
-        for (int i=0; i<numChunks; i++) {
-          checksum.reset();
-          int dLen = Math.min(dLeft, bytesPerChecksum);
-          checksum.update(buf, dOff, dLen);
-          if (!checksum.compare(buf, cOff)) {
-            throw new ChecksumException("Checksum failed at " + 
-                                        (offset + len - dLeft), len);
-          }
-          dLeft -= dLen;
-          dOff += dLen;
-          cOff += checksumSize;
-        }
+        checksum.verifyChunkedSums(buf, dataOff, len, buf, checksumOff,
+                                   block.toString(), offset);
       }
       
       // only recompute checksum if we can't trust the meta data due to 
@@ -356,16 +370,20 @@ public class BlockSender implements java.io.Closeable, FSConstants {
       try {
         //use transferTo(). Checks on out and blockIn are already done. 
         SocketOutputStream sockOut = (SocketOutputStream) out;
-        FileChannel fileChannel = ((FileInputStream) blockIn).getChannel();
+        FileChannel fileChannel = getBlockInChannel();
 
         if (memoizedBlock.hasBlockChanged(len)) {
-          fileChannel.position(blockInPosition);
-          IOUtils.readFileChannelFully(
-            fileChannel,
-            buf,
-            dataOff,
-            len
-          );
+          // positional reads, the channel of a cached block is shared
+          ByteBuffer dataBuf = ByteBuffer.wrap(buf, dataOff, len);
+          long position = blockInPosition;
+          while (dataBuf.hasRemaining()) {
+            int n = fileChannel.read(dataBuf, position);
+            if (n < 0) {
+              throw new IOException("Premature EOF reading " + block
+                  + " at " + position);
+            }
+            position += n;
+          }
           
           ChecksumUtil.updateChunkChecksum(
             buf, checksumOff, dataOff, len, checksum
@@ -388,11 +406,38 @@ public class BlockSender implements java.io.Closeable, FSConstants {
       }
     }
 
-    if (throttler != null) { // rebalancing so throttle
-      throttler.throttle(packetLen);
+    return len;
+  }
+
+  /**
+   * Reads the checksums of a packet, and its data unless transferTo() is
+   * used, into buf.
+   */
+  private void readPacket(byte[] buf, int checksumOff, int checksumLen,
+                          int dataOff, int len) throws IOException {
+    if (checksumSize > 0 && checksumIn != null) {
+      try {
+        checksumIn.readFully(buf, checksumOff, checksumLen);
+      } catch (IOException e) {
+        LOG.warn(" Could not read or failed to veirfy checksum for data" +
+                 " at offset " + offset + " for block " + block + " got : "
+                 + StringUtils.stringifyException(e));
+        IOUtils.closeStream(checksumIn);
+        checksumIn = null;
+        if (corruptChecksumOk) {
+          if (checksumOff < checksumLen) {
+            // Just fill the array with zeros.
+            Arrays.fill(buf, checksumOff, checksumLen, (byte) 0);
+          }
+        } else {
+          throw e;
+        }
+      }
     }
 
-    return len;
+    if (blockInPosition < 0) {
+      IOUtils.readFully(blockIn, buf, dataOff, len);
+    }
   }
 
   /**
@@ -439,6 +484,9 @@ public class BlockSender implements java.io.Closeable, FSConstants {
     OutputStream streamForSendChunks = out;
     
     final long startTime = ClientTraceLog.isInfoEnabled() ? System.nanoTime() : 0; 
+    if (volume != null) {
+      volume.readerStarted();
+    }
     try {
       try {
         checksum.writeHeader(out);
@@ -453,14 +501,17 @@ public class BlockSender implements java.io.Closeable, FSConstants {
       int maxChunksPerPacket;
       int pktSize = SIZE_OF_INTEGER + DataNode.PKT_HEADER_LEN;
       
-      if (transferToAllowed && !verifyChecksum && 
+      // transferTo() reads from the disk while sending, so it is not used
+      // on a volume whose reads are scheduled
+      if (transferToAllowed && !verifyChecksum && ioScheduler == null &&
           baseStream instanceof SocketOutputStream && 
-          blockIn instanceof FileInputStream) {
-        
-        FileChannel fileChannel = ((FileInputStream)blockIn).getChannel();
+          (blockIn instanceof FileInputStream ||
+           blockIn instanceof BlockCache.CachedBlockInputStream)) {
         
         // blockInPosition also indicates sendChunks() uses transferTo.
-        blockInPosition = fileChannel.position();
+        blockInPosition = (blockIn instanceof FileInputStream)
+          ? getBlockInChannel().position()
+          : ((BlockCache.CachedBlockInputStream) blockIn).getPosition();
         streamForSendChunks = baseStream;
         
         // assure a mininum buffer size.
@@ -482,6 +533,10 @@ public class BlockSender implements java.io.Closeable, FSConstants {
       while (endOffset > offset) {
         long len = sendChunks(pktBuf, maxChunksPerPacket, 
                               streamForSendChunks);
+        if (throttler != null && len > 0) { // rebalancing so throttle
+          int numChunks = (int) ((len + bytesPerChecksum - 1)/bytesPerChecksum);
+          throttler.throttle(len + numChunks*checksumSize + 4);
+        }
         if (progress != null) {
           progress.progress();
         }
@@ -503,6 +558,13 @@ public class BlockSender implements java.io.Closeable, FSConstants {
       throw new IOException("unexpected runtime exception", e);
     } 
     finally {
+      if (volume != null) {
+        volume.readerFinished();
+      }
+      if (blockIn instanceof BlockCache.CachedBlockInputStream) {
+        ((BlockCache.CachedBlockInputStream) blockIn).served(
+            offset - initialOffset);
+      }
       if (clientTraceFmt != null) {
         final long endTime = System.nanoTime();
         ClientTraceLog.info(String.format(clientTraceFmt, totalRead, initialOffset, endTime - startTime));
@@ -518,6 +580,16 @@ public class BlockSender implements java.io.Closeable, FSConstants {
   boolean isBlockReadFully() {
     return blockReadFully;
   }
+
+  /**
+   * @return the channel to transfer the block from
+   */
+  private FileChannel getBlockInChannel() {
+    if (blockIn instanceof BlockCache.CachedBlockInputStream) {
+      return ((BlockCache.CachedBlockInputStream) blockIn).getChannel();
+    }
+    return ((FileInputStream) blockIn).getChannel();
+  }
   
   public static interface InputStreamFactory {
     public InputStream createStream(long offset) throws IOException; 
@@ -573,7 +645,7 @@ public class BlockSender implements java.io.Closeable, FSConstants {
       // check if we are using transferTo since we tell if the file has changed
       // (blockInPosition >= 0 => we are using transferTo and File Channels
       if (BlockSender.this.blockInPosition >= 0) {
-        long currentLength = ((FileInputStream) inputStream).getChannel().size();
+        long currentLength = getBlockInChannel().size();
         
         return (blockInPosition % bytesPerChecksum != 0 || 
             dataLen % bytesPerChecksum != 0) &&
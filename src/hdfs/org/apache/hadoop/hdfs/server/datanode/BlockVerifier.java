@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * Checks the data of a block against the checksums of its meta file.
+ *
+ * Unlike {@link BlockSender}, the data is not packetized: the block file is
+ * read sequentially in large reads, and the checksums of each read are
+ * checked at once with {@link DataChecksum#verifyChunkedSums}. The block
+ * cache is bypassed so that a scan does not evict the blocks being read by
+ * the clients.
+ */
+class BlockVerifier implements Closeable {
+  public static final Log LOG = LogFactory.getLog(BlockVerifier.class);
+
+  /** The size of the reads of the block file */
+  static final int READ_SIZE = 1024 * 1024;
+
+  private final Block block;
+  private final long blockLength;
+  private final DataChecksum checksum;
+  private final int bytesPerChecksum;
+  private final int checksumSize;
+  private InputStream blockIn;
+  private DataInputStream checksumIn;
+  private final byte[] dataBuf;
+  private final byte[] checksumBuf;
+  private long offset = 0;
+
+  BlockVerifier(int namespaceId, Block block, FSDatasetInterface data)
+      throws IOException {
+    this.block = block;
+    try {
+      this.blockLength = data.getVisibleLength(namespaceId, block);
+      this.checksumIn = new DataInputStream(new BufferedInputStream(
+          data.getMetaDataInputStream(namespaceId, block),
+          BlockMetadataHeader.getHeaderSize()));
+      BlockMetadataHeader header = BlockMetadataHeader.readHeader(checksumIn);
+      if (header.getVersion() != FSDataset.METADATA_VERSION) {
+        LOG.warn("Wrong version (" + header.getVersion() + ") for metadata"
+            + " file for " + block + " ignoring ...");
+      }
+      checksum = header.getChecksum();
+      bytesPerChecksum = checksum.getBytesPerChecksum();
+      checksumSize = checksum.getChecksumSize();
+      if (bytesPerChecksum <= 0 ||
+          (bytesPerChecksum > 10*1024*1024 && bytesPerChecksum > blockLength)) {
+        throw new IOException("Invalid bytes per checksum " + bytesPerChecksum
+            + " in the metadata file of " + block);
+      }
+
+      int chunksPerRead = Math.max(1, READ_SIZE / bytesPerChecksum);
+      dataBuf = new byte[chunksPerRead * bytesPerChecksum];
+      checksumBuf = new byte[chunksPerRead * checksumSize];
+      blockIn = data.getBlockInputStream(namespaceId, block, 0);
+    } catch (IOException ioe) {
+      close();
+      throw ioe;
+    }
+  }
+
+  /**
+   * Read and verify the next part of the block.
+   * @return the number of bytes of block and meta file read, -1 once the
+   *         whole block is verified
+   * @throws ChecksumException if the data does not match its checksums
+   * @throws IOException if the block or its meta file cannot be read
+   */
+  long verifyNext() throws IOException {
+    if (offset >= blockLength) {
+      return -1;
+    }
+    int len = (int) Math.min(dataBuf.length, blockLength - offset);
+    int numChunks = (len + bytesPerChecksum - 1) / bytesPerChecksum;
+    IOUtils.readFully(blockIn, dataBuf, 0, len);
+    IOUtils.readFully(checksumIn, checksumBuf, 0, numChunks * checksumSize);
+    checksum.verifyChunkedSums(dataBuf, 0, len, checksumBuf, 0,
+        block.getBlockName(), offset);
+    offset += len;
+    return len + numChunks * checksumSize;
+  }
+
+  /** @return the length of the block being verified */
+  long getBlockLength() {
+    return blockLength;
+  }
+
+  public void close() {
+    IOUtils.closeStream(checksumIn);
+    checksumIn = null;
+    IOUtils.closeStream(blockIn);
+    blockIn = null;
+  }
+}
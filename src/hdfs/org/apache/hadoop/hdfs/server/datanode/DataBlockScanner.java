@@ -20,7 +20,6 @@ package org.apache.hadoop.hdfs.server.datanode;
 
 import java.io.BufferedReader;
 import java.io.Closeable;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -70,6 +69,7 @@ class DataBlockScanner {
   
   private static final int MAX_SCAN_RATE = 8 * 1024 * 1024; // 8MB per sec
   private static final int MIN_SCAN_RATE = 1 * 1024 * 1024; // 1MB per sec
+  private static final int IDLE_SCAN_RATE = 32 * 1024 * 1024; // 32MB per sec
   
   static final long DEFAULT_SCAN_PERIOD_HOURS = 21*24L; // three weeks
   private static final long ONE_DAY = 24*3600*1000L;
@@ -82,6 +82,9 @@ class DataBlockScanner {
   static final int verficationLogLimit = 5; // * numBlocks.
 
   private long scanPeriod = DEFAULT_SCAN_PERIOD_HOURS * 3600 * 1000;
+  // the scan rates while the volume of the block is busy and idle
+  private final long maxScanRate;
+  private final long idleScanRate;
   DataNode datanode;
   FSDataset dataset;
   
@@ -160,6 +163,10 @@ class DataBlockScanner {
       scanPeriod = DEFAULT_SCAN_PERIOD_HOURS; 
     } 
     scanPeriod *= 3600 * 1000;
+    maxScanRate = Math.max(MIN_SCAN_RATE,
+        conf.getLong("dfs.datanode.scan.rate.max", MAX_SCAN_RATE));
+    idleScanRate = Math.max(maxScanRate,
+        conf.getLong("dfs.datanode.scan.rate.idle", IDLE_SCAN_RATE));
     LOG.info("Periodic Block Verification scan for namespace " +
         namespaceId + " initialized with interval " + scanPeriod + ".");
   }
@@ -263,7 +270,7 @@ class DataBlockScanner {
     }
     
     synchronized (this) {
-      throttler = new DataTransferThrottler(200, MAX_SCAN_RATE);
+      throttler = new DataTransferThrottler(200, maxScanRate);
     }
   }
   
@@ -353,8 +360,14 @@ class DataBlockScanner {
     }
 
     BlockScanInfo info = blockMap.get(block);
+    // a block marked processed from the verification log was taken out of
+    // bytesLeft then, although it was last scanned before this period
+    boolean replayed = false;
 
     if ( info != null ) {
+      replayed = info.lastScanTime < currentPeriodStart &&
+          processedBlocks != null &&
+          processedBlocks.contains(block.getBlockId());
       delBlockInfo(info);
     } else {
       if (updateOnly) {
@@ -368,10 +381,20 @@ class DataBlockScanner {
     info.lastScanType = type;
     info.lastScanTime = now;
     info.lastScanOk = scanOk;
+    // the block is taken out of bytesLeft when it was last scanned before
+    // this period, by the scanner or by a client read
     addBlockInfo(info);
+    if (replayed) {
+      bytesLeft += info.block.getNumBytes();
+    }
 
     if (type == ScanType.REMOTE_READ) {
       totalVerifications++;
+      datanode.getMetrics().blocksVerifiedByClient.inc();
+    }
+    // a block verified by a client read is not scanned again in this period
+    if (scanOk && processedBlocks != null) {
+      processedBlocks.add(block.getBlockId());
     }
 
     // Don't update meta data too often in case of REMOTE_READ
@@ -453,15 +476,30 @@ class DataBlockScanner {
     }
   }
   
-  private synchronized void adjustThrottler() {
-    long timeLeft = currentPeriodStart+scanPeriod - System.currentTimeMillis();
+  private void adjustThrottler() {
+    adjustThrottler(false);
+  }
+
+  /**
+   * Set the scan rate to the rate needed to scan the bytes left before the
+   * end of the period, at least MIN_SCAN_RATE. While the volume being read
+   * is busy the rate is at most maxScanRate; while it is idle the scan runs
+   * at idleScanRate to get ahead of the period.
+   */
+  private synchronized void adjustThrottler(boolean idle) {
+    long timeLeft = Math.max(1,
+        currentPeriodStart+scanPeriod - System.currentTimeMillis());
     long bw = Math.max(bytesLeft*1000/timeLeft, MIN_SCAN_RATE);
-    throttler.setBandwidth(Math.min(bw, MAX_SCAN_RATE));
+    throttler.setBandwidth(idle ? Math.max(bw, idleScanRate)
+                                : Math.min(bw, maxScanRate));
   }
   
   private void verifyBlock(BlockScanInfo blockinfo) {
     Block block = blockinfo.block;
-    BlockSender blockSender = null;
+    BlockVerifier verifier = null;
+    FSVolume volume = dataset.getVolume(namespaceId, block);
+    VolumeIOScheduler ioScheduler =
+      volume == null ? null : volume.getIOScheduler();
 
     /* In case of failure, attempt to read second time to reduce
      * transient errors. How do we flush block data from kernel 
@@ -471,15 +509,26 @@ class DataBlockScanner {
       boolean second = (i > 0);
       
       try {
-        adjustThrottler();
-        
-        blockSender = new BlockSender(namespaceId, block, 0, -1, false, 
-                                               false, true, datanode);
-
-        DataOutputStream out = 
-                new DataOutputStream(new IOUtils.NullOutputStream());
-        
-        blockSender.sendBlock(out, null, throttler);
+        verifier = new BlockVerifier(namespaceId, block, dataset);
+        while (true) {
+          // the rate follows the load of the volume during the block
+          adjustThrottler(volume != null && volume.isIdle());
+          long len;
+          if (ioScheduler != null) {
+            ioScheduler.acquire(VolumeIOScheduler.Priority.BACKGROUND);
+          }
+          try {
+            len = verifier.verifyNext();
+          } finally {
+            if (ioScheduler != null) {
+              ioScheduler.release(VolumeIOScheduler.Priority.BACKGROUND);
+            }
+          }
+          if (len < 0) {
+            break;
+          }
+          throttler.throttle(len);
+        }
 
         LOG.info((second ? "Second " : "") +
                  "Verification succeeded for " + block);
@@ -514,7 +563,7 @@ class DataBlockScanner {
           return;
         } 
       } finally {
-        IOUtils.closeStream(blockSender);
+        IOUtils.closeStream(verifier);
         datanode.getMetrics().blocksVerified.inc();
         totalScans++;
         totalVerifications++;
@@ -551,7 +600,9 @@ class DataBlockScanner {
     
     if ( block != null ) {
       verifyBlock(block);
-      processedBlocks.add(block.block.getBlockId());
+      synchronized (this) {
+        processedBlocks.add(block.block.getBlockId());
+      }
     }
   }
   
@@ -591,15 +642,18 @@ class DataBlockScanner {
             return false;
           }
           LogEntry entry = LogEntry.parseEntry(reader.next());
-          if (entry != null) {
+          if (entry == null) {
+            continue;
+          }
+          // client reads update the blocks and processedBlocks meanwhile
+          synchronized (this) {
             updateBlockInfo(entry);
             if (now - entry.verificationTime < scanPeriod) {
               BlockScanInfo info = blockMap.get(new Block(entry.blockId, 0,
                   entry.genStamp));
               if (info != null) {
-                if (!processedBlocks.contains(entry.blockId)) {
+                if (processedBlocks.add(entry.blockId)) {
                   bytesLeft-=info.block.getNumBytes();
-                  processedBlocks.add(entry.blockId);
                 }
                 if (reader.file == log.prevFile) {
                   // write the log entry to current file
@@ -660,9 +714,11 @@ class DataBlockScanner {
   }
   
   void scanNamespace() {
-    startNewPeriod();
-    // Create a new processedBlocks structure
-    processedBlocks = new LightWeightHashSet<Long>();
+    synchronized (this) {
+      startNewPeriod();
+      // Create a new processedBlocks structure
+      processedBlocks = new LightWeightHashSet<Long>();
+    }
     if (verificationLog != null) {
       try {
         verificationLog.openCurFile();
@@ -108,6 +108,7 @@ import org.apache.hadoop.ipc.Server;
 import org.apache.hadoop.metrics.util.MBeanUtil;
 import org.apache.hadoop.net.DNS;
 import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.net.unix.DomainSocket;
 import org.apache.hadoop.security.SecurityUtil;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.security.authorize.ConfiguredPolicy;
@@ -207,9 +208,13 @@ public class DataNode extends Configured
   volatile long timeLastCheckDisk = 0;
   long minDiskCheckIntervalMsec;
   Daemon dataXceiverServer = null;
+  Daemon domainSocketXceiverServer = null;
   ThreadGroup threadGroup = null;
   long blockReportInterval;
   long deletedReportInterval;
+  // send full block reports only at registration or when requested,
+  // and the received and deleted blocks otherwise
+  boolean incrementalBlockReports;
   long initialBlockReportDelay = BLOCKREPORT_INITIAL_DELAY * 1000L;
   long heartBeatInterval;
   DataStorage storage = null;
@@ -251,6 +256,7 @@ public class DataNode extends Configured
   AbstractList<File> dataDirs;
   Configuration conf;
   private PulseChecker pulseChecker;
+  final long createTime = now(); // when the datanode was created
 
   /**
    * Current system time.
@@ -386,6 +392,8 @@ public class DataNode extends Configured
     // Calculate the full block report interval
     int fullReportMagnifier = conf.getInt("dfs.fullblockreport.magnifier", 2);
     this.blockReportInterval = fullReportMagnifier * deletedReportInterval;
+    this.incrementalBlockReports =
+      conf.getBoolean("dfs.blockreport.incremental", false);
     this.heartBeatInterval = conf.getLong("dfs.heartbeat.interval", HEARTBEAT_INTERVAL) * 1000L;
     long heartbeatRecheckInterval = conf.getInt(
         "heartbeat.recheck.interval", 5 * 60 * 1000); // 5 minutes
@@ -446,6 +454,25 @@ public class DataNode extends Configured
     this.dataXceiverServer = new Daemon(threadGroup, 
         new DataXceiverServer(ss, conf, this));
     this.threadGroup.setDaemon(true); // auto destroy when empty
+
+    // local clients get the block files through the domain socket
+    String domainSocketPath = conf.get("dfs.domain.socket.path", "");
+    if (domainSocketPath.length() > 0) {
+      if (DomainSocket.isAvailable()) {
+        String path = DomainSocket.getEffectivePath(domainSocketPath, tmpPort);
+        // any client may connect, so the socket must not be replaceable
+        DomainSocket.validateSocketPathSecurity(path);
+        DomainSocket listener = DomainSocket.bindAndListen(path,
+            conf.getInt("dfs.datanode.xceiver.listen.queue.size", 128));
+        this.domainSocketXceiverServer = new Daemon(threadGroup,
+            new DomainSocketXceiverServer(listener, this));
+        LOG.info("Opened domain socket " + listener.getPath());
+      } else {
+        LOG.warn("dfs.domain.socket.path is set but UNIX domain sockets are"
+            + " not available; the block files cannot be passed to local"
+            + " clients");
+      }
+    }
   }
   
   private void startInfoServer(Configuration conf) throws IOException {
@@ -499,6 +526,31 @@ public class DataNode extends Configured
           SocketChannel.open().socket() : new Socket();
   }
 
+  /**
+   * Compact the received and deleted blocks queued for the namenode:
+   * only the latest entry of a block is kept, so a block received and
+   * deleted again before the report is sent is only reported as deleted,
+   * and a block received several times is reported once.
+   * The order of the remaining entries is preserved.
+   */
+  static Block[] compactReceivedAndDeletedBlocks(Block[] blocks) {
+    Map<Long, Integer> latest = new HashMap<Long, Integer>(blocks.length);
+    for (int i = 0; i < blocks.length; i++) {
+      latest.put(blocks[i].getBlockId(), i);
+    }
+    if (latest.size() == blocks.length) {
+      return blocks;
+    }
+    Block[] compacted = new Block[latest.size()];
+    int j = 0;
+    for (int i = 0; i < blocks.length; i++) {
+      if (latest.get(blocks[i].getBlockId()) == i) {
+        compacted[j++] = blocks[i];
+      }
+    }
+    return compacted;
+  }
+
   /** Return the DataNode object
    * 
    */
@@ -660,6 +712,10 @@ public class DataNode extends Configured
       ipcServer.stop();
     }
     this.shouldRun = false;
+    if (domainSocketXceiverServer != null) {
+      ((DomainSocketXceiverServer)
+          this.domainSocketXceiverServer.getRunnable()).kill();
+    }
     if (dataXceiverServer != null) {
       ((DataXceiverServer) this.dataXceiverServer.getRunnable()).kill();
       this.dataXceiverServer.interrupt();
@@ -705,15 +761,16 @@ public class DataNode extends Configured
     if (blockScanner != null) { 
       blockScanner.shutdown();
     }
+    // the dataset may save its block lists to the storage directories
+    if (data != null) {
+      data.shutdown();
+    }
     if (storage != null) {
       try {
         this.storage.unlockAll();
       } catch (IOException ie) {
       }
     }
-    if (data != null) {
-      data.shutdown();
-    }
     if (myMetrics != null) {
       myMetrics.shutdown();
     }
@@ -804,8 +861,47 @@ public class DataNode extends Configured
     shouldRun = false; 
   }
     
+  /**
+   * @return the volume holding a block, null if it is unknown or the
+   * dataset has no volumes
+   */
+  FSDataset.FSVolume getVolume(int namespaceId, Block block) {
+    if (data instanceof FSDataset) {
+      return ((FSDataset) data).getVolume(namespaceId, block);
+    }
+    return null;
+  }
+
+  /**
+   * @return the I/O scheduler of the volume holding a block, null if there
+   * is none
+   */
+  VolumeIOScheduler getIOScheduler(int namespaceId, Block block) {
+    FSDataset.FSVolume volume = getVolume(namespaceId, block);
+    return volume == null ? null : volume.getIOScheduler();
+  }
+
+  /**
+   * @return the cached files of a block, null if the dataset does not cache
+   * the block
+   */
+  BlockCache.CachedBlock getCachedBlock(int namespaceId, Block block)
+      throws IOException {
+    if (data instanceof FSDataset) {
+      return ((FSDataset) data).getCachedBlock(namespaceId, block);
+    }
+    return null;
+  }
+
   /** Number of concurrent xceivers per node. */
   int getXceiverCount() {
+    if (dataXceiverServer != null) {
+      DataXceiverServer server =
+        (DataXceiverServer) dataXceiverServer.getRunnable();
+      if (server.isEventDriven()) {
+        return server.getXceiverCount();
+      }
+    }
     return threadGroup == null ? 0 : threadGroup.activeCount();
   }
 
@@ -841,6 +937,8 @@ public class DataNode extends Configured
     private ScheduledFuture keepAliveRun = null;
     private ScheduledExecutorService keepAliveSender = null;
     private boolean firstBlockReportSent = false;
+    // a full block report was scheduled since the last one was sent
+    private volatile boolean fullBlockReportRequested = true;
     volatile long lastBeingAlive = now();
 
     NSOfferService(InetSocketAddress isa, String nameserviceId) {
@@ -872,6 +970,7 @@ public class DataNode extends Configured
       LOG.info("using BLOCKREPORT_INTERVAL of " + blockReportInterval + "msec" + 
           " Initial delay: " + initialBlockReportDelay + "msec");
       LOG.info("using DELETEREPORT_INTERVAL of " + deletedReportInterval + "msec");
+      LOG.info("using incremental block reports: " + incrementalBlockReports);
       LOG.info("using HEARTBEAT_INTERVAL of " + heartBeatInterval + "msec");
       LOG.info("using HEARTBEAT_EXPIRE_INTERVAL of " + heartbeatExpireInterval + "msec");
 
@@ -928,7 +1027,8 @@ public class DataNode extends Configured
                 }
             }
             if (receivedAndDeletedBlockArray != null) {
-              nsNamenode.blockReceivedAndDeleted(nsRegistration, receivedAndDeletedBlockArray);
+              nsNamenode.blockReceivedAndDeleted(nsRegistration,
+                  compactReceivedAndDeletedBlocks(receivedAndDeletedBlockArray));
               synchronized (receivedAndDeletedBlockList) {
                 for (int i = 0; i < receivedAndDeletedBlockArray.length; i++) {
                   receivedAndDeletedBlockList
@@ -940,8 +1040,12 @@ public class DataNode extends Configured
           }
 
 
-          // send block report
-          if (startTime - lastBlockReport > blockReportInterval) {
+          // send block report; with incremental block reports only the
+          // scheduled ones are sent, the periodic ones are replaced by the
+          // received and deleted blocks
+          if (startTime - lastBlockReport > blockReportInterval
+              && (!incrementalBlockReports || !firstBlockReportSent
+                  || fullBlockReportRequested)) {
             //
             // Send latest blockinfo report if timer has expired.
             // Get back a list of local block(s) that are obsolete
@@ -953,6 +1057,7 @@ public class DataNode extends Configured
             DatanodeCommand cmd = nsNamenode.blockReport(nsRegistration,
                     new BlockReport(BlockListAsLongs.convertToArrayLongs(bReport)));
             firstBlockReportSent = true;
+            fullBlockReportRequested = false;
             long brTime = now() - brStartTime;
             myMetrics.blockReports.inc(brTime);
             LOG.info("BlockReport of " + bReport.length +
@@ -1239,7 +1344,10 @@ public class DataNode extends Configured
         data.initialize(storage);
         
       }
+      long loadStart = now();
       data.addNamespace(namespaceId, storage.getNameSpaceDataDir(namespaceId), conf);
+      myMetrics.blockMapLoadTime.set(now() - loadStart);
+      myMetrics.startupTime.set(now() - createTime);
       if (blockScanner != null) {
         blockScanner.start();
         blockScanner.addNamespace(namespaceId);
@@ -1260,6 +1368,7 @@ public class DataNode extends Configured
         lastBlockReport = lastHeartbeat - blockReportInterval;
       }
       resetBlockReportTime = true; // reset future BRs for randomness
+      fullBlockReportRequested = true;
     }
     
     /**
@@ -1925,6 +2034,7 @@ public class DataNode extends Configured
 
         blockSender = new BlockSender(srcNamespaceId, b, 0, b.getNumBytes(),
             false, false, false, datanode);
+        blockSender.setIOPriority(VolumeIOScheduler.Priority.REPLICATION);
         DatanodeInfo srcNode = new DatanodeInfo(getDNRegistrationForNS(srcNamespaceId));
 
         //
@@ -2038,6 +2148,9 @@ public class DataNode extends Configured
     namespaceManager.startAll();
     // start dataXceiveServer
     dataXceiverServer.start();
+    if (domainSocketXceiverServer != null) {
+      domainSocketXceiverServer.start();
+    }
     ipcServer.start();
   }
 
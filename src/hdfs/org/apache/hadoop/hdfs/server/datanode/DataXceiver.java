@@ -21,12 +21,15 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import org.apache.commons.logging.Log;
 import org.apache.hadoop.hdfs.protocol.Block;
@@ -39,6 +42,7 @@ import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.MD5Hash;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.net.SocketInputStream;
 import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.StringUtils;
 import static org.apache.hadoop.hdfs.server.datanode.DataNode.DN_CLIENTTRACE_FORMAT;
@@ -55,6 +59,11 @@ class DataXceiver implements Runnable, FSConstants {
   final String localAddress;  // local address of this daemon
   DataNode datanode;
   DataXceiverServer dataXceiverServer;
+  // the number of requests received on the connection
+  private int opsServed = 0;
+  // set when the client replied after reading the range of the block it
+  // asked for, so that the connection can serve another request
+  private boolean readCompleted = false;
   
   public DataXceiver(Socket s, DataNode datanode, 
       DataXceiverServer dataXceiverServer) {
@@ -84,67 +93,97 @@ class DataXceiver implements Runnable, FSConstants {
 
   /**
    * Read/write data from/to the DataXceiveServer.
+   * After a read that the client completed, the connection is kept open
+   * for another request of the client.
    */
   public void run() {
     DataInputStream in=null; 
     byte op = -1;
+    boolean keepOpen = false;
     try {
       in = new DataInputStream(
           new BufferedInputStream(NetUtils.getInputStream(s), 
                                   SMALL_BUFFER_SIZE));
-      short version = in.readShort();
-      if ( version != DataTransferProtocol.DATA_TRANSFER_VERSION ) {
-        throw new IOException( "Version Mismatch. Expected" +
-            DataTransferProtocol.DATA_TRANSFER_VERSION +
-            ", Received " + version);
-      }
-      boolean local = s.getInetAddress().equals(s.getLocalAddress());
-      updateCurrentThreadName("waiting for operation");
-      op = in.readByte();
-      // Make sure the xciver count is not exceeded
-      int curXceiverCount = datanode.getXceiverCount();
-      if (curXceiverCount > dataXceiverServer.maxXceiverCount) {
-        throw new IOException("xceiverCount " + curXceiverCount
-                              + " exceeds the limit of concurrent xcievers "
-                              + dataXceiverServer.maxXceiverCount);
-      }
-      long startTime = DataNode.now();
-      switch ( op ) {
-      case DataTransferProtocol.OP_READ_BLOCK:
-        readBlock( in );
-        datanode.myMetrics.readBlockOp.inc(DataNode.now() - startTime);
-        if (local)
-          datanode.myMetrics.readsFromLocalClient.inc();
-        else
-          datanode.myMetrics.readsFromRemoteClient.inc();
-        break;
-      case DataTransferProtocol.OP_WRITE_BLOCK:
-        writeBlock( in );
-        datanode.myMetrics.writeBlockOp.inc(DataNode.now() - startTime);
-        if (local)
-          datanode.myMetrics.writesFromLocalClient.inc();
-        else
-          datanode.myMetrics.writesFromRemoteClient.inc();
-        break;
-      case DataTransferProtocol.OP_READ_METADATA:
-        readMetadata( in );
-        datanode.myMetrics.readMetadataOp.inc(DataNode.now() - startTime);
-        break;
-      case DataTransferProtocol.OP_REPLACE_BLOCK: // for balancing purpose; send to a destination
-        replaceBlock(in);
-        datanode.myMetrics.replaceBlockOp.inc(DataNode.now() - startTime);
-        break;
-      case DataTransferProtocol.OP_COPY_BLOCK:
-            // for balancing purpose; send to a proxy source
-        copyBlock(in);
-        datanode.myMetrics.copyBlockOp.inc(DataNode.now() - startTime);
-        break;
-      case DataTransferProtocol.OP_BLOCK_CHECKSUM: //get the checksum of a block
-        getBlockChecksum(in);
-        datanode.myMetrics.blockChecksumOp.inc(DataNode.now() - startTime);
-        break;
-      default:
-        throw new IOException("Unknown opcode " + op + " in data stream");
+      while (true) {
+        short version;
+        try {
+          version = in.readShort();
+        } catch (EOFException e) {
+          if (opsServed > 0) {
+            // the client closed the connection kept open after a read
+            return;
+          }
+          throw e;
+        }
+        if ( version != DataTransferProtocol.DATA_TRANSFER_VERSION ) {
+          throw new IOException( "Version Mismatch. Expected" +
+              DataTransferProtocol.DATA_TRANSFER_VERSION +
+              ", Received " + version);
+        }
+        boolean local = s.getInetAddress().equals(s.getLocalAddress());
+        updateCurrentThreadName("waiting for operation");
+        op = in.readByte();
+        // Make sure the xciver count is not exceeded
+        int curXceiverCount = datanode.getXceiverCount();
+        if (curXceiverCount > dataXceiverServer.maxXceiverCount) {
+          throw new IOException("xceiverCount " + curXceiverCount
+                                + " exceeds the limit of concurrent xcievers "
+                                + dataXceiverServer.maxXceiverCount);
+        }
+        long startTime = DataNode.now();
+        readCompleted = false;
+        opsServed++;
+        switch ( op ) {
+        case DataTransferProtocol.OP_READ_BLOCK:
+          readBlock( in );
+          datanode.myMetrics.readBlockOp.inc(DataNode.now() - startTime);
+          if (local)
+            datanode.myMetrics.readsFromLocalClient.inc();
+          else
+            datanode.myMetrics.readsFromRemoteClient.inc();
+          break;
+        case DataTransferProtocol.OP_WRITE_BLOCK:
+          writeBlock( in );
+          datanode.myMetrics.writeBlockOp.inc(DataNode.now() - startTime);
+          if (local)
+            datanode.myMetrics.writesFromLocalClient.inc();
+          else
+            datanode.myMetrics.writesFromRemoteClient.inc();
+          break;
+        case DataTransferProtocol.OP_READ_METADATA:
+          readMetadata( in );
+          datanode.myMetrics.readMetadataOp.inc(DataNode.now() - startTime);
+          break;
+        case DataTransferProtocol.OP_REPLACE_BLOCK: // for balancing purpose; send to a destination
+          replaceBlock(in);
+          datanode.myMetrics.replaceBlockOp.inc(DataNode.now() - startTime);
+          break;
+        case DataTransferProtocol.OP_COPY_BLOCK:
+              // for balancing purpose; send to a proxy source
+          copyBlock(in);
+          datanode.myMetrics.copyBlockOp.inc(DataNode.now() - startTime);
+          break;
+        case DataTransferProtocol.OP_BLOCK_CHECKSUM: //get the checksum of a block
+          getBlockChecksum(in);
+          datanode.myMetrics.blockChecksumOp.inc(DataNode.now() - startTime);
+          break;
+        default:
+          throw new IOException("Unknown opcode " + op + " in data stream");
+        }
+
+        if (!readCompleted || dataXceiverServer.keepAlive <= 0) {
+          return;
+        }
+        // wait for another request of the client on the connection
+        if (dataXceiverServer.isEventDriven() && in.available() == 0) {
+          updateCurrentThreadName("waiting for operation");
+          keepOpen = dataXceiverServer.keepAlive(this);
+          return;
+        }
+        if (!waitForRequest(in)) {
+          return;
+        }
+        op = -1;
       }
     } catch (Throwable t) {
       if (op == DataTransferProtocol.OP_READ_BLOCK && t instanceof SocketTimeoutException) {
@@ -156,15 +195,49 @@ class DataXceiver implements Runnable, FSConstants {
         LOG.error(datanode.getDatanodeInfo() + ":DataXceiver",t);
       }
     } finally {
-      LOG.debug(datanode.getDatanodeInfo() + ":Number of active connections is: "
-                               + datanode.getXceiverCount());
-      updateCurrentThreadName("Cleaning up");
-      IOUtils.closeStream(in);
-      IOUtils.closeSocket(s);
-      dataXceiverServer.childSockets.remove(s);
+      if (!keepOpen) {
+        LOG.debug(datanode.getDatanodeInfo() + ":Number of active connections is: "
+                                 + datanode.getXceiverCount());
+        updateCurrentThreadName("Cleaning up");
+        IOUtils.closeStream(in);
+        IOUtils.closeSocket(s);
+        dataXceiverServer.childSockets.remove(s);
+      }
     }
   }
 
+  /**
+   * Wait for the next request of the client on the connection, up to the
+   * keep alive time of the server.
+   * @return true if there is a request to read, false if the client sent
+   *         none in time
+   */
+  private boolean waitForRequest(DataInputStream in) throws IOException {
+    if (in.available() > 0) {
+      return true;
+    }
+    try {
+      if (s.getChannel() != null) {
+        new SocketInputStream(s, dataXceiverServer.keepAlive).waitForReadable();
+      } else {
+        int timeout = s.getSoTimeout();
+        s.setSoTimeout(dataXceiverServer.keepAlive);
+        try {
+          in.mark(1);
+          if (in.read() < 0) {
+            return false;
+          }
+          in.reset();
+        } finally {
+          s.setSoTimeout(timeout);
+        }
+      }
+    } catch (SocketTimeoutException e) {
+      return false;
+    }
+    return true;
+  }
+
   /**
    * Read a block from the disk.
    * @param in The stream to read from
@@ -212,16 +285,16 @@ class DataXceiver implements Runnable, FSConstants {
       out.writeShort(DataTransferProtocol.OP_STATUS_SUCCESS); // send op status
       long read = blockSender.sendBlock(out, baseStream, null); // send data
 
-      if (blockSender.isBlockReadFully()) {
-        // See if client verification succeeded. 
-        // This is an optional response from client.
-        try {
-          if (in.readShort() == DataTransferProtocol.OP_STATUS_CHECKSUM_OK  && 
-              datanode.blockScanner != null) {
-            datanode.blockScanner.verifiedByClient(namespaceId, block);
-          }
-        } catch (IOException ignored) {}
-      }
+      // The client replies once it has read the range, with
+      // OP_STATUS_CHECKSUM_OK if it verified the checksums. The reply is
+      // optional, but without it the connection is not used again.
+      try {
+        if (in.readShort() == DataTransferProtocol.OP_STATUS_CHECKSUM_OK &&
+            blockSender.isBlockReadFully() && datanode.blockScanner != null) {
+          datanode.blockScanner.verifiedByClient(namespaceId, block);
+        }
+        readCompleted = true;
+      } catch (IOException ignored) {}
       
       long readDuration = System.currentTimeMillis() - startTime;
       datanode.myMetrics.bytesReadLatency.inc(readDuration);
@@ -249,7 +322,10 @@ class DataXceiver implements Runnable, FSConstants {
                 StringUtils.stringifyException(ioe) );
       throw ioe;
     } finally {
-      IOUtils.closeStream(out);
+      if (!readCompleted) {
+        // closing the stream closes the connection
+        IOUtils.closeStream(out);
+      }
       IOUtils.closeStream(blockSender);
     }
   }
@@ -294,6 +370,7 @@ class DataXceiver implements Runnable, FSConstants {
     }
 
     DataOutputStream mirrorOut = null;  // stream to next target
+    OutputStream mirrorSockOut = null;  // the socket stream under mirrorOut
     DataInputStream mirrorIn = null;    // reply from next target
     DataOutputStream replyOut = null;   // stream to prev target
     Socket mirrorSock = null;           // socket to next target
@@ -332,10 +409,9 @@ class DataXceiver implements Runnable, FSConstants {
           NetUtils.connect(mirrorSock, mirrorTarget, timeoutValue);
           mirrorSock.setSoTimeout(timeoutValue);
           mirrorSock.setSendBufferSize(DEFAULT_DATA_SOCKET_SIZE);
+          mirrorSockOut = NetUtils.getOutputStream(mirrorSock, writeTimeout);
           mirrorOut = new DataOutputStream(
-             new BufferedOutputStream(
-                         NetUtils.getOutputStream(mirrorSock, writeTimeout),
-                         SMALL_BUFFER_SIZE));
+             new BufferedOutputStream(mirrorSockOut, SMALL_BUFFER_SIZE));
           mirrorIn = new DataInputStream(NetUtils.getInputStream(mirrorSock));
 
           // Write header: Copied from DFSClient.java!
@@ -377,6 +453,7 @@ class DataXceiver implements Runnable, FSConstants {
           }
           IOUtils.closeStream(mirrorOut);
           mirrorOut = null;
+          mirrorSockOut = null;
           IOUtils.closeStream(mirrorIn);
           mirrorIn = null;
           IOUtils.closeSocket(mirrorSock);
@@ -403,6 +480,14 @@ class DataXceiver implements Runnable, FSConstants {
         replyOut.flush();
       }
 
+      // receive the packets in a direct buffer if the sockets have channels
+      blockReceiver.useChannels(
+          s.getChannel() == null ? null :
+            (ReadableByteChannel) NetUtils.getInputStream(s),
+          mirrorSockOut instanceof WritableByteChannel ?
+            (WritableByteChannel) mirrorSockOut : null,
+          mirrorOut != null);
+
       // receive the block and mirror to the next target
       String mirrorAddr = (mirrorSock == null) ? null : mirrorNode;
       long totalReceiveSize = blockReceiver.receiveBlock(mirrorOut, mirrorIn, replyOut,
@@ -490,7 +575,7 @@ class DataXceiver implements Runnable, FSConstants {
   }
   
   /**
-   * Get block checksum (MD5 of CRC32).
+   * Get block checksum (MD5 of CRC32 or CRC32C).
    * @param in
    */
   void getBlockChecksum(DataInputStream in) throws IOException {
@@ -526,6 +611,7 @@ class DataXceiver implements Runnable, FSConstants {
       out.writeInt(bytesPerCRC);
       out.writeLong(crcPerBlock);
       md5.write(out);
+      out.writeByte(checksum.getChecksumType());
       out.flush();
     } finally {
       IOUtils.closeStream(out);
@@ -561,6 +647,7 @@ class DataXceiver implements Runnable, FSConstants {
       // check if the block exists or not
       blockSender = new BlockSender(namespaceId, block, 0, -1,
           false, false, false, datanode);
+      blockSender.setIOPriority(VolumeIOScheduler.Priority.REPLICATION);
 
       // set up response stream
       OutputStream baseStream = NetUtils.getOutputStream(
@@ -21,16 +21,29 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.server.balancer.Balancer;
 import org.apache.hadoop.hdfs.util.DataTransferThrottler;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.util.Daemon;
 import org.apache.hadoop.util.StringUtils;
 
@@ -39,6 +52,16 @@ import org.apache.hadoop.util.StringUtils;
  * This is created to listen for requests from clients or 
  * other DataNodes.  This small server does not use the 
  * Hadoop IPC mechanism.
+ *
+ * By default every connection is served by its own thread. If
+ * dfs.datanode.xceiver.threads.per.volume is set, a selector waits for
+ * the request of every accepted connection, and the requests are served
+ * by a bounded pool of threads, so that idle connections do not hold a
+ * thread.
+ *
+ * After a read that the client completed, the connection is kept open for
+ * dfs.datanode.socket.reuse.keepalive milliseconds, so that the client can
+ * send another request on it.
  */
 class DataXceiverServer implements Runnable, FSConstants {
   public static final Log LOG = DataNode.LOG;
@@ -106,6 +129,19 @@ class DataXceiverServer implements Runnable, FSConstants {
    */
   long estimateBlockSize;
   
+  // the threads serving the requests, null for a thread per connection
+  private ThreadPoolExecutor xceiverPool = null;
+  // the requests being served or waiting for a thread of the pool
+  private final AtomicInteger activeXceivers = new AtomicInteger();
+
+  // how long a connection is kept open for another request after a read,
+  // in milliseconds; 0 to close the connection after every request
+  final int keepAlive;
+  // the selector of the event driven server
+  private volatile Selector selector = null;
+  // the connections kept open after a read, to register with the selector
+  private final Queue<DataXceiver> keptAlive =
+    new ConcurrentLinkedQueue<DataXceiver>();
   
   DataXceiverServer(ServerSocket ss, Configuration conf, 
       DataNode datanode) {
@@ -115,6 +151,39 @@ class DataXceiverServer implements Runnable, FSConstants {
     
     this.maxXceiverCount = conf.getInt("dfs.datanode.max.xcievers",
         MAX_XCEIVER_COUNT);
+    int threadsPerVolume =
+      conf.getInt("dfs.datanode.xceiver.threads.per.volume", 0);
+    if (threadsPerVolume > 0) {
+      if (ss.getChannel() == null) {
+        LOG.warn("dfs.datanode.xceiver.threads.per.volume is ignored since"
+            + " the data transfer socket has no channel;"
+            + " set dfs.datanode.socket.write.timeout to a positive value");
+      } else {
+        int numVolumes = datanode.dataDirs == null ? 1
+            : Math.max(1, datanode.dataDirs.size());
+        int numThreads = Math.min(threadsPerVolume * numVolumes,
+            maxXceiverCount);
+        // a request waiting in a queue behind long writes could be the
+        // mirror of one of them, so there is no queue but more threads
+        xceiverPool = new ThreadPoolExecutor(numThreads, maxXceiverCount,
+            60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+              private final AtomicInteger count = new AtomicInteger();
+              public Thread newThread(Runnable r) {
+                Thread t = new Daemon(DataXceiverServer.this.datanode
+                    .threadGroup, r);
+                t.setName("DataXceiver-" + count.incrementAndGet());
+                return t;
+              }
+            });
+        xceiverPool.allowCoreThreadTimeOut(true);
+        LOG.info("Serving data transfer requests with " + numThreads
+            + " to " + maxXceiverCount + " threads");
+      }
+    }
+    
+    this.keepAlive = conf.getInt("dfs.datanode.socket.reuse.keepalive",
+        4000);
     
     this.estimateBlockSize = conf.getLong("dfs.block.size", DEFAULT_BLOCK_SIZE);
     
@@ -123,9 +192,26 @@ class DataXceiverServer implements Runnable, FSConstants {
       conf.getLong("dfs.balance.bandwidthPerSec", 1024L*1024));
   }
 
+  /** @return true if the requests are served by a pool of threads */
+  boolean isEventDriven() {
+    return xceiverPool != null;
+  }
+
+  /**
+   * @return the number of requests being served, when the server is
+   * event driven
+   */
+  int getXceiverCount() {
+    return activeXceivers.get();
+  }
+
   /**
    */
   public void run() {
+    if (isEventDriven()) {
+      runEventLoop();
+      return;
+    }
     while (datanode.shouldRun) {
       try {
         Socket s = ss.accept();
@@ -139,6 +225,7 @@ class DataXceiverServer implements Runnable, FSConstants {
             + localAddress + " XceiverCount: " + datanode.getXceiverCount());
         new Daemon(datanode.threadGroup, 
             new DataXceiver(s, datanode, this)).start();
+        datanode.myMetrics.xceiverThreads.set(datanode.getXceiverCount());
 
       } catch (SocketTimeoutException ignored) {
         // wake up to see if should continue to run
@@ -159,6 +246,206 @@ class DataXceiverServer implements Runnable, FSConstants {
     }
   }
   
+  /**
+   * Accept the connections and wait for their requests with a selector;
+   * a connection is handed to the pool once its request has arrived.
+   */
+  private void runEventLoop() {
+    try {
+      Selector selector = Selector.open();
+      ServerSocketChannel server = ss.getChannel();
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+      this.selector = selector;
+    } catch (IOException ie) {
+      LOG.error(datanode.getDatanodeInfo() + ":DataXceiveServer: Exiting due to:"
+          + StringUtils.stringifyException(ie));
+      datanode.shouldRun = false;
+    }
+    long lastIdleCheck = DataNode.now();
+    while (datanode.shouldRun) {
+      try {
+        selector.select(1000);
+        // register after the select, which removed the cancelled keys of
+        // the connections
+        registerKeptAlive(selector);
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            doAccept(selector, (ServerSocketChannel) key.channel());
+          } else if (key.isReadable()) {
+            // the pool thread reads the request with its own selector
+            key.cancel();
+            dispatch((IdleConnection) key.attachment());
+          }
+        }
+        long now = DataNode.now();
+        if (now - lastIdleCheck > 1000) {
+          closeIdleConnections(selector, now);
+          lastIdleCheck = now;
+        }
+      } catch (IOException ie) {
+        LOG.warn(datanode.getDatanodeInfo() + ":DataXceiveServer: " 
+                                + StringUtils.stringifyException(ie));
+      } catch (Throwable te) {
+        LOG.error(datanode.getDatanodeInfo() + ":DataXceiveServer: Exiting due to:" 
+                                 + StringUtils.stringifyException(te));
+        datanode.shouldRun = false;
+      }
+    }
+    if (selector != null) {
+      try {
+        selector.close();
+      } catch (IOException ignored) {
+      }
+    }
+    try {
+      ss.close();
+    } catch (IOException ie) {
+      LOG.warn(datanode.getDatanodeInfo() + ":DataXceiveServer: " 
+                              + StringUtils.stringifyException(ie));
+    }
+    xceiverPool.shutdownNow();
+    DataXceiver xceiver;
+    while ((xceiver = keptAlive.poll()) != null) {
+      closeConnection(xceiver.s);
+    }
+  }
+
+  /** A connection waiting for a request. */
+  private static class IdleConnection {
+    final DataXceiver xceiver;
+    // the time after which the connection is closed
+    final long deadline;
+    // true if the connection was kept open after a read
+    final boolean keptAlive;
+
+    IdleConnection(DataXceiver xceiver, long deadline, boolean keptAlive) {
+      this.xceiver = xceiver;
+      this.deadline = deadline;
+      this.keptAlive = keptAlive;
+    }
+  }
+
+  /**
+   * Wait with the selector for the next request on a connection kept open
+   * after a read. Called by the thread which served the read.
+   * @return false if the server does not run, the connection should be
+   *         closed then
+   */
+  boolean keepAlive(DataXceiver xceiver) {
+    Selector sel = selector;
+    if (sel == null || !datanode.shouldRun) {
+      return false;
+    }
+    keptAlive.add(xceiver);
+    sel.wakeup();
+    return true;
+  }
+
+  private void registerKeptAlive(Selector selector) {
+    long deadline = DataNode.now() + keepAlive;
+    DataXceiver xceiver;
+    while ((xceiver = keptAlive.poll()) != null) {
+      try {
+        xceiver.s.getChannel().register(selector, SelectionKey.OP_READ,
+            new IdleConnection(xceiver, deadline, true));
+      } catch (IOException ie) {
+        LOG.warn("Could not wait for a request from "
+            + xceiver.s.getRemoteSocketAddress() + ": " + ie);
+        closeConnection(xceiver.s);
+      }
+    }
+  }
+
+  private void closeConnection(Socket s) {
+    IOUtils.closeSocket(s);
+    childSockets.remove(s);
+  }
+
+  private void doAccept(Selector selector, ServerSocketChannel server)
+      throws IOException {
+    SocketChannel channel;
+    while ((channel = server.accept()) != null) {
+      Socket s = channel.socket();
+      try {
+        s.setTcpNoDelay(true);
+        s.setSoTimeout(datanode.socketTimeout*5);
+        channel.configureBlocking(false);
+        LOG.info("Accepted new connection: src " + s.getRemoteSocketAddress()
+            + " dest " + s.getLocalSocketAddress()
+            + " XceiverCount: " + datanode.getXceiverCount());
+        long idleTimeout = datanode.socketTimeout * 5L;
+        channel.register(selector, SelectionKey.OP_READ, new IdleConnection(
+            new DataXceiver(s, datanode, this), idleTimeout > 0 ?
+                DataNode.now() + idleTimeout : Long.MAX_VALUE, false));
+      } catch (IOException ie) {
+        childSockets.remove(s);
+        IOUtils.closeSocket(s);
+        throw ie;
+      }
+    }
+  }
+
+  private void dispatch(IdleConnection conn) {
+    final DataXceiver xceiver = conn.xceiver;
+    final long queueTime = DataNode.now();
+    activeXceivers.incrementAndGet();
+    try {
+      xceiverPool.execute(new Runnable() {
+        public void run() {
+          datanode.myMetrics.xceiverQueueTime.inc(DataNode.now() - queueTime);
+          updateThreadMetrics();
+          try {
+            xceiver.run();
+          } finally {
+            activeXceivers.decrementAndGet();
+            Thread.currentThread().setName("DataXceiver idle");
+            updateThreadMetrics();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      activeXceivers.decrementAndGet();
+      datanode.myMetrics.xceiverRejectedOps.inc();
+      LOG.warn("Refused the request from "
+          + xceiver.s.getRemoteSocketAddress() + ": " + maxXceiverCount
+          + " requests are being served");
+      closeConnection(xceiver.s);
+    }
+    updateThreadMetrics();
+  }
+
+  private void updateThreadMetrics() {
+    datanode.myMetrics.xceiverThreads.set(xceiverPool.getPoolSize());
+  }
+
+  /** Close the connections which did not send a request in time. */
+  private void closeIdleConnections(Selector selector, long now) {
+    for (SelectionKey key : selector.keys()) {
+      Object attachment = key.attachment();
+      if (key.isValid() && attachment instanceof IdleConnection &&
+          ((IdleConnection) attachment).deadline < now) {
+        IdleConnection conn = (IdleConnection) attachment;
+        Socket s = conn.xceiver.s;
+        if (conn.keptAlive) {
+          LOG.debug("Closing kept alive connection from "
+              + s.getRemoteSocketAddress());
+        } else {
+          LOG.info("Closing idle connection from "
+              + s.getRemoteSocketAddress());
+        }
+        key.cancel();
+        closeConnection(s);
+      }
+    }
+  }
+
   void kill() {
     assert datanode.shouldRun == false :
       "shoudRun should be set to false before killing";
@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DataTransferProtocol;
+import org.apache.hadoop.hdfs.protocol.FSConstants;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.net.unix.DomainSocket;
+import org.apache.hadoop.util.Daemon;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * Server for the clients running on the same host as the DataNode.
+ * It listens on a UNIX domain socket and serves
+ * {@link DataTransferProtocol#OP_REQUEST_SHORT_CIRCUIT_FDS}: the client
+ * gets open descriptors of the block and meta files and reads them
+ * directly, without having access to the data directories.
+ */
+class DomainSocketXceiverServer implements Runnable, FSConstants {
+  public static final Log LOG = DataNode.LOG;
+
+  private final DomainSocket listener;
+  private final DataNode datanode;
+  // the connections being served
+  private final Set<DomainSocket> childSockets =
+    Collections.synchronizedSet(new HashSet<DomainSocket>());
+  private boolean killed = false;
+
+  DomainSocketXceiverServer(DomainSocket listener, DataNode datanode) {
+    this.listener = listener;
+    this.datanode = datanode;
+  }
+
+  public void run() {
+    while (datanode.shouldRun) {
+      try {
+        DomainSocket s = listener.accept();
+        s.setTimeout(datanode.socketTimeout);
+        childSockets.add(s);
+        new Daemon(datanode.threadGroup, new Xceiver(s)).start();
+      } catch (IOException ie) {
+        if (datanode.shouldRun) {
+          LOG.warn(datanode.getDatanodeInfo() + ":DomainSocketXceiverServer: "
+                   + StringUtils.stringifyException(ie));
+        }
+      } catch (Throwable te) {
+        LOG.error(datanode.getDatanodeInfo()
+            + ":DomainSocketXceiverServer: Exiting due to:"
+            + StringUtils.stringifyException(te));
+        break;
+      }
+    }
+    kill();
+  }
+
+  /** Close the listening socket and all the connections. */
+  synchronized void kill() {
+    if (killed) {
+      return;
+    }
+    killed = true;
+    try {
+      listener.closeAndUnlink();
+    } catch (IOException ie) {
+      LOG.warn(datanode.getDatanodeInfo()
+          + ":DomainSocketXceiverServer.kill(): "
+          + StringUtils.stringifyException(ie));
+    }
+    synchronized (childSockets) {
+      for (DomainSocket s : childSockets) {
+        IOUtils.closeStream(s);
+      }
+    }
+  }
+
+  /** Serves the requests of one connection. */
+  private class Xceiver implements Runnable {
+    private final DomainSocket s;
+
+    Xceiver(DomainSocket s) {
+      this.s = s;
+    }
+
+    public void run() {
+      Thread.currentThread().setName("DomainSocketXceiver for " + s.getPath());
+      try {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(s.getInputStream(), SMALL_BUFFER_SIZE));
+        // a client may reuse the connection for several requests
+        while (datanode.shouldRun) {
+          short version;
+          try {
+            version = in.readShort();
+          } catch (EOFException e) {
+            break;
+          }
+          if (version != DataTransferProtocol.DATA_TRANSFER_VERSION) {
+            throw new IOException("Version Mismatch. Expected " +
+                DataTransferProtocol.DATA_TRANSFER_VERSION +
+                ", Received " + version);
+          }
+          byte op = in.readByte();
+          if (op != DataTransferProtocol.OP_REQUEST_SHORT_CIRCUIT_FDS) {
+            throw new IOException("Unknown opcode " + op
+                + " on domain socket " + s.getPath());
+          }
+          long startTime = DataNode.now();
+          requestShortCircuitFds(in);
+          datanode.myMetrics.requestShortCircuitFdsOp.inc(
+              DataNode.now() - startTime);
+        }
+      } catch (Throwable t) {
+        LOG.error(datanode.getDatanodeInfo() + ":DomainSocketXceiver", t);
+      } finally {
+        IOUtils.closeStream(s);
+        childSockets.remove(s);
+      }
+    }
+
+    /**
+     * Send the descriptors of the block and meta files of a block.
+     * The reply is a status, followed by the length of the block and the
+     * two descriptors on success, or by an error message.
+     */
+    private void requestShortCircuitFds(DataInputStream in)
+        throws IOException {
+      int namespaceId = in.readInt();
+      long blockId = in.readLong();
+      long generationStamp = in.readLong();
+
+      DataOutputBuffer reply = new DataOutputBuffer();
+      FileInputStream dataIn = null;
+      FileInputStream metaIn = null;
+      try {
+        Block block = datanode.data.getStoredBlock(namespaceId, blockId);
+        if (block == null) {
+          throw new IOException("Block " + blockId + " is not valid");
+        }
+        if (block.getGenerationStamp() != generationStamp) {
+          throw new IOException("Block " + block
+              + " does not match the generation stamp " + generationStamp);
+        }
+        File blockFile = datanode.data.getBlockFile(namespaceId, block);
+        dataIn = new FileInputStream(blockFile);
+        metaIn = new FileInputStream(FSDataset.getMetaFile(blockFile, block));
+        reply.writeShort(DataTransferProtocol.OP_STATUS_SUCCESS);
+        reply.writeLong(block.getNumBytes());
+        s.sendFileDescriptors(
+            new FileDescriptor[] {dataIn.getFD(), metaIn.getFD()},
+            reply.getData(), 0, reply.getLength());
+        datanode.myMetrics.readsFromLocalClient.inc();
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Sent the file descriptors of " + block + " to "
+              + s.getPath());
+        }
+      } catch (IOException e) {
+        LOG.info("Cannot send the file descriptors of block " + blockId
+            + ": " + e.getMessage());
+        reply.reset();
+        reply.writeShort(DataTransferProtocol.OP_STATUS_ERROR);
+        Text.writeString(reply, String.valueOf(e.getMessage()));
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        out.write(reply.getData(), 0, reply.getLength());
+        out.flush();
+      } finally {
+        // the client holds its own copies of the descriptors
+        IOUtils.closeStream(dataIn);
+        IOUtils.closeStream(metaIn);
+      }
+    }
+  }
+}
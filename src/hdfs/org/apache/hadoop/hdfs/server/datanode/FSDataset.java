@@ -18,6 +18,12 @@
 package org.apache.hadoop.hdfs.server.datanode;
 
 import java.nio.channels.FileChannel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -28,6 +34,7 @@ import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -38,7 +45,11 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
@@ -46,10 +57,10 @@ import javax.management.StandardMBean;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.DF;
-import org.apache.hadoop.fs.DU;
 import org.apache.hadoop.fs.DU.NamespaceSliceDU;
 import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.HardLink;
+import org.apache.hadoop.fs.IncrementalDU;
 import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.FSConstants;
 import org.apache.hadoop.hdfs.server.datanode.FSDataset.ActiveFile;
@@ -58,8 +69,10 @@ import org.apache.hadoop.hdfs.server.protocol.BlockCommand;
 import org.apache.hadoop.hdfs.server.protocol.BlockRecoveryInfo;
 import org.apache.hadoop.hdfs.server.protocol.InterDatanodeProtocol;
 import org.apache.hadoop.hdfs.util.LightWeightHashSet;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.metrics.util.MBeanUtil;
 import org.apache.hadoop.util.DataChecksum;
+import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.VersionInfo;
 import org.apache.hadoop.util.DiskChecker;
 import org.apache.hadoop.util.DiskChecker.DiskErrorException;
@@ -84,6 +97,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     private final File detachDir; // directory store Finalized replica
     protected final File rbwDir; // directory store RBW replica
     private final File tmpDir; // directory store Temporary replica
+    private final File blockListFile; // finalized blocks saved at shutdown
     private final NamespaceSliceDU dfsUsage;
 
     /**
@@ -92,15 +106,29 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
      * @param volume {@link FSVolume} to which this NamespaceSlice belongs to
      * @param nsDir directory corresponding to the NameSpaceSlice
      * @param conf
+     * @param scanner the executor scanning the subdirectories of the
+     *        finalized directory in parallel, null to scan them in this thread
      * @throws IOException
      */
-    NamespaceSlice(int namespaceId, FSVolume volume, File nsDir, Configuration conf, boolean supportAppends)
-        throws IOException {
+    NamespaceSlice(int namespaceId, FSVolume volume, File nsDir, Configuration conf, boolean supportAppends,
+        ExecutorService scanner) throws IOException {
       this.namespaceId = namespaceId;
       this.volume = volume;
       File nsDirCur = new File(nsDir, DataStorage.STORAGE_DIR_CURRENT); 
       File dataDirFile = new File(nsDirCur, DataStorage.STORAGE_DIR_FINALIZED);
-      this.dataDir = new FSDir(namespaceId, dataDirFile, volume);
+      this.blockListFile = new File(nsDirCur, BLOCK_LIST_FILE);
+      FSDir cachedDataDir = null;
+      if (blockListFile.exists()) {
+        if (conf.getBoolean("dfs.datanode.blocklist.cache", false)) {
+          cachedDataDir = loadBlockList(dataDirFile);
+        }
+        // the list is only valid until the volume is modified
+        if (!blockListFile.delete()) {
+          throw new IOException("Cannot delete " + blockListFile);
+        }
+      }
+      this.dataDir = (cachedDataDir != null) ? cachedDataDir
+          : new FSDir(namespaceId, dataDirFile, volume, scanner);
             
       this.detachDir = new File(nsDir, "detach");
       if (detachDir.exists()) {
@@ -153,12 +181,87 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
           throw new IOException("Mkdirs failed to create " + detachDir.toString());
         }
       }
-      this.dfsUsage = volume.dfsUsage.addNamespace(namespaceId, nsDir, conf);
+      // seed the usage from the blocks found, it is kept up to date as
+      // blocks are finalized and deleted. It only counts the finalized
+      // blocks, so du checks the finalized directory only: the rbw and tmp
+      // files are counted when they are finalized.
+      this.dfsUsage = volume.dfsUsage.addNamespace(namespaceId, dataDirFile,
+          dataDir.getScannedBytes());
     }
     
     void getBlockInfo(LightWeightHashSet<Block> blocks){
       dataDir.getBlockInfo(blocks);
     }
+
+    /**
+     * Build the tree of the finalized directory and add its blocks to the
+     * volume map from the block list saved at the last shutdown.
+     * @return the tree, null if the list cannot be used
+     */
+    private FSDir loadBlockList(File dataDirFile) {
+      long start = System.currentTimeMillis();
+      List<BlockAndFile> blocks = new ArrayList<BlockAndFile>();
+      FSDir root;
+      try {
+        CheckedInputStream checkedIn = new CheckedInputStream(
+            new BufferedInputStream(new FileInputStream(blockListFile)),
+            new CRC32());
+        DataInputStream in = new DataInputStream(checkedIn);
+        try {
+          if (in.readInt() != BLOCK_LIST_VERSION ||
+              in.readInt() != namespaceId) {
+            DataNode.LOG.info("Ignoring the outdated block list "
+                + blockListFile);
+            return null;
+          }
+          root = new FSDir(dataDirFile, in, blocks);
+          long checksum = checkedIn.getChecksum().getValue();
+          if (in.readLong() != checksum) {
+            DataNode.LOG.warn("Ignoring the corrupt block list "
+                + blockListFile);
+            return null;
+          }
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        DataNode.LOG.warn("Cannot use the block list " + blockListFile, e);
+        return null;
+      }
+      for (BlockAndFile b : blocks) {
+        volumeMap.add(namespaceId, b.block,
+            new DatanodeBlockInfo(volume, b.pathfile));
+      }
+      DataNode.LOG.info("Loaded " + blocks.size() + " blocks from "
+          + blockListFile + " in " + (System.currentTimeMillis() - start)
+          + " ms");
+      return root;
+    }
+
+    /**
+     * Save the finalized blocks of the slice, so that the next startup
+     * does not need to scan the finalized directory.
+     * @param blocksByDir the blocks of the namespace by directory
+     */
+    void saveBlockList(Map<File, List<Block>> blocksByDir)
+        throws IOException {
+      File tmp = new File(blockListFile.getPath() + ".tmp");
+      CheckedOutputStream checkedOut = new CheckedOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp)), new CRC32());
+      DataOutputStream out = new DataOutputStream(checkedOut);
+      try {
+        out.writeInt(BLOCK_LIST_VERSION);
+        out.writeInt(namespaceId);
+        dataDir.saveBlockList(out, blocksByDir);
+        out.writeLong(checkedOut.getChecksum().getValue());
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(blockListFile)) {
+        tmp.delete();
+        throw new IOException("Cannot rename " + tmp + " to " + blockListFile);
+      }
+    }
     
     /**
      * Recover detached files on datanode restart. If a detached block
@@ -239,12 +342,11 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       fsd.getBlockAndFileInfo(blockSet);
       for (BlockAndFile b : blockSet) {
         File f = b.pathfile;  // full path name of block file
-        lock.writeLock().lock();
-        try {
+        // the caller holds the write lock of the dataset, and the volumes
+        // may be added by several threads
+        synchronized (volumeMap) {
           volumeMap.add(namespaceId, b.block, new DatanodeBlockInfo(volume, f));
           volumeMap.addOngoingCreates(namespaceId, b.block, ActiveFile.createStartupRecoveryFile(f));
-        } finally {
-          lock.writeLock().unlock();
         }
         if (DataNode.LOG.isDebugEnabled()) {
           DataNode.LOG.debug("recoverBlocksBeingWritten for block " + b.block + "namespaceId: "+namespaceId);
@@ -395,6 +497,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     int numBlocks = 0;
     volatile FSDir childrenDirs[];
     int lastChildIdx = 0;
+    // bytes of the blocks and meta files found when the tree was built
+    private long scannedBytes = 0;
     
     File getDirectory(){
       return dir;
@@ -403,6 +507,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     FSDir[] getChildren() {
       return childrenDirs;
     }
+
+    /**
+     * @return the disk space used by the blocks found in the tree when it
+     * was built, with the length of the meta files estimated
+     */
+    long getScannedBytes() {
+      return scannedBytes;
+    }
     	
     public FSDir() { 
     }
@@ -412,6 +524,15 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
     
     public FSDir(int namespaceId, File dir, FSVolume volume) throws IOException {
+      this(namespaceId, dir, volume, null);
+    }
+
+    /**
+     * @param scanner the executor building the trees of the subdirectories
+     *        in parallel, null to build them in this thread
+     */
+    FSDir(final int namespaceId, File dir, final FSVolume volume,
+        ExecutorService scanner) throws IOException {
       this.dir = dir;
       this.childrenDirs = null;      
       if (!dir.exists()) {
@@ -433,24 +554,110 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
             numBlocks++;
             if (volume != null) {   
               long genStamp = FSDataset.getGenerationStampFromFile(files, file);    
-                volumeMap.add(namespaceId, new Block(file, file.length(), genStamp),     
+              Block b = new Block(file, file.length(), genStamp);
+              volumeMap.add(namespaceId, b,
                   new DatanodeBlockInfo(volume, file));   
+              scannedBytes += b.getNumBytes()
+                  + estimateMetaFileLength(b.getNumBytes());
             }
           }
         }
         if (numChildren > 0) {
           FSDir[] newChildren = new FSDir[numChildren];
+          List<Future<FSDir>> futures = (scanner == null) ? null
+              : new ArrayList<Future<FSDir>>(numChildren);
           int curdir = 0;
           for (int idx = 0; idx < files.length; idx++) {
             if (files[idx].isDirectory() && !isPendingDeleteFilename(files[idx])) {
-              newChildren[curdir] = new FSDir(namespaceId, files[idx], volume);
+              if (scanner == null) {
+                newChildren[curdir] = new FSDir(namespaceId, files[idx], volume);
+              } else {
+                final File childDir = files[idx];
+                futures.add(scanner.submit(new Callable<FSDir>() {
+                  public FSDir call() throws IOException {
+                    return new FSDir(namespaceId, childDir, volume);
+                  }
+                }));
+              }
               curdir++;
             }
           }
+          if (futures != null) {
+            for (int idx = 0; idx < futures.size(); idx++) {
+              newChildren[idx] = getScanResult(futures.get(idx));
+            }
+          }
+          for (FSDir child : newChildren) {
+            scannedBytes += child.scannedBytes;
+          }
           childrenDirs = newChildren;
         }
       }
     }
+
+    /**
+     * Build the tree of a directory from a block list.
+     * @param blocks the list the blocks of the tree are added to
+     * @throws IOException if the directory or one of its subdirectories
+     *         was modified after the list was saved
+     */
+    private FSDir(File dir, DataInput in, List<BlockAndFile> blocks)
+        throws IOException {
+      this.dir = dir;
+      if (in.readLong() != dir.lastModified()) {
+        throw new IOException(dir + " was modified after the block list"
+            + " was saved");
+      }
+      this.numBlocks = in.readInt();
+      for (int i = 0; i < numBlocks; i++) {
+        Block b = new Block(in.readLong(), in.readLong(), in.readLong());
+        blocks.add(new BlockAndFile(new File(dir, b.getBlockName()), b));
+        scannedBytes += b.getNumBytes()
+            + estimateMetaFileLength(b.getNumBytes());
+      }
+      int numChildren = in.readInt();
+      if (numBlocks < 0 || numChildren < 0) {
+        throw new IOException("Corrupt block list for " + dir);
+      }
+      if (numChildren > 0) {
+        FSDir[] newChildren = new FSDir[numChildren];
+        for (int i = 0; i < numChildren; i++) {
+          newChildren[i] = new FSDir(new File(dir, Text.readString(in)), in,
+              blocks);
+          scannedBytes += newChildren[i].scannedBytes;
+        }
+        childrenDirs = newChildren;
+      }
+    }
+
+    /**
+     * Write the tree of the directory, read back by
+     * {@link #FSDir(File, DataInput, List)}.
+     * @param blocksByDir the blocks of the namespace by directory
+     */
+    void saveBlockList(DataOutput out, Map<File, List<Block>> blocksByDir)
+        throws IOException {
+      out.writeLong(dir.lastModified());
+      List<Block> blocks = blocksByDir.get(dir);
+      if (blocks == null) {
+        out.writeInt(0);
+      } else {
+        out.writeInt(blocks.size());
+        for (Block b : blocks) {
+          out.writeLong(b.getBlockId());
+          out.writeLong(b.getNumBytes());
+          out.writeLong(b.getGenerationStamp());
+        }
+      }
+      FSDir[] children = this.getChildren();
+      out.writeInt(children == null ? 0 : children.length);
+      if (children != null) {
+        for (FSDir child : children) {
+          Text.writeString(out, child.dir.getName());
+          child.saveBlockList(out, blocksByDir);
+        }
+      }
+    }
         
     public File addBlock(int namespaceId, Block b, File src) throws IOException {
       //First try without creating subdirectories
@@ -691,7 +898,15 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     private final DF usage;           
     private final long reserved;
     private final FSDataset dataset;
-    private DU dfsUsage;
+    private IncrementalDU dfsUsage;
+    private final VolumeIOScheduler ioScheduler;
+    // blocks being sent from the volume
+    private final AtomicInteger activeReaders = new AtomicInteger();
+    private final AtomicInteger activeWriters = new AtomicInteger();
+    // moving average of the time to write a packet, in microseconds
+    private double writeLatency = 0;
+    // when writeLatency was last updated, 0 if never
+    private long writeLatencyTime = 0;
     
     FSVolume(FSDataset dataset, File currentDir, Configuration conf) throws IOException {
       this.reserved = conf.getLong("dfs.datanode.du.reserved", 0);
@@ -700,8 +915,65 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       this.usage = new DF(parent, conf);
       this.dataset = dataset;
       this.namespaceMap = new NamespaceMap();
-      this.dfsUsage = new DU(currentDir, conf);
+      this.dfsUsage = new IncrementalDU(currentDir,
+          conf.getLong("dfs.datanode.du.reconcile.interval", 6 * 3600 * 1000L),
+          conf.getFloat("dfs.datanode.du.reconcile.tolerance", 0.05f));
       this.dfsUsage.start();
+      this.ioScheduler = VolumeIOScheduler.create(conf, parent.getPath(),
+          dataset.datanode != null && dataset.datanode.myMetrics != null
+            ? dataset.datanode.myMetrics.registry : null);
+    }
+
+    /** @return the I/O scheduler of the volume, null if there is none */
+    VolumeIOScheduler getIOScheduler() {
+      return ioScheduler;
+    }
+
+    /** @return the number of blocks being written to the volume */
+    int getNumActiveWriters() {
+      return activeWriters.get();
+    }
+
+    void writerStarted() {
+      activeWriters.incrementAndGet();
+    }
+
+    void writerFinished() {
+      activeWriters.decrementAndGet();
+    }
+
+    void readerStarted() {
+      activeReaders.incrementAndGet();
+    }
+
+    void readerFinished() {
+      activeReaders.decrementAndGet();
+    }
+
+    /**
+     * @return true if no block is being sent from or received on the volume
+     */
+    boolean isIdle() {
+      return activeReaders.get() == 0 && getNumActiveWriters() == 0;
+    }
+
+    /** Add the time it took to write a packet to the moving average. */
+    synchronized void recordWriteLatency(long micros) {
+      if (writeLatencyTime == 0) {
+        writeLatency = micros;
+      } else {
+        writeLatency = 0.9 * writeLatency + 0.1 * micros;
+      }
+      writeLatencyTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the moving average of the time to write a packet in
+     * microseconds, 0 if no packet was written since the given time
+     */
+    synchronized double getWriteLatency(long since) {
+      return writeLatencyTime > 0 && writeLatencyTime >= since
+          ? writeLatency : 0;
     }
     
     /**
@@ -825,10 +1097,32 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     
     public void addNamespace(int namespaceId, String nsDir, Configuration conf, boolean supportAppends)
         throws IOException {
+      addNamespace(namespaceId, nsDir, conf, supportAppends, null);
+    }
+
+    void addNamespace(int namespaceId, String nsDir, Configuration conf,
+        boolean supportAppends, ExecutorService scanner) throws IOException {
       File nsdir = new File(currentDir, nsDir);
-      NamespaceSlice ns = new NamespaceSlice(namespaceId, this, nsdir, conf, supportAppends);
+      NamespaceSlice ns = new NamespaceSlice(namespaceId, this, nsdir, conf,
+          supportAppends, scanner);
       namespaceMap.addNamespace(namespaceId, ns);
     }
+
+    /**
+     * Save the block list of a namespace on the volume.
+     * @param blocksByDir the blocks of the namespace by directory
+     */
+    void saveBlockList(int namespaceId, Map<File, List<Block>> blocksByDir) {
+      NamespaceSlice ns = getNamespaceSlice(namespaceId);
+      if (ns == null) {
+        return;
+      }
+      try {
+        ns.saveBlockList(blocksByDir);
+      } catch (IOException e) {
+        DataNode.LOG.warn("Cannot save the block list of " + ns, e);
+      }
+    }
     
     void getBlocksBeingWrittenInfo(int namespaceId, LightWeightHashSet<Block> blockSet) {
       NamespaceSlice ns = getNamespaceSlice(namespaceId);
@@ -924,14 +1218,16 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
 
   static class FSVolumeSet {
     final FSVolumeList volumneList;
-    int curVolume = 0;
+    private final VolumeChoosingPolicy volumeChoosingPolicy;
 
     ExecutorService scannersExecutor;
     boolean supportAppends;
 
-    private FSVolumeSet(FSVolume[] volumes, int threads, boolean supportAppends) {
+    private FSVolumeSet(FSVolume[] volumes, int threads, boolean supportAppends,
+        VolumeChoosingPolicy volumeChoosingPolicy) {
       this.volumneList = new FSVolumeList(volumes);
       this.supportAppends = supportAppends;
+      this.volumeChoosingPolicy = volumeChoosingPolicy;
       if (threads > 1) {
         scannersExecutor = Executors.newFixedThreadPool(threads);
       }
@@ -945,32 +1241,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       return volumneList.getVolumeListSnapshot();
     }
       
-    private FSVolume getNextVolume(long blockSize) throws IOException {
+    private synchronized FSVolume getNextVolume(long blockSize)
+        throws IOException {
       FSVolume[] volumes = this.getVolumes();
 
       if(volumes.length < 1) {
         throw new DiskOutOfSpaceException("No more available volumes");
       }
-      
-      // since volumes could've been removed because of the failure
-      // make sure we are not out of bounds
-      if (curVolume >= volumes.length) {
-        curVolume = 0;
-      }
-
-      int startVolume = curVolume;
-
-      while (true) {
-        FSVolume volume = volumes[curVolume];
-        curVolume = (curVolume + 1) % volumes.length;
-        if (volume.getAvailable() > blockSize) {
-          return volume;
-        }
-        if (curVolume == startVolume) {
-          throw new DiskOutOfSpaceException(
-              "Insufficient space for an additional block");
-        }
-      }
+      return volumeChoosingPolicy.chooseVolume(volumes, blockSize);
     }
       
     private long getDfsUsed() throws IOException {
@@ -1093,15 +1371,6 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       return removed_vols;
     }
     
-    private void addNamespace(int namespaceId, String nsDir, Configuration conf)
-        throws IOException {    
-      FSVolume[] volumes = this.getVolumes();
-
-      for (FSVolume v : volumes) {
-        v.addNamespace(namespaceId, nsDir, conf, supportAppends);
-      }
-    }
-
     private void removeNamespace(int namespaceId) {
       FSVolume[] volumes = this.getVolumes();
 
@@ -1148,6 +1417,11 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   public static final String METADATA_EXTENSION = ".meta";
   public static final short METADATA_VERSION = 1;
   public static final String DELETE_FILE_EXT = "toDelete.";
+  // the finalized blocks of a namespace slice saved at shutdown
+  static final String BLOCK_LIST_FILE = "blocklist";
+  static final int BLOCK_LIST_VERSION = 2;
+  // how long to wait for the block deletions before saving the block lists
+  static final long BLOCK_LIST_DELETION_WAIT = 60 * 1000;
 
   static class ActiveFile implements ReplicaBeingWritten, Cloneable {
     final File file;
@@ -1159,6 +1433,11 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
      * underlying filesystem journal replay)
      */
     final boolean wasRecoveredOnStartup;
+    /**
+     * The volume whose count of writers includes this file, guarded by
+     * the VolumeMap.
+     */
+    FSVolume writerVolume;
 
     ActiveFile(File f, List<Thread> list) {
       this(f, false);
@@ -1243,6 +1522,22 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     return matches[0];
   }
   
+  /**
+   * Wait for the tree of a directory built by another thread.
+   */
+  static FSDir getScanResult(Future<FSDir> future) throws IOException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Error scanning a directory", e.getCause());
+    } catch (InterruptedException e) {
+      throw (InterruptedIOException) new InterruptedIOException().initCause(e);
+    }
+  }
+
   /**
    * Check if a file is scheduled for deletion
    */
@@ -1265,6 +1560,19 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     }
   }
 
+  /**
+   * @return the volume holding a block, null if the block is unknown
+   */
+  FSVolume getVolume(int namespaceId, Block b) {
+    lock.readLock().lock();
+    try {
+      DatanodeBlockInfo info = volumeMap.get(namespaceId, b);
+      return info == null ? null : info.getVolume();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
   /** Return the block file for the given ID */ 
   public File findBlockFile(int namespaceId, long blockId) {
     lock.readLock().lock();
@@ -1330,11 +1638,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   private DataNode datanode;
   private Configuration conf;
   private int maxBlocksPerDir = 0;
+  private int bytesPerChecksum = 0;
+  private int checksumSize = 0;
   private boolean initialized = false;
   
   VolumeMap volumeMap; 
   static  Random random = new Random();
   FSDatasetAsyncDiskService asyncDiskService;
+  private BlockCache blockCache; // null if the blocks are not cached
   ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
   private boolean shouldHardLinkBlockCopy;
   private int validVolsRequired;
@@ -1350,8 +1661,21 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     this.datanode = datanode;
     this.conf = conf;
     this.maxBlocksPerDir = conf.getInt("dfs.datanode.numblocks", 64);
+    DataChecksum checksum = DataChecksum.newDataChecksum(
+        DataChecksum.CHECKSUM_CRC32, conf.getInt("io.bytes.per.checksum", 512));
+    this.bytesPerChecksum = checksum.getBytesPerChecksum();
+    this.checksumSize = checksum.getChecksumSize();
     volumeMap = new VolumeMap(numNamespaces);
   }
+
+  /**
+   * @return the length of the meta file of a block written with the
+   * configured checksum
+   */
+  long estimateMetaFileLength(long blockLength) {
+    long chunks = (blockLength + bytesPerChecksum - 1) / bytesPerChecksum;
+    return BlockMetadataHeader.getHeaderSize() + chunks * checksumSize;
+  }
   
   @Override
   public void initialize(DataStorage storage) throws IOException{
@@ -1388,7 +1712,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
             + storage.getStorageDir(idx).getCurrentDir());
       }
       int threads = conf.getInt("dfs.datanode.blockscanner.threads", 1);
-      volumes = new FSVolumeSet(volArray, threads, datanode.isSupportAppends());
+      VolumeChoosingPolicy volumeChoosingPolicy =
+        (VolumeChoosingPolicy) ReflectionUtils.newInstance(
+            conf.getClass("dfs.datanode.volume.choosing.policy",
+                RoundRobinVolumeChoosingPolicy.class,
+                VolumeChoosingPolicy.class), conf);
+      volumes = new FSVolumeSet(volArray, threads, datanode.isSupportAppends(),
+          volumeChoosingPolicy);
+      blockCache = BlockCache.create(conf, datanode.myMetrics);
       registerMBean(storage.getStorageID());
       initialized = true;
     } finally {
@@ -1401,18 +1732,20 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   private class VolumeThread extends Thread {
     private Configuration conf;
     private FSVolume volume;
-    private boolean hasError = false;
+    private IOException error = null;
     private Map<Integer, String> namespaceIdDir;
     private boolean supportAppends;
+    private ExecutorService scanner;
 
     private VolumeThread(FSVolume volume,
         Configuration conf,
-        Map<Integer, String> namespaceIdDir, boolean supportAppends) {
+        Map<Integer, String> namespaceIdDir, boolean supportAppends,
+        ExecutorService scanner) {
       this.namespaceIdDir = namespaceIdDir;
       this.volume = volume;
       this.conf = conf;
       this.supportAppends = supportAppends;
-
+      this.scanner = scanner;
     }
 
     public void run() {
@@ -1420,49 +1753,125 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       try {
         for (Integer namespaceId : namespaceIdDir.keySet()) {
           volume.addNamespace(namespaceId, namespaceIdDir.get(namespaceId),
-              conf, supportAppends);
+              conf, supportAppends, scanner);
         }       
       } catch (IOException ioe) {
         DataNode.LOG.error("Error building volume : " + volume, ioe);
-        hasError = true;
+        error = ioe;
       }
       DataNode.LOG.info("Finish building volume for " + volume);
     }
   }
   
-  private void createVolumes(FSVolumeSet volumes, DataStorage storage,
-      Configuration conf, VolumeMap volumeMap,
+  /**
+   * Add the namespaces to the volumes, scanning every volume in its own
+   * thread, and the subdirectories of each volume with
+   * dfs.datanode.volume.scan.threads threads.
+   */
+  private void createVolumes(FSVolumeSet volumes, Configuration conf,
       Map<Integer, String> namespaceIdDir) throws IOException {
     FSVolume[] myVolumes = volumes.getVolumes();
+    int threadsPerVolume = conf.getInt("dfs.datanode.volume.scan.threads", 1);
+    ExecutorService scanner = null;
+    if (threadsPerVolume > 1) {
+      scanner = Executors.newFixedThreadPool(
+          threadsPerVolume * Math.max(1, myVolumes.length));
+    }
 
     ArrayList<VolumeThread> scanners = new ArrayList<VolumeThread>(
         myVolumes.length);
     
     for(FSVolume volume : myVolumes){
       scanners.add(new VolumeThread(volume, conf,
-          namespaceIdDir, volumes.supportAppends));
+          namespaceIdDir, volumes.supportAppends, scanner));
     }
     
-    for(VolumeThread vt : scanners){
-      vt.start();
-    }
-    boolean hasError = false;
-    for (VolumeThread vt : scanners) {
-      try {
-        vt.join();
-      } catch (InterruptedException e) {
-        throw (InterruptedIOException)new InterruptedIOException().initCause(e);
+    try {
+      for(VolumeThread vt : scanners){
+        vt.start();
+      }
+      IOException error = null;
+      for (VolumeThread vt : scanners) {
+        try {
+          vt.join();
+        } catch (InterruptedException e) {
+          throw (InterruptedIOException)new InterruptedIOException().initCause(e);
+        }
+        if (error == null) {
+          error = vt.error;
+        }
+      }
+      if (error != null) {
+        throw error;
+      }
+    } finally {
+      if (scanner != null) {
+        scanner.shutdownNow();
       }
-      if (!hasError && vt.hasError) {
-        hasError = true;
-      } 
+    }
+  }
 
+  /**
+   * Wait for the pending block deletions before the block lists are saved,
+   * since a list is not used once a directory was modified after it was
+   * written.
+   * @return true if the block lists should be saved
+   */
+  private boolean waitForDeletions() {
+    if (!conf.getBoolean("dfs.datanode.blocklist.cache", false)) {
+      return false;
     }
-    if (hasError) {
-      throw new IOException("Error creating volumes");
+    if (asyncDiskService == null) {
+      return true;
     }
+    try {
+      if (asyncDiskService.waitForTasks(BLOCK_LIST_DELETION_WAIT)) {
+        return true;
+      }
+      DataNode.LOG.warn("Not saving the block lists, the block deletions"
+          + " are still running after " + BLOCK_LIST_DELETION_WAIT + " ms");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      DataNode.LOG.warn("Not saving the block lists, interrupted while"
+          + " waiting for the block deletions");
+    }
+    return false;
   }
 
+  /**
+   * Save the block lists of a namespace, so that the next time it is added
+   * the volumes do not need to be scanned.
+   */
+  private void saveBlockLists(int namespaceId) {
+    Map<File, List<Block>> blocksByDir = new HashMap<File, List<Block>>();
+    synchronized (volumeMap) {
+      Map<Block, DatanodeBlockInfo> blocks =
+        volumeMap.getNamespaceMap(namespaceId);
+      if (blocks == null) {
+        return;
+      }
+      for (Map.Entry<Block, DatanodeBlockInfo> e : blocks.entrySet()) {
+        File f = e.getValue().getFile();
+        if (f == null) {
+          continue;
+        }
+        long length = f.length();
+        if (length == 0 && !f.exists()) {
+          continue;
+        }
+        List<Block> dirBlocks = blocksByDir.get(f.getParentFile());
+        if (dirBlocks == null) {
+          dirBlocks = new ArrayList<Block>();
+          blocksByDir.put(f.getParentFile(), dirBlocks);
+        }
+        dirBlocks.add(new Block(e.getKey().getBlockId(), length,
+                                e.getKey().getGenerationStamp()));
+      }
+    }
+    for (FSVolume volume : volumes.getVolumes()) {
+      volume.saveBlockList(namespaceId, blocksByDir);
+    }
+  }
 
   /**
    * Return the total space used by dfs datanode
@@ -1549,6 +1958,46 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     return new FileInputStream(getBlockFile(namespaceId, b));
   }
 
+  /**
+   * Get the cached files of a finalized block, opening and caching them if
+   * they are not cached yet.
+   * @return the block, null if the blocks are not cached or the block is
+   * being written
+   */
+  BlockCache.CachedBlock getCachedBlock(int namespaceId, Block b)
+      throws IOException {
+    if (blockCache == null) {
+      return null;
+    }
+    File blockFile;
+    long invalidations;
+    lock.readLock().lock();
+    try {
+      if (volumeMap.getOngoingCreates(namespaceId, b) != null) {
+        return null;
+      }
+      BlockCache.CachedBlock cached = blockCache.get(namespaceId, b);
+      if (cached != null) {
+        return cached;
+      }
+      // the blocks are invalidated under the write lock, so no change to
+      // the block is missed between here and the add
+      invalidations = blockCache.getInvalidations();
+      blockFile = getBlockFile(namespaceId, b);
+    } finally {
+      lock.readLock().unlock();
+    }
+    return blockCache.add(namespaceId, b, blockFile, getMetaFile(blockFile, b),
+        invalidations);
+  }
+
+  /** Remove a block that is deleted or changed from the block cache. */
+  private void invalidateCachedBlock(int namespaceId, Block b) {
+    if (blockCache != null) {
+      blockCache.invalidate(namespaceId, b);
+    }
+  }
+
   public InputStream getBlockInputStream(int namespaceId, Block b, long seekOffset) throws IOException {
     File blockFile = getBlockFile(namespaceId, b);
     RandomAccessFile blockInFile = new RandomAccessFile(blockFile, "r");
@@ -1759,6 +2208,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
 
       // Now perform the update
+      invalidateCachedBlock(namespaceId, oldblock);
 
       // rename meta file to a tmp file
       File tmpMetaFile = new File(oldMetaFile.getParent(),
@@ -1769,11 +2219,19 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
 
       long oldFileLength = blockFile.length();
       if (newblock.getNumBytes() < oldFileLength) {
+        long oldMetaLength = tmpMetaFile.length();
         truncateBlock(blockFile, tmpMetaFile, oldFileLength,
             newblock.getNumBytes());
       ActiveFile file = volumeMap.getOngoingCreates(namespaceId, oldblock);
       if (file != null) {
         file.setVisibleLength(newblock.getNumBytes());
+      } else {
+        // only finalized blocks are counted in the disk usage
+        DatanodeBlockInfo info = volumeMap.get(namespaceId, oldblock);
+        if (info != null && info.getVolume() != null) {
+          info.getVolume().decDfsUsed(namespaceId, oldFileLength
+              + oldMetaLength - blockFile.length() - tmpMetaFile.length());
+        }
       }
       }
   
@@ -1947,6 +2405,9 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         File blkfile = getBlockFile(namespaceId, b);
         File oldmeta = getMetaFile(namespaceId, b);
         File newmeta = getMetaFile(f, b);
+        invalidateCachedBlock(namespaceId, b);
+        // the block is counted again when it is finalized
+        long dfsBytes = blkfile.length() + oldmeta.length();
 
         // rename meta file to tmp directory
         DataNode.LOG.debug("Renaming " + oldmeta + " to " + newmeta);
@@ -1969,6 +2430,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
                                   " to tmp dir " + f);
           }
         }
+        v.decDfsUsed(namespaceId, dfsBytes);
       }
       if (f == null) {
         DataNode.LOG.warn("Block " + b + " reopen failed " +
@@ -2348,6 +2810,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     for (int i = 0; i < invalidBlks.length; i++) {
       File f = null;
       FSVolume v;
+      boolean finalized;
       lock.writeLock().lock();
       try {
         DatanodeBlockInfo dinfo = volumeMap.get(namespaceId, invalidBlks[i]);
@@ -2388,14 +2851,18 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
           error = true;
           continue;
         }
+        // a replica being written is not counted in the dfs usage
+        finalized =
+          volumeMap.getOngoingCreates(namespaceId, invalidBlks[i]) == null;
         //TODO ???
         v.clearPath(namespaceId, parent);
         volumeMap.remove(namespaceId, invalidBlks[i]);
+        invalidateCachedBlock(namespaceId, invalidBlks[i]);
       } finally {
         lock.writeLock().unlock();
       }
       File metaFile = getMetaFile( f, invalidBlks[i]);
-      long dfsBytes = f.length() + metaFile.length();
+      long dfsBytes = finalized ? f.length() + metaFile.length() : 0;
       
 
       //rename the files to be deleted
@@ -2469,6 +2936,9 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     lock.writeLock().lock();
     try {
       volumeMap.removeUnhealthyVolumes(failed_vols);
+      if (blockCache != null) {
+        blockCache.clear();
+      }
     } finally {
       lock.writeLock().unlock();
     }
@@ -2533,17 +3003,26 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
 
     
     if(volumes != null) {
+      boolean saveBlockLists = waitForDeletions();
       lock.writeLock().lock();
       try {
         if (volumes.scannersExecutor != null) {
           volumes.scannersExecutor.shutdown();
         }
 
+        if (saveBlockLists) {
+          for (Integer namespaceId : volumeMap.getNamespaceList()) {
+            saveBlockLists(namespaceId);
+          }
+        }
         for (FSVolume volume : volumes.getVolumes()) {
           if(volume != null) {
             volume.shutdown();
           }
         }
+        if (blockCache != null) {
+          blockCache.clear();
+        }
       } finally {
         lock.writeLock().unlock();
       }
@@ -2556,7 +3035,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     lock.writeLock().lock();
     try{
       volumeMap.initNamespace(namespaceId);
-      volumes.addNamespace(namespaceId, nsDir, conf);
+      createVolumes(volumes, conf,
+          Collections.singletonMap(namespaceId, nsDir));
     } finally {
       lock.writeLock().unlock();
     }
@@ -2564,14 +3044,21 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   
   public void removeNamespace(int namespaceId){
     DataNode.LOG.info("Removing namespace " + namespaceId);
+    boolean saveBlockLists = volumes != null && waitForDeletions();
     lock.writeLock().lock();
     try{
+      if (saveBlockLists) {
+        saveBlockLists(namespaceId);
+      }
       if (volumeMap != null) {
         volumeMap.removeNamespace(namespaceId);
       }
       if (volumes != null) {
         volumes.removeNamespace(namespaceId);
       }
+      if (blockCache != null) {
+        blockCache.removeNamespace(namespaceId);
+      }
     } finally {
       lock.writeLock().unlock();
     }
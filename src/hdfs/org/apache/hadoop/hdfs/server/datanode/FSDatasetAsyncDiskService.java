@@ -19,6 +19,7 @@
 package org.apache.hadoop.hdfs.server.datanode;
 
 import java.io.File;
+import java.io.InterruptedIOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -63,6 +64,10 @@ class FSDatasetAsyncDiskService {
   private HashMap<File, ThreadPoolExecutor> executors
       = new HashMap<File, ThreadPoolExecutor>();
 
+  // the tasks scheduled and not finished yet, guarded by itself
+  private final Object pendingLock = new Object();
+  private int pendingTasks = 0;
+
   /**
    * Create a AsyncDiskServices with a set of volumes (specified by their
    * root directories).
@@ -98,7 +103,12 @@ class FSDatasetAsyncDiskService {
           conf.getInt("dfs.datanode.max.deletion.threads.per.volume",
             DEFAULT_MAXIMUM_THREADS_PER_VOLUME),
           THREADS_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, 
-          new LinkedBlockingQueue<Runnable>(), threadFactory);
+          new LinkedBlockingQueue<Runnable>(), threadFactory) {
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+          taskDone();
+        }
+      };
 
       // This can reduce the number of running threads
       executor.allowCoreThreadTimeOut(true);
@@ -119,9 +129,44 @@ class FSDatasetAsyncDiskService {
       throw new RuntimeException("Cannot find root " + root
           + " for execution of task " + task);
     } else {
-      executor.execute(task);
+      synchronized (pendingLock) {
+        pendingTasks++;
+      }
+      try {
+        executor.execute(task);
+      } catch (RuntimeException e) {
+        taskDone();
+        throw e;
+      }
+    }
+  }
+
+  private void taskDone() {
+    synchronized (pendingLock) {
+      pendingTasks--;
+      pendingLock.notifyAll();
     }
   }
+
+  /**
+   * Wait for the tasks scheduled so far to finish. The tasks keep running
+   * after {@link #shutdown()}.
+   * @return true if they finished, false if they are still running after
+   *         timeoutMs
+   */
+  boolean waitForTasks(long timeoutMs) throws InterruptedException {
+    long end = System.currentTimeMillis() + timeoutMs;
+    synchronized (pendingLock) {
+      while (pendingTasks > 0) {
+        long remaining = end - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        pendingLock.wait(remaining);
+      }
+    }
+    return true;
+  }
   
   /**
    * Gracefully shut down all ThreadPool. Will wait for all deletion
@@ -149,7 +194,8 @@ class FSDatasetAsyncDiskService {
 
   /**
    * Delete the block file and meta file from the disk asynchronously, adjust
-   * dfsUsed statistics accordingly.
+   * dfsUsed statistics accordingly. dfsBytes is 0 for a replica that was not
+   * finalized, since it was not counted.
    */
   void deleteAsync(FSDataset.FSVolume volume, File blockFile,
       File metaFile, long dfsBytes, String blockName, int namespaceId) {
@@ -208,12 +254,28 @@ class FSDatasetAsyncDiskService {
 
     @Override
     public void run() {
-      if ( !blockFile.delete() || ( !metaFile.delete() && metaFile.exists() ) ) {
-        DataNode.LOG.warn("Unexpected error trying to delete block "
-            + blockName + " at file " + blockFile + ". Ignored.");
-      } else {
-        volume.decDfsUsed(namespaceId, dfsBytes);
-        DataNode.LOG.info("Deleted block " + blockName + " at file " + blockFile);
+      VolumeIOScheduler ioScheduler = volume.getIOScheduler();
+      if (ioScheduler != null) {
+        try {
+          ioScheduler.acquire(VolumeIOScheduler.Priority.BACKGROUND);
+        } catch (InterruptedIOException e) {
+          DataNode.LOG.warn("Interrupted before deleting block " + blockName
+              + " at file " + blockFile + ". Ignored.");
+          return;
+        }
+      }
+      try {
+        if ( !blockFile.delete() || ( !metaFile.delete() && metaFile.exists() ) ) {
+          DataNode.LOG.warn("Unexpected error trying to delete block "
+              + blockName + " at file " + blockFile + ". Ignored.");
+        } else {
+          volume.decDfsUsed(namespaceId, dfsBytes);
+          DataNode.LOG.info("Deleted block " + blockName + " at file " + blockFile);
+        }
+      } finally {
+        if (ioScheduler != null) {
+          ioScheduler.release(VolumeIOScheduler.Priority.BACKGROUND);
+        }
       }
     }
   };
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
+import org.apache.hadoop.util.DiskChecker.DiskOutOfSpaceException;
+
+/**
+ * Chooses the volume expected to write a new block the fastest. The cost
+ * of a volume is the moving average of the time it took to write a packet,
+ * multiplied by the number of blocks being written to it plus one, and by
+ * the ratio of the largest available space to its own available space.
+ * The volume of the lowest cost with room for the block is chosen.
+ *
+ * A volume which did not write a packet during the last
+ * dfs.datanode.volume.choosing.latency.expiry.ms is assumed to be as fast
+ * as the fastest volume, so that a volume which was slow once is tried
+ * again later.
+ */
+class LoadAwareVolumeChoosingPolicy
+    implements VolumeChoosingPolicy, Configurable {
+  private Configuration conf;
+  private long latencyExpiryMillis = 60 * 1000;
+  // where the search starts, so that the ties go to every volume in turn
+  private int startVolume = 0;
+
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    latencyExpiryMillis = conf.getLong(
+        "dfs.datanode.volume.choosing.latency.expiry.ms", 60 * 1000);
+  }
+
+  public Configuration getConf() {
+    return conf;
+  }
+
+  public FSVolume chooseVolume(FSVolume[] volumes, long blockSize)
+      throws IOException {
+    long since = System.currentTimeMillis() - latencyExpiryMillis;
+    long[] available = new long[volumes.length];
+    double[] latency = new double[volumes.length];
+    long maxAvailable = 0;
+    double minLatency = Double.MAX_VALUE;
+    for (int i = 0; i < volumes.length; i++) {
+      available[i] = volumes[i].getAvailable();
+      if (available[i] <= blockSize) {
+        continue;
+      }
+      maxAvailable = Math.max(maxAvailable, available[i]);
+      latency[i] = volumes[i].getWriteLatency(since);
+      if (latency[i] > 0) {
+        minLatency = Math.min(minLatency, latency[i]);
+      }
+    }
+    if (maxAvailable == 0) {
+      throw new DiskOutOfSpaceException(
+          "Insufficient space for an additional block");
+    }
+    if (minLatency == Double.MAX_VALUE) {
+      minLatency = 1; // nothing was measured, compare the load and space
+    }
+
+    if (startVolume >= volumes.length) {
+      startVolume = 0;
+    }
+    FSVolume best = null;
+    double bestCost = Double.MAX_VALUE;
+    for (int j = 0; j < volumes.length; j++) {
+      int i = (startVolume + j) % volumes.length;
+      if (available[i] <= blockSize) {
+        continue;
+      }
+      double cost = (latency[i] > 0 ? latency[i] : minLatency)
+          * (volumes[i].getNumActiveWriters() + 1)
+          * ((double) maxAvailable / available[i]);
+      if (cost < bestCost) {
+        bestCost = cost;
+        best = volumes[i];
+      }
+    }
+    startVolume = (startVolume + 1) % volumes.length;
+    return best;
+  }
+}
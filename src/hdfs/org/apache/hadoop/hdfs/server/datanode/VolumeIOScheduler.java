@@ -0,0 +1,189 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.InterruptedIOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.metrics.util.MetricsIntValue;
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
+
+/**
+ * Schedules the disk I/O of a volume. Every read or write of a packet, and
+ * every deletion of a block, takes a slot of the volume for its duration.
+ * The number of slots is bounded, in total and per priority class, and an
+ * operation cannot start while an operation of a higher priority class is
+ * waiting, so that the scanner and the replication do not add latency to
+ * the reads and writes of the clients. A class that waits with nothing
+ * running has a slot reserved: the first free slot goes to it, so that a
+ * steady load of the clients does not starve the scanner and the
+ * replication.
+ */
+class VolumeIOScheduler {
+
+  /** The priority classes, from the highest to the lowest. */
+  enum Priority {
+    /** reads and writes of the clients */
+    FOREGROUND,
+    /** replication and balancing */
+    REPLICATION,
+    /** block scanner and deletions */
+    BACKGROUND
+  }
+
+  private static final int NUM_PRIORITIES = Priority.values().length;
+
+  private final int maxInFlight;
+  private final int[] maxInFlightPerPriority = new int[NUM_PRIORITIES];
+  private final int[] inFlight = new int[NUM_PRIORITIES];
+  private final int[] waiting = new int[NUM_PRIORITIES];
+  private int totalInFlight = 0;
+
+  // null if the metrics are not published
+  private final MetricsIntValue[] queueDepth;
+  private final MetricsTimeVaryingRate[] waitTime;
+
+  /**
+   * @param maxInFlight the number of operations the volume may run at once
+   * @param maxInFlightPerPriority the number of operations of each
+   *        priority class the volume may run at once
+   * @param name the name of the volume in the metrics
+   * @param registry the registry to publish the metrics to, or null
+   */
+  VolumeIOScheduler(int maxInFlight, int[] maxInFlightPerPriority,
+                    String name, MetricsRegistry registry) {
+    this.maxInFlight = Math.max(1, maxInFlight);
+    for (int i = 0; i < NUM_PRIORITIES; i++) {
+      this.maxInFlightPerPriority[i] = Math.max(1, maxInFlightPerPriority[i]);
+    }
+    if (registry != null) {
+      queueDepth = new MetricsIntValue[NUM_PRIORITIES];
+      waitTime = new MetricsTimeVaryingRate[NUM_PRIORITIES];
+      for (Priority p : Priority.values()) {
+        String prefix = "io_" + name + "_" + p.name().toLowerCase();
+        queueDepth[p.ordinal()] =
+          new MetricsIntValue(prefix + "_queue", registry);
+        waitTime[p.ordinal()] =
+          new MetricsTimeVaryingRate(prefix + "_wait", registry);
+      }
+    } else {
+      queueDepth = null;
+      waitTime = null;
+    }
+  }
+
+  /**
+   * Create the scheduler of a volume from the configuration.
+   * @return the scheduler, null if the volumes are not scheduled
+   */
+  static VolumeIOScheduler create(Configuration conf, String volume,
+                                  MetricsRegistry registry) {
+    if (!conf.getBoolean("dfs.datanode.io.scheduler.enabled", false)) {
+      return null;
+    }
+    int max = conf.getInt("dfs.datanode.io.scheduler.max.inflight", 8);
+    int[] maxPerPriority = new int[NUM_PRIORITIES];
+    maxPerPriority[Priority.FOREGROUND.ordinal()] = max;
+    maxPerPriority[Priority.REPLICATION.ordinal()] =
+      conf.getInt("dfs.datanode.io.scheduler.max.inflight.replication", 2);
+    maxPerPriority[Priority.BACKGROUND.ordinal()] =
+      conf.getInt("dfs.datanode.io.scheduler.max.inflight.background", 1);
+    return new VolumeIOScheduler(max, maxPerPriority,
+        volume.replaceAll("[^A-Za-z0-9]", "_"), registry);
+  }
+
+  /**
+   * Wait for a slot of the given priority class. Every call must be
+   * followed by a call to {@link #release}.
+   */
+  void acquire(Priority priority) throws InterruptedIOException {
+    int p = priority.ordinal();
+    long start = System.currentTimeMillis();
+    synchronized (this) {
+      if (!canStart(p)) {
+        waiting[p]++;
+        updateQueueDepth(p);
+        try {
+          while (!canStart(p)) {
+            wait();
+          }
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted while waiting for"
+              + " an I/O slot");
+        } finally {
+          waiting[p]--;
+          updateQueueDepth(p);
+          // the lower classes may start once nothing above them waits
+          notifyAll();
+        }
+      }
+      inFlight[p]++;
+      totalInFlight++;
+    }
+    if (waitTime != null) {
+      waitTime[p].inc(System.currentTimeMillis() - start);
+    }
+  }
+
+  /** Give back a slot taken by {@link #acquire}. */
+  synchronized void release(Priority priority) {
+    inFlight[priority.ordinal()]--;
+    totalInFlight--;
+    notifyAll();
+  }
+
+  private boolean canStart(int p) {
+    if (totalInFlight >= maxInFlight ||
+        inFlight[p] >= maxInFlightPerPriority[p]) {
+      return false;
+    }
+    // a class with nothing running only waits for the higher classes in
+    // the same case, the others also keep a slot for the lower ones
+    boolean starving = inFlight[p] == 0;
+    int reserved = 0;
+    for (int q = 0; q < NUM_PRIORITIES; q++) {
+      if (q == p || waiting[q] == 0) {
+        continue;
+      }
+      if (q < p && (!starving || inFlight[q] == 0)) {
+        return false;
+      }
+      if (q > p && !starving && inFlight[q] == 0) {
+        reserved++;
+      }
+    }
+    return totalInFlight + reserved < maxInFlight;
+  }
+
+  private void updateQueueDepth(int p) {
+    if (queueDepth != null) {
+      queueDepth[p].set(waiting[p]);
+    }
+  }
+
+  /** @return the number of operations waiting in the given class */
+  synchronized int getQueueDepth(Priority priority) {
+    return waiting[priority.ordinal()];
+  }
+
+  /** @return the number of operations running in the given class */
+  synchronized int getInFlight(Priority priority) {
+    return inFlight[priority.ordinal()];
+  }
+}
@@ -120,6 +120,13 @@ class VolumeMap {
     checkBlock(block);
     synchronized(this){
       Map<Block, DatanodeBlockInfo> m = namespaceMap.get(namespaceId);
+      Map<Block, ActiveFile> oc = ongoingCreates.get(namespaceId);
+      ActiveFile af = oc != null ? oc.get(block) : null;
+      if (af != null && af.writerVolume == null) {
+        // the block was added to the ongoing creates before its volume
+        // was known
+        writerStarted(af, replicaInfo);
+      }
       return m.put(block, replicaInfo);
     }
   }
@@ -181,7 +188,12 @@ class VolumeMap {
   
   synchronized void removeNamespace(int namespaceId){
     namespaceMap.remove(namespaceId);
-    ongoingCreates.remove(namespaceId);
+    Map<Block, ActiveFile> oc = ongoingCreates.remove(namespaceId);
+    if (oc != null) {
+      for (ActiveFile af : oc.values()) {
+        writerFinished(af);
+      }
+    }
   }
 
   // for ongoing creates
@@ -198,7 +210,11 @@ class VolumeMap {
     checkBlock(block);
     synchronized(this){
       Map<Block, ActiveFile> m = ongoingCreates.get(namespaceId);
-      return m != null ? m.remove(block) : null;
+      ActiveFile af = m != null ? m.remove(block) : null;
+      if (af != null) {
+        writerFinished(af);
+      }
+      return af;
     }
   }
 
@@ -206,7 +222,36 @@ class VolumeMap {
     checkBlock(block);
     synchronized(this){
       Map<Block, ActiveFile> m = ongoingCreates.get(namespaceId);
-      return m.put(block, af);
+      if (af.writerVolume != null) {
+        // moved from another block by updateBlock
+        af.writerVolume.writerStarted();
+      } else {
+        Map<Block, DatanodeBlockInfo> blocks = namespaceMap.get(namespaceId);
+        writerStarted(af, blocks != null ? blocks.get(block) : null);
+      }
+      ActiveFile old = m.put(block, af);
+      if (old != null) {
+        writerFinished(old);
+      }
+      return old;
+    }
+  }
+
+  /**
+   * Count a file being written in the writers of the volume of its block.
+   * The files found at startup are not counted since no client writes them.
+   */
+  private void writerStarted(ActiveFile af, DatanodeBlockInfo info) {
+    if (af.wasRecoveredOnStartup || info == null || info.getVolume() == null) {
+      return;
+    }
+    af.writerVolume = info.getVolume();
+    af.writerVolume.writerStarted();
+  }
+
+  private void writerFinished(ActiveFile af) {
+    if (af.writerVolume != null) {
+      af.writerVolume.writerFinished();
     }
   }
 
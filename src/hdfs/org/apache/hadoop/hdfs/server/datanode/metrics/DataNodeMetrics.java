@@ -24,6 +24,8 @@ import org.apache.hadoop.metrics.MetricsUtil;
 import org.apache.hadoop.metrics.Updater;
 import org.apache.hadoop.metrics.jvm.JvmMetrics;
 import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsIntValue;
+import org.apache.hadoop.metrics.util.MetricsLongValue;
 import org.apache.hadoop.metrics.util.MetricsRegistry;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingInt;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
@@ -64,6 +66,8 @@ public class DataNodeMetrics implements Updater {
                         new MetricsTimeVaryingInt("blocks_verified", registry);
   public MetricsTimeVaryingInt blockVerificationFailures =
                        new MetricsTimeVaryingInt("block_verification_failures", registry);
+  public MetricsTimeVaryingInt blocksVerifiedByClient =
+                       new MetricsTimeVaryingInt("blocks_verified_by_client", registry);
   
   public MetricsTimeVaryingInt readsFromLocalClient = 
                 new MetricsTimeVaryingInt("reads_from_local_client", registry);
@@ -86,6 +90,39 @@ public class DataNodeMetrics implements Updater {
                 new MetricsTimeVaryingRate("copyBlockOp", registry);
   public MetricsTimeVaryingRate replaceBlockOp = 
                 new MetricsTimeVaryingRate("replaceBlockOp", registry);
+  public MetricsTimeVaryingRate requestShortCircuitFdsOp =
+                new MetricsTimeVaryingRate("requestShortCircuitFdsOp", registry);
+  public MetricsIntValue xceiverThreads =
+                new MetricsIntValue("xceiverThreads", registry,
+                    "Threads serving data transfer operations");
+  public MetricsTimeVaryingInt xceiverRejectedOps =
+                new MetricsTimeVaryingInt("xceiverRejectedOps", registry,
+                    "Data transfer operations refused at the xceiver limit");
+  public MetricsTimeVaryingRate xceiverQueueTime =
+                new MetricsTimeVaryingRate("xceiverQueueTime", registry);
+  public MetricsLongValue startupTime =
+                new MetricsLongValue("startupTime", registry,
+                    "Time from the start of the datanode until the block map"
+                    + " of its last namespace was loaded, in msec");
+  public MetricsLongValue blockMapLoadTime =
+                new MetricsLongValue("blockMapLoadTime", registry,
+                    "Time to load the block map of the last namespace added,"
+                    + " in msec");
+  public MetricsTimeVaryingInt blockCacheHits =
+                new MetricsTimeVaryingInt("blockCacheHits", registry,
+                    "Reads of blocks whose files were open in the block cache");
+  public MetricsTimeVaryingInt blockCacheMisses =
+                new MetricsTimeVaryingInt("blockCacheMisses", registry,
+                    "Reads of blocks that were not in the block cache");
+  public MetricsIntValue blockCacheHitPercent =
+                new MetricsIntValue("blockCacheHitPercent", registry,
+                    "Percentage of the reads served from the block cache");
+  public MetricsTimeVaryingLong bytesReadFromCache =
+                new MetricsTimeVaryingLong("bytesReadFromCache", registry,
+                    "Bytes of blocks sent from the block cache");
+  public MetricsLongValue blockCacheMappedBytes =
+                new MetricsLongValue("blockCacheMappedBytes", registry,
+                    "Size of the blocks and meta files mapped by the cache");
   public MetricsTimeVaryingRate heartbeats = 
                     new MetricsTimeVaryingRate("heartBeats", registry);
   public MetricsTimeVaryingRate blockReports = 
@@ -161,6 +198,8 @@ public class DataNodeMetrics implements Updater {
     blockChecksumOp.resetMinMax();
     copyBlockOp.resetMinMax();
     replaceBlockOp.resetMinMax();
+    requestShortCircuitFdsOp.resetMinMax();
+    xceiverQueueTime.resetMinMax();
     heartbeats.resetMinMax();
     blockReports.resetMinMax();
   }
@@ -20,6 +20,7 @@ package org.apache.hadoop.hdfs.server.namenode;
 import java.util.Iterator;
 
 import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.util.ConcurrentLightWeightGSet;
 import org.apache.hadoop.hdfs.util.GSet;
 import org.apache.hadoop.hdfs.util.LightWeightGSet;
 
@@ -36,7 +37,9 @@ public class BlocksMap {
   static class BlockInfo extends Block implements LightWeightGSet.LinkedElement {
     private INodeFile          inode;
 
-    /** For implementing {@link LightWeightGSet.LinkedElement} interface */
+    /**
+     * For implementing {@link LightWeightGSet.LinkedElement} interface.
+     */
     private LightWeightGSet.LinkedElement nextLinkedElement;
 
     /**
@@ -318,8 +321,22 @@ public class BlocksMap {
   private GSet<Block, BlockInfo> blocks;
 
   BlocksMap(int initialCapacity, float loadFactor) {
+    this(initialCapacity, loadFactor, 0);
+  }
+
+  /**
+   * @param numStripes if positive, use a {@link ConcurrentLightWeightGSet}
+   *                   with this many lock stripes, so that the map itself
+   *                   can be accessed without the namesystem lock
+   */
+  BlocksMap(int initialCapacity, float loadFactor, int numStripes) {
     this.capacity = computeCapacity();
-    this.blocks = new LightWeightGSet<Block, BlockInfo>(capacity);
+    if (numStripes > 0) {
+      this.blocks = new ConcurrentLightWeightGSet<Block, BlockInfo>(
+          capacity, numStripes);
+    } else {
+      this.blocks = new LightWeightGSet<Block, BlockInfo>(capacity);
+    }
   }
 
   /**
@@ -129,6 +129,13 @@ public class DatanodeDescriptor extends DatanodeInfo {
    * to communicate with the namenode
    */
   private boolean disallowed = false;
+  /**
+   * The ids of the blocks added to or removed from this datanode while the
+   * namesystem lock was released between two slices of its block report;
+   * null if no block report from it is being processed in slices
+   */
+  private Set<Long> changedDuringReport = null;
+  private boolean trackChanges = false;
   
   /** Default constructor */
   public DatanodeDescriptor() {}
@@ -238,6 +245,7 @@ public class DatanodeDescriptor extends DatanodeInfo {
     // add to the head of the data-node list
     blockList = b.listInsert(blockList, this, dnIndex);
     numOfBlocks++;
+    blockChanged(b);
     return true;
   }
   
@@ -249,12 +257,50 @@ public class DatanodeDescriptor extends DatanodeInfo {
     blockList = b.listRemove(blockList, this);
     if ( b.removeNode(this) ) {
       numOfBlocks--;
+      blockChanged(b);
       return true;
     } else {
       return false;
     }
   }
 
+  private void blockChanged(Block b) {
+    if (trackChanges) {
+      changedDuringReport.add(b.getBlockId());
+    }
+  }
+
+  /**
+   * Record the blocks added to or removed from this datanode until
+   * {@link #stopTrackingChanges()}, so that a block report processed in
+   * slices does not undo the changes made between two slices.
+   */
+  void startTrackingChanges() {
+    if (changedDuringReport == null) {
+      changedDuringReport = new HashSet<Long>();
+    }
+    trackChanges = true;
+  }
+
+  void stopTrackingChanges() {
+    trackChanges = false;
+  }
+
+  /**
+   * @return true if the given block was added to or removed from this
+   * datanode since the block report being processed was sent
+   */
+  boolean changedDuringReport(Block b) {
+    return changedDuringReport != null &&
+        changedDuringReport.contains(b.getBlockId());
+  }
+
+  /** Forget the blocks changed during the block report just processed. */
+  void clearChangedDuringReport() {
+    changedDuringReport = null;
+    trackChanges = false;
+  }
+
   /**
    * Move block to the head of the list of blocks belonging to the data-node.
    */
@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Directory level locks for the namespace.
+ *
+ * Every directory on a path is mapped to one of a fixed number of
+ * read/write lock stripes by hashing its path components, so no per-INode
+ * lock object is ever allocated. An operation collects all the directories
+ * it touches into a {@link LockSet}: ancestors are locked shared, and the
+ * directories that are modified (usually the parent and the target itself)
+ * are locked exclusive. The stripes are always acquired in increasing
+ * index order, which gives a total order over all locks and makes
+ * operations touching several paths (e.g. rename) deadlock free.
+ *
+ * Two operations on disjoint subtrees only contend if their directories
+ * happen to hash to the same stripe. An operation that removes or moves a
+ * subtree holds the subtree root exclusive, while anything below it holds
+ * the same directory at least shared, so they are serialized.
+ *
+ * These locks are always taken while holding the global FSNamesystem lock
+ * in shared mode. The global write lock still excludes every path lock
+ * holder and is used for checkpointing, safe mode transitions and all the
+ * operations that touch block state.
+ */
+class DirectoryLockManager {
+  static final int DEFAULT_NUM_STRIPES = 1024;
+
+  private final ReentrantReadWriteLock[] stripes;
+  private final int mask;
+
+  DirectoryLockManager(int numStripes) {
+    // round up to a power of two so that a mask can be used
+    int size = 1;
+    while (size < numStripes) {
+      size <<= 1;
+    }
+    this.stripes = new ReentrantReadWriteLock[size];
+    for (int i = 0; i < size; i++) {
+      stripes[i] = new ReentrantReadWriteLock();
+    }
+    this.mask = size - 1;
+  }
+
+  int getNumStripes() {
+    return stripes.length;
+  }
+
+  /**
+   * Create an empty set of locks.
+   */
+  LockSet newLockSet() {
+    return new LockSet();
+  }
+
+  /**
+   * Compute the stripe of every prefix of the given path.
+   * @param names path components as returned by
+   *              {@link INode#getPathNames(String)}
+   * @return stripe index for each prefix, where index 0 is the root
+   */
+  int[] getStripes(String[] names) {
+    int[] result = new int[names.length];
+    int hash = 0;
+    for (int i = 0; i < names.length; i++) {
+      hash = 31 * hash + names[i].hashCode() + 1;
+      result[i] = (hash ^ (hash >>> 16)) & mask;
+    }
+    return result;
+  }
+
+  /**
+   * A set of directory locks acquired and released together.
+   * A lock set is used by a single thread and is not reentrant.
+   */
+  class LockSet {
+    // each entry is (stripe << 1) | exclusive
+    private int[] entries = new int[8];
+    private int size = 0;
+    private boolean locked = false;
+
+    /**
+     * Add all the directories on a path.
+     * @param names path components of the path
+     * @param exclusiveFrom depth starting from which the components are
+     *                      locked exclusive; components above it are
+     *                      locked shared
+     */
+    LockSet addPath(String[] names, int exclusiveFrom) {
+      if (locked) {
+        throw new IllegalStateException("Cannot add paths to a held LockSet");
+      }
+      int[] pathStripes = getStripes(names);
+      for (int i = 0; i < pathStripes.length; i++) {
+        add(pathStripes[i], i >= exclusiveFrom);
+      }
+      return this;
+    }
+
+    /**
+     * Add a path, locking its parent and the path itself exclusive.
+     */
+    LockSet addPathForWrite(String[] names) {
+      return addPath(names, Math.max(0, names.length - 2));
+    }
+
+    private void add(int stripe, boolean exclusive) {
+      if (size == entries.length) {
+        entries = Arrays.copyOf(entries, size * 2);
+      }
+      entries[size++] = (stripe << 1) | (exclusive ? 1 : 0);
+    }
+
+    /**
+     * Acquire all the locks in stripe order. A stripe requested both
+     * shared and exclusive is acquired exclusive.
+     */
+    void lock() {
+      Arrays.sort(entries, 0, size);
+      // merge duplicates, keeping the exclusive entry which sorts last
+      int n = 0;
+      for (int i = 0; i < size; i++) {
+        if (n > 0 && (entries[n - 1] >>> 1) == (entries[i] >>> 1)) {
+          entries[n - 1] = entries[i];
+        } else {
+          entries[n++] = entries[i];
+        }
+      }
+      size = n;
+      for (int i = 0; i < size; i++) {
+        ReentrantReadWriteLock l = stripes[entries[i] >>> 1];
+        if ((entries[i] & 1) != 0) {
+          l.writeLock().lock();
+        } else {
+          l.readLock().lock();
+        }
+      }
+      locked = true;
+    }
+
+    /**
+     * Release all the locks in reverse order.
+     */
+    void unlock() {
+      if (!locked) {
+        return;
+      }
+      for (int i = size - 1; i >= 0; i--) {
+        ReentrantReadWriteLock l = stripes[entries[i] >>> 1];
+        if ((entries[i] & 1) != 0) {
+          l.writeLock().unlock();
+        } else {
+          l.readLock().unlock();
+        }
+      }
+      locked = false;
+    }
+
+    boolean isLocked() {
+      return locked;
+    }
+  }
+}
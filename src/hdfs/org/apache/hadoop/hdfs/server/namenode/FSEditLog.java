@@ -85,6 +85,7 @@ public class FSEditLog {
   private static int sizeFlushBuffer = HdfsConstants.DEFAULT_EDIT_BUFFER_SIZE;
   private static long preallocateSize= HdfsConstants.DEFAULT_EDIT_PREALLOCATE_SIZE;
   private static long maxBufferedTransactions= HdfsConstants.DEFAULT_MAX_BUFFERED_TRANSACTIONS;
+  private static boolean asyncSync = false;
   private final ConcurrentSkipListMap<Long, List<Long>> delayedSyncs = 
     new ConcurrentSkipListMap<Long, List<Long>>();
   private Thread syncThread;
@@ -105,6 +106,12 @@ public class FSEditLog {
   // is a sync currently running?
   private boolean isSyncRunning;
 
+  // number of threads parked until the sync thread syncs their edits
+  private int numWaitingSyncs = 0;
+
+  // the time of the oldest edit not yet handed to a sync, 0 if none.
+  private long firstUnsyncedEditTime = 0;
+
   // these are statistics counters.
   private long numTransactions;        // number of transactions
   private long numTransactionsBatchedInSync;
@@ -395,7 +402,7 @@ public class FSEditLog {
    * @throws IOException
    */
   public synchronized void open() throws IOException {
-    if (syncer == null) {
+    if (syncer == null || !syncer.isRunning) {
       syncer = new SyncThread();
       syncThread = new Thread(syncer);
       syncThread.start();
@@ -984,6 +991,9 @@ public class FSEditLog {
     }
     // get a new transactionId
     txid++;
+    if (firstUnsyncedEditTime == 0) {
+      firstUnsyncedEditTime = start;
+    }
 
     //
     // record the transactionId when new data was written to the edits log
@@ -1043,9 +1053,15 @@ public class FSEditLog {
   //
   // Sync all modifications done by this thread.
   //
+  // If doWait is false and this is called from an RPC handler, the handler
+  // does not wait for a running sync: the RPC response is delayed until the
+  // transaction is synced and the handler is released immediately.
+  //
   public void logSync(boolean doWait) throws IOException {
     
     long syncStart = 0;
+    long syncedBefore;
+    long firstEditTime;
 
     final int numEditStreams;
     synchronized (this) {
@@ -1059,6 +1075,11 @@ public class FSEditLog {
       assert numEditStreams > 0 : "no editlog streams";
       printStatistics(false);
 
+      if (asyncSync && syncer != null && syncer.isRunning) {
+        waitForAsyncSync(mytxid, doWait);
+        return;
+      }
+
       // if somebody is already syncing, then wait
       while (mytxid > synctxid && isSyncRunning) {
         if (!doWait) {
@@ -1088,6 +1109,9 @@ public class FSEditLog {
    
       // now, this thread will do the sync
       syncStart = txid;
+      syncedBefore = synctxid;
+      firstEditTime = firstUnsyncedEditTime;
+      firstUnsyncedEditTime = 0;
       isSyncRunning = true;   
 
       // swap buffers
@@ -1095,7 +1119,7 @@ public class FSEditLog {
         editStreams.get(idx).setReadyToFlush();
       }
     }
-    sync(syncStart);
+    sync(syncStart, syncStart - syncedBefore, firstEditTime);
 
     synchronized (this) {
        synctxid = syncStart;
@@ -1105,7 +1129,46 @@ public class FSEditLog {
     endDelay(syncStart);
   }
   
-  private void sync(long syncStart) {
+  /**
+   * Wait until the sync thread has synced the given transaction.
+   * The caller must hold the lock on this object.
+   *
+   * @param mytxid the transaction to be synced
+   * @param doWait if false and called from an RPC handler, delay the RPC
+   *               response instead of waiting
+   */
+  private void waitForAsyncSync(long mytxid, boolean doWait) {
+    if (mytxid <= synctxid) {
+      numTransactionsBatchedInSync++;
+      if (metrics != null) // Metrics is non-null only when used inside name node
+        metrics.transactionsBatchedInSync.inc();
+      return;
+    }
+    if (!doWait && Server.getCall() != null) {
+      long delayedId = Server.delayResponse();
+      List<Long> responses = delayedSyncs.get(mytxid);
+      if (responses == null) {
+        responses = new LinkedList<Long>();
+        delayedSyncs.put(mytxid, responses);
+      }
+      responses.add(delayedId);
+      notifyAll(); // wake up the sync thread
+      return;
+    }
+    numWaitingSyncs++;
+    try {
+      notifyAll(); // wake up the sync thread
+      while (mytxid > synctxid && syncer != null && syncer.isRunning) {
+        try {
+          wait(1000);
+        } catch (InterruptedException ie) { }
+      }
+    } finally {
+      numWaitingSyncs--;
+    }
+  }
+
+  private void sync(long syncStart, long batchSize, long firstEditTime) {
     ArrayList<EditLogOutputStream> errorStreams = null;
     // do the sync
     long start = FSNamesystem.now();
@@ -1130,9 +1193,15 @@ public class FSEditLog {
                                "Fatal Error.", ie);
       }
     }
-    long elapsed = FSNamesystem.now() - start;
-    if (metrics != null) // Metrics is non-null only when used inside name node
+    long end = FSNamesystem.now();
+    long elapsed = end - start;
+    if (metrics != null) { // Metrics is non-null only when used inside name node
       metrics.syncs.inc(elapsed);
+      metrics.syncBatchSize.set((int) batchSize);
+      if (firstEditTime != 0) {
+        metrics.syncLatency.inc(end - firstEditTime);
+      }
+    }
 
     synchronized (this) {
       processIOError(errorStreams);
@@ -1155,6 +1224,14 @@ public class FSEditLog {
     
   }
   
+  /**
+   * Are there transactions whose callers wait for the sync thread?
+   * The caller must hold the lock on this object.
+   */
+  private boolean hasPendingSyncs() {
+    return delayedSyncs.size() > 0 || (numWaitingSyncs > 0 && txid > synctxid);
+  }
+
   private class SyncThread implements Runnable {
 
     private volatile boolean isRunning = true;
@@ -1166,13 +1243,15 @@ public class FSEditLog {
     @Override
     public void run() {
       long syncStart = 0;
+      long syncedBefore = 0;
+      long firstEditTime = 0;
       int numEditStreams;
       while (isRunning) {
         synchronized (FSEditLog.this) {
           numEditStreams = editStreams.size();
           assert numEditStreams > 0 : "no editlog streams";
 
-          while (isSyncRunning || (isRunning && delayedSyncs.size() == 0)) {
+          while (isSyncRunning || (isRunning && !hasPendingSyncs())) {
             try {
               FSEditLog.this.wait();
             } catch (InterruptedException iex) {
@@ -1184,8 +1263,12 @@ public class FSEditLog {
           }
 
           // There are delayed transactions waiting to be synced and
-          // nobody to sync them
+          // nobody to sync them. Everything logged so far goes into a
+          // single flush of each edit stream.
           syncStart = txid;
+          syncedBefore = synctxid;
+          firstEditTime = firstUnsyncedEditTime;
+          firstUnsyncedEditTime = 0;
           isSyncRunning = true;
 
           for (int idx = 0; idx < numEditStreams; idx++) {
@@ -1199,7 +1282,7 @@ public class FSEditLog {
           }
 
         }
-        sync(syncStart);
+        sync(syncStart, syncStart - syncedBefore, firstEditTime);
         synchronized (FSEditLog.this) {
           synctxid = syncStart;
           isSyncRunning = false;
@@ -1536,6 +1619,12 @@ public class FSEditLog {
     maxBufferedTransactions = num;
   }
 
+  //
+  // whether all syncs are done by the sync thread in group commits
+  static void setAsyncSync(boolean async) {
+    asyncSync = async;
+  }
+
   // sets the preallocate trigger of the edits log.
   static void setPreallocateSize(long size) {
     preallocateSize = size;
@@ -194,6 +194,21 @@ public class FSImage extends Storage {
   private boolean compressImage = false;  // if image should be compressed
   private CompressionCodec saveCodec;     // the compression codec
   private CompressionCodecFactory codecFac;  // all the supported codecs
+
+  /**
+   * Sectioned image related fields, see {@link FSImageSections}
+   */
+  private boolean saveSections = HdfsConstants.DFS_IMAGE_SECTIONS_DEFAULT;
+  private int sectionINodes = HdfsConstants.DFS_IMAGE_SECTION_INODES_DEFAULT;
+  private int imageThreads = HdfsConstants.DFS_IMAGE_THREADS_DEFAULT;
+
+  /**
+   * Flags stored in the image header. Images of a layout version before
+   * {@link FSConstants#SECTIONED_IMAGE_VERSION} stored a boolean, which is
+   * read as the compressed flag.
+   */
+  public static final byte IMAGE_FLAG_COMPRESSED = 0x1;
+  public static final byte IMAGE_FLAG_SECTIONS = 0x2;
   private boolean saveOnStartup; // Should the namenode save image on startup or not
 
   DataTransferThrottler imageTransferThrottler = null; // throttle image transfer
@@ -251,6 +266,15 @@ public class FSImage extends Storage {
     this.saveOnStartup = conf.getBoolean(
         HdfsConstants.DFS_IMAGE_SAVE_ON_START_KEY,
         HdfsConstants.DFS_IMAGE_SAVE_ON_START_DEFAULT);
+    this.saveSections = conf.getBoolean(
+        HdfsConstants.DFS_IMAGE_SECTIONS_KEY,
+        HdfsConstants.DFS_IMAGE_SECTIONS_DEFAULT);
+    this.sectionINodes = conf.getInt(
+        HdfsConstants.DFS_IMAGE_SECTION_INODES_KEY,
+        HdfsConstants.DFS_IMAGE_SECTION_INODES_DEFAULT);
+    this.imageThreads = conf.getInt(
+        HdfsConstants.DFS_IMAGE_THREADS_KEY,
+        HdfsConstants.DFS_IMAGE_THREADS_DEFAULT);
     if (this.compressImage) {
       String codecClassName = conf.get(
           HdfsConstants.DFS_IMAGE_COMPRESSION_CODEC_KEY,
@@ -709,6 +733,7 @@ public class FSImage extends Storage {
     FSImage realImage = fsNamesys.getFSImage();
     assert realImage == this;
     ckptImage.codecFac = realImage.codecFac;
+    ckptImage.imageThreads = realImage.imageThreads;
     fsNamesys.dir.fsImage = ckptImage;
     // load from the checkpoint dirs
     try {
@@ -1145,34 +1170,49 @@ public class FSImage extends Storage {
 
       // read compression related info
       boolean isCompressed = false;
+      boolean isSectioned = false;
+      CompressionCodec loadCodec = null;
       if (imgVersion <= -25) {  // -25: 1st version providing compression option
-        isCompressed = in.readBoolean();
+        byte flags = in.readByte();
+        if (imgVersion > FSConstants.SECTIONED_IMAGE_VERSION &&
+            (flags & ~IMAGE_FLAG_COMPRESSED) != 0) {
+          throw new IOException("Image file " + src + " of layout version "
+              + imgVersion + " has unknown flags " + flags);
+        }
+        isCompressed = (flags & IMAGE_FLAG_COMPRESSED) != 0;
+        isSectioned = (flags & IMAGE_FLAG_SECTIONS) != 0;
         if (isCompressed) {
           String codecClassName = Text.readString(in);
-          CompressionCodec loadCodec = codecFac.getCodecByClassName(codecClassName);
+          loadCodec = codecFac.getCodecByClassName(codecClassName);
           if (loadCodec == null) {
             throw new IOException("Image compression codec not supported: "
                                  + codecClassName);
           }
-          in = new DataInputStream(loadCodec.createInputStream(fin));
           LOG.info("Loading image file " + src + 
               " compressed using codec " + codecClassName);
         }
       }
-      if (!isCompressed) {
+      if (isCompressed && !isSectioned) {
+        in = new DataInputStream(loadCodec.createInputStream(fin));
+      } else {
+        // sections are compressed individually
         in = new DataInputStream(new BufferedInputStream(fin));        
       }
       
       // load all inodes
       LOG.info("Number of files = " + numFiles);
-      if (imgVersion <= -30) {
-        loadLocalNameINodes(imgVersion, numFiles, in);
+      if (isSectioned) {
+        loadSectionedImage(imgVersion, numFiles, in, loadCodec);
       } else {
-        loadFullNameINodes(imgVersion, numFiles, in);
-      }
+        if (imgVersion <= -30) {
+          loadLocalNameINodes(imgVersion, numFiles, in);
+        } else {
+          loadFullNameINodes(imgVersion, numFiles, in);
+        }
 
-      // load Files Under Construction
-      this.loadFilesUnderConstruction(imgVersion, in, fsNamesys);
+        // load Files Under Construction
+        this.loadFilesUnderConstruction(imgVersion, in, fsNamesys);
+      }
       
        // make sure to read to the end of file
        int eof = in.read();
@@ -1192,6 +1232,33 @@ public class FSImage extends Storage {
     return needToSave;
   }
 
+  /**
+   * Load the inodes and files under construction of a sectioned image
+   * using {@link #imageThreads} decoding threads.
+   */
+  private void loadSectionedImage(int imgVersion, long numFiles,
+      DataInputStream in, CompressionCodec codec) throws IOException {
+    if (in.readShort() != 0) {
+      throw new IOException("First node is not root");
+    }
+    FSNamesystem namesystem = getFSNamesystem();
+    INode root = loadINode(imgVersion, namesystem, in);
+    updateRootAttr(root, namesystem);
+
+    FSImageSections.Loader loader = new FSImageSections.Loader(
+        this, namesystem, imgVersion, codec, imageThreads);
+    try {
+      long filesLoaded = 1 + loader.loadINodes(in, numFiles);
+      if (numFiles != filesLoaded) {
+        throw new IOException("Read unexpect number of files: " + filesLoaded);
+      }
+      loader.loadFilesUnderConstruction(in);
+      loader.readIndex(in);
+    } finally {
+      loader.abort();
+    }
+  }
+
   /** Update the root node's attributes
    * @throws QuotaExceededException
    */
@@ -1333,7 +1400,7 @@ public class FSImage extends Storage {
    * @param in data input stream from which image is read
    * @return an inode
    */
-  private INode loadINode(long imgVersion, FSNamesystem fsNamesys, DataInputStream in)
+  INode loadINode(long imgVersion, FSNamesystem fsNamesys, DataInputStream in)
   throws IOException {
     long modificationTime = 0;
     long atime = 0;
@@ -1498,30 +1565,51 @@ public class FSImage extends Storage {
       out.writeLong(fsDir.rootDir.numItemsInTree());
       out.writeLong(fsNamesys.getGenerationStamp());
       
-      if (forceUncompressed) {
-        out.writeBoolean(false);
-      } else {
-        out.writeBoolean(compressImage);
+      boolean compress = !forceUncompressed && compressImage;
+      byte flags = 0;
+      if (compress) {
+        flags |= IMAGE_FLAG_COMPRESSED;
+      }
+      if (saveSections) {
+        flags |= IMAGE_FLAG_SECTIONS;
       }
-      if (!forceUncompressed && compressImage) {
+      out.writeByte(flags);
+      if (compress) {
         String codecClassName = saveCodec.getClass().getCanonicalName();
         Text.writeString(out, codecClassName);
-        out = new DataOutputStream(saveCodec.createOutputStream(fout));
         LOG.info("Saving image file " + dest + 
             " compressed using codec " + codecClassName);
+      }
+      long headerLength = out.size();
+      if (compress && !saveSections) {
+        out = new DataOutputStream(saveCodec.createOutputStream(fout));
       } else {
+        // sections are compressed individually
         out = new DataOutputStream(new BufferedOutputStream(fout));
       }
       
-      byte[] byteStore = new byte[4*FSConstants.MAX_PATH_LENGTH];
-      ByteBuffer strbuf = ByteBuffer.wrap(byteStore);
       // save the root
       saveINode2Image(fsDir.rootDir, out);
-      // save the rest of the nodes
-      saveImage(strbuf, fsDir.rootDir, out, fsDir.totalInodes());
-      // save files under construction
-      fsNamesys.saveFilesUnderConstruction(out);
-      strbuf = null;
+      if (saveSections) {
+        FSImageSections.Writer writer = new FSImageSections.Writer(out,
+            headerLength + out.size(), compress ? saveCodec : null,
+            imageThreads, sectionINodes);
+        try {
+          writer.saveINodes(fsDir.rootDir, fsDir.totalInodes());
+          writer.saveFilesUnderConstruction(fsNamesys);
+          writer.close();
+        } finally {
+          writer.abort();
+        }
+      } else {
+        byte[] byteStore = new byte[4*FSConstants.MAX_PATH_LENGTH];
+        ByteBuffer strbuf = ByteBuffer.wrap(byteStore);
+        // save the rest of the nodes
+        saveImage(strbuf, fsDir.rootDir, out, fsDir.totalInodes());
+        // save files under construction
+        fsNamesys.saveFilesUnderConstruction(out);
+        strbuf = null;
+      }
       
       out.flush();
       if (fstream instanceof FileOutputStream) {
@@ -1776,7 +1864,7 @@ public class FSImage extends Storage {
   /*
    * Save one inode's attributes to the image.
    */
-  private static void saveINode2Image(INode node,
+  static void saveINode2Image(INode node,
                                       DataOutputStream out) throws IOException {
     byte[] name = node.getLocalNameBytes();
     out.writeShort(name.length);
@@ -1871,7 +1959,7 @@ public class FSImage extends Storage {
     }
   }
 
-  private void loadFilesUnderConstruction(int version, DataInputStream in, 
+  void loadFilesUnderConstruction(int version, DataInputStream in, 
                                   FSNamesystem fs) throws IOException {
 
     FSDirectory fsDir = fs.dir;
@@ -0,0 +1,487 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.apache.hadoop.hdfs.protocol.FSConstants;
+import org.apache.hadoop.io.compress.CompressionCodec;
+
+/**
+ * Sectioned layout of the inodes in the fsimage.
+ *
+ * In a sectioned image the directory records following the root inode
+ * are grouped into sections of roughly {@code dfs.image.section.inodes}
+ * inodes. Each section is length prefixed and, if the image is compressed,
+ * compressed on its own, so that sections can be encoded and decoded
+ * independently by a pool of threads:
+ * <pre>
+ * root inode
+ * section*                 : int length, byte[length] payload
+ * int -1                   : end of the inode sections
+ * files under construction : int length, byte[length] payload
+ * index                    : int numSections,
+ *                            (long offset, int length, long numINodes)*
+ * long                     : offset of the index
+ * </pre>
+ * A section payload is the number of directory records it holds followed
+ * by the records, each in the same format as in a non-sectioned image.
+ * The children of a large directory may be split into several records.
+ * Sections are written in tree order, so linking them into the namespace
+ * in order always finds the parent directories.
+ *
+ * Decoding (decompression and inode construction) is done in parallel;
+ * linking the inodes into {@link FSDirectory} and the blocks map is done
+ * by the loading thread, in order, as sections are decoded.
+ */
+class FSImageSections {
+  static final Log LOG = LogFactory.getLog(FSImageSections.class.getName());
+
+  static final int END_OF_SECTIONS = -1;
+  private static final byte[] PATH_SEPARATOR =
+    DFSUtil.string2Bytes(Path.SEPARATOR);
+
+  private static ExecutorService newPool(final String name, int threads) {
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private int count = 0;
+      public synchronized Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name + "-" + (count++));
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  private static <T> T getResult(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw (IOException)new InterruptedIOException(
+          "Interrupted while processing image section").initCause(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      throw (IOException)new IOException(
+          "Failed to process image section").initCause(cause);
+    }
+  }
+
+  /**
+   * Writes the inodes of the namespace as sections. Sections are encoded
+   * by a pool of threads and written to the image stream in order.
+   */
+  static class Writer {
+    private final DataOutputStream out;
+    private final CompressionCodec codec;
+    private final int sectionINodes;
+    private final int maxPending;
+    private final ExecutorService pool;
+    private final LinkedList<Future<byte[]>> pending =
+      new LinkedList<Future<byte[]>>();
+    private final LinkedList<Long> pendingINodes = new LinkedList<Long>();
+    // index entries: offset, length, number of inodes
+    private final List<long[]> index = new ArrayList<long[]>();
+    private long position;
+
+    // directory records of the section being built
+    private List<byte[]> paths = new ArrayList<byte[]>();
+    private List<INodeDirectory> dirs = new ArrayList<INodeDirectory>();
+    private List<int[]> ranges = new ArrayList<int[]>();
+    private long curINodes = 0;
+
+    private long inodesTotal;
+    private long inodesSaved = 0;
+    private int percentDone = 0;
+
+    /**
+     * @param out image stream, positioned after the root inode
+     * @param position offset of the stream in the image file
+     * @param codec codec for the sections or null if not compressed
+     * @param threads number of encoding threads
+     * @param sectionINodes number of inodes per section
+     */
+    Writer(DataOutputStream out, long position, CompressionCodec codec,
+           int threads, int sectionINodes) {
+      this.out = out;
+      this.position = position;
+      this.codec = codec;
+      this.sectionINodes = Math.max(1, sectionINodes);
+      this.maxPending = 2 * Math.max(1, threads);
+      this.pool = newPool("FSImageSectionWriter", Math.max(1, threads));
+    }
+
+    /**
+     * Save all the inodes below the root.
+     */
+    void saveINodes(INodeDirectory root, long inodesTotal) throws IOException {
+      this.inodesTotal = Math.max(1, inodesTotal);
+      byte[] byteStore = new byte[4*FSConstants.MAX_PATH_LENGTH];
+      saveDirectory(ByteBuffer.wrap(byteStore), root);
+      flushSection();
+      while (!pending.isEmpty()) {
+        writeOldest();
+      }
+      out.writeInt(END_OF_SECTIONS);
+      position += 4;
+    }
+
+    private void saveDirectory(ByteBuffer currentDirName,
+                               INodeDirectory current) throws IOException {
+      List<INode> children = current.getChildrenRaw();
+      if (children == null || children.isEmpty()) {
+        return;
+      }
+      int prefixLen = currentDirName.position();
+      byte[] path = prefixLen == 0 ? PATH_SEPARATOR :
+        Arrays.copyOf(currentDirName.array(), prefixLen);
+      // split large directories, the loader adds all records of a
+      // parent to the same directory
+      for (int from = 0; from < children.size(); ) {
+        int to = (int)Math.min(children.size(),
+                               from + sectionINodes - curINodes);
+        paths.add(path);
+        dirs.add(current);
+        ranges.add(new int[] {from, to});
+        curINodes += to - from;
+        if (curINodes >= sectionINodes) {
+          flushSection();
+        }
+        from = to;
+      }
+      for (INode child : children) {
+        if (!child.isDirectory()) {
+          continue;
+        }
+        currentDirName.put(PATH_SEPARATOR).put(child.getLocalNameBytes());
+        saveDirectory(currentDirName, (INodeDirectory)child);
+        currentDirName.position(prefixLen);
+      }
+    }
+
+    /**
+     * Hand the current section to the encoding pool.
+     */
+    private void flushSection() throws IOException {
+      if (paths.isEmpty()) {
+        return;
+      }
+      final List<byte[]> sPaths = paths;
+      final List<INodeDirectory> sDirs = dirs;
+      final List<int[]> sRanges = ranges;
+      pending.add(pool.submit(new Callable<byte[]>() {
+        public byte[] call() throws IOException {
+          return encode(sPaths, sDirs, sRanges);
+        }
+      }));
+      pendingINodes.add(curINodes);
+      paths = new ArrayList<byte[]>();
+      dirs = new ArrayList<INodeDirectory>();
+      ranges = new ArrayList<int[]>();
+      curINodes = 0;
+      while (pending.size() > maxPending) {
+        writeOldest();
+      }
+    }
+
+    private byte[] encode(List<byte[]> sPaths, List<INodeDirectory> sDirs,
+                          List<int[]> sRanges) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      OutputStream os = codec == null ? bytes : codec.createOutputStream(bytes);
+      DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+      dos.writeInt(sPaths.size());
+      for (int i = 0; i < sPaths.size(); i++) {
+        byte[] path = sPaths.get(i);
+        List<INode> children = sDirs.get(i).getChildrenRaw();
+        int[] range = sRanges.get(i);
+        dos.writeShort(path.length);
+        dos.write(path);
+        dos.writeInt(range[1] - range[0]);
+        for (int j = range[0]; j < range[1]; j++) {
+          FSImage.saveINode2Image(children.get(j), dos);
+        }
+      }
+      dos.close();
+      return bytes.toByteArray();
+    }
+
+    private void writeOldest() throws IOException {
+      byte[] section = getResult(pending.removeFirst());
+      long numINodes = pendingINodes.removeFirst();
+      writeSection(section, numINodes);
+      inodesSaved += numINodes;
+      percentDone = printProgress(inodesSaved, inodesTotal, percentDone);
+    }
+
+    private void writeSection(byte[] section, long numINodes)
+        throws IOException {
+      out.writeInt(section.length);
+      out.write(section);
+      index.add(new long[] {position, section.length, numINodes});
+      position += 4 + section.length;
+    }
+
+    /**
+     * Save the files under construction as the last section.
+     */
+    void saveFilesUnderConstruction(FSNamesystem fsNamesys)
+        throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      OutputStream os = codec == null ? bytes : codec.createOutputStream(bytes);
+      DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+      fsNamesys.saveFilesUnderConstruction(dos);
+      dos.close();
+      byte[] section = bytes.toByteArray();
+      out.writeInt(section.length);
+      out.write(section);
+      position += 4 + section.length;
+    }
+
+    /**
+     * Write the section index and release the encoding threads.
+     */
+    void close() throws IOException {
+      try {
+        long indexOffset = position;
+        out.writeInt(index.size());
+        for (long[] entry : index) {
+          out.writeLong(entry[0]);
+          out.writeInt((int)entry[1]);
+          out.writeLong(entry[2]);
+        }
+        out.writeLong(indexOffset);
+        LOG.info("Saved " + index.size() + " image sections.");
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+
+    void abort() {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * The inodes decoded from a section.
+   */
+  private static class DecodedSection {
+    final String[] parents;
+    final byte[][][] names;
+    final INode[][] inodes;
+    final int length;
+    long numINodes = 0;
+
+    DecodedSection(int numRecords, int length) {
+      parents = new String[numRecords];
+      names = new byte[numRecords][][];
+      inodes = new INode[numRecords][];
+      this.length = length;
+    }
+  }
+
+  /**
+   * Loads the inodes of a sectioned image. Sections are read from the
+   * image stream by the loading thread, decoded by a pool of threads and
+   * linked into the namespace in order.
+   */
+  static class Loader {
+    private final FSImage image;
+    private final FSNamesystem fsNamesys;
+    private final int imgVersion;
+    private final CompressionCodec codec;
+    private final int maxPending;
+    private final ExecutorService pool;
+    private final List<Integer> sectionLengths = new ArrayList<Integer>();
+    private final List<Long> sectionINodes = new ArrayList<Long>();
+
+    Loader(FSImage image, FSNamesystem fsNamesys, int imgVersion,
+           CompressionCodec codec, int threads) {
+      this.image = image;
+      this.fsNamesys = fsNamesys;
+      this.imgVersion = imgVersion;
+      this.codec = codec;
+      this.maxPending = 2 * Math.max(1, threads);
+      this.pool = newPool("FSImageSectionLoader", Math.max(1, threads));
+    }
+
+    private DataInputStream openSection(byte[] section) throws IOException {
+      InputStream is = new ByteArrayInputStream(section);
+      if (codec != null) {
+        is = codec.createInputStream(is);
+      }
+      return new DataInputStream(new BufferedInputStream(is));
+    }
+
+    /**
+     * Load all the inode sections.
+     * @return number of inodes loaded, not including the root
+     */
+    long loadINodes(DataInputStream in, long numFiles) throws IOException {
+      LinkedList<Future<DecodedSection>> pending =
+        new LinkedList<Future<DecodedSection>>();
+      long loaded = 0;
+      int percentDone = 0;
+      while (true) {
+        int length = in.readInt();
+        if (length == END_OF_SECTIONS) {
+          break;
+        }
+        if (length < 0) {
+          throw new IOException("Invalid image section length " + length);
+        }
+        final byte[] section = new byte[length];
+        in.readFully(section);
+        pending.add(pool.submit(new Callable<DecodedSection>() {
+          public DecodedSection call() throws IOException {
+            return decode(section);
+          }
+        }));
+        while (pending.size() >= maxPending) {
+          loaded += link(getResult(pending.removeFirst()));
+          percentDone = printProgress(loaded, numFiles, percentDone);
+        }
+      }
+      while (!pending.isEmpty()) {
+        loaded += link(getResult(pending.removeFirst()));
+        percentDone = printProgress(loaded, numFiles, percentDone);
+      }
+      return loaded;
+    }
+
+    private DecodedSection decode(byte[] section) throws IOException {
+      DataInputStream in = openSection(section);
+      try {
+        int numRecords = in.readInt();
+        DecodedSection result = new DecodedSection(numRecords, section.length);
+        for (int i = 0; i < numRecords; i++) {
+          result.parents[i] = FSImage.readString(in);
+          int numChildren = in.readInt();
+          result.names[i] = new byte[numChildren][];
+          result.inodes[i] = new INode[numChildren];
+          for (int j = 0; j < numChildren; j++) {
+            byte[] localName = new byte[in.readShort()];
+            in.readFully(localName);
+            result.names[i][j] = localName;
+            result.inodes[i][j] = image.loadINode(imgVersion, fsNamesys, in);
+          }
+          result.numINodes += numChildren;
+        }
+        return result;
+      } finally {
+        in.close();
+      }
+    }
+
+    private long link(DecodedSection section) throws IOException {
+      FSDirectory fsDir = fsNamesys.dir;
+      for (int i = 0; i < section.parents.length; i++) {
+        INode parent = fsDir.rootDir.getNode(section.parents[i]);
+        if (parent == null || !parent.isDirectory()) {
+          throw new IOException("Path " + section.parents[i] +
+                                " is not a directory.");
+        }
+        for (int j = 0; j < section.inodes[i].length; j++) {
+          fsDir.addToParent(section.names[i][j], (INodeDirectory)parent,
+                            section.inodes[i][j], false);
+        }
+      }
+      sectionLengths.add(section.length);
+      sectionINodes.add(section.numINodes);
+      return section.numINodes;
+    }
+
+    /**
+     * Load the files under construction section.
+     */
+    void loadFilesUnderConstruction(DataInputStream in) throws IOException {
+      int length = in.readInt();
+      byte[] section = new byte[length];
+      in.readFully(section);
+      DataInputStream sin = openSection(section);
+      try {
+        image.loadFilesUnderConstruction(imgVersion, sin, fsNamesys);
+      } finally {
+        sin.close();
+      }
+    }
+
+    /**
+     * Read the section index and verify it against the sections loaded.
+     */
+    void readIndex(DataInputStream in) throws IOException {
+      try {
+        int numSections = in.readInt();
+        if (numSections != sectionLengths.size()) {
+          throw new IOException("Image index has " + numSections +
+              " sections, but " + sectionLengths.size() + " were loaded.");
+        }
+        for (int i = 0; i < numSections; i++) {
+          in.readLong(); // offset
+          int length = in.readInt();
+          long numINodes = in.readLong();
+          if (length != sectionLengths.get(i) ||
+              numINodes != sectionINodes.get(i)) {
+            throw new IOException("Image section " + i +
+                " does not match the image index.");
+          }
+        }
+        in.readLong(); // index offset
+        LOG.info("Loaded " + numSections + " image sections.");
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+
+    void abort() {
+      pool.shutdownNow();
+    }
+  }
+
+  private static int printProgress(long processed, long total, int percentDone) {
+    int newPercentDone = (int)(processed * 100 / Math.max(1, total));
+    if (newPercentDone > percentDone) {
+      LOG.info("Processed " + newPercentDone + "% of the image");
+    }
+    return newPercentDone;
+  }
+}
@@ -187,8 +187,7 @@ public class FSNamesystem extends ReconfigurableBase
   // Mapping: Block -> { INode, datanodes, self ref }
   // Updated only in response to client-sent information.
   //
-  final BlocksMap blocksMap = new BlocksMap(DEFAULT_INITIAL_MAP_CAPACITY,
-    DEFAULT_MAP_LOAD_FACTOR);
+  final BlocksMap blocksMap;
 
   //
   // Store blocks-->datanodedescriptor(s) map of corrupt replicas
@@ -289,6 +288,9 @@ public class FSNamesystem extends ReconfigurableBase
   private volatile boolean stallReplicationWork = false;
   // How many entries are returned by getCorruptInodes()
   int maxCorruptFilesReturned;
+  // How many blocks of a block report are processed before the lock is
+  // released and acquired again, 0 to process the whole report at once
+  int blockReportSliceSize;
   // heartbeat interval from configuration
   long heartbeatInterval;
   // heartbeatRecheckInterval is how often namenode checks for expired datanodes
@@ -345,6 +347,11 @@ public class FSNamesystem extends ReconfigurableBase
   private ReentrantReadWriteLock fsLock;
   boolean hasRwLock = false; // shall we use read/write locks?
 
+  // With fine grained locking, namespace only mutations hold fsLock shared
+  // and lock the directories they touch instead of taking fsLock exclusive.
+  boolean fineGrainedLocking = false;
+  private DirectoryLockManager dirLocks;
+
   // do not use manual override to exit safemode
   volatile boolean manualOverrideSafeMode = false;
 
@@ -365,6 +372,7 @@ public class FSNamesystem extends ReconfigurableBase
    */
   FSNamesystem(NameNode nn, Configuration conf) throws IOException {
     super(conf);
+    this.blocksMap = newBlocksMap(conf);
     try {
       clusterMap = new NetworkTopology(conf);
       initialize(nn, getConf());
@@ -376,6 +384,17 @@ public class FSNamesystem extends ReconfigurableBase
     }
   }
 
+  /**
+   * Create the blocks map. If dfs.blocksmap.stripes is positive, the map
+   * is lock striped and safe for concurrent access. The namesystem does
+   * not rely on it yet: the map is updated, and block reports are
+   * processed, under the write lock either way.
+   */
+  private static BlocksMap newBlocksMap(Configuration conf) {
+    return new BlocksMap(DEFAULT_INITIAL_MAP_CAPACITY,
+        DEFAULT_MAP_LOAD_FACTOR, conf.getInt("dfs.blocksmap.stripes", 0));
+  }
+
   /**
    * Initialize FSNamesystem.
    */
@@ -502,6 +521,7 @@ public class FSNamesystem extends ReconfigurableBase
    */
   FSNamesystem(FSImage fsImage, Configuration conf) throws IOException {
     super(conf);
+    this.blocksMap = newBlocksMap(conf);
     this.clusterMap = new NetworkTopology(conf);
     this.fsLock = new ReentrantReadWriteLock();
     setConfigurationParameters(conf);
@@ -539,6 +559,90 @@ public class FSNamesystem extends ReconfigurableBase
     return this.fsLock.isWriteLockedByCurrentThread();
   }
 
+  /**
+   * Lock the namespace for a mutation of the given paths. The parent and
+   * the last component of each path are locked exclusive, the other
+   * ancestors shared.
+   *
+   * If fine grained locking is disabled, or the caller already holds the
+   * global write lock, the global write lock is taken and null is returned.
+   * The result must be passed to {@link #namespaceWriteUnlock}.
+   */
+  private DirectoryLockManager.LockSet namespaceWriteLock(String[]... paths) {
+    if (!fineGrainedLocking || hasWriteLock()) {
+      writeLock();
+      return null;
+    }
+    DirectoryLockManager.LockSet locks = dirLocks.newLockSet();
+    for (String[] names : paths) {
+      locks.addPathForWrite(names);
+    }
+    return lockShared(locks);
+  }
+
+  private DirectoryLockManager.LockSet lockShared(
+      DirectoryLockManager.LockSet locks) {
+    fsLock.readLock().lock();
+    try {
+      locks.lock();
+    } catch (RuntimeException e) {
+      fsLock.readLock().unlock();
+      throw e;
+    }
+    return locks;
+  }
+
+  /**
+   * Release the locks acquired by {@link #namespaceWriteLock}.
+   */
+  private void namespaceWriteUnlock(DirectoryLockManager.LockSet locks) {
+    if (locks == null) {
+      writeUnlock();
+    } else {
+      locks.unlock();
+      fsLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Lock the namespace for creating the given path together with any of
+   * its missing ancestors, and resolve its existing inodes into the
+   * given array. Missing ancestors are created underneath the deepest
+   * existing one, so the exclusive range is widened up to it; since that
+   * can only be known after resolving the path, the locks are re-acquired
+   * until the resolved path is covered.
+   */
+  private DirectoryLockManager.LockSet namespaceWriteLockForCreate(
+      String[] names, byte[][] components, INode[] inodes) {
+    if (!fineGrainedLocking || hasWriteLock()) {
+      writeLock();
+      dir.rootDir.getExistingPathINodes(components, inodes);
+      return null;
+    }
+    int exclusiveFrom = Math.max(0, names.length - 2);
+    while (true) {
+      DirectoryLockManager.LockSet locks =
+        lockShared(dirLocks.newLockSet().addPath(names, exclusiveFrom));
+      boolean covered = false;
+      try {
+        dir.rootDir.getExistingPathINodes(components, inodes);
+        int deepest = 0;
+        while (deepest + 1 < inodes.length - 1 && inodes[deepest + 1] != null) {
+          deepest++;
+        }
+        if (deepest + 1 >= inodes.length - 1 || deepest >= exclusiveFrom) {
+          covered = true;
+          return locks;
+        }
+        exclusiveFrom = deepest;
+      } finally {
+        if (!covered) {
+          namespaceWriteUnlock(locks);
+        }
+      }
+    }
+  }
+
   /**
    * Set parameters derived from heartbeat interval.
    */
@@ -573,6 +677,12 @@ public class FSNamesystem extends ReconfigurableBase
     LOG.info("fsOwner=" + fsOwner);
 
     this.hasRwLock = conf.getBoolean("dfs.rwlock", false);
+    this.fineGrainedLocking =
+      conf.getBoolean("dfs.namenode.fine.grained.locking", false);
+    this.dirLocks = new DirectoryLockManager(
+      conf.getInt("dfs.namenode.fine.grained.locking.stripes",
+                  DirectoryLockManager.DEFAULT_NUM_STRIPES));
+    LOG.info("fineGrainedLocking=" + fineGrainedLocking);
     this.supergroup = conf.get("dfs.permissions.supergroup", "supergroup");
     this.isPermissionEnabled = conf.getBoolean("dfs.permissions", true);
     this.setPersistBlocks(conf.getBoolean("dfs.persist.blocks", false));
@@ -585,6 +695,7 @@ public class FSNamesystem extends ReconfigurableBase
 
     this.maxCorruptFilesReturned = conf.getInt("dfs.corruptfilesreturned.max",
       DEFAULT_MAX_CORRUPT_FILEBLOCKS_RETURNED);
+    this.blockReportSliceSize = conf.getInt("dfs.blockreport.slice.size", 0);
     this.defaultReplication = conf.getInt("dfs.replication", 3);
     this.maxReplication = conf.getInt("dfs.replication.max", 512);
     this.minReplication = conf.getInt("dfs.replication.min", 1);
@@ -644,6 +755,7 @@ public class FSNamesystem extends ReconfigurableBase
     int maxBufferedTransactions = conf.getInt("dfs.max.buffered.transactions",
       HdfsConstants.DEFAULT_MAX_BUFFERED_TRANSACTIONS);
     FSEditLog.setMaxBufferedTransactions(maxBufferedTransactions);
+    FSEditLog.setAsyncSync(conf.getBoolean("dfs.edit.async.sync", false));
 
     // Permission violations are logged in the namenode logs. The operation
     // does not fail.
@@ -1629,6 +1741,17 @@ public class FSNamesystem extends ReconfigurableBase
     String[] names = INodeDirectory.getPathNames(src);
     byte[][] components = INodeDirectory.getPathComponents(names);
 
+    if (fineGrainedLocking && !append) {
+      INodeFileUnderConstruction newNode = startNewFileInternal(src,
+          names, components, permissions, holder, clientMachine,
+          createParent, replication, blockSize);
+      if (newNode != null) {
+        return newNode;
+      }
+      // the path exists, which may need a delete or lease recovery, so
+      // fall back to the global lock
+    }
+
     writeLock();
     try {
       if (NameNode.stateChangeLog.isDebugEnabled()) {
@@ -1718,23 +1841,8 @@ public class FSNamesystem extends ReconfigurableBase
           // Now we can add the name to the filesystem. This file has no
           // blocks associated with it.
           //
-          checkFsObjectLimit();
-
-          // increment global generation stamp
-          long genstamp = nextGenerationStamp();
-          INodeFileUnderConstruction newNode = dir.addFile(
-            src, names, components, inodes, permissions,
-            replication, blockSize, holder, clientMachine, clientNode, genstamp);
-          if (newNode == null) {
-            throw new IOException("DIR* NameSystem.startFile: " +
-              "Unable to add file to namespace.");
-          }
-          leaseManager.addLease(newNode.clientName, src);
-          if (NameNode.stateChangeLog.isDebugEnabled()) {
-            NameNode.stateChangeLog.debug("DIR* NameSystem.startFile: "
-              + "add " + src + " to namespace for " + holder);
-          }
-          return newNode;
+          return addNewFile(src, names, components, inodes, permissions,
+            holder, clientMachine, clientNode, replication, blockSize);
         }
       } catch (IOException ie) {
         NameNode.stateChangeLog.warn("DIR* NameSystem.startFile: "
@@ -1746,6 +1854,83 @@ public class FSNamesystem extends ReconfigurableBase
     }
   }
 
+  /**
+   * Create a file that does not exist yet while holding only the
+   * directory locks of its path. This touches no block state, so it can
+   * run concurrently with creates in other directories.
+   *
+   * @return the new file or null if the path already exists
+   */
+  private INodeFileUnderConstruction startNewFileInternal(String src,
+      String[] names, byte[][] components, PermissionStatus permissions,
+      String holder, String clientMachine, boolean createParent,
+      short replication, long blockSize) throws IOException {
+    INode[] inodes = new INode[components.length];
+    DirectoryLockManager.LockSet locks =
+      namespaceWriteLockForCreate(names, components, inodes);
+    try {
+      if (NameNode.stateChangeLog.isDebugEnabled()) {
+        NameNode.stateChangeLog.debug("DIR* NameSystem.startNewFile: src="
+          + src + ", holder=" + holder + ", clientMachine=" + clientMachine
+          + ", createParent=" + createParent + ", replication=" + replication);
+      }
+      if (isInSafeMode()) {
+        throw new SafeModeException("Cannot create file" + src, safeMode);
+      }
+      if (inodes[inodes.length-1] != null) {
+        return null;
+      }
+      if (isPermissionEnabled) {
+        checkAncestorAccess(src, inodes, FsAction.WRITE);
+      }
+      if (!createParent) {
+        verifyParentDir(src);
+      }
+      try {
+        verifyReplication(src, replication, clientMachine);
+      } catch (IOException e) {
+        throw new IOException("failed to create " + e.getMessage());
+      }
+      DatanodeDescriptor clientNode =
+        host2DataNodeMap.getDatanodeByHost(clientMachine);
+      return addNewFile(src, names, components, inodes, permissions,
+        holder, clientMachine, clientNode, replication, blockSize);
+    } catch (IOException ie) {
+      NameNode.stateChangeLog.warn("DIR* NameSystem.startFile: "
+        + ie.getMessage());
+      throw ie;
+    } finally {
+      namespaceWriteUnlock(locks);
+    }
+  }
+
+  /**
+   * Add a new file under construction to the namespace and create its
+   * lease. The caller must hold the namespace locks of the path.
+   */
+  private INodeFileUnderConstruction addNewFile(String src, String[] names,
+      byte[][] components, INode[] inodes, PermissionStatus permissions,
+      String holder, String clientMachine, DatanodeDescriptor clientNode,
+      short replication, long blockSize) throws IOException {
+    checkFsObjectLimit();
+
+    // increment global generation stamp
+    long genstamp = nextGenerationStamp();
+    INodeFileUnderConstruction newNode = dir.addFile(
+      src, names, components, inodes, permissions,
+      replication, blockSize, holder, clientMachine, clientNode, genstamp);
+    if (newNode == null) {
+      throw new IOException("DIR* NameSystem.startFile: " +
+        "Unable to add file to namespace.");
+    }
+    leaseManager.addLease(newNode.clientName, src);
+    if (NameNode.stateChangeLog.isDebugEnabled()) {
+      NameNode.stateChangeLog.debug("DIR* NameSystem.startFile: "
+        + "add " + src + " to namespace for " + holder);
+    }
+    return newNode;
+  }
+
   /**
    * Recover lease;
    * Immediately revoke the lease of the current lease holder and start lease
@@ -2682,8 +2867,13 @@ public class FSNamesystem extends ReconfigurableBase
     // convernt string to bytes outside of write lock
     String[] srcNames = INode.getPathNames(src);
     byte[][] srcComponents = INode.getPathComponents(srcNames);
-    byte[][] dstComponents = INode.getPathComponents(dst);
-    writeLock();
+    String[] dstNames = INode.getPathNames(dst);
+    byte[][] dstComponents = INode.getPathComponents(dstNames);
+    // if dst is a directory, src is moved into it, so lock its child as well
+    String[] dstChildNames = Arrays.copyOf(dstNames, dstNames.length + 1);
+    dstChildNames[dstNames.length] = srcNames[srcNames.length-1];
+    DirectoryLockManager.LockSet locks =
+      namespaceWriteLock(srcNames, dstNames, dstChildNames);
     try {
       NameNode.stateChangeLog.debug("DIR* NameSystem.renameTo: " + src + " to " + dst);
       if (isInSafeMode()) {
@@ -2733,7 +2923,7 @@ public class FSNamesystem extends ReconfigurableBase
       }
       return null;
     } finally {
-      writeUnlock();
+      namespaceWriteUnlock(locks);
     }
   }
 
@@ -2761,10 +2951,11 @@ public class FSNamesystem extends ReconfigurableBase
     ArrayList<Block> collectedBlocks = new ArrayList<Block>();
     boolean deleteNow = false;
 
+    String[] names = INodeDirectory.getPathNames(src);
     byte[][] components = inodes == null ?
-      INodeDirectory.getPathComponents(src) : null;
+      INodeDirectory.getPathComponents(names) : null;
 
-    writeLock();
+    DirectoryLockManager.LockSet locks = namespaceWriteLock(names);
     try {
       if (NameNode.stateChangeLog.isDebugEnabled()) {
         NameNode.stateChangeLog.debug("DIR* NameSystem.delete: " + src);
@@ -2794,12 +2985,15 @@ public class FSNamesystem extends ReconfigurableBase
       if (dir.delete(src, inodes, collectedBlocks) == null) {
         return false;
       }
-      deleteNow = collectedBlocks.size() <= BLOCK_DELETION_INCREMENT;
+      // block state is protected by the global write lock, so under the
+      // directory locks the blocks are always removed after unlocking
+      deleteNow = locks == null &&
+        collectedBlocks.size() <= BLOCK_DELETION_INCREMENT;
       if (deleteNow) {
         removeBlocks(collectedBlocks);
       }
     } finally {
-      writeUnlock();
+      namespaceWriteUnlock(locks);
     }
     if (!deleteNow) {
       removeBlocks(collectedBlocks);
@@ -2938,10 +3132,10 @@ public class FSNamesystem extends ReconfigurableBase
     byte[][] components = INodeDirectory.getPathComponents(names);
     INode[] inodes = new INode[components.length];
 
-    writeLock();
+    DirectoryLockManager.LockSet locks =
+      namespaceWriteLockForCreate(names, components, inodes);
     try {
       NameNode.stateChangeLog.debug("DIR* NameSystem.mkdirs: " + src);
-      dir.rootDir.getExistingPathINodes(components, inodes);
       if (isPermissionEnabled) {
         checkTraverse(src, inodes);
       }
@@ -2968,7 +3162,7 @@ public class FSNamesystem extends ReconfigurableBase
       }
       return inodes[inodes.length-1];
     } finally {
-      writeUnlock();
+      namespaceWriteUnlock(locks);
     }
   }
 
@@ -4621,7 +4815,10 @@ public class FSNamesystem extends ReconfigurableBase
     }
 
     int processTime;
+    int numSlices = 1;
+    int numChanged = 0;
     Collection<Block> toAdd = null, toRemove = null, toInvalidate = null;
+    DatanodeDescriptor node = null;
     writeLock();
     try {
       long startTime = now();
@@ -4630,7 +4827,7 @@ public class FSNamesystem extends ReconfigurableBase
           + "from " + nodeID.getName() + " " +
           newReport.getNumberOfBlocks() + " blocks");
       }
-      DatanodeDescriptor node = getDatanode(nodeID);
+      node = getDatanode(nodeID);
       if (node == null || !node.isAlive) {
         throw new IOException("ProcessReport from dead or unregistered node: "
           + nodeID.getName());
@@ -4648,8 +4845,16 @@ public class FSNamesystem extends ReconfigurableBase
           " shortCircuit first report.");
         Block iblk = new Block(); // a fixed new'ed block to be reused with index i
         for (int i = 0; i < newReport.getNumberOfBlocks(); ++i) {
+          if (endOfBlockReportSlice(i)) {
+            yieldBlockReportSlice(nodeID, node);
+            numSlices++;
+          }
           iblk.set(newReport.getBlockId(i), newReport.getBlockLen(i),
             newReport.getBlockGenStamp(i));
+          if (node.changedDuringReport(iblk)) {
+            numChanged++;
+            continue;
+          }
           addStoredBlock(iblk, node, null);
         }
         
@@ -4672,19 +4877,51 @@ public class FSNamesystem extends ReconfigurableBase
         toInvalidate = new LinkedList<Block>();
         node.reportDiff(blocksMap, newReport, toAdd, toRemove, toInvalidate);
 
+        // the diff is applied in slices; a block added to or removed from
+        // the node while the lock was released, by a blockReceived or a
+        // deletion, is newer than the report and is left as it is
+        int processed = 0;
         for (Block b : toRemove) {
+          if (endOfBlockReportSlice(processed++)) {
+            yieldBlockReportSlice(nodeID, node);
+            numSlices++;
+          }
+          if (node.changedDuringReport(b)) {
+            numChanged++;
+            continue;
+          }
           removeStoredBlock(b, node);
         }
         for (Block b : toAdd) {
+          if (endOfBlockReportSlice(processed++)) {
+            yieldBlockReportSlice(nodeID, node);
+            numSlices++;
+          }
+          if (node.changedDuringReport(b)) {
+            numChanged++;
+            continue;
+          }
           addStoredBlock(b, node, null);
         }
         for (Block b : toInvalidate) {
+          if (endOfBlockReportSlice(processed++)) {
+            yieldBlockReportSlice(nodeID, node);
+            numSlices++;
+          }
+          if (node.changedDuringReport(b)) {
+            numChanged++;
+            continue;
+          }
           addToInvalidatesNoLog(b, node, false);
         }
       }
       processTime = (int)(now() - startTime);
       NameNode.getNameNodeMetrics().blockReport.inc(processTime);
+      NameNode.getNameNodeMetrics().blockReportProcessTime.inc(processTime);
     } finally {
+      if (node != null) {
+        node.clearChangedDuringReport();
+      }
       writeUnlock();
     }
     if (toInvalidate != null) {
@@ -4697,12 +4934,60 @@ public class FSNamesystem extends ReconfigurableBase
     NameNode.stateChangeLog.info("BLOCK* NameSystem.processReport: from "
         + nodeID.getName() + " with " + newReport.getNumberOfBlocks()
         + " blocks took " + processTime + "ms"
+        + (numSlices > 1 ? " in " + numSlices + " slices" : "")
+        + (numChanged > 0 ? " (" + numChanged + " blocks changed meanwhile)"
+                          : "")
         + (toAdd == null ? "." : (": #toAdd = " + toAdd.size() +
                                  " #toRemove = " + toRemove.size() +
                                  " #toInvalidate = " + toInvalidate.size() +
                                  ".")));
   }
 
+  /**
+   * @return true if the given number of blocks of a block report have
+   * been processed under the lock and the lock should be released before
+   * processing the next one
+   */
+  private boolean endOfBlockReportSlice(int processed) {
+    return blockReportSliceSize > 0 && processed > 0
+        && processed % blockReportSliceSize == 0;
+  }
+
+  /**
+   * Release the write lock between two slices of a block report so that
+   * the requests queued on the lock are served, then reacquire it. The
+   * blocks of the node changed meanwhile are recorded in the node.
+   * The caller must hold the write lock. If it is held more than once, a
+   * caller up the stack relies on it, so it is not released.
+   *
+   * @throws IOException if the node died or re-registered meanwhile
+   */
+  private void yieldBlockReportSlice(DatanodeID nodeID,
+      DatanodeDescriptor node) throws IOException {
+    assert (hasWriteLock());
+    if (fsLock.getWriteHoldCount() != 1) {
+      return;
+    }
+    boolean waiters = fsLock.hasQueuedThreads();
+    node.startTrackingChanges();
+    writeUnlock();
+    try {
+      if (waiters) {
+        // the lock is not fair, give the queued threads a chance to get it
+        Thread.sleep(1);
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    } finally {
+      writeLock();
+      node.stopTrackingChanges();
+    }
+    if (getDatanode(nodeID) != node || !node.isAlive) {
+      throw new IOException("ProcessReport from " + nodeID.getName()
+        + " aborted: the node died or re-registered during processing");
+    }
+  }
+
   /**
    * Return true if the block size number is valid
    */
@@ -5422,6 +5707,8 @@ public class FSNamesystem extends ReconfigurableBase
     } finally {
       processTime = (int)(now() - startTime);
       writeUnlock();
+      NameNode.getNameNodeMetrics().incrementalBlockReportProcessTime.inc(
+          processTime);
       if (received + deleted > 10) {
         // Only log for bigger incremental block reports.
         // This will cut a lot of logging.
@@ -5498,6 +5785,8 @@ public class FSNamesystem extends ReconfigurableBase
     } finally {
       processTime = (int)(now() - startTime);
       writeUnlock();
+      NameNode.getNameNodeMetrics().incrementalBlockReportProcessTime.inc(
+          processTime);
       if (received + deleted > 10) {
         // Only log for bigger incremental block reports.
         // This will cut a lot of logging.
@@ -7261,9 +7550,13 @@ public class FSNamesystem extends ReconfigurableBase
    * Increments, logs and then returns the stamp
    */
   private long nextGenerationStamp() {
-    long gs = generationStamp.nextStamp();
-    getEditLog().logGenerationStamp(gs);
-    return gs;
+    // generation stamps may be allocated under the directory locks only,
+    // so keep the increments and their edits in the same order
+    synchronized (generationStamp) {
+      long gs = generationStamp.nextStamp();
+      getEditLog().logGenerationStamp(gs);
+      return gs;
+    }
   }
 
   /**
@@ -171,6 +171,19 @@ abstract class INode implements Comparable<byte[]>, FSInodeInfo {
   protected short getFsPermissionShort() {
     return (short)PermissionStatusFormat.MODE.retrieve(permission);
   }
+  /** Get the permission status packed into a long */
+  long getPermissionLong() {
+    return permission;
+  }
+  /** Unpack a permission status returned by {@link #getPermissionLong()} */
+  static PermissionStatus toPermissionStatus(long permission) {
+    int user = (int)PermissionStatusFormat.USER.retrieve(permission);
+    int group = (int)PermissionStatusFormat.GROUP.retrieve(permission);
+    return new PermissionStatus(SerialNumberManager.INSTANCE.getUser(user),
+        SerialNumberManager.INSTANCE.getGroup(group),
+        new FsPermission(
+            (short)PermissionStatusFormat.MODE.retrieve(permission)));
+  }
   /** Set the {@link FsPermission} of this {@link INode} */
   protected void setPermission(FsPermission permission) {
     updatePermissionStatus(PermissionStatusFormat.MODE, permission.toShort());
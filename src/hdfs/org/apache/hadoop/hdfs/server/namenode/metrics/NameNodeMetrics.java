@@ -24,6 +24,7 @@ import org.apache.hadoop.hdfs.server.namenode.NameNode;
 import org.apache.hadoop.metrics.*;
 import org.apache.hadoop.metrics.jvm.JvmMetrics;
 import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsHistogram;
 import org.apache.hadoop.metrics.util.MetricsIntValue;
 import org.apache.hadoop.metrics.util.MetricsLongValue;
 import org.apache.hadoop.metrics.util.MetricsRegistry;
@@ -114,8 +115,16 @@ public class NameNodeMetrics implements Updater {
                     new MetricsTimeVaryingRate("Syncs", registry, "Journal Sync");
     public MetricsTimeVaryingLong transactionsBatchedInSync =
                     new MetricsTimeVaryingLong("JournalTransactionsBatchedInSync", registry, "Journal Transactions Batched In Sync");
+    public MetricsIntValue syncBatchSize =
+                    new MetricsIntValue("SyncBatchSize", registry, "Journal Transactions in the last Sync");
+    public MetricsTimeVaryingRate syncLatency =
+                    new MetricsTimeVaryingRate("SyncLatency", registry, "Journal Time from first unsynced Transaction to Sync");
     public MetricsTimeVaryingRate blockReport =
                     new MetricsTimeVaryingRate("blockReport", registry, "Block Report");
+    public MetricsHistogram blockReportProcessTime =
+                    new MetricsHistogram("BlockReportProcessTime", registry, "Full Block Report Processing Time per Node");
+    public MetricsHistogram incrementalBlockReportProcessTime =
+                    new MetricsHistogram("IncrementalBlockReportProcessTime", registry, "Incremental Block Report Processing Time per Node");
     public MetricsIntValue safeModeTime =
                     new MetricsIntValue("SafemodeTime", registry, "Duration in SafeMode at Startup");
     public MetricsIntValue fsImageLoadTime = 
@@ -169,6 +178,9 @@ public class NameNodeMetrics implements Updater {
     public void resetAllMinMax() {
       transactions.resetMinMax();
       syncs.resetMinMax();
+      syncLatency.resetMinMax();
       blockReport.resetMinMax();
+      blockReportProcessTime.resetMinMax();
+      incrementalBlockReportProcessTime.resetMinMax();
     }
 }
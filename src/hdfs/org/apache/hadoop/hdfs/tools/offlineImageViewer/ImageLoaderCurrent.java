@@ -17,8 +17,11 @@
  */
 package org.apache.hadoop.hdfs.tools.offlineImageViewer;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -103,7 +106,7 @@ class ImageLoaderCurrent implements ImageLoader {
   protected final DateFormat dateFormat = 
                                       new SimpleDateFormat("yyyy-MM-dd HH:mm");
   private static int[] versions = { -16, -17, -18, -19, -20, -21, -22, -23,
-      -24, -25, -26, -27, -28, -30, -31, -32, -33, -34, -35, -36 };
+      -24, -25, -26, -27, -28, -30, -31, -32, -33, -34, -35, -36, -37 };
   private int imageVersion = 0;
 
   /* (non-Javadoc)
@@ -138,25 +141,41 @@ class ImageLoaderCurrent implements ImageLoader {
 
       v.visit(ImageElement.GENERATION_STAMP, in.readLong());
 
+      boolean isSectioned = false;
+      CompressionCodec codec = null;
       if (LayoutVersion.supports(Feature.FSIMAGE_COMPRESSION, imageVersion)) {
-        boolean isCompressed = in.readBoolean();
+        byte flags = in.readByte();
+        boolean isCompressed = (flags & FSImage.IMAGE_FLAG_COMPRESSED) != 0;
+        isSectioned =
+          LayoutVersion.supports(Feature.FSIMAGE_SECTIONS, imageVersion) &&
+          (flags & FSImage.IMAGE_FLAG_SECTIONS) != 0;
         v.visit(ImageElement.IS_COMPRESSED, imageVersion);
         if (isCompressed) {
           String codecClassName = Text.readString(in);
           v.visit(ImageElement.COMPRESS_CODEC, codecClassName);
           CompressionCodecFactory codecFac = new CompressionCodecFactory(
               new Configuration());
-          CompressionCodec codec = codecFac.getCodecByClassName(codecClassName);
+          codec = codecFac.getCodecByClassName(codecClassName);
           if (codec == null) {
             throw new IOException("Image compression codec not supported: "
                 + codecClassName);
           }
-          in = new DataInputStream(codec.createInputStream(in));
+          if (!isSectioned) {
+            // sections are compressed individually
+            in = new DataInputStream(codec.createInputStream(in));
+          }
         }
       }
-      processINodes(in, v, numInodes, skipBlocks);
+      if (isSectioned) {
+        processSectionedINodes(in, v, numInodes, skipBlocks, codec);
+
+        processINodesUC(readSection(in, codec), v, skipBlocks);
+        // the section index is only needed for random access
+      } else {
+        processINodes(in, v, numInodes, skipBlocks);
 
-      processINodesUC(in, v, skipBlocks);
+        processINodesUC(in, v, skipBlocks);
+      }
 
       v.leaveEnclosingElement(); // FSImage
       v.finish();
@@ -167,6 +186,59 @@ class ImageLoaderCurrent implements ImageLoader {
     }
   }
 
+  /**
+   * Read the next section of a sectioned image.
+   *
+   * @param in Datastream to process
+   * @param codec codec of the sections or null if not compressed
+   * @return stream of the section content
+   */
+  private DataInputStream readSection(DataInputStream in,
+      CompressionCodec codec) throws IOException {
+    byte[] section = new byte[in.readInt()];
+    in.readFully(section);
+    InputStream is = new ByteArrayInputStream(section);
+    if (codec != null) {
+      is = codec.createInputStream(is);
+    }
+    return new DataInputStream(new BufferedInputStream(is));
+  }
+
+  /**
+   * Process the INodes of a sectioned image. Sections are visited in
+   * order, so the output is the same as for a non-sectioned image.
+   *
+   * @param in Datastream to process
+   * @param v Visitor to walk over INodes
+   * @param numInodes Number of INodes stored in file
+   * @param skipBlocks Process all the blocks within the INode?
+   * @param codec codec of the sections or null if not compressed
+   */
+  private void processSectionedINodes(DataInputStream in, ImageVisitor v,
+      long numInodes, boolean skipBlocks, CompressionCodec codec)
+      throws IOException {
+    v.visitEnclosingElement(ImageElement.INODES,
+        ImageElement.NUM_INODES, numInodes);
+
+    // process root
+    processINode(in, v, skipBlocks, "");
+    while (true) {
+      in.mark(4);
+      if (in.readInt() == -1) { // end of inode sections
+        break;
+      }
+      in.reset();
+      DataInputStream section = readSection(in, codec);
+      int numDirectories = section.readInt();
+      for (int i = 0; i < numDirectories; i++) {
+        processDirectory(section, v, skipBlocks);
+      }
+      section.close();
+    }
+
+    v.leaveEnclosingElement(); // INodes
+  }
+
   /**
    * Process the INodes under construction section of the fsimage.
    *
@@ -0,0 +1,292 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.hadoop.hdfs.util.LightWeightGSet.LinkedElement;
+
+/**
+ * A thread safe {@link GSet} with the same memory layout as
+ * {@link LightWeightGSet}: a fixed array of entries with the elements
+ * linked through {@link LinkedElement} for collision resolution.
+ *
+ * The entries are divided into stripes, each guarded by its own lock, so
+ * operations on elements hashing to different stripes do not contend.
+ * The reads also take the lock of their stripe, so the elements may keep
+ * their next reference in a plain field, as for {@link LightWeightGSet}.
+ *
+ * No rehash will be performed, the iterator is weakly consistent and
+ * this class does not support null element.
+ *
+ * @param <K> Key type for looking up the elements
+ * @param <E> Element type, which must be
+ *       (1) a subclass of K, and
+ *       (2) implementing {@link LinkedElement} interface.
+ */
+public class ConcurrentLightWeightGSet<K, E extends K> implements GSet<K, E> {
+  static final int MAX_STRIPES = 1 << 16;
+
+  /**
+   * The rows of the hash table. The length is a power of two.
+   * Every entry is guarded by the lock of its stripe.
+   */
+  private final LinkedElement[] entries;
+  /** A mask for computing the array index from the hash value of a key. */
+  private final int hash_mask;
+  private final Stripe[] stripes;
+  /** A mask for computing the stripe from the array index. */
+  private final int stripe_mask;
+
+  private static class Stripe extends ReentrantLock {
+    private static final long serialVersionUID = 1L;
+    /** Number of elements in the stripe; guarded by the lock. */
+    int size = 0;
+  }
+
+  /**
+   * @param recommended_length Recommended size of the internal array.
+   * @param recommended_stripes Recommended number of lock stripes.
+   */
+  public ConcurrentLightWeightGSet(final int recommended_length,
+                                   final int recommended_stripes) {
+    final int actual = actualLength(recommended_length,
+        LightWeightGSet.MIN_ARRAY_LENGTH, LightWeightGSet.MAX_ARRAY_LENGTH);
+    final int numStripes = Math.min(actual,
+        actualLength(recommended_stripes, 1, MAX_STRIPES));
+    LightWeightGSet.LOG.info("recommended=" + recommended_length
+        + ", actual=" + actual + ", stripes=" + numStripes);
+
+    entries = new LinkedElement[actual];
+    hash_mask = actual - 1;
+    stripes = new Stripe[numStripes];
+    for (int i = 0; i < numStripes; i++) {
+      stripes[i] = new Stripe();
+    }
+    stripe_mask = numStripes - 1;
+  }
+
+  //compute actual length
+  private static int actualLength(int recommended, int min, int max) {
+    if (recommended > max) {
+      return max;
+    } else if (recommended < min) {
+      return min;
+    } else {
+      final int a = Integer.highestOneBit(recommended);
+      return a == recommended? a: a << 1;
+    }
+  }
+
+  /**
+   * @return the size, which is not atomic with concurrent updates.
+   */
+  @Override
+  public int size() {
+    int size = 0;
+    for (Stripe s : stripes) {
+      s.lock();
+      try {
+        size += s.size;
+      } finally {
+        s.unlock();
+      }
+    }
+    return size;
+  }
+
+  private int getIndex(final K key) {
+    return key.hashCode() & hash_mask;
+  }
+
+  private E convert(final LinkedElement e){
+    @SuppressWarnings("unchecked")
+    final E r = (E)e;
+    return r;
+  }
+
+  /** The stripe of the index must be locked. */
+  private LinkedElement find(final int index, final K key) {
+    for(LinkedElement e = entries[index]; e != null; e = e.getNext()) {
+      if (e.equals(key)) {
+        return e;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public E get(final K key) {
+    //validate key
+    if (key == null) {
+      throw new NullPointerException("key == null");
+    }
+
+    final int index = getIndex(key);
+    final Stripe stripe = stripes[index & stripe_mask];
+    stripe.lock();
+    try {
+      return convert(find(index, key));
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  @Override
+  public boolean contains(final K key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public E put(final E element) {
+    //validate element
+    if (element == null) {
+      throw new NullPointerException("Null element is not supported.");
+    }
+    if (!(element instanceof LinkedElement)) {
+      throw new IllegalArgumentException(
+          "!(element instanceof LinkedElement), element.getClass()="
+          + element.getClass());
+    }
+    final LinkedElement e = (LinkedElement)element;
+
+    final int index = getIndex(element);
+    final Stripe stripe = stripes[index & stripe_mask];
+    stripe.lock();
+    try {
+      //remove if it already exists
+      final E existing = remove(stripe, index, element);
+
+      //insert the element to the head of the linked list
+      stripe.size++;
+      e.setNext(entries[index]);
+      entries[index] = e;
+      return existing;
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  /**
+   * Remove the element corresponding to the key,
+   * given key.hashCode() == index. The stripe must be locked.
+   */
+  private E remove(final Stripe stripe, final int index, final K key) {
+    LinkedElement prev = null;
+    for(LinkedElement curr = entries[index]; curr != null;
+        curr = curr.getNext()) {
+      if (curr.equals(key)) {
+        if (prev == null) {
+          entries[index] = curr.getNext();
+        } else {
+          prev.setNext(curr.getNext());
+        }
+        curr.setNext(null);
+        stripe.size--;
+        return convert(curr);
+      }
+      prev = curr;
+    }
+    return null;
+  }
+
+  @Override
+  public E remove(final K key) {
+    //validate key
+    if (key == null) {
+      throw new NullPointerException("key == null");
+    }
+    final int index = getIndex(key);
+    final Stripe stripe = stripes[index & stripe_mask];
+    stripe.lock();
+    try {
+      return remove(stripe, index, key);
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  /**
+   * A weakly consistent iterator: it copies the elements of one entry at
+   * a time and does not throw ConcurrentModificationException.
+   */
+  @Override
+  public Iterator<E> iterator() {
+    return new SetIterator();
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder b = new StringBuilder(getClass().getSimpleName());
+    b.append("(size=").append(size())
+     .append(String.format(", %08x", hash_mask))
+     .append(", stripes=").append(stripes.length)
+     .append(", entries.length=").append(entries.length)
+     .append(")");
+    return b.toString();
+  }
+
+  private class SetIterator implements Iterator<E> {
+    /** The current index of the entry array. */
+    private int index = -1;
+    /** Elements of the current entry. */
+    private final List<E> current = new ArrayList<E>();
+    private int next = 0;
+
+    /** Copy the next nonempty entry starting at (index + 1). */
+    private void advance() {
+      while (next == current.size() && ++index < entries.length) {
+        current.clear();
+        next = 0;
+        final Stripe stripe = stripes[index & stripe_mask];
+        stripe.lock();
+        try {
+          for(LinkedElement e = entries[index]; e != null;
+              e = e.getNext()) {
+            current.add(convert(e));
+          }
+        } finally {
+          stripe.unlock();
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      advance();
+      return next < current.size();
+    }
+
+    @Override
+    public E next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.get(next++);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Remove is not supported.");
+    }
+  }
+}
@@ -0,0 +1,445 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <errno.h>
+#include <limits.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/socket.h>
+#include <sys/stat.h>
+#include <sys/time.h>
+#include <sys/types.h>
+#include <sys/un.h>
+
+#include "org_apache_hadoop.h"
+#include "org_apache_hadoop_net_unix_DomainSocket.h"
+
+/* The largest number of descriptors passed in one message. */
+#define MAX_PASSED_FDS 16
+
+/* The size of the buffer used to copy the data of reads and writes. */
+#define COPY_BUFFER_SIZE 8192
+
+static void throw_errno(JNIEnv *env, int err, const char *what) {
+  char msg[256];
+  snprintf(msg, sizeof(msg), "%s: %s (error %d)", what, strerror(err), err);
+  if (err == EAGAIN || err == EWOULDBLOCK) {
+    THROW(env, "java/net/SocketTimeoutException", msg);
+  } else {
+    THROW(env, "java/io/IOException", msg);
+  }
+}
+
+/* Fill a unix socket address with the given path; 0 on success. */
+static int make_address(JNIEnv *env, jstring jpath, struct sockaddr_un *addr) {
+  const char *path = (*env)->GetStringUTFChars(env, jpath, NULL);
+  if (!path) {
+    return -1;
+  }
+  memset(addr, 0, sizeof(*addr));
+  addr->sun_family = AF_UNIX;
+  if (strlen(path) >= sizeof(addr->sun_path)) {
+    char msg[256];
+    snprintf(msg, sizeof(msg), "socket path is too long: %s", path);
+    (*env)->ReleaseStringUTFChars(env, jpath, path);
+    THROW(env, "java/io/IOException", msg);
+    return -1;
+  }
+  strcpy(addr->sun_path, path);
+  (*env)->ReleaseStringUTFChars(env, jpath, path);
+  return 0;
+}
+
+JNIEXPORT void JNICALL
+Java_org_apache_hadoop_net_unix_DomainSocket_anchorNative(
+  JNIEnv *env, jclass clazz) {
+}
+
+JNIEXPORT jint JNICALL
+Java_org_apache_hadoop_net_unix_DomainSocket_bind0(
+  JNIEnv *env, jclass clazz, jstring jpath, jint backlog) {
+  struct sockaddr_un addr;
+  int fd;
+  if (make_address(env, jpath, &addr)) {
+    return -1;
+  }
+  fd = socket(AF_UNIX, SOCK_STREAM, 0);
+  if (fd < 0) {
+    throw_errno(env, errno, "socket");
+    return -1;
+  }
+  /* remove the socket left behind by a previous instance */
+  unlink(addr.sun_path);
+  if (bind(fd, (struct sockaddr *)&addr, sizeof(addr)) < 0) {
+    int err = errno;
+    close(fd);
+    throw_errno(env, err, "bind");
+    return -1;
+  }
+  if (listen(fd, backlog) < 0) {
+    int err = errno;
+    close(fd);
+    throw_errno(env, err, "listen");
+    return -1;
+  }
+  return fd;
+}
+
+JNIEXPORT jint JNICALL
+Java_org_apache_hadoop_net_unix_DomainSocket_accept0(
+  JNIEnv *env, jclass clazz, jint fd) {
+  int ret;
+  do {
+    ret = accept(fd, NULL, NULL);
+  } while (ret < 0 && errno == EINTR);
+  if (ret < 0) {
+    throw_errno(env, errno, "accept");
+  }
+  return ret;
+}
+
+JNIEXPORT jint JNICALL
+Java_org_apache_hadoop_net_unix_DomainSocket_connect0(
+  JNIEnv *env, jclass clazz, jstring jpath) {
+  struct sockaddr_un addr;
+  int fd, ret;
+  if (make_address(env, jpath, &addr)) {
+    return -1;
+  }
+  fd = socket(AF_UNIX, SOCK_STREAM, 0);
+  if (fd < 0) {
+    throw_errno(env, errno, "socket");
+    return -1;
+  }
+  do {
+    ret = connect(fd, (struct sockaddr *)&addr, sizeof(addr));
+  } while (ret < 0 && errno == EINTR);
+  if (ret < 0) {
+    int err = errno;
+    close(fd);
+    throw_errno(env, err, "connect");
+    return -1;
+  }
+  return fd;
+}
+
+JNIEXPORT void JNICALL
+Java_org_apache_hadoop_net_unix_DomainSocket_setTimeout0(
+  JNIEnv *env, jclass clazz, jint fd, jint millis) {
+  struct timeval tv;
+  tv.tv_sec = millis / 1000;
+  tv.tv_usec = (millis % 1000) * 1000;
+  if (setsockopt(fd, SOL_SOCKET, SO_RCVTIMEO, &tv, sizeof(tv)) < 0 ||
+      setsockopt(fd, SOL_SOCKET, SO_SNDTIMEO, &tv, sizeof(tv)) < 0) {
+    throw_errno(env, errno, "setsockopt");
+  }
+}
+
+JNIEXPORT jint JNICALL
+Java_org_apache_hadoop_net_unix_DomainSocket_readArray0(
+  JNIEnv *env, jclass clazz, jint fd, jbyteArray b, jint off, jint len) {
+  char buf[COPY_BUFFER_SIZE];
+  ssize_t ret;
+  if (len > COPY_BUFFER_SIZE) {
+    len = COPY_BUFFER_SIZE;
+  }
+  do {
+    ret = read(fd, buf, len);
+  } while (ret < 0 && errno == EINTR);
+  if (ret < 0) {
+    throw_errno(env, errno, "read");
+    return -1;
+  }
+  if (ret == 0) {
+    return -1;
+  }
+  (*env)->SetByteArrayRegion(env, b, off, ret, (jbyte *)buf);
+  return ret;
+}
+
+JNIEXPORT void JNICALL
+Java_org_apache_hadoop_net_unix_DomainSocket_writeArray0(
+  JNIEnv *env, jclass clazz, jint fd, jbyteArray b, jint off, jint len) {
+  char buf[COPY_BUFFER_SIZE];
+  while (len > 0) {
+    int n = len > COPY_BUFFER_SIZE ? COPY_BUFFER_SIZE : len;
+    int done = 0;
+    (*env)->GetByteArrayRegion(env, b, off, n, (jbyte *)buf);
+    while (done < n) {
+      ssize_t ret = write(fd, buf + done, n - done);
+      if (ret < 0) {
+        if (errno == EINTR) {
+          continue;
+        }
+        throw_errno(env, errno, "write");
+        return;
+      }
+      done += ret;
+    }
+    off += n;
+    len -= n;
+  }
+}
+
+JNIEXPORT void JNICALL
+Java_org_apache_hadoop_net_unix_DomainSocket_sendFileDescriptors0(
+  JNIEnv *env, jclass clazz, jint fd, jobjectArray descriptors,
+  jbyteArray b, jint off, jint len) {
+  char buf[COPY_BUFFER_SIZE];
+  char control[CMSG_SPACE(sizeof(int) * MAX_PASSED_FDS)];
+  struct msghdr msg;
+  struct iovec iov;
+  struct cmsghdr *cmsg;
+  jclass fdClass;
+  jfieldID fdField;
+  int *fds;
+  int i, count;
+  ssize_t ret;
+
+  count = (*env)->GetArrayLength(env, descriptors);
+  if (count < 1 || count > MAX_PASSED_FDS) {
+    THROW(env, "java/lang/IllegalArgumentException",
+          "bad number of file descriptors");
+    return;
+  }
+  if (len < 1 || len > COPY_BUFFER_SIZE) {
+    THROW(env, "java/lang/IllegalArgumentException",
+          "bad length of the message");
+    return;
+  }
+  fdClass = (*env)->FindClass(env, "java/io/FileDescriptor");
+  if (!fdClass) {
+    return;
+  }
+  fdField = (*env)->GetFieldID(env, fdClass, "fd", "I");
+  if (!fdField) {
+    return;
+  }
+  (*env)->GetByteArrayRegion(env, b, off, len, (jbyte *)buf);
+
+  memset(&msg, 0, sizeof(msg));
+  memset(control, 0, sizeof(control));
+  iov.iov_base = buf;
+  iov.iov_len = len;
+  msg.msg_iov = &iov;
+  msg.msg_iovlen = 1;
+  msg.msg_control = control;
+  msg.msg_controllen = CMSG_SPACE(sizeof(int) * count);
+  cmsg = CMSG_FIRSTHDR(&msg);
+  cmsg->cmsg_level = SOL_SOCKET;
+  cmsg->cmsg_type = SCM_RIGHTS;
+  cmsg->cmsg_len = CMSG_LEN(sizeof(int) * count);
+  fds = (int *)CMSG_DATA(cmsg);
+  for (i = 0; i < count; i++) {
+    jobject desc = (*env)->GetObjectArrayElement(env, descriptors, i);
+    if (!desc) {
+      THROW(env, "java/lang/NullPointerException", "null file descriptor");
+      return;
+    }
+    fds[i] = (*env)->GetIntField(env, desc, fdField);
+    (*env)->DeleteLocalRef(env, desc);
+  }
+
+  do {
+    ret = sendmsg(fd, &msg, 0);
+  } while (ret < 0 && errno == EINTR);
+  if (ret < 0) {
+    throw_errno(env, errno, "sendmsg");
+    return;
+  }
+  /* the descriptors went with the first byte; send the rest plainly */
+  if (ret < len) {
+    Java_org_apache_hadoop_net_unix_DomainSocket_writeArray0(
+      env, clazz, fd, b, off + ret, len - ret);
+  }
+}
+
+JNIEXPORT jint JNICALL
+Java_org_apache_hadoop_net_unix_DomainSocket_receiveFileDescriptors0(
+  JNIEnv *env, jclass clazz, jint fd, jobjectArray descriptors,
+  jbyteArray b, jint off, jint len) {
+  char buf[COPY_BUFFER_SIZE];
+  char control[CMSG_SPACE(sizeof(int) * MAX_PASSED_FDS)];
+  struct msghdr msg;
+  struct iovec iov;
+  struct cmsghdr *cmsg;
+  jclass fdClass;
+  jmethodID fdInit;
+  jfieldID fdField;
+  int i, count, received = 0;
+  int *fds = NULL;
+  ssize_t ret;
+
+  count = (*env)->GetArrayLength(env, descriptors);
+  if (count < 1 || count > MAX_PASSED_FDS) {
+    THROW(env, "java/lang/IllegalArgumentException",
+          "bad number of file descriptors");
+    return -1;
+  }
+  if (len > COPY_BUFFER_SIZE) {
+    len = COPY_BUFFER_SIZE;
+  }
+  fdClass = (*env)->FindClass(env, "java/io/FileDescriptor");
+  if (!fdClass) {
+    return -1;
+  }
+  fdInit = (*env)->GetMethodID(env, fdClass, "<init>", "()V");
+  fdField = (*env)->GetFieldID(env, fdClass, "fd", "I");
+  if (!fdInit || !fdField) {
+    return -1;
+  }
+
+  memset(&msg, 0, sizeof(msg));
+  memset(control, 0, sizeof(control));
+  iov.iov_base = buf;
+  iov.iov_len = len;
+  msg.msg_iov = &iov;
+  msg.msg_iovlen = 1;
+  msg.msg_control = control;
+  msg.msg_controllen = sizeof(control);
+  do {
+    ret = recvmsg(fd, &msg, 0);
+  } while (ret < 0 && errno == EINTR);
+  if (ret < 0) {
+    throw_errno(env, errno, "recvmsg");
+    return -1;
+  }
+
+  for (cmsg = CMSG_FIRSTHDR(&msg); cmsg; cmsg = CMSG_NXTHDR(&msg, cmsg)) {
+    if (cmsg->cmsg_level == SOL_SOCKET && cmsg->cmsg_type == SCM_RIGHTS) {
+      fds = (int *)CMSG_DATA(cmsg);
+      received = (cmsg->cmsg_len - CMSG_LEN(0)) / sizeof(int);
+      break;
+    }
+  }
+  if (received > count || (msg.msg_flags & MSG_CTRUNC)) {
+    for (i = 0; i < received; i++) {
+      close(fds[i]);
+    }
+    THROW(env, "java/io/IOException", "too many file descriptors received");
+    return -1;
+  }
+  for (i = 0; i < count; i++) {
+    jobject desc = NULL;
+    if (i < received) {
+      desc = (*env)->NewObject(env, fdClass, fdInit);
+      if (!desc) {
+        int j;
+        for (j = i; j < received; j++) {
+          close(fds[j]);
+        }
+        return -1;
+      }
+      (*env)->SetIntField(env, desc, fdField, fds[i]);
+    }
+    (*env)->SetObjectArrayElement(env, descriptors, i, desc);
+    if (desc) {
+      (*env)->DeleteLocalRef(env, desc);
+    }
+  }
+  if (ret == 0) {
+    return -1;
+  }
+  (*env)->SetByteArrayRegion(env, b, off, ret, (jbyte *)buf);
+  return ret;
+}
+
+JNIEXPORT void JNICALL
+Java_org_apache_hadoop_net_unix_DomainSocket_shutdown0(
+  JNIEnv *env, jclass clazz, jint fd) {
+  /* wakes up the threads blocked in accept or read on the socket */
+  if (shutdown(fd, SHUT_RDWR) < 0 && errno != ENOTCONN) {
+    throw_errno(env, errno, "shutdown");
+  }
+}
+
+JNIEXPORT void JNICALL
+Java_org_apache_hadoop_net_unix_DomainSocket_close0(
+  JNIEnv *env, jclass clazz, jint fd) {
+  if (close(fd) < 0) {
+    throw_errno(env, errno, "close");
+  }
+}
+
+JNIEXPORT void JNICALL
+Java_org_apache_hadoop_net_unix_DomainSocket_unlink0(
+  JNIEnv *env, jclass clazz, jstring jpath) {
+  struct sockaddr_un addr;
+  if (make_address(env, jpath, &addr)) {
+    return;
+  }
+  unlink(addr.sun_path);
+}
+
+JNIEXPORT void JNICALL
+Java_org_apache_hadoop_net_unix_DomainSocket_validateSocketPathSecurity0(
+  JNIEnv *env, jclass clazz, jstring jpath) {
+  char dir[PATH_MAX];
+  char msg[PATH_MAX + 256];
+  struct stat st;
+  uid_t uid = geteuid();
+  char *slash;
+  const char *path = (*env)->GetStringUTFChars(env, jpath, NULL);
+  if (!path) {
+    return;
+  }
+  if (path[0] != '/' || strlen(path) >= sizeof(dir)) {
+    snprintf(msg, sizeof(msg), "invalid socket path: %s", path);
+    goto fail;
+  }
+  strcpy(dir, path);
+  /* check the directories from the parent of the socket up to the root */
+  slash = strrchr(dir, '/');
+  while (1) {
+    if (slash == dir) {
+      dir[1] = '\0';
+    } else {
+      *slash = '\0';
+    }
+    if (stat(dir, &st) < 0) {
+      int err = errno;
+      snprintf(msg, sizeof(msg), "stat %s: %s (error %d)", dir,
+               strerror(err), err);
+      goto fail;
+    }
+    if (st.st_uid != uid && st.st_uid != 0) {
+      snprintf(msg, sizeof(msg), "the directory %s of the socket path %s is "
+               "owned by uid %d, not by the user of the process (uid %d) or "
+               "root", dir, path, (int)st.st_uid, (int)uid);
+      goto fail;
+    }
+    if (st.st_mode & (S_IWGRP | S_IWOTH)) {
+      snprintf(msg, sizeof(msg), "the directory %s of the socket path %s is "
+               "writable by its group or by others (mode %03o)", dir, path,
+               (int)(st.st_mode & 0777));
+      goto fail;
+    }
+    if (slash == dir) {
+      break;
+    }
+    slash = strrchr(dir, '/');
+  }
+  (*env)->ReleaseStringUTFChars(env, jpath, path);
+  return;
+
+fail:
+  (*env)->ReleaseStringUTFChars(env, jpath, path);
+  THROW(env, "java/io/IOException", msg);
+}
@@ -0,0 +1,323 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "org_apache_hadoop.h"
+#include "org_apache_hadoop_util_NativeCrc32.h"
+
+/* The checksum types of org.apache.hadoop.util.DataChecksum. */
+#define CHECKSUM_CRC32 1
+#define CHECKSUM_CRC32C 2
+
+/* The reversed CRC-32 polynomial of java.util.zip.CRC32. */
+#define CRC32_POLY 0xEDB88320U
+/* The reversed Castagnoli polynomial of CRC32C. */
+#define CRC32C_POLY 0x82F63B78U
+
+#if defined(__GNUC__) && (defined(__x86_64__) || defined(__i386__))
+#include <cpuid.h>
+#define HAVE_SSE42_CRC32C 1
+#endif
+
+/* Computes the crc of a chunk, as returned by Checksum.getValue(). */
+typedef uint32_t (*crc_func)(const uint8_t *buf, size_t len);
+
+/*
+ * The slicing-by-8 tables. table[0] is the byte at a time table and
+ * table[k][b] is the crc of the byte b followed by k zero bytes, so that
+ * eight bytes are folded into the crc with eight independent lookups.
+ * They are filled once by anchorNative, when NativeCrc32 is loaded.
+ */
+static uint32_t crc32_table[8][256];
+static uint32_t crc32c_table[8][256];
+
+/* The CRC32C implementation, the crc32 instruction when there is one. */
+static crc_func crc32c_chunk;
+
+static void init_crc_table(uint32_t table[8][256], uint32_t poly) {
+  uint32_t i;
+  int k;
+  for (i = 0; i < 256; i++) {
+    uint32_t crc = i;
+    for (k = 0; k < 8; k++) {
+      crc = (crc >> 1) ^ ((crc & 1) ? poly : 0);
+    }
+    table[0][i] = crc;
+  }
+  for (i = 0; i < 256; i++) {
+    for (k = 1; k < 8; k++) {
+      uint32_t prev = table[k - 1][i];
+      table[k][i] = (prev >> 8) ^ table[0][prev & 0xff];
+    }
+  }
+}
+
+/* Little endian load, whatever the byte order and alignment of the host. */
+static inline uint32_t load_le32(const uint8_t *p) {
+  return (uint32_t) p[0] | ((uint32_t) p[1] << 8) |
+         ((uint32_t) p[2] << 16) | ((uint32_t) p[3] << 24);
+}
+
+static inline uint32_t crc_slicing_by_8(uint32_t table[8][256],
+    const uint8_t *buf, size_t len) {
+  uint32_t crc = 0xffffffffU;
+  while (len >= 8) {
+    uint32_t lo = crc ^ load_le32(buf);
+    uint32_t hi = load_le32(buf + 4);
+    crc = table[7][lo & 0xff] ^ table[6][(lo >> 8) & 0xff] ^
+          table[5][(lo >> 16) & 0xff] ^ table[4][lo >> 24] ^
+          table[3][hi & 0xff] ^ table[2][(hi >> 8) & 0xff] ^
+          table[1][(hi >> 16) & 0xff] ^ table[0][hi >> 24];
+    buf += 8;
+    len -= 8;
+  }
+  while (len-- > 0) {
+    crc = (crc >> 8) ^ table[0][(crc ^ *buf++) & 0xff];
+  }
+  return ~crc;
+}
+
+static uint32_t crc32_sb8(const uint8_t *buf, size_t len) {
+  return crc_slicing_by_8(crc32_table, buf, len);
+}
+
+static uint32_t crc32c_sb8(const uint8_t *buf, size_t len) {
+  return crc_slicing_by_8(crc32c_table, buf, len);
+}
+
+#ifdef HAVE_SSE42_CRC32C
+static int have_sse42(void) {
+  unsigned int eax, ebx, ecx, edx;
+  if (!__get_cpuid(1, &eax, &ebx, &ecx, &edx)) {
+    return 0;
+  }
+  return (ecx & bit_SSE4_2) != 0;
+}
+
+/* CRC32C with the crc32 instruction of SSE4.2. */
+static uint32_t crc32c_sse42(const uint8_t *buf, size_t len) {
+  uint32_t crc = 0xffffffffU;
+#ifdef __x86_64__
+  uint64_t crc64 = crc;
+  while (len >= 8) {
+    uint64_t word;
+    memcpy(&word, buf, sizeof(word));
+    __asm__("crc32q %1, %0" : "+r" (crc64) : "rm" (word));
+    buf += 8;
+    len -= 8;
+  }
+  crc = (uint32_t) crc64;
+#endif
+  while (len >= 4) {
+    uint32_t word;
+    memcpy(&word, buf, sizeof(word));
+    __asm__("crc32l %1, %0" : "+r" (crc) : "rm" (word));
+    buf += 4;
+    len -= 4;
+  }
+  while (len > 0) {
+    __asm__("crc32b %1, %0" : "+r" (crc) : "rm" (*buf));
+    buf++;
+    len--;
+  }
+  return ~crc;
+}
+#endif
+
+/* The result of a verification that failed. */
+struct crc_error {
+  jlong offset;       /* offset of the corrupt chunk in the data */
+  uint32_t got;       /* the checksum computed */
+  uint32_t expected;  /* the checksum stored */
+};
+
+/*
+ * Compute the checksum of each chunk of data, then store it in sums or,
+ * if verify is set, compare it with the one stored there. The checksums
+ * are big endian. Returns 0, or -1 with err filled at the first mismatch.
+ */
+static int compute_chunked_sums(crc_func crc_chunk, int bytes_per_sum,
+    uint8_t *sums, const uint8_t *data, size_t data_len, int verify,
+    struct crc_error *err) {
+  size_t off = 0;
+  while (off < data_len) {
+    size_t len = data_len - off;
+    uint32_t crc;
+    if (len > (size_t) bytes_per_sum) {
+      len = bytes_per_sum;
+    }
+    crc = crc_chunk(data + off, len);
+    if (verify) {
+      uint32_t stored = ((uint32_t) sums[0] << 24) |
+                        ((uint32_t) sums[1] << 16) |
+                        ((uint32_t) sums[2] << 8) | (uint32_t) sums[3];
+      if (stored != crc) {
+        err->offset = off;
+        err->got = crc;
+        err->expected = stored;
+        return -1;
+      }
+    } else {
+      sums[0] = (uint8_t) (crc >> 24);
+      sums[1] = (uint8_t) (crc >> 16);
+      sums[2] = (uint8_t) (crc >> 8);
+      sums[3] = (uint8_t) crc;
+    }
+    sums += 4;
+    off += len;
+  }
+  return 0;
+}
+
+/* Throw a ChecksumException(String, long) with the message of DataChecksum. */
+static void throw_checksum_exception(JNIEnv *env, jstring j_filename,
+    jlong pos, const struct crc_error *err) {
+  char msg[1024];
+  const char *filename = NULL;
+  jclass cls;
+  jmethodID ctor;
+  jstring j_msg;
+  jobject exc;
+
+  if (j_filename) {
+    filename = (*env)->GetStringUTFChars(env, j_filename, NULL);
+    if (!filename) {
+      return;
+    }
+  }
+  snprintf(msg, sizeof(msg), "Checksum error: %s at %lld exp: %d got: %d",
+           filename ? filename : "null", (long long) pos,
+           (int) err->expected, (int) err->got);
+  if (filename) {
+    (*env)->ReleaseStringUTFChars(env, j_filename, filename);
+  }
+
+  cls = (*env)->FindClass(env, "org/apache/hadoop/fs/ChecksumException");
+  if (!cls) {
+    return;
+  }
+  ctor = (*env)->GetMethodID(env, cls, "<init>", "(Ljava/lang/String;J)V");
+  if (!ctor) {
+    return;
+  }
+  j_msg = (*env)->NewStringUTF(env, msg);
+  if (!j_msg) {
+    return;
+  }
+  exc = (*env)->NewObject(env, cls, ctor, j_msg, pos);
+  if (exc) {
+    (*env)->Throw(env, (jthrowable) exc);
+  }
+}
+
+/* The crc function of a checksum type, NULL with an exception if none. */
+static crc_func get_crc_func(JNIEnv *env, jint checksum_type) {
+  char msg[128];
+  switch (checksum_type) {
+  case CHECKSUM_CRC32:
+    return crc32_sb8;
+  case CHECKSUM_CRC32C:
+    return crc32c_chunk;
+  default:
+    snprintf(msg, sizeof(msg), "Unsupported checksum type %d",
+             (int) checksum_type);
+    THROW(env, "java/lang/IllegalArgumentException", msg);
+    return NULL;
+  }
+}
+
+JNIEXPORT void JNICALL
+Java_org_apache_hadoop_util_NativeCrc32_anchorNative(
+  JNIEnv *env, jclass clazz) {
+  init_crc_table(crc32_table, CRC32_POLY);
+  init_crc_table(crc32c_table, CRC32C_POLY);
+  crc32c_chunk = crc32c_sb8;
+#ifdef HAVE_SSE42_CRC32C
+  if (have_sse42()) {
+    crc32c_chunk = crc32c_sse42;
+  }
+#endif
+}
+
+JNIEXPORT void JNICALL
+Java_org_apache_hadoop_util_NativeCrc32_nativeComputeChunkedSums(
+  JNIEnv *env, jclass clazz, jint bytes_per_sum, jint checksum_type,
+  jobject j_sums, jint sums_offset, jobject j_data, jint data_offset,
+  jint data_len, jstring j_filename, jlong base_pos, jboolean verify) {
+  uint8_t *sums;
+  uint8_t *data;
+  struct crc_error err;
+  crc_func crc_chunk = get_crc_func(env, checksum_type);
+
+  if (!crc_chunk) {
+    return;
+  }
+  sums = (*env)->GetDirectBufferAddress(env, j_sums);
+  data = (*env)->GetDirectBufferAddress(env, j_data);
+  if (!sums || !data) {
+    THROW(env, "java/lang/IllegalArgumentException",
+          "input ByteBuffers must be direct buffers");
+    return;
+  }
+  if (compute_chunked_sums(crc_chunk, bytes_per_sum, sums + sums_offset,
+                           data + data_offset, data_len, verify, &err)) {
+    throw_checksum_exception(env, j_filename, base_pos + err.offset, &err);
+  }
+}
+
+JNIEXPORT void JNICALL
+Java_org_apache_hadoop_util_NativeCrc32_nativeComputeChunkedSumsByteArray(
+  JNIEnv *env, jclass clazz, jint bytes_per_sum, jint checksum_type,
+  jbyteArray j_sums, jint sums_offset, jbyteArray j_data, jint data_offset,
+  jint data_len, jstring j_filename, jlong base_pos, jboolean verify) {
+  uint8_t *sums;
+  uint8_t *data;
+  struct crc_error err;
+  int ret;
+  crc_func crc_chunk = get_crc_func(env, checksum_type);
+
+  if (!crc_chunk) {
+    return;
+  }
+  /* no JNI call may be made while the arrays are pinned */
+  sums = (*env)->GetPrimitiveArrayCritical(env, j_sums, NULL);
+  if (!sums) {
+    return;
+  }
+  data = (*env)->GetPrimitiveArrayCritical(env, j_data, NULL);
+  if (!data) {
+    (*env)->ReleasePrimitiveArrayCritical(env, j_sums, sums, JNI_ABORT);
+    return;
+  }
+  ret = compute_chunked_sums(crc_chunk, bytes_per_sum, sums + sums_offset,
+                             data + data_offset, data_len, verify, &err);
+  (*env)->ReleasePrimitiveArrayCritical(env, j_data, data, JNI_ABORT);
+  (*env)->ReleasePrimitiveArrayCritical(env, j_sums, sums,
+                                        verify ? JNI_ABORT : 0);
+  if (ret) {
+    throw_checksum_exception(env, j_filename, base_pos + err.offset, &err);
+  }
+}
+
+/**
+ * vim: sw=2: ts=2: et:
+ */
@@ -35,6 +35,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.impl.Log4JLogger;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
 import org.apache.hadoop.hdfs.server.datanode.DataNode;
 import org.apache.hadoop.hdfs.server.namenode.FSNamesystem;
@@ -42,6 +43,7 @@ import org.apache.hadoop.mapred.MiniMRCluster;
 import org.apache.hadoop.security.UnixUserGroupInformation;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.tools.DistCp;
+import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Level;
 
@@ -731,6 +733,85 @@ public class TestCopyFiles extends TestCase {
     }
   }
   
+  private static void writeUTF(FileSystem fs, Path p, String data)
+      throws IOException {
+    FSDataOutputStream out = fs.create(p, true);
+    out.writeUTF(data);
+    out.close();
+  }
+
+  private static String readUTF(FileSystem fs, Path p) throws IOException {
+    FSDataInputStream in = fs.open(p);
+    try {
+      return in.readUTF();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static int getCrcType(FileSystem fs, Path p) throws IOException {
+    return ((MD5MD5CRC32FileChecksum)fs.getFileChecksum(p)).getCrcType();
+  }
+
+  /**
+   * Updates from CRC32 files must keep comparing the checksums even though
+   * new files are written with CRC32C by default.
+   */
+  public void testCopyDfsToDfsUpdateFromCrc32() throws Exception {
+    MiniDFSCluster cluster = null;
+    FileSystem crc32fs = null;
+    try {
+      Configuration conf = new Configuration();
+      cluster = new MiniDFSCluster(conf, 2, true, null);
+      final FileSystem hdfs = cluster.getFileSystem();
+      final String namenode = hdfs.getUri().toString();
+      Configuration crc32conf = new Configuration(conf);
+      crc32conf.set("dfs.checksum.type", "CRC32");
+      crc32fs = FileSystem.newInstance(URI.create(namenode), crc32conf);
+
+      // same length, different contents and CRC types
+      Path srcPath = new Path("/srcdat", "test");
+      Path destPath = new Path("/destdat", "test");
+      writeUTF(crc32fs, srcPath, "act act act");
+      writeUTF(hdfs, destPath, "cat cat cat");
+      assertEquals(DataChecksum.CHECKSUM_CRC32, getCrcType(hdfs, srcPath));
+      assertEquals(DataChecksum.CHECKSUM_CRC32C, getCrcType(hdfs, destPath));
+      assertEquals(DataChecksum.CHECKSUM_CRC32,
+          ((DistributedFileSystem)hdfs).getFileCrcType(srcPath));
+
+      String[] args = new String[] {"-update", "-log", namenode + "/logs",
+          namenode + "/srcdat", namenode + "/destdat"};
+      // the checksums of different types cannot be compared, the files
+      // are the same if they have the same length
+      ToolRunner.run(new DistCp(conf), args);
+      assertEquals("cat cat cat", readUTF(hdfs, destPath));
+
+      // a copy keeps the type of the source
+      writeUTF(crc32fs, srcPath, "act act act act");
+      deldir(hdfs, "/logs");
+      ToolRunner.run(new DistCp(conf), args);
+      assertEquals("act act act act", readUTF(hdfs, destPath));
+      assertEquals(DataChecksum.CHECKSUM_CRC32, getCrcType(hdfs, destPath));
+      assertEquals(hdfs.getFileChecksum(srcPath),
+          hdfs.getFileChecksum(destPath));
+
+      // so a change that keeps the length is found from the checksums
+      writeUTF(crc32fs, srcPath, "tac tac tac tac");
+      deldir(hdfs, "/logs");
+      ToolRunner.run(new DistCp(conf), args);
+      assertEquals("tac tac tac tac", readUTF(hdfs, destPath));
+
+      // an unchanged file is skipped
+      long mtime = hdfs.getFileStatus(destPath).getModificationTime();
+      deldir(hdfs, "/logs");
+      ToolRunner.run(new DistCp(conf), args);
+      assertEquals(mtime, hdfs.getFileStatus(destPath).getModificationTime());
+    } finally {
+      if (crc32fs != null) { crc32fs.close(); }
+      if (cluster != null) { cluster.shutdown(); }
+    }
+  }
+
   public void testCopyDuplication() throws Exception {
     final FileSystem localfs = FileSystem.get(LOCAL_FS, new Configuration());
     try {    
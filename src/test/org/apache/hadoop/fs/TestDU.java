@@ -129,4 +129,46 @@ public class TestDU extends TestCase {
     
     assertEquals(writtenSize - 4096, duSize0);
   }
+
+  /**
+   * Verify that the incremental tracker reports the seeded and tracked
+   * usage without running du, and that reconciliation corrects it.
+   */
+  public void testIncrementalDU() throws IOException, InterruptedException {
+    int writtenSize = 32*1024;
+    File file0 = new File(DU_DIR, "NS-0");
+    createFile(file0, writtenSize);
+    Thread.sleep(5000); // let the metadata updater catch up
+
+    // without reconciliation the seed is never checked
+    IncrementalDU du = new IncrementalDU(DU_DIR, 0, 0.05f);
+    NamespaceSliceDU nsdu0 = du.addNamespace(0, file0, 1000);
+    du.start();
+    assertEquals(1000, nsdu0.getUsed());
+    nsdu0.incDfsUsed(500);
+    nsdu0.decDfsUsed(200);
+    assertEquals(1300, nsdu0.getUsed());
+    file0.delete();
+    // no du runs, so a missing directory is not an error
+    assertEquals(1300, nsdu0.getUsed());
+    du.shutdown();
+
+    // a drift within the tolerance is kept
+    createFile(file0, writtenSize);
+    Thread.sleep(5000);
+    du = new IncrementalDU(DU_DIR, 1000, 0.05f);
+    nsdu0 = du.addNamespace(0, file0, writtenSize - 100);
+    du.start();
+    Thread.sleep(3000);
+    assertEquals(writtenSize - 100, nsdu0.getUsed());
+    du.shutdown();
+
+    // a larger drift is corrected to the du value
+    du = new IncrementalDU(DU_DIR, 1000, 0.05f);
+    nsdu0 = du.addNamespace(0, file0, writtenSize / 2);
+    du.start();
+    Thread.sleep(3000);
+    assertEquals(writtenSize, nsdu0.getUsed());
+    du.shutdown();
+  }
 }
@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/** Unit tests for {@link FileRange}. */
+public class TestFileRange extends TestCase {
+
+  private static FileRange range(long offset, int length) {
+    return new FileRange(offset, length, ByteBuffer.allocate(length));
+  }
+
+  public void testCoalesce() {
+    FileRange r1 = range(0, 100);
+    FileRange r2 = range(150, 100);
+    FileRange r3 = range(200, 10);
+    FileRange r4 = range(1000, 100);
+    FileRange r5 = range(1150, 5000);
+    List<List<FileRange>> groups =
+      FileRange.coalesce(Arrays.asList(r5, r3, r1, r4, r2), 50, 1000);
+    assertEquals(3, groups.size());
+    // the ranges within the gap are read together, the ranges in order
+    assertEquals(Arrays.asList(r1, r2, r3), groups.get(0));
+    assertEquals(250, FileRange.getEnd(groups.get(0)));
+    assertEquals(Arrays.asList(r4), groups.get(1));
+    // a group is not larger than the maximum size
+    assertEquals(Arrays.asList(r5), groups.get(2));
+  }
+
+  public void testReadGroup() throws Exception {
+    final byte[] file = new byte[1000];
+    for (int i = 0; i < file.length; i++) {
+      file[i] = (byte) i;
+    }
+    final int[] reads = new int[1];
+    PositionedReadable in = new FSInputStream() {
+      public int read(long position, byte[] b, int off, int len) {
+        reads[0]++;
+        int n = (int) Math.min(len, file.length - position);
+        System.arraycopy(file, (int) position, b, off, n);
+        return n;
+      }
+      public int read() { throw new UnsupportedOperationException(); }
+      public void seek(long pos) { throw new UnsupportedOperationException(); }
+      public long getPos() { return 0; }
+      public boolean seekToNewSource(long pos) { return false; }
+    };
+
+    FileRange r1 = range(10, 20);
+    FileRange r2 = new FileRange(15, 30, ByteBuffer.allocateDirect(30));
+    FileRange.readGroup(in, Arrays.asList(r1, r2));
+    assertEquals(1, reads[0]);
+    for (FileRange r : Arrays.asList(r1, r2)) {
+      ByteBuffer buf = r.getBuffer();
+      assertEquals(r.getLength(), buf.position());
+      for (int i = 0; i < r.getLength(); i++) {
+        assertEquals((byte) (r.getOffset() + i), buf.get(i));
+      }
+    }
+  }
+}
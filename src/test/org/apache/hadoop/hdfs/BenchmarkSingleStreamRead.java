@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.Log4JLogger;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import org.apache.log4j.Level;
+
+/**
+ * Benchmark of the throughput of a single input stream: one file of -size MB
+ * is written, then read -reps times through one stream with reads of -buffer
+ * bytes into a byte array, a heap ByteBuffer and a direct ByteBuffer.
+ * The file is read from the default file system, or from a MiniDFSCluster
+ * of one datanode with -minicluster. With -local the client reads the
+ * block files of the local datanode directly (dfs.read.shortcircuit).
+ */
+public class BenchmarkSingleStreamRead extends Configured implements Tool {
+
+  private static enum Mode { ARRAY, HEAP, DIRECT }
+
+  private long sizeMB = 1024;
+  private int bufferSize = 64 * 1024;
+  private int reps = 1;
+  private boolean miniCluster = false;
+  private boolean local = false;
+
+  private void writeFile(FileSystem fs, Path path) throws IOException {
+    byte[] data = new byte[64 * 1024];
+    new Random(0).nextBytes(data);
+    long total = sizeMB * 1024 * 1024;
+    FSDataOutputStream out = fs.create(path, true);
+    try {
+      for (long written = 0; written < total; ) {
+        int n = (int) Math.min(data.length, total - written);
+        out.write(data, 0, n);
+        written += n;
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private void readFile(FileSystem fs, Path path, Mode mode)
+    throws IOException {
+    byte[] array = new byte[bufferSize];
+    ByteBuffer buf = null;
+    if (mode == Mode.HEAP) {
+      buf = ByteBuffer.allocate(bufferSize);
+    } else if (mode == Mode.DIRECT) {
+      buf = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    long read = 0;
+    long start = System.nanoTime();
+    FSDataInputStream in = fs.open(path);
+    try {
+      while (true) {
+        int n;
+        if (buf == null) {
+          n = in.read(array, 0, array.length);
+        } else {
+          buf.clear();
+          n = in.read(buf);
+        }
+        if (n < 0) {
+          break;
+        }
+        read += n;
+      }
+    } finally {
+      in.close();
+    }
+    long elapsed = System.nanoTime() - start;
+    if (read != sizeMB * 1024 * 1024) {
+      throw new IOException("Read " + read + " bytes, expected "
+          + sizeMB * 1024 * 1024);
+    }
+    System.out.println(String.format(
+        "Read %d MB into %s buffers in %.2f s: %.1f MB/s",
+        sizeMB, mode.toString().toLowerCase(), elapsed / 1e9,
+        sizeMB * 1e9 / elapsed));
+  }
+
+  private void printUsage() {
+    ToolRunner.printGenericCommandUsage(System.err);
+    System.err.println("Usage: singlestreamread [-size MB] [-buffer bytes]"
+        + " [-reps n] [-minicluster] [-local]");
+  }
+
+  public int run(String[] args) throws IOException {
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals("-minicluster")) {
+          miniCluster = true;
+        } else if (args[i].equals("-local")) {
+          local = true;
+        } else if (i + 1 == args.length) {
+          printUsage();
+          return -1;
+        } else if (args[i].equals("-size")) {
+          sizeMB = Long.parseLong(args[++i]);
+        } else if (args[i].equals("-buffer")) {
+          bufferSize = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-reps")) {
+          reps = Integer.parseInt(args[++i]);
+        } else {
+          printUsage();
+          return -1;
+        }
+      }
+    } catch (NumberFormatException e) {
+      printUsage();
+      return -1;
+    }
+
+    Configuration conf = getConf();
+    conf.setBoolean("dfs.read.shortcircuit", local);
+    MiniDFSCluster cluster = null;
+    try {
+      FileSystem fs;
+      if (miniCluster) {
+        // silence the minidfs cluster
+        Log hadoopLog = LogFactory.getLog("org");
+        if (hadoopLog instanceof Log4JLogger) {
+          ((Log4JLogger) hadoopLog).getLogger().setLevel(Level.WARN);
+        }
+        cluster = new MiniDFSCluster(conf, 1, true, (String[]) null);
+        cluster.waitActive();
+        fs = cluster.getFileSystem();
+      } else {
+        fs = FileSystem.get(conf);
+      }
+      Path path = new Path("/benchmarks/SingleStreamRead/data");
+      try {
+        writeFile(fs, path);
+        for (int i = 0; i < reps; i++) {
+          for (Mode mode : Mode.values()) {
+            readFile(fs, path, mode);
+          }
+        }
+      } finally {
+        fs.delete(path, true);
+      }
+    } finally {
+      if (cluster != null) {
+        cluster.shutdown();
+      }
+    }
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(),
+        new BenchmarkSingleStreamRead(), args);
+    System.exit(res);
+  }
+}
@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.logging.impl.Log4JLogger;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import org.apache.log4j.Level;
+
+/**
+ * Benchmark of the throughput of a single output stream, the write
+ * pipeline of one client: one file of -size MB is written through one
+ * stream with writes of -buffer bytes, and synced every -sync MB if set.
+ * The file is written to the default file system, or to a MiniDFSCluster
+ * of -replication datanodes with -minicluster.
+ *
+ * The packet sizes can be set with -D dfs.write.packet.size=... and
+ * -D dfs.write.packet.size.max=...
+ */
+public class BenchmarkSingleStreamWrite extends Configured implements Tool {
+
+  private long sizeMB = 1024;
+  private int bufferSize = 64 * 1024;
+  private short replication = 3;
+  private long syncMB = 0;
+  private int reps = 1;
+  private boolean miniCluster = false;
+
+  private void writeFile(FileSystem fs, Path path) throws IOException {
+    byte[] data = new byte[bufferSize];
+    new Random(0).nextBytes(data);
+    long total = sizeMB * 1024 * 1024;
+    long syncBytes = syncMB * 1024 * 1024;
+    long nextSync = syncBytes;
+
+    long start = System.nanoTime();
+    FSDataOutputStream out = fs.create(path, true,
+        getConf().getInt("io.file.buffer.size", 4096), replication,
+        fs.getDefaultBlockSize());
+    try {
+      for (long written = 0; written < total; ) {
+        int n = (int) Math.min(bufferSize, total - written);
+        out.write(data, 0, n);
+        written += n;
+        if (syncBytes > 0 && written >= nextSync) {
+          out.sync();
+          nextSync += syncBytes;
+        }
+      }
+    } finally {
+      out.close();
+    }
+    long elapsed = System.nanoTime() - start;
+    System.out.println(String.format(
+        "Wrote %d MB with replication %d in %.2f s: %.1f MB/s",
+        sizeMB, replication, elapsed / 1e9, sizeMB * 1e9 / elapsed));
+  }
+
+  private void printUsage() {
+    ToolRunner.printGenericCommandUsage(System.err);
+    System.err.println("Usage: singlestreamwrite [-size MB] [-buffer bytes]"
+        + " [-replication n] [-sync MB] [-reps n] [-minicluster]");
+  }
+
+  public int run(String[] args) throws IOException {
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals("-minicluster")) {
+          miniCluster = true;
+        } else if (i + 1 == args.length) {
+          printUsage();
+          return -1;
+        } else if (args[i].equals("-size")) {
+          sizeMB = Long.parseLong(args[++i]);
+        } else if (args[i].equals("-buffer")) {
+          bufferSize = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-replication")) {
+          replication = Short.parseShort(args[++i]);
+        } else if (args[i].equals("-sync")) {
+          syncMB = Long.parseLong(args[++i]);
+        } else if (args[i].equals("-reps")) {
+          reps = Integer.parseInt(args[++i]);
+        } else {
+          printUsage();
+          return -1;
+        }
+      }
+    } catch (NumberFormatException e) {
+      printUsage();
+      return -1;
+    }
+
+    Configuration conf = getConf();
+    MiniDFSCluster cluster = null;
+    try {
+      FileSystem fs;
+      if (miniCluster) {
+        // silence the minidfs cluster
+        Log hadoopLog = LogFactory.getLog("org");
+        if (hadoopLog instanceof Log4JLogger) {
+          ((Log4JLogger) hadoopLog).getLogger().setLevel(Level.WARN);
+        }
+        cluster = new MiniDFSCluster(conf, replication, true, (String[]) null);
+        cluster.waitActive();
+        fs = cluster.getFileSystem();
+      } else {
+        fs = FileSystem.get(conf);
+      }
+      Path path = new Path("/benchmarks/SingleStreamWrite/data");
+      try {
+        for (int i = 0; i < reps; i++) {
+          writeFile(fs, path);
+        }
+      } finally {
+        fs.delete(path, true);
+      }
+    } finally {
+      if (cluster != null) {
+        cluster.shutdown();
+      }
+    }
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(new Configuration(),
+        new BenchmarkSingleStreamWrite(), args);
+    System.exit(res);
+  }
+}
@@ -0,0 +1,230 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.metrics.DFSClientMetrics;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.DataNode;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset;
+
+/**
+ * Tests the reads of a DFS file into ByteBuffers, from a datanode and
+ * from the local block files.
+ */
+public class TestByteBufferRead extends TestCase {
+
+  private static final int FILE_SIZE = 10000;
+  private static final int BLOCK_SIZE = 4096;
+
+  private final byte[] expected = new byte[FILE_SIZE];
+
+  private MiniDFSCluster cluster;
+  private FileSystem fs;
+  private Path file = new Path("/testByteBufferRead");
+
+  private void startCluster(boolean shortCircuit) throws IOException {
+    Configuration conf = new Configuration();
+    conf.setBoolean("dfs.read.shortcircuit", shortCircuit);
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    cluster = new MiniDFSCluster(conf, 1, true, null);
+    fs = cluster.getFileSystem();
+
+    new Random(0).nextBytes(expected);
+    FSDataOutputStream out = fs.create(file);
+    out.write(expected);
+    out.close();
+  }
+
+  protected void tearDown() throws Exception {
+    if (cluster != null) {
+      cluster.shutdown();
+      cluster = null;
+    }
+  }
+
+  public void testRemoteRead() throws Exception {
+    startCluster(false);
+    checkReads();
+  }
+
+  public void testLocalRead() throws Exception {
+    startCluster(true);
+    checkReads();
+    fs.setVerifyChecksum(false);
+    checkReads();
+    // with the same cluster, since the reader keeps its datanode proxy
+    readBeingWritten();
+  }
+
+  /**
+   * Read a block being written, whose file has a partly written chunk
+   * past the end of the data the reader knows of.
+   */
+  private void readBeingWritten() throws IOException {
+    Path written = new Path("/testByteBufferReadBeingWritten");
+    FSDataOutputStream out = fs.create(written);
+    try {
+      out.write(expected, 0, 3000);
+      out.sync();
+      DataNode dn = cluster.getDataNodes().get(0);
+      int namespaceId = cluster.getNameNode().versionRequest()
+          .getNamespaceID();
+      Block[] rbw = dn.data.getBlocksBeingWrittenReport(namespaceId);
+      assertEquals(1, rbw.length);
+      File blockFile = ((FSDataset) dn.data).getBlockFile(namespaceId, rbw[0]);
+      // bytes of the next chunk written without their checksum
+      RandomAccessFile raf = new RandomAccessFile(blockFile, "rw");
+      try {
+        raf.seek(4000);
+        raf.write(new byte[50]);
+      } finally {
+        raf.close();
+      }
+
+      DFSClientMetrics metrics =
+        ((DistributedFileSystem) fs).getClient().getDFSClientMetrics();
+      long connections = metrics.readConnectionsCreated
+          .getCurrentIntervalValue();
+      for (boolean verifyChecksum : new boolean[] {true, false}) {
+        fs.setVerifyChecksum(verifyChecksum);
+        FSDataInputStream in = fs.open(written);
+        try {
+          ByteBuffer buf = ByteBuffer.allocateDirect(10000);
+          assertEquals(3000, readFully(in, buf));
+          checkData(0, buf, 3000);
+        } finally {
+          in.close();
+        }
+      }
+      // the local reads did not fail over to the datanode
+      assertEquals(connections,
+          metrics.readConnectionsCreated.getCurrentIntervalValue());
+    } finally {
+      out.close();
+    }
+  }
+
+  private void checkReads() throws IOException {
+    readFile(ByteBuffer.allocateDirect(1000));
+    readFile(ByteBuffer.allocate(1000));
+    // the buffers larger than a packet and than a block
+    readFile(ByteBuffer.allocateDirect(100000));
+    readMixed();
+    readAfterSeek(1500);
+    readAfterSeek(BLOCK_SIZE + 3);
+  }
+
+  /** Read the whole file into the buffer, a part at a time. */
+  private void readFile(ByteBuffer buf) throws IOException {
+    FSDataInputStream in = fs.open(file);
+    try {
+      int pos = 0;
+      while (true) {
+        buf.clear();
+        int n = in.read(buf);
+        if (n < 0) {
+          break;
+        }
+        assertEquals(n, buf.position());
+        checkData(pos, buf, n);
+        pos += n;
+        assertEquals(pos, in.getPos());
+      }
+      assertEquals(FILE_SIZE, pos);
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Read into buffers and arrays from the same stream. */
+  private void readMixed() throws IOException {
+    FSDataInputStream in = fs.open(file);
+    try {
+      ByteBuffer buf = ByteBuffer.allocateDirect(700);
+      byte[] array = new byte[300];
+      int pos = 0;
+      while (pos < FILE_SIZE) {
+        buf.clear();
+        int n = in.read(buf);
+        assertTrue(n > 0);
+        checkData(pos, buf, n);
+        pos += n;
+        if (pos == FILE_SIZE) {
+          break;
+        }
+        n = in.read(array, 0, array.length);
+        assertTrue(n > 0);
+        checkData(pos, ByteBuffer.wrap(array, 0, n), n);
+        pos += n;
+      }
+      assertEquals(-1, in.read(buf));
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Read from the middle of a chunk after a seek and a skip. */
+  private void readAfterSeek(int pos) throws IOException {
+    FSDataInputStream in = fs.open(file);
+    try {
+      in.seek(pos);
+      ByteBuffer buf = ByteBuffer.allocateDirect(600);
+      assertEquals(600, readFully(in, buf));
+      checkData(pos, buf, 600);
+      pos += 600;
+
+      assertEquals(100, in.skip(100));
+      pos += 100;
+      buf.clear();
+      assertEquals(600, readFully(in, buf));
+      checkData(pos, buf, 600);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static int readFully(FSDataInputStream in, ByteBuffer buf)
+    throws IOException {
+    while (buf.hasRemaining()) {
+      if (in.read(buf) < 0) {
+        break;
+      }
+    }
+    return buf.position();
+  }
+
+  /** Check the first len bytes of the buffer against the file from pos. */
+  private void checkData(int pos, ByteBuffer buf, int len) {
+    for (int i = 0; i < len; i++) {
+      assertEquals("At offset " + (pos + i), expected[pos + i], buf.get(i));
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+
+/** Unit tests for {@link DatanodeLatencyStats}. */
+public class TestDatanodeLatencyStats extends TestCase {
+  private static final DatanodeInfo DN1 =
+    new DatanodeInfo(new DatanodeID("host1:50010"));
+  private static final DatanodeInfo DN2 =
+    new DatanodeInfo(new DatanodeID("host2:50010"));
+  private static final DatanodeInfo DN3 =
+    new DatanodeInfo(new DatanodeID("host3:50010"));
+
+  public void testAverage() {
+    DatanodeLatencyStats stats = new DatanodeLatencyStats(60000);
+    assertEquals(-1.0, stats.getLatency(DN1), 0);
+    stats.record(DN1, 10);
+    assertEquals(10.0, stats.getLatency(DN1), 0);
+    stats.record(DN1, 20);
+    assertEquals(10 + DatanodeLatencyStats.ALPHA * 10,
+        stats.getLatency(DN1), 1e-9);
+  }
+
+  public void testOrder() {
+    DatanodeLatencyStats stats = new DatanodeLatencyStats(60000);
+    DatanodeInfo[] nodes = {DN1, DN2, DN3};
+    // the order of the namenode is kept without latencies
+    assertSame(nodes, stats.order(nodes));
+
+    // close latencies do not change the order
+    stats.record(DN1, 3);
+    stats.record(DN2, 1);
+    assertSame(nodes, stats.order(nodes));
+
+    // the slow nodes go last, the slowest at the end
+    stats = new DatanodeLatencyStats(60000);
+    stats.record(DN1, 2000);
+    stats.record(DN2, 500);
+    stats.record(DN3, 10);
+    DatanodeInfo[] ordered = stats.order(nodes);
+    assertSame(DN3, ordered[0]);
+    assertSame(DN2, ordered[1]);
+    assertSame(DN1, ordered[2]);
+  }
+
+  public void testExpiry() throws Exception {
+    DatanodeLatencyStats stats = new DatanodeLatencyStats(1);
+    stats.record(DN1, 1000);
+    stats.record(DN2, 1);
+    Thread.sleep(10);
+    assertEquals(-1.0, stats.getLatency(DN1), 0);
+    DatanodeInfo[] nodes = {DN1, DN2};
+    assertSame(nodes, stats.order(nodes));
+  }
+}
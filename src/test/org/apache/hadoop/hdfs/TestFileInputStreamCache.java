@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/** Unit tests for {@link FileInputStreamCache}. */
+public class TestFileInputStreamCache extends TestCase {
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "/tmp"),
+      "TestFileInputStreamCache");
+
+  private File file;
+
+  protected void setUp() throws IOException {
+    TEST_DIR.mkdirs();
+    file = new File(TEST_DIR, "blk");
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[10]);
+    out.close();
+  }
+
+  private FileInputStreamCache.Entry newEntry() throws IOException {
+    return new FileInputStreamCache.Entry(new FileInputStream(file),
+        new FileInputStream(file), 10);
+  }
+
+  private static boolean isOpen(FileInputStreamCache.Entry entry) {
+    try {
+      entry.dataIn.getChannel().position();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  public void testGetAndPut() throws IOException {
+    FileInputStreamCache cache = new FileInputStreamCache(2, 60000);
+    assertNull(cache.get(1, 1));
+    FileInputStreamCache.Entry e1 = newEntry();
+    cache.put(1, 1, e1);
+    assertEquals(1, cache.size());
+    // a different generation stamp is a different block
+    assertNull(cache.get(1, 2));
+    assertSame(e1, cache.get(1, 1));
+    assertEquals(0, cache.size());
+    assertNull(cache.get(1, 1));
+    assertTrue(isOpen(e1));
+
+    // the oldest entries are closed when the cache is full
+    FileInputStreamCache.Entry e2 = newEntry();
+    FileInputStreamCache.Entry e3 = newEntry();
+    cache.put(1, 1, e1);
+    cache.put(2, 1, e2);
+    cache.put(1, 1, e3);
+    assertEquals(2, cache.size());
+    assertFalse(isOpen(e1));
+    assertSame(e3, cache.get(1, 1));
+    assertSame(e2, cache.get(2, 1));
+
+    cache.put(2, 1, e2);
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertFalse(isOpen(e2));
+  }
+
+  public void testExpiry() throws Exception {
+    FileInputStreamCache cache = new FileInputStreamCache(10, 100);
+    FileInputStreamCache.Entry e1 = newEntry();
+    cache.put(1, 1, e1);
+    Thread.sleep(200);
+    assertNull(cache.get(1, 1));
+    assertFalse(isOpen(e1));
+
+    // expired entries are not taken back
+    cache.put(2, 1, e1);
+    assertEquals(0, cache.size());
+  }
+}
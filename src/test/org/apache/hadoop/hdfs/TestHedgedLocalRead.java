@@ -0,0 +1,170 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.metrics.DFSClientMetrics;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+import org.apache.hadoop.net.unix.DomainSocket;
+
+/**
+ * Tests the hedged positional reads of replicas read from the local block
+ * files. The hedges lose or get cancelled while reading the files, and the
+ * local reads which follow must still succeed.
+ */
+public class TestHedgedLocalRead extends TestCase {
+  static final Log LOG = LogFactory.getLog(TestHedgedLocalRead.class);
+
+  private static final int BLOCK_SIZE = 64 * 1024;
+  private static final int FILE_SIZE = 4 * BLOCK_SIZE;
+  private static final File SOCKET_DIR = new File(
+      System.getProperty("test.build.data", "/tmp"), "TestHedgedLocalRead");
+
+  private final byte[] expected = new byte[FILE_SIZE];
+  private MiniDFSCluster cluster;
+
+  protected void tearDown() throws Exception {
+    if (cluster != null) {
+      cluster.shutdown();
+      cluster = null;
+    }
+    FileUtil.fullyDelete(SOCKET_DIR);
+  }
+
+  /** The client opens the block files at the paths given by the datanode. */
+  public void testBlockPaths() throws Exception {
+    runTest(new Configuration());
+  }
+
+  /**
+   * The datanode passes the block files through its domain socket, and the
+   * client caches their descriptors for the next reads.
+   */
+  public void testDomainSocket() throws Exception {
+    if (!DomainSocket.isAvailable()) {
+      LOG.info("Skipping test: UNIX domain sockets are not available");
+      return;
+    }
+    FileUtil.fullyDelete(SOCKET_DIR);
+    assertTrue(SOCKET_DIR.mkdirs());
+    String path = new File(SOCKET_DIR, "dn._PORT").getPath();
+    try {
+      DomainSocket.validateSocketPathSecurity(path);
+    } catch (IOException e) {
+      LOG.info("Skipping test: " + SOCKET_DIR + " is not secure", e);
+      return;
+    }
+    Configuration conf = new Configuration();
+    conf.set("dfs.domain.socket.path", path);
+    runTest(conf);
+  }
+
+  private void runTest(Configuration conf) throws Exception {
+    conf.setBoolean("dfs.read.shortcircuit", true);
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    // hedge every read, so that one of the two reads is always cancelled
+    conf.setInt("dfs.client.hedged.read.threadpool.size", 10);
+    conf.setLong("dfs.client.hedged.read.threshold.millis", 0);
+    cluster = new MiniDFSCluster(conf, 3, true, null);
+    cluster.waitActive();
+    DistributedFileSystem fs =
+      (DistributedFileSystem) cluster.getFileSystem();
+    DFSClientMetrics metrics = fs.getClient().getDFSClientMetrics();
+
+    Path file = new Path("/testHedgedLocalRead");
+    new Random(0).nextBytes(expected);
+    FSDataOutputStream out = fs.create(file, (short) 3);
+    out.write(expected);
+    out.close();
+
+    long hedges = metrics.hedgedReadOps.getCurrentIntervalValue();
+    Random r = new Random(1);
+    FSDataInputStream in = fs.open(file);
+    try {
+      for (int i = 0; i < 100; i++) {
+        int pos = r.nextInt(FILE_SIZE);
+        int len = Math.min(FILE_SIZE - pos, 1 + r.nextInt(2 * BLOCK_SIZE));
+        byte[] buf = new byte[len];
+        in.readFully(pos, buf);
+        checkData(pos, buf, len);
+      }
+    } finally {
+      in.close();
+    }
+    assertTrue("No read was hedged",
+        metrics.hedgedReadOps.getCurrentIntervalValue() > hedges);
+
+    // every replica can still be read locally, through the descriptors
+    // the hedged reads left in the cache, without another replica to
+    // fall back to
+    LocatedBlocks blocks = fs.getClient().namenode.getBlockLocations(
+        file.toString(), 0, FILE_SIZE);
+    int namespaceId = cluster.getNameNode().getNamespaceID();
+    for (int k = 0; k < 2; k++) {
+      for (LocatedBlock blk : blocks.getLocatedBlocks()) {
+        assertEquals(3, blk.getLocations().length);
+        for (DatanodeInfo node : blk.getLocations()) {
+          int len = (int) blk.getBlockSize();
+          BlockReaderLocal reader = BlockReaderLocal.newBlockReader(conf,
+              file.toString(), namespaceId, blk.getBlock(), node, 0, len,
+              metrics, true);
+          try {
+            byte[] buf = new byte[len];
+            assertEquals(len, reader.readAll(buf, 0, len));
+            checkData((int) blk.getStartOffset(), buf, len);
+          } finally {
+            reader.close();
+          }
+        }
+      }
+    }
+
+    // and through the streams of the client
+    in = fs.open(file);
+    try {
+      byte[] buf = new byte[FILE_SIZE];
+      in.readFully(buf);
+      checkData(0, buf, FILE_SIZE);
+      in.readFully(BLOCK_SIZE - 100, buf, 0, 200);
+      checkData(BLOCK_SIZE - 100, buf, 200);
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Check the first len bytes of the buffer against the file from pos. */
+  private void checkData(int pos, byte[] buf, int len) {
+    for (int i = 0; i < len; i++) {
+      assertEquals("At offset " + (pos + i), expected[pos + i], buf[i]);
+    }
+  }
+}
@@ -0,0 +1,278 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.metrics.DFSClientMetrics;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+
+/**
+ * Tests the cache of the statuses and block locations of files in a
+ * DFSClient.
+ */
+public class TestMetadataCache extends TestCase {
+
+  private static FileStatus status(String src, boolean isDir) {
+    return new FileStatus(100, isDir, 3, 64, 0, new Path(src));
+  }
+
+  /** A file of three blocks of 100 bytes and one of 50. */
+  private static LocatedBlocks blocks(boolean underConstruction) {
+    List<LocatedBlock> blks = new ArrayList<LocatedBlock>();
+    for (int i = 0; i < 4; i++) {
+      blks.add(new LocatedBlock(new Block(i, i < 3 ? 100 : 50, 1),
+          new DatanodeInfo[0], i * 100));
+    }
+    return new LocatedBlocks(350, blks, underConstruction);
+  }
+
+  public void testFileStatus() throws Exception {
+    MetadataCache cache = new MetadataCache(2, 60000);
+    cache.putFileStatus("/a", status("/a", false), cache.getGeneration());
+    cache.putFileStatus("/dir", status("/dir", true), cache.getGeneration());
+    assertEquals(1, cache.size());
+    assertNull(cache.getFileStatus("/dir"));
+    assertEquals(new Path("/a"), cache.getFileStatus("/a").getPath());
+
+    // the file used the longest ago is dropped
+    cache.putFileStatus("/b", status("/b", false), cache.getGeneration());
+    cache.getFileStatus("/a");
+    cache.putFileStatus("/c", status("/c", false), cache.getGeneration());
+    assertEquals(2, cache.size());
+    assertNull(cache.getFileStatus("/b"));
+    assertNotNull(cache.getFileStatus("/a"));
+    assertNotNull(cache.getFileStatus("/c"));
+  }
+
+  public void testExpiry() throws Exception {
+    MetadataCache cache = new MetadataCache(2, 1);
+    cache.putFileStatus("/a", status("/a", false), cache.getGeneration());
+    cache.putBlockLocations("/a", blocks(false), cache.getGeneration());
+    Thread.sleep(10);
+    assertNull(cache.getFileStatus("/a"));
+    assertNull(cache.getBlockLocations("/a", 0, 100));
+    assertEquals(0, cache.size());
+  }
+
+  public void testBlockLocations() throws Exception {
+    MetadataCache cache = new MetadataCache(10, 60000);
+    cache.putBlockLocations("/a", blocks(true), cache.getGeneration());
+    assertNull(cache.getBlockLocations("/a", 0, 100));
+    assertEquals(0, cache.size());
+
+    cache.putBlockLocations("/a", blocks(false), cache.getGeneration());
+    LocatedBlocks range = cache.getBlockLocations("/a", 150, 100);
+    assertEquals(350, range.getFileLength());
+    assertEquals(2, range.locatedBlockCount());
+    assertEquals(100, range.get(0).getStartOffset());
+    assertEquals(200, range.get(1).getStartOffset());
+    // a range past the end of the file
+    range = cache.getBlockLocations("/a", 320, Long.MAX_VALUE);
+    assertEquals(1, range.locatedBlockCount());
+    assertEquals(300, range.get(0).getStartOffset());
+
+    // the locations of only a part of the file
+    List<LocatedBlock> part = blocks(false).getLocatedBlocks().subList(1, 3);
+    cache.putBlockLocations("/b", new LocatedBlocks(350, part, false),
+        cache.getGeneration());
+    assertNull(cache.getBlockLocations("/b", 0, 200));
+    assertNull(cache.getBlockLocations("/b", 200, 150));
+    assertEquals(2, cache.getBlockLocations("/b", 100, 200).locatedBlockCount());
+  }
+
+  public void testInvalidate() throws Exception {
+    MetadataCache cache = new MetadataCache(10, 60000);
+    for (String src : new String[] {"/d/a", "/d/e/b", "/da", "/c"}) {
+      cache.putFileStatus(src, status(src, false), cache.getGeneration());
+    }
+    cache.invalidate("/d");
+    assertNull(cache.getFileStatus("/d/a"));
+    assertNull(cache.getFileStatus("/d/e/b"));
+    assertNotNull(cache.getFileStatus("/da"));
+    cache.invalidate("/");
+    assertEquals(0, cache.size());
+  }
+
+  public void testListing() throws Exception {
+    MetadataCache cache = new MetadataCache(10, 60000);
+    FileStatus[] listing = { status("/d/a", false), status("/d/e", true) };
+    cache.putListing("/d", listing, cache.getGeneration());
+    cache.putListing("/d/e", new FileStatus[0], cache.getGeneration());
+    cache.putListing("/", new FileStatus[] { status("/d", true) },
+        cache.getGeneration());
+    FileStatus[] cached = cache.getListing("/d");
+    assertEquals(2, cached.length);
+    assertEquals(new Path("/d/a"), cached[0].getPath());
+    assertTrue(cached[1].isDir());
+    assertNotSame(listing[0], cached[0]);
+
+    // a change drops the listings of the directories above the path
+    cache.invalidate("/x");
+    assertNull(cache.getListing("/"));
+    assertNotNull(cache.getListing("/d"));
+    cache.invalidate("/d/e/f");
+    assertNull(cache.getListing("/d/e"));
+    assertNull(cache.getListing("/d"));
+    assertEquals(0, cache.size());
+  }
+
+  /**
+   * The metadata fetched before a path was dropped is not cached, since it
+   * may be older than the change which dropped the path. The metadata of
+   * the other paths is.
+   */
+  public void testPutAfterInvalidate() throws Exception {
+    MetadataCache cache = new MetadataCache(10, 60000);
+    long generation = cache.getGeneration();
+    cache.invalidate("/d/a");
+    cache.putFileStatus("/d/a", status("/d/a", false), generation);
+    cache.putBlockLocations("/d/a/b", blocks(false), generation);
+    cache.putListing("/d", new FileStatus[0], generation);
+    assertEquals(0, cache.size());
+    cache.putFileStatus("/b", status("/b", false), generation);
+    cache.putBlockLocations("/b", blocks(false), generation);
+    cache.putListing("/d/c", new FileStatus[0], generation);
+    assertNotNull(cache.getFileStatus("/b"));
+    assertNotNull(cache.getBlockLocations("/b", 0, 100));
+    assertNotNull(cache.getListing("/d/c"));
+
+    generation = cache.getGeneration();
+    cache.putFileStatus("/d/a", status("/d/a", false), generation);
+    cache.putBlockLocations("/d/a", blocks(false), generation);
+    assertNotNull(cache.getFileStatus("/d/a"));
+    assertNotNull(cache.getBlockLocations("/d/a", 0, 100));
+
+    // once the drop of /x0 is forgotten, the older puts are refused
+    for (int i = 0; i < 11; i++) {
+      cache.invalidate("/x" + i);
+    }
+    cache.putFileStatus("/e", status("/e", false), generation);
+    assertNull(cache.getFileStatus("/e"));
+  }
+
+  /** The paths evicted or dropped leave nothing behind in the index. */
+  public void testIndex() throws Exception {
+    MetadataCache cache = new MetadataCache(2, 60000);
+    cache.putFileStatus("/d/e/a", status("/d/e/a", false),
+        cache.getGeneration());
+    cache.putListing("/d", new FileStatus[0], cache.getGeneration());
+    cache.putFileStatus("/d/e/b", status("/d/e/b", false),
+        cache.getGeneration());
+    // /d/e/a was evicted, /d/e/b is still found under /d
+    assertEquals(2, cache.size());
+    cache.invalidate("/d");
+    assertEquals(0, cache.size());
+
+    cache.putFileStatus("/d/e/a", status("/d/e/a", false),
+        cache.getGeneration());
+    cache.invalidate("/d/e/a/x");
+    assertNotNull(cache.getFileStatus("/d/e/a"));
+    cache.invalidate("/d/e");
+    assertEquals(0, cache.size());
+  }
+
+  /**
+   * A client asks the namenode once for the status and the locations of a
+   * closed file and for the listing of its directory, until it changes
+   * them.
+   */
+  public void testClientCache() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("dfs.client.metadatacache.capacity", 100);
+    conf.setLong("dfs.block.size", 1024);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 2, true, null);
+    try {
+      FileSystem fs = cluster.getFileSystem();
+      DFSClient client = ((DistributedFileSystem) fs).getClient();
+      DFSClientMetrics metrics = client.getDFSClientMetrics();
+      Path file = new Path("/testClientCache/file");
+      DFSTestUtil.createFile(fs, file, 4096, (short) 2, 0L);
+      long hits = metrics.metadataCacheHits.getCurrentIntervalValue();
+      long misses = metrics.metadataCacheMisses.getCurrentIntervalValue();
+
+      FileStatus stat = fs.getFileStatus(file);
+      assertEquals(4096, fs.getFileStatus(file).getLen());
+      assertEquals(2, fs.getFileStatus(file).getReplication());
+      BlockLocation[] locs = fs.getFileBlockLocations(stat, 0, 4096);
+      assertEquals(4, locs.length);
+      locs = fs.getFileBlockLocations(stat, 1024, 2048);
+      assertEquals(2, locs.length);
+      assertEquals(1024, locs[0].getOffset());
+      assertEquals(misses + 2,
+          metrics.metadataCacheMisses.getCurrentIntervalValue());
+      assertEquals(hits + 3,
+          metrics.metadataCacheHits.getCurrentIntervalValue());
+
+      // the listing of the directory
+      Path dir = file.getParent();
+      hits = metrics.metadataCacheHits.getCurrentIntervalValue();
+      assertEquals(1, fs.listStatus(dir).length);
+      assertEquals(file.getName(), fs.listStatus(dir)[0].getPath().getName());
+      assertEquals(hits + 1,
+          metrics.metadataCacheHits.getCurrentIntervalValue());
+      DFSTestUtil.createFile(fs, new Path(dir, "file2"), 100, (short) 2, 0L);
+      assertEquals(2, fs.listStatus(dir).length);
+      fs.delete(new Path(dir, "file2"), false);
+      assertEquals(1, fs.listStatus(dir).length);
+
+      // the changes of the client drop the file from the cache
+      fs.setReplication(file, (short) 1);
+      assertEquals(1, fs.getFileStatus(file).getReplication());
+      fs.rename(new Path("/testClientCache"), new Path("/renamed"));
+      try {
+        fs.getFileStatus(file);
+        fail("The status of a renamed file was cached.");
+      } catch (FileNotFoundException e) {
+      }
+      Path renamed = new Path("/renamed/file");
+      assertEquals(4096, fs.getFileStatus(renamed).getLen());
+      fs.delete(renamed, false);
+      assertFalse(fs.exists(renamed));
+
+      // the file being written is not cached
+      FSDataOutputStream out = fs.create(file);
+      out.write(new byte[100]);
+      out.sync();
+      hits = metrics.metadataCacheHits.getCurrentIntervalValue();
+      fs.getFileStatus(file);
+      fs.getFileStatus(file);
+      fs.listStatus(file.getParent());
+      fs.listStatus(file.getParent());
+      assertEquals(hits, metrics.metadataCacheHits.getCurrentIntervalValue());
+      out.write(new byte[100]);
+      out.close();
+      assertEquals(200, fs.getFileStatus(file).getLen());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
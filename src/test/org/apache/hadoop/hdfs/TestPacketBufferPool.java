@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import junit.framework.TestCase;
+
+/** Unit tests for {@link PacketBufferPool}. */
+public class TestPacketBufferPool extends TestCase {
+
+  public void testReuse() {
+    PacketBufferPool pool = new PacketBufferPool(1024);
+    byte[] b = pool.get(100);
+    assertEquals(100, b.length);
+    pool.put(b);
+    assertEquals(100, pool.getPooledBytes());
+    // a buffer of another size is allocated
+    assertNotSame(b, pool.get(200));
+    assertSame(b, pool.get(100));
+    assertEquals(0, pool.getPooledBytes());
+  }
+
+  public void testLimit() {
+    PacketBufferPool pool = new PacketBufferPool(1000);
+    byte[] small1 = pool.get(300);
+    byte[] small2 = pool.get(300);
+    byte[] large = pool.get(600);
+    pool.put(small1);
+    pool.put(small2);
+    // the buffers of the least recently used size are dropped
+    pool.put(large);
+    assertEquals(900, pool.getPooledBytes());
+    assertSame(large, pool.get(600));
+    assertEquals(300, pool.getPooledBytes());
+
+    // a buffer larger than the pool is not kept
+    pool.put(new byte[2000]);
+    assertEquals(300, pool.getPooledBytes());
+  }
+
+  public void testDisabled() {
+    PacketBufferPool pool = new PacketBufferPool(0);
+    byte[] b = pool.get(100);
+    pool.put(b);
+    assertEquals(0, pool.getPooledBytes());
+    assertNotSame(b, pool.get(100));
+  }
+}
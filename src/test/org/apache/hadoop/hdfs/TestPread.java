@@ -19,11 +19,18 @@ package org.apache.hadoop.hdfs;
 
 import junit.framework.TestCase;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileRange;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
 import org.apache.hadoop.hdfs.server.datanode.SimulatedFSDataset;
 
 /**
@@ -148,10 +155,49 @@ public class TestPread extends TestCase {
       res = e;
     }
     assertTrue("Error reading beyond file boundary.", res != null);
-    
+
+    vectoredReadFile(stm, expected);
     stm.close();
   }
 
+  private void vectoredReadFile(FSDataInputStream stm, byte[] expected)
+      throws IOException {
+    // unsorted, overlapping, close and far apart ranges, crossing blocks,
+    // into heap and direct buffers
+    long[] offsets = {5*blockSize + 100, 0, 10, 2*blockSize - 10,
+                      5*blockSize, 11*blockSize};
+    int[] lengths = {1000, 100, 4000, 20, 200, blockSize};
+    List<FileRange> ranges = new ArrayList<FileRange>();
+    for (int i = 0; i < offsets.length; i++) {
+      ByteBuffer buf = i % 2 == 0 ? ByteBuffer.allocate(lengths[i] + 1)
+                                  : ByteBuffer.allocateDirect(lengths[i]);
+      if (i % 2 == 0) {
+        buf.put((byte) 0); // the range is read from the buffer position
+      }
+      ranges.add(new FileRange(offsets[i], lengths[i], buf));
+    }
+    stm.readVectored(ranges);
+    for (int i = 0; i < offsets.length; i++) {
+      ByteBuffer buf = ranges.get(i).getBuffer();
+      assertFalse("Vectored read " + i, buf.hasRemaining());
+      buf.flip();
+      buf.position(i % 2 == 0 ? 1 : 0);
+      byte[] actual = new byte[lengths[i]];
+      buf.get(actual);
+      checkAndEraseData(actual, (int) offsets[i], expected,
+                        "Vectored read " + i);
+    }
+
+    IOException res = null;
+    try { // read beyond the end of the file
+      stm.readVectored(Arrays.asList(new FileRange(11*blockSize + 1,
+          blockSize, ByteBuffer.allocate(blockSize))));
+    } catch (EOFException e) {
+      res = e;
+    }
+    assertTrue("Error reading a range beyond file boundary.", res != null);
+  }
+
   // test pread can survive datanode restarts
   private void datanodeRestartTest(MiniDFSCluster cluster, FileSystem fileSys,
       Path name) throws IOException {
@@ -237,6 +283,19 @@ public class TestPread extends TestCase {
       Path file1 = new Path("build/test/data", "preadtest.dat");
       writeFile(fileSys, file1);
       pReadFile(fileSys, file1);
+
+      // the positional and vectored reads are counted like the other reads
+      FileSystem.Statistics stats =
+        FileSystem.getStatistics("file", RawLocalFileSystem.class);
+      FSDataInputStream stm =
+        ((LocalFileSystem) fileSys).getRawFileSystem().open(file1);
+      long before = stats.getBytesRead();
+      stm.readFully(20, new byte[50]);
+      stm.readVectored(Arrays.asList(
+          new FileRange(10, 100, ByteBuffer.allocate(100)),
+          new FileRange(blockSize, 200, ByteBuffer.allocateDirect(200))));
+      assertEquals(350, stats.getBytesRead() - before);
+      stm.close();
       cleanupFile(fileSys, file1);
     } finally {
       fileSys.close();
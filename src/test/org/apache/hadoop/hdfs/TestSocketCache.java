@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.metrics.DFSClientMetrics;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Tests the reuse of the connections to the datanodes by the reads.
+ */
+public class TestSocketCache extends TestCase {
+
+  private ServerSocket server;
+  private List<Socket> sockets = new ArrayList<Socket>();
+
+  protected void setUp() throws Exception {
+    server = new ServerSocket(0, 10, null);
+  }
+
+  protected void tearDown() throws Exception {
+    for (Socket s : sockets) {
+      IOUtils.closeSocket(s);
+    }
+    server.close();
+  }
+
+  private Socket connect() throws Exception {
+    Socket s = new Socket();
+    s.connect(new InetSocketAddress("localhost", server.getLocalPort()));
+    sockets.add(s);
+    sockets.add(server.accept());
+    return s;
+  }
+
+  public void testGetPut() throws Exception {
+    SocketCache cache = new SocketCache(2, 60000);
+    Socket s1 = connect();
+    Socket s2 = connect();
+    Socket s3 = connect();
+    InetSocketAddress addr = (InetSocketAddress) s1.getRemoteSocketAddress();
+    InetSocketAddress other = new InetSocketAddress(addr.getAddress(),
+        addr.getPort() + 1);
+
+    assertNull(cache.get(addr));
+    cache.put(s1);
+    assertNull(cache.get(other));
+    assertSame(s1, cache.get(addr));
+    // a connection is used by one read at a time
+    assertNull(cache.get(addr));
+
+    // the connection put back the longest ago is closed
+    cache.put(s1);
+    cache.put(s2);
+    cache.put(s3);
+    assertEquals(2, cache.size());
+    assertTrue(s1.isClosed());
+    assertSame(s3, cache.get(addr));
+    assertSame(s2, cache.get(addr));
+
+    cache.put(s2);
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertTrue(s2.isClosed());
+  }
+
+  public void testExpiry() throws Exception {
+    SocketCache cache = new SocketCache(2, 1);
+    Socket s1 = connect();
+    cache.put(s1);
+    Thread.sleep(10);
+    assertNull(cache.get(s1.getRemoteSocketAddress()));
+    assertEquals(0, cache.size());
+    assertTrue(s1.isClosed());
+  }
+
+  /**
+   * The preads of a file use the connection kept open by the datanode
+   * after the previous read.
+   */
+  public void testReuse() throws Exception {
+    Configuration conf = new Configuration();
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      FileSystem fs = cluster.getFileSystem();
+      Path file = new Path("/testReuse");
+      DFSTestUtil.createFile(fs, file, 4096, (short) 1, 0L);
+      DFSClient client = ((DistributedFileSystem) fs).getClient();
+      DFSClientMetrics metrics = client.getDFSClientMetrics();
+      long created = metrics.readConnectionsCreated.getCurrentIntervalValue();
+      long reused = metrics.readConnectionsReused.getCurrentIntervalValue();
+
+      byte[] buf = new byte[100];
+      FSDataInputStream in = fs.open(file);
+      try {
+        for (int i = 0; i < 5; i++) {
+          in.readFully(i * 512, buf);
+        }
+      } finally {
+        in.close();
+      }
+      assertEquals(created + 1,
+          metrics.readConnectionsCreated.getCurrentIntervalValue());
+      assertEquals(reused + 4,
+          metrics.readConnectionsReused.getCurrentIntervalValue());
+      assertEquals(1, client.socketCache.size());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.io.IOUtils;
+
+/** Unit tests for {@link BlockCache}. */
+public class TestBlockCache extends TestCase {
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "/tmp"), "TestBlockCache");
+
+  public void setUp() throws IOException {
+    FileUtil.fullyDelete(TEST_DIR);
+    assertTrue(TEST_DIR.mkdirs());
+  }
+
+  public void tearDown() throws IOException {
+    FileUtil.fullyDelete(TEST_DIR);
+  }
+
+  private static byte[] createFile(File f, int size) throws IOException {
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) i;
+    }
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    return data;
+  }
+
+  private BlockCache.CachedBlock lookup(BlockCache cache, Block b)
+      throws IOException {
+    BlockCache.CachedBlock cached = cache.get(0, b);
+    if (cached == null) {
+      File blockFile = new File(TEST_DIR, b.getBlockName());
+      cached = cache.add(0, b, blockFile, FSDataset.getMetaFile(blockFile, b),
+          cache.getInvalidations());
+    }
+    return cached;
+  }
+
+  private Block createBlock(long id, int size) throws IOException {
+    Block b = new Block(id, size, 1);
+    File blockFile = new File(TEST_DIR, b.getBlockName());
+    createFile(blockFile, size);
+    createFile(FSDataset.getMetaFile(blockFile, b), 16);
+    return b;
+  }
+
+  /** Read the block from the given offset and release the block. */
+  private static byte[] read(BlockCache.CachedBlock cached, long offset,
+      int len) throws IOException {
+    InputStream meta = cached.openMetaInputStream();
+    InputStream data = cached.createStream(offset);
+    try {
+      byte[] buf = new byte[len];
+      IOUtils.readFully(data, buf, 0, len);
+      assertEquals(-1, data.read());
+      return buf;
+    } finally {
+      meta.close();
+      data.close();
+    }
+  }
+
+  public void testReadAndMap() throws IOException {
+    BlockCache cache = new BlockCache(10, 1024 * 1024, 2, null);
+    Block b = createBlock(1, 4096);
+
+    BlockCache.CachedBlock cached = lookup(cache, b);
+    byte[] buf = read(cached, 1000, 3096);
+    assertEquals((byte) 1000, buf[0]);
+    assertEquals(1, cache.size());
+    assertEquals(0, cache.getMappedBytes());
+
+    // the second read maps the block
+    assertSame(cached, lookup(cache, b));
+    assertEquals(4096 + 16, cache.getMappedBytes());
+    buf = read(cached, 0, 4096);
+    assertEquals((byte) 4095, buf[4095]);
+
+    // a block with another generation stamp is another block
+    assertNull(cache.get(0, new Block(1, 4096, 2)));
+  }
+
+  public void testEviction() throws IOException {
+    BlockCache cache = new BlockCache(2, 5000, 1, null);
+    Block b1 = createBlock(1, 4000);
+    Block b2 = createBlock(2, 4000);
+    Block b3 = createBlock(3, 100);
+
+    read(lookup(cache, b1), 0, 4000);
+    read(lookup(cache, b1), 0, 4000);
+    assertEquals(4000 + 16, cache.getMappedBytes());
+    // mapping b2 unmaps b1
+    read(lookup(cache, b2), 0, 4000);
+    read(lookup(cache, b2), 0, 4000);
+    assertEquals(4000 + 16, cache.getMappedBytes());
+    // adding b3 evicts b1, the least recently read block
+    read(lookup(cache, b3), 0, 100);
+    assertEquals(2, cache.size());
+    assertNull(cache.get(0, b1));
+    assertNotNull(cache.get(0, b2));
+  }
+
+  public void testInvalidateWhileReading() throws IOException {
+    BlockCache cache = new BlockCache(10, 0, 1, null);
+    Block b = createBlock(1, 4096);
+
+    BlockCache.CachedBlock cached = lookup(cache, b);
+    InputStream meta = cached.openMetaInputStream();
+    InputStream data = cached.createStream(0);
+    cache.invalidate(0, b);
+    assertEquals(0, cache.size());
+    // the files stay open until the streams are closed
+    byte[] buf = new byte[4096];
+    IOUtils.readFully(data, buf, 0, buf.length);
+    assertEquals((byte) 4095, buf[4095]);
+    meta.close();
+    data.close();
+    assertNull(cache.get(0, b));
+  }
+
+  /**
+   * A block invalidated between the lookup of its files and their addition
+   * is served to the read, but not cached.
+   */
+  public void testInvalidateBeforeAdd() throws IOException {
+    BlockCache cache = new BlockCache(10, 0, 1, null);
+    Block b = createBlock(1, 4096);
+
+    assertNull(cache.get(0, b));
+    long invalidations = cache.getInvalidations();
+    File blockFile = new File(TEST_DIR, b.getBlockName());
+    cache.invalidate(0, b);
+    BlockCache.CachedBlock cached = cache.add(0, b, blockFile,
+        FSDataset.getMetaFile(blockFile, b), invalidations);
+    assertEquals(0, cache.size());
+    byte[] buf = read(cached, 0, 4096);
+    assertEquals((byte) 4095, buf[4095]);
+    assertNull(cache.get(0, b));
+
+    // without an invalidation the block is cached
+    cached = lookup(cache, b);
+    read(cached, 0, 4096);
+    assertEquals(1, cache.size());
+  }
+}
@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.MiniDFSCluster.DataNodeProperties;
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * Tests the block lists saved by the datanode at shutdown and loaded at
+ * startup instead of scanning the volumes.
+ */
+public class TestBlockListCache extends TestCase {
+  private static final int BLOCK_SIZE = 4096;
+
+  private MiniDFSCluster cluster;
+  private int namespaceId;
+
+  private File getBlockList(String dataDir) {
+    return new File(cluster.getBlockDirectory(dataDir).getParentFile(),
+                    FSDataset.BLOCK_LIST_FILE);
+  }
+
+  private int getNumBlocks() {
+    DataNode datanode = cluster.getDataNodes().get(0);
+    return ((FSDataset) datanode.data).volumeMap.size(namespaceId);
+  }
+
+  public void testBlockList() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean("dfs.datanode.blocklist.cache", true);
+    conf.setInt("dfs.datanode.volume.scan.threads", 2);
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    // a few blocks per directory, so that the volumes have subdirectories
+    conf.setInt("dfs.datanode.numblocks", 2);
+    cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      namespaceId = cluster.getNameNode().getNamespaceID();
+      FileSystem fs = cluster.getFileSystem();
+      Path file1 = new Path("/file1");
+      DFSTestUtil.createFile(fs, file1, 20 * BLOCK_SIZE, (short)1, 1L);
+      FileChecksum checksum1 = fs.getFileChecksum(file1);
+      int numBlocks = getNumBlocks();
+      assertEquals(20, numBlocks);
+
+      // the lists are saved at shutdown and deleted when they are loaded
+      DataNodeProperties dnprop = cluster.stopDataNode(0);
+      assertTrue(getBlockList("data1").exists());
+      assertTrue(getBlockList("data2").exists());
+      cluster.restartDataNode(dnprop);
+      assertFalse(getBlockList("data1").exists());
+      assertFalse(getBlockList("data2").exists());
+      assertEquals(numBlocks, getNumBlocks());
+      assertEquals(checksum1, fs.getFileChecksum(file1));
+      DataNode datanode = cluster.getDataNodes().get(0);
+      assertTrue(datanode.getMetrics().startupTime.get() > 0);
+
+      // the directory trees built from the lists take new blocks
+      Path file2 = new Path("/file2");
+      DFSTestUtil.createFile(fs, file2, 10 * BLOCK_SIZE, (short)1, 2L);
+      FileChecksum checksum2 = fs.getFileChecksum(file2);
+      numBlocks = getNumBlocks();
+      assertEquals(30, numBlocks);
+
+      // a corrupt list is ignored and the volume is scanned
+      dnprop = cluster.stopDataNode(0);
+      RandomAccessFile raf = new RandomAccessFile(getBlockList("data1"), "rw");
+      try {
+        raf.seek(raf.length() / 2);
+        int b = raf.read();
+        raf.seek(raf.length() / 2);
+        raf.write(b ^ 0xff);
+      } finally {
+        raf.close();
+      }
+      cluster.restartDataNode(dnprop);
+      assertEquals(numBlocks, getNumBlocks());
+
+      // without the lists
+      dnprop = cluster.stopDataNode(0);
+      assertTrue(getBlockList("data1").delete());
+      assertTrue(getBlockList("data2").delete());
+      cluster.restartDataNode(dnprop);
+      assertEquals(numBlocks, getNumBlocks());
+      assertEquals(checksum1, fs.getFileChecksum(file1));
+      assertEquals(checksum2, fs.getFileChecksum(file2));
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * A list is ignored when a subdirectory of the finalized directory was
+   * modified while the datanode was stopped.
+   */
+  public void testModifiedSubdir() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean("dfs.datanode.blocklist.cache", true);
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    conf.setInt("dfs.datanode.numblocks", 2);
+    cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      namespaceId = cluster.getNameNode().getNamespaceID();
+      FileSystem fs = cluster.getFileSystem();
+      DFSTestUtil.createFile(fs, new Path("/file"), 20 * BLOCK_SIZE,
+          (short)1, 1L);
+      int numBlocks = getNumBlocks();
+
+      DataNodeProperties dnprop = cluster.stopDataNode(0);
+      assertTrue(getBlockList("data1").exists());
+      File subdir = null;
+      for (File f : cluster.getBlockDirectory("data1").listFiles()) {
+        if (f.isDirectory() && f.list().length > 0) {
+          subdir = f;
+          break;
+        }
+      }
+      assertNotNull(subdir);
+      // the modification times of directories may only have seconds
+      Thread.sleep(1100);
+      File moved = null;
+      for (File f : subdir.listFiles()) {
+        if (Block.isBlockFilename(f)) {
+          moved = f;
+          break;
+        }
+      }
+      assertNotNull(moved);
+      // the block does not belong to the subdirectory anymore
+      for (File f : subdir.listFiles()) {
+        if (f.getName().startsWith(moved.getName())) {
+          assertTrue(f.renameTo(new File(subdir.getParentFile(), f.getName())));
+        }
+      }
+      cluster.restartDataNode(dnprop);
+
+      // the volume was scanned: the block is found at its new place
+      DataNode datanode = cluster.getDataNodes().get(0);
+      FSDataset data = (FSDataset) datanode.data;
+      assertEquals(numBlocks, getNumBlocks());
+      Block b = new Block(Block.filename2id(moved.getName()));
+      File blockFile = data.getBlockFile(namespaceId, b);
+      assertEquals(subdir.getParentFile(), blockFile.getParentFile());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
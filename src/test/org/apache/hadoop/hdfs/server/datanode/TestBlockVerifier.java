@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.TestDatanodeBlockScanner;
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/** Tests the verification of the blocks by {@link BlockVerifier}. */
+public class TestBlockVerifier extends TestCase {
+  private static final int FILE_LEN = 3 * BlockVerifier.READ_SIZE + 100;
+
+  private static long verify(BlockVerifier verifier) throws Exception {
+    long total = 0;
+    try {
+      for (long len; (len = verifier.verifyNext()) >= 0; ) {
+        total += len;
+      }
+    } finally {
+      verifier.close();
+    }
+    return total;
+  }
+
+  public void testVerifyBlock() throws Exception {
+    Configuration conf = new Configuration();
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path file = new Path("/testVerifyBlock");
+      DFSTestUtil.createFile(fs, file, FILE_LEN, (short)1, 0);
+      Block block = DFSTestUtil.getFirstBlock(fs, file);
+      int namespaceId = cluster.getNameNode().getNamespaceID();
+      DataNode dn = cluster.getDataNodes().get(0);
+
+      BlockVerifier verifier = new BlockVerifier(namespaceId, block, dn.data);
+      assertEquals(FILE_LEN, verifier.getBlockLength());
+      int bytesPerChecksum = conf.getInt("io.bytes.per.checksum", 512);
+      long numChunks = (FILE_LEN + bytesPerChecksum - 1) / bytesPerChecksum;
+      assertEquals(FILE_LEN + numChunks * 4, verify(verifier));
+
+      assertTrue(TestDatanodeBlockScanner.corruptReplica(
+          block.getBlockName(), 0, cluster));
+      try {
+        verify(new BlockVerifier(namespaceId, block, dn.data));
+        fail("The corrupt block was verified");
+      } catch (ChecksumException e) {
+        // expected
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -78,6 +78,43 @@ public class TestDatanodeRestart extends TestCase {
     }
   }
 
+  // test that deleting an rbw replica does not change the dfs usage
+  public void testInvalidateRbwReplica() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean("dfs.support.append", true);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    cluster.waitActive();
+    FSDataOutputStream out = null;
+    try {
+      FileSystem fs = cluster.getFileSystem();
+      int namespaceId = cluster.getNameNode().versionRequest()
+          .getNamespaceID();
+      DataNode dn = cluster.getDataNodes().get(0);
+      FSDataset data = (FSDataset) dn.data;
+      DFSTestUtil.createFile(fs, new Path("/finalized"), 4096, (short)1, 0L);
+      out = fs.create(new Path("/rbw"));
+      out.write(new byte[4096]);
+      out.sync();
+
+      // only the finalized replica is counted
+      long used = data.getNSUsed(namespaceId);
+      Block[] rbw = data.getBlocksBeingWrittenReport(namespaceId);
+      assertEquals(1, rbw.length);
+      File blockFile = data.getBlockFile(namespaceId, rbw[0]);
+      data.invalidate(namespaceId, rbw);
+      long deadline = System.currentTimeMillis() + 10000;
+      while (blockFile.getParentFile().list().length > 0) {
+        assertTrue("Timed out waiting for the deletion",
+            System.currentTimeMillis() < deadline);
+        Thread.sleep(100);
+      }
+      assertEquals(used, data.getNSUsed(namespaceId));
+    } finally {
+      IOUtils.closeStream(out);
+      cluster.shutdown();
+    }
+  }
+
   private void testRbwReplicas(MiniDFSCluster cluster, boolean isCorrupt)
       throws IOException {
     FSDataOutputStream out = null;
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.DataTransferProtocol;
+import org.apache.hadoop.hdfs.server.datanode.metrics.DataNodeMetrics;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Tests the DataXceiverServer serving the requests with a pool of threads.
+ */
+public class TestEventDrivenXceiverServer extends TestCase {
+
+  public void testIdleConnections() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("dfs.datanode.xceiver.threads.per.volume", 1);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    Socket[] idle = new Socket[20];
+    try {
+      cluster.waitActive();
+      DataNode datanode = cluster.getDataNodes().get(0);
+      DataXceiverServer server =
+        (DataXceiverServer) datanode.dataXceiverServer.getRunnable();
+      assertTrue(server.isEventDriven());
+
+      // connections which never send a request
+      for (int i = 0; i < idle.length; i++) {
+        idle[i] = new Socket();
+        idle[i].connect(datanode.getSelfAddr());
+      }
+      Thread.sleep(500);
+      assertEquals(0, datanode.getXceiverCount());
+
+      // the requests are still served by the few threads of the pool
+      FileSystem fs = cluster.getFileSystem();
+      Path file = new Path("/test");
+      DFSTestUtil.createFile(fs, file, 1024 * 1024, (short)1, 1L);
+      byte[] buf = new byte[1024 * 1024];
+      FSDataInputStream in = fs.open(file);
+      in.readFully(0, buf);
+      in.close();
+
+      DataNodeMetrics metrics = datanode.getMetrics();
+      assertTrue(metrics.xceiverThreads.get() > 0);
+      assertTrue(metrics.xceiverThreads.get() <= 2);
+    } finally {
+      for (Socket s : idle) {
+        IOUtils.closeSocket(s);
+      }
+      cluster.shutdown();
+    }
+  }
+
+  /** Open a connection which sends the start of a request and stalls. */
+  private static Socket stallRequest(DataNode datanode) throws IOException {
+    Socket s = new Socket();
+    s.connect(datanode.getSelfAddr());
+    DataOutputStream out = new DataOutputStream(s.getOutputStream());
+    out.writeShort(DataTransferProtocol.DATA_TRANSFER_VERSION);
+    out.writeByte(DataTransferProtocol.OP_READ_BLOCK);
+    out.flush();
+    return s;
+  }
+
+  public void testStalledRequests() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("dfs.datanode.xceiver.threads.per.volume", 1);
+    conf.setInt("dfs.datanode.max.xcievers", 8);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    Socket[] stalled = new Socket[10];
+    try {
+      cluster.waitActive();
+      DataNode datanode = cluster.getDataNodes().get(0);
+      FileSystem fs = cluster.getFileSystem();
+      Path file = new Path("/test");
+      DFSTestUtil.createFile(fs, file, 1024 * 1024, (short)1, 1L);
+
+      // requests holding more threads than the pool keeps
+      for (int i = 0; i < 4; i++) {
+        stalled[i] = stallRequest(datanode);
+      }
+      Thread.sleep(500);
+      assertEquals(4, datanode.getXceiverCount());
+
+      // do not wait for a thread behind them
+      long start = System.currentTimeMillis();
+      byte[] buf = new byte[1024 * 1024];
+      FSDataInputStream in = fs.open(file);
+      in.readFully(0, buf);
+      in.close();
+      assertTrue(System.currentTimeMillis() - start < 10000);
+
+      // past the limit the requests are refused
+      DataNodeMetrics metrics = datanode.getMetrics();
+      for (int i = 4; i < stalled.length; i++) {
+        stalled[i] = stallRequest(datanode);
+      }
+      Thread.sleep(500);
+      assertEquals(8, datanode.getXceiverCount());
+      assertEquals(2, metrics.xceiverRejectedOps.getCurrentIntervalValue());
+    } finally {
+      for (Socket s : stalled) {
+        IOUtils.closeSocket(s);
+      }
+      cluster.shutdown();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.namenode.NameNode;
+import org.apache.hadoop.hdfs.server.protocol.ReceivedBlockInfo;
+import org.junit.Test;
+
+public class TestIncrementalBlockReport {
+
+  private static Block deleted(long id) {
+    Block b = new Block(id, 0, 1);
+    DFSUtil.markAsDeleted(b);
+    return b;
+  }
+
+  @Test
+  public void testCompactReceivedAndDeletedBlocks() {
+    Block[] blocks = {new Block(1, 10, 1), new Block(2, 10, 1),
+                      new Block(3, 10, 1)};
+    assertSame(blocks, DataNode.compactReceivedAndDeletedBlocks(blocks));
+
+    blocks = new Block[] {
+        new Block(1, 10, 1),
+        new ReceivedBlockInfo(new Block(2, 10, 1), "delHint"),
+        deleted(1),
+        new Block(3, 10, 1),
+        new Block(2, 20, 2),
+        deleted(4),
+        new Block(4, 10, 3)};
+    Block[] compacted = DataNode.compactReceivedAndDeletedBlocks(blocks);
+    assertEquals(4, compacted.length);
+    assertSame(blocks[2], compacted[0]);
+    assertTrue(DFSUtil.isDeleted(compacted[0]));
+    assertSame(blocks[3], compacted[1]);
+    assertSame(blocks[4], compacted[2]);
+    assertSame(blocks[6], compacted[3]);
+  }
+
+  private static long numBlockReports() {
+    return NameNode.getNameNodeMetrics().numBlockReport
+        .getCurrentIntervalValue();
+  }
+
+  @Test
+  public void testIncrementalBlockReports() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean("dfs.blockreport.incremental", true);
+    conf.setLong("dfs.blockreport.intervalMsec", 500L);
+    conf.setInt("dfs.fullblockreport.magnifier", 1);
+    // process the block reports a few blocks at a time
+    conf.setInt("dfs.blockreport.slice.size", 3);
+    conf.setLong("dfs.block.size", 1024L);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 2, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path file = new Path("/test/incremental");
+      DFSTestUtil.createFile(fs, file, 20 * 1024L, (short)2, 0L);
+      DFSTestUtil.waitReplication(fs, file, (short)2);
+
+      // no periodic full block reports, only the received blocks
+      long reports = numBlockReports();
+      Thread.sleep(3000);
+      assertEquals(reports, numBlockReports());
+
+      // a scheduled block report is still sent
+      for (DataNode dn : cluster.getDataNodes()) {
+        dn.scheduleNSBlockReport(0);
+      }
+      long deadline = System.currentTimeMillis() + 30000;
+      while (numBlockReports() < reports + 2) {
+        assertTrue("Timed out waiting for the block reports",
+                   System.currentTimeMillis() < deadline);
+        Thread.sleep(100);
+      }
+
+      // the first reports to a restarted namenode are full reports
+      cluster.restartNameNode(0);
+      fs = cluster.getFileSystem();
+      DFSTestUtil.waitReplication(fs, file, (short)2);
+      assertEquals(20 * 1024L, fs.getFileStatus(file).getLen());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.ActiveFile;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
+import org.apache.hadoop.util.DiskChecker.DiskOutOfSpaceException;
+
+/** Unit tests for {@link LoadAwareVolumeChoosingPolicy}. */
+public class TestLoadAwareVolumeChoosingPolicy extends TestCase {
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "/tmp"),
+      "TestLoadAwareVolumeChoosingPolicy");
+
+  private FSDataset dataset;
+  private FSVolume[] volumes;
+
+  protected void setUp() throws IOException {
+    FileUtil.fullyDelete(TEST_DIR);
+    Configuration conf = new Configuration();
+    dataset = new FSDataset();
+    dataset.volumeMap = new VolumeMap(1);
+    dataset.volumeMap.initNamespace(0);
+    volumes = new FSVolume[2];
+    for (int i = 0; i < volumes.length; i++) {
+      File dir = new File(TEST_DIR, "data" + i + "/current");
+      assertTrue(dir.mkdirs());
+      // the volumes share a disk, so they have the same available space
+      volumes[i] = dataset.new FSVolume(dataset, dir, conf);
+    }
+  }
+
+  protected void tearDown() throws IOException {
+    for (FSVolume v : volumes) {
+      v.shutdown();
+    }
+    FileUtil.fullyDelete(TEST_DIR);
+  }
+
+  /** Add a block being written to a volume, as writeToBlock does. */
+  private void startWrite(FSVolume volume, Block b) {
+    dataset.volumeMap.add(0, b, new DatanodeBlockInfo(volume));
+    dataset.volumeMap.addOngoingCreates(0, b,
+        new ActiveFile(new File(volume.getDir(), b.getBlockName()), null));
+  }
+
+  public void testChooseVolume() throws IOException {
+    LoadAwareVolumeChoosingPolicy policy = new LoadAwareVolumeChoosingPolicy();
+    policy.setConf(new Configuration());
+
+    // nothing measured: the volumes are chosen in turn
+    assertSame(volumes[0], policy.chooseVolume(volumes, 1024));
+    assertSame(volumes[1], policy.chooseVolume(volumes, 1024));
+
+    // the faster volume is preferred
+    volumes[0].recordWriteLatency(1000);
+    volumes[1].recordWriteLatency(100);
+    for (int i = 0; i < 4; i++) {
+      assertSame(volumes[1], policy.chooseVolume(volumes, 1024));
+    }
+
+    // unless it is busy
+    for (int i = 0; i < 10; i++) {
+      startWrite(volumes[1], new Block(i, 0, 1));
+    }
+    assertEquals(10, volumes[1].getNumActiveWriters());
+    assertEquals(0, volumes[0].getNumActiveWriters());
+    assertSame(volumes[0], policy.chooseVolume(volumes, 1024));
+    for (int i = 0; i < 10; i++) {
+      dataset.volumeMap.removeOngoingCreates(0, new Block(i, 0, 1));
+    }
+    assertEquals(0, volumes[1].getNumActiveWriters());
+    assertSame(volumes[1], policy.chooseVolume(volumes, 1024));
+
+    try {
+      policy.chooseVolume(volumes, Long.MAX_VALUE);
+      fail("Expected a DiskOutOfSpaceException");
+    } catch (DiskOutOfSpaceException e) {
+    }
+  }
+
+  public void testCountWriters() throws Exception {
+    // copyBlockLocal adds the ongoing create before the block
+    Block b = new Block(1, 0, 1);
+    dataset.volumeMap.addOngoingCreates(0, b,
+        new ActiveFile(new File(volumes[0].getDir(), b.getBlockName()), null));
+    assertEquals(0, volumes[0].getNumActiveWriters());
+    dataset.volumeMap.add(0, b, new DatanodeBlockInfo(volumes[0]));
+    assertEquals(1, volumes[0].getNumActiveWriters());
+
+    // updateBlock moves the ongoing create to the new block
+    Block newBlock = new Block(1, 0, 2);
+    ActiveFile af = dataset.volumeMap.removeOngoingCreates(0, b);
+    dataset.volumeMap.addOngoingCreates(0, newBlock, af);
+    dataset.volumeMap.update(0, b, newBlock);
+    assertEquals(1, volumes[0].getNumActiveWriters());
+
+    // a block being written found at startup has no writer
+    Block recovered = new Block(2, 0, 1);
+    startWrite(volumes[1], new Block(3, 0, 1));
+    dataset.volumeMap.add(0, recovered, new DatanodeBlockInfo(volumes[1]));
+    dataset.volumeMap.addOngoingCreates(0, recovered,
+        ActiveFile.createStartupRecoveryFile(
+            new File(volumes[1].getDir(), recovered.getBlockName())));
+    assertEquals(1, volumes[1].getNumActiveWriters());
+
+    dataset.volumeMap.removeOngoingCreates(0, newBlock);
+    assertEquals(0, volumes[0].getNumActiveWriters());
+    dataset.volumeMap.removeNamespace(0);
+    assertEquals(0, volumes[1].getNumActiveWriters());
+  }
+
+  public void testLatencyExpiry() throws Exception {
+    LoadAwareVolumeChoosingPolicy policy = new LoadAwareVolumeChoosingPolicy();
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.datanode.volume.choosing.latency.expiry.ms", 100);
+    policy.setConf(conf);
+    volumes[0].recordWriteLatency(1000);
+    volumes[1].recordWriteLatency(100);
+    assertSame(volumes[1], policy.chooseVolume(volumes, 1024));
+    assertSame(volumes[1], policy.chooseVolume(volumes, 1024));
+
+    // a slow volume is tried again once its latency has expired
+    Thread.sleep(200);
+    volumes[1].recordWriteLatency(100);
+    assertEquals(0.0, volumes[0].getWriteLatency(
+        System.currentTimeMillis() - 100));
+    assertSame(volumes[0], policy.chooseVolume(volumes, 1024));
+  }
+}
@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.server.datanode.VolumeIOScheduler.Priority;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+
+/** Unit tests for {@link VolumeIOScheduler}. */
+public class TestVolumeIOScheduler extends TestCase {
+
+  private final List<Priority> started =
+    Collections.synchronizedList(new ArrayList<Priority>());
+
+  private Thread start(final VolumeIOScheduler scheduler,
+                       final Priority priority) {
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          scheduler.acquire(priority);
+          started.add(priority);
+          scheduler.release(priority);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    t.start();
+    return t;
+  }
+
+  private static void waitForQueue(VolumeIOScheduler scheduler,
+      Priority priority, int depth) throws InterruptedException {
+    while (scheduler.getQueueDepth(priority) != depth) {
+      Thread.sleep(10);
+    }
+  }
+
+  public void testPriorities() throws Exception {
+    VolumeIOScheduler scheduler = new VolumeIOScheduler(1,
+        new int[] {1, 1, 1}, "test", new MetricsRegistry());
+    scheduler.acquire(Priority.FOREGROUND);
+    assertEquals(1, scheduler.getInFlight(Priority.FOREGROUND));
+
+    Thread background = start(scheduler, Priority.BACKGROUND);
+    waitForQueue(scheduler, Priority.BACKGROUND, 1);
+    Thread replication = start(scheduler, Priority.REPLICATION);
+    waitForQueue(scheduler, Priority.REPLICATION, 1);
+    Thread foreground = start(scheduler, Priority.FOREGROUND);
+    waitForQueue(scheduler, Priority.FOREGROUND, 1);
+
+    scheduler.release(Priority.FOREGROUND);
+    foreground.join();
+    replication.join();
+    background.join();
+    assertEquals(Priority.FOREGROUND, started.get(0));
+    assertEquals(Priority.REPLICATION, started.get(1));
+    assertEquals(Priority.BACKGROUND, started.get(2));
+    assertEquals(0, scheduler.getInFlight(Priority.FOREGROUND));
+  }
+
+  public void testLimitPerPriority() throws Exception {
+    VolumeIOScheduler scheduler = new VolumeIOScheduler(4,
+        new int[] {4, 2, 1}, "test", null);
+    scheduler.acquire(Priority.BACKGROUND);
+    // the background class is full, the others are not
+    Thread background = start(scheduler, Priority.BACKGROUND);
+    waitForQueue(scheduler, Priority.BACKGROUND, 1);
+    scheduler.acquire(Priority.REPLICATION);
+    scheduler.acquire(Priority.FOREGROUND);
+    assertTrue(started.isEmpty());
+
+    scheduler.release(Priority.BACKGROUND);
+    background.join();
+    assertEquals(Priority.BACKGROUND, started.get(0));
+    scheduler.release(Priority.REPLICATION);
+    scheduler.release(Priority.FOREGROUND);
+  }
+
+  /**
+   * A steady load of the clients must not starve the lower classes.
+   */
+  public void testNoStarvation() throws Exception {
+    VolumeIOScheduler scheduler = new VolumeIOScheduler(2,
+        new int[] {2, 1, 1}, "test", null);
+    scheduler.acquire(Priority.FOREGROUND);
+    scheduler.acquire(Priority.FOREGROUND);
+    Thread background = start(scheduler, Priority.BACKGROUND);
+    waitForQueue(scheduler, Priority.BACKGROUND, 1);
+    Thread foreground = start(scheduler, Priority.FOREGROUND);
+    waitForQueue(scheduler, Priority.FOREGROUND, 1);
+
+    // the free slot is kept for the background class
+    scheduler.release(Priority.FOREGROUND);
+    background.join();
+    foreground.join();
+    assertEquals(Priority.BACKGROUND, started.get(0));
+    assertEquals(Priority.FOREGROUND, started.get(1));
+    scheduler.release(Priority.FOREGROUND);
+  }
+
+  /**
+   * A client that stops reading must not keep the slot of the volume
+   * while the datanode waits to send it the rest of the block.
+   */
+  public void testSlowReader() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean("dfs.datanode.io.scheduler.enabled", true);
+    conf.setInt("dfs.datanode.io.scheduler.max.inflight", 1);
+    final long fileLen = 16 * 1024 * 1024;
+    conf.setLong("dfs.block.size", 2 * fileLen);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    FSDataInputStream slow = null;
+    try {
+      cluster.waitActive();
+      final FileSystem fs = cluster.getFileSystem();
+      final Path file = new Path("/testSlowReader");
+      DFSTestUtil.createFile(fs, file, fileLen, (short)1, 0);
+
+      // the datanode fills the socket buffers and waits for the client
+      slow = fs.open(file);
+      slow.read();
+
+      final long[] read = new long[1];
+      Thread reader = new Thread() {
+        public void run() {
+          FSDataInputStream in = null;
+          try {
+            in = fs.open(file);
+            byte[] buf = new byte[64 * 1024];
+            for (int n; (n = in.read(buf)) > 0;) {
+              read[0] += n;
+            }
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          } finally {
+            IOUtils.closeStream(in);
+          }
+        }
+      };
+      reader.start();
+      reader.join(60000);
+      assertEquals(fileLen, read[0]);
+    } finally {
+      IOUtils.closeStream(slow);
+      cluster.shutdown();
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.ActiveFile;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset.FSVolume;
+import org.apache.hadoop.hdfs.util.DataTransferThrottler;
+
+/**
+ * Benchmark of the volume choosing policies with volumes of different
+ * speeds.
+ *
+ * The benchmark creates one directory per volume under -dir, all on the
+ * same disk, and throttles the writes to each of them to the bandwidth
+ * given by -rates, in MB/s, so that a slow disk can be simulated by a low
+ * rate. -writers threads then write -blocks blocks of -blocksize bytes in
+ * packets of -packet bytes, each to the volume chosen by the policy, the
+ * way the BlockReceivers of a DataNode do. The benchmark is run with the
+ * round robin and the load aware policies, and reports the write
+ * throughput, the average and the 99th percentile of the time to write a
+ * block, and the number of blocks written to each volume.
+ *
+ * Synopsis:
+ *   VolumeChoosingPolicyBenchmark [-rates MB/s,MB/s,...] [-writers N]
+ *                                 [-blocks N] [-blocksize bytes]
+ *                                 [-packet bytes] [-dir path]
+ */
+public class VolumeChoosingPolicyBenchmark {
+  private long[] rates = {100, 100, 100, 20};
+  private int numWriters = 8;
+  private int numBlocks = 200;
+  private long blockSize = 8 * 1024 * 1024;
+  private int packetSize = 64 * 1024;
+  private File dir = new File(System.getProperty("test.build.data", "/tmp"),
+                              "VolumeChoosingPolicyBenchmark");
+
+  private void runPolicy(final VolumeChoosingPolicy policy)
+      throws Exception {
+    FileUtil.fullyDelete(dir);
+    Configuration conf = new Configuration();
+    final FSDataset dataset = new FSDataset();
+    dataset.volumeMap = new VolumeMap(1);
+    dataset.volumeMap.initNamespace(0);
+    final FSVolume[] volumes = new FSVolume[rates.length];
+    final DataTransferThrottler[] throttlers =
+      new DataTransferThrottler[rates.length];
+    final Map<FSVolume, Integer> index = new HashMap<FSVolume, Integer>();
+    for (int i = 0; i < volumes.length; i++) {
+      File current = new File(dir, "data" + i + "/current");
+      if (!current.mkdirs()) {
+        throw new IOException("Cannot create " + current);
+      }
+      volumes[i] = dataset.new FSVolume(dataset, current, conf);
+      throttlers[i] = new DataTransferThrottler(100, rates[i] * 1024 * 1024);
+      index.put(volumes[i], i);
+    }
+
+    final AtomicInteger nextBlock = new AtomicInteger();
+    final long[] blockMillis = new long[numBlocks];
+    final int[] blocksPerVolume = new int[volumes.length];
+    final byte[] packet = new byte[packetSize];
+    Thread[] writers = new Thread[numWriters];
+    long begin = System.currentTimeMillis();
+    for (int w = 0; w < numWriters; w++) {
+      writers[w] = new Thread() {
+        public void run() {
+          int b;
+          while ((b = nextBlock.getAndIncrement()) < numBlocks) {
+            try {
+              blockMillis[b] = writeBlock(b);
+            } catch (IOException e) {
+              e.printStackTrace();
+              return;
+            }
+          }
+        }
+
+        private long writeBlock(int b) throws IOException {
+          long start = System.currentTimeMillis();
+          Block block = new Block(b, 0, 1);
+          FSVolume volume;
+          File f;
+          synchronized (volumes) {
+            volume = policy.chooseVolume(volumes, blockSize);
+            f = new File(volume.getDir(), block.getBlockName());
+            dataset.volumeMap.add(0, block, new DatanodeBlockInfo(volume));
+            dataset.volumeMap.addOngoingCreates(0, block,
+                new ActiveFile(f, null));
+          }
+          int i = index.get(volume);
+          synchronized (blocksPerVolume) {
+            blocksPerVolume[i]++;
+          }
+          FileOutputStream out = new FileOutputStream(f);
+          try {
+            for (long written = 0; written < blockSize;
+                 written += packetSize) {
+              long packetStart = System.nanoTime();
+              out.write(packet);
+              throttlers[i].throttle(packetSize);
+              volume.recordWriteLatency(
+                  (System.nanoTime() - packetStart) / 1000);
+            }
+          } finally {
+            out.close();
+            dataset.volumeMap.removeOngoingCreates(0, block);
+            dataset.volumeMap.remove(0, block);
+            f.delete();
+          }
+          return System.currentTimeMillis() - start;
+        }
+      };
+      writers[w].start();
+    }
+    for (Thread t : writers) {
+      t.join();
+    }
+    long elapsed = System.currentTimeMillis() - begin;
+    for (FSVolume v : volumes) {
+      v.shutdown();
+    }
+    FileUtil.fullyDelete(dir);
+
+    long total = 0;
+    for (long t : blockMillis) {
+      total += t;
+    }
+    Arrays.sort(blockMillis);
+    System.out.println(String.format("%-34s %10.1f %12d %12d   %s",
+        policy.getClass().getSimpleName(),
+        (double) numBlocks * blockSize / (1024 * 1024) * 1000 / elapsed,
+        total / numBlocks,
+        blockMillis[Math.min(numBlocks - 1, numBlocks * 99 / 100)],
+        Arrays.toString(blocksPerVolume)));
+  }
+
+  void run() throws Exception {
+    System.out.println("volume rates (MB/s): " + Arrays.toString(rates));
+    System.out.println(String.format("%-34s %10s %12s %12s   %s",
+        "policy", "MB/s", "avg ms", "p99 ms", "blocks per volume"));
+    runPolicy(new RoundRobinVolumeChoosingPolicy());
+    LoadAwareVolumeChoosingPolicy loadAware =
+      new LoadAwareVolumeChoosingPolicy();
+    loadAware.setConf(new Configuration());
+    runPolicy(loadAware);
+  }
+
+  private static void printUsage() {
+    System.err.println("Usage: VolumeChoosingPolicyBenchmark"
+        + " [-rates MB/s,MB/s,...] [-writers N] [-blocks N]"
+        + " [-blocksize bytes] [-packet bytes] [-dir path]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    VolumeChoosingPolicyBenchmark bench = new VolumeChoosingPolicyBenchmark();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (i + 1 == args.length) {
+          printUsage();
+        }
+        if (args[i].equals("-rates")) {
+          String[] values = args[++i].split(",");
+          bench.rates = new long[values.length];
+          for (int j = 0; j < values.length; j++) {
+            bench.rates[j] = Long.parseLong(values[j]);
+          }
+        } else if (args[i].equals("-writers")) {
+          bench.numWriters = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-blocks")) {
+          bench.numBlocks = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-blocksize")) {
+          bench.blockSize = Long.parseLong(args[++i]);
+        } else if (args[i].equals("-packet")) {
+          bench.packetSize = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-dir")) {
+          bench.dir = new File(args[++i]);
+        } else {
+          printUsage();
+        }
+      }
+    } catch (NumberFormatException e) {
+      printUsage();
+    }
+    bench.run();
+  }
+}
@@ -0,0 +1,405 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
+
+/**
+ * A compact namespace store that keeps inode attributes and block lists
+ * in primitive long buffers instead of one object per inode and block.
+ *
+ * Every inode is a fixed size record of {@link #RECORD_LONGS} longs,
+ * identified by its index (the inode id). Names are kept in a separate
+ * byte store and the blocks of a file as (id, length, generation stamp)
+ * triples in a block store. The buffers are allocated in fixed size
+ * chunks either on the heap or, when created with offHeap set, as direct
+ * buffers outside of the Java heap, so the garbage collector only sees a
+ * handful of chunk objects regardless of the size of the namespace.
+ *
+ * The store is built in bulk in image order: the children of a directory
+ * are added together, get consecutive ids and must be sorted by name,
+ * which is how {@link FSImage} saves them. This allows looking up a child
+ * by binary search without any per directory index. {@link INode}
+ * objects are only materialised on demand by {@link #getINode(long)};
+ * they are detached copies, not linked to the FSDirectory or BlocksMap.
+ *
+ * Files under construction are not supported. The store is not
+ * synchronized; concurrent readers are safe only once it is built.
+ *
+ * This is a prototype of the representation, kept with the tests for
+ * NNMemoryBenchmark to measure its footprint. The namenode does not use
+ * it: FSDirectory, the lease manager and the BlocksMap keep INode and
+ * BlockInfo objects, and can only be served by such a store once their
+ * mutation paths work on inode ids.
+ */
+class CompactINodeStore {
+  static final int RECORD_LONGS = 8;
+  // offsets of the fields of an inode record
+  private static final int PARENT = 0;
+  private static final int PERMISSION = 1;
+  private static final int MTIME = 2;
+  private static final int ATIME = 3;      // access time, or ds quota
+  private static final int HEADER = 4;     // file header, or ns quota
+  private static final int FIRST = 5;      // first block, or first child
+  private static final int COUNT = 6;      // # of blocks, or -1 - # children
+  private static final int NAME = 7;       // offset of the name
+
+  private static final int LONGS_PER_BLOCK = 3;
+  static final int CHUNK_SHIFT = 16;       // 64K longs, 512KB per chunk
+  static final int BYTE_CHUNK_SIZE = 1 << 20;
+
+  private final boolean offHeap;
+  private final List<LongBuffer> inodes = new ArrayList<LongBuffer>();
+  private final List<LongBuffer> blocks = new ArrayList<LongBuffer>();
+  private final List<ByteBuffer> names = new ArrayList<ByteBuffer>();
+  private long numINodes = 0;
+  private long numBlockLongs = 0;
+  private long nameBytes = 0;
+
+  /**
+   * @param offHeap allocate the buffers outside of the Java heap
+   */
+  CompactINodeStore(boolean offHeap) {
+    this.offHeap = offHeap;
+  }
+
+  /** @return the number of inodes in the store */
+  long size() {
+    return numINodes;
+  }
+
+  /** @return the number of blocks in the store */
+  long getNumBlocks() {
+    return numBlockLongs / LONGS_PER_BLOCK;
+  }
+
+  /**
+   * @return the number of bytes allocated by the store for inodes, blocks
+   *         and names
+   */
+  long getAllocatedBytes() {
+    long chunkBytes = 8L << CHUNK_SHIFT;
+    return (inodes.size() + blocks.size()) * chunkBytes
+        + (long)names.size() * BYTE_CHUNK_SIZE;
+  }
+
+  /**
+   * Add the root directory. It always gets id 0.
+   * @return the id of the root
+   */
+  long addRoot(INodeDirectory root) {
+    if (numINodes != 0) {
+      throw new IllegalStateException("The root must be added first");
+    }
+    return add(-1L, root);
+  }
+
+  /**
+   * Add the children of a directory.
+   * @param parent id of the directory
+   * @param children the children, sorted by name
+   * @return the id of the first child; the others follow consecutively
+   */
+  long addChildren(long parent, List<INode> children) {
+    checkId(parent);
+    if (!isDirectory(parent)) {
+      throw new IllegalArgumentException(parent + " is not a directory.");
+    }
+    if (getChildrenCount(parent) != 0) {
+      throw new IllegalStateException(
+          "The children of " + parent + " are already added.");
+    }
+    long first = numINodes;
+    for (INode child : children) {
+      add(parent, child);
+    }
+    set(inodes, parent * RECORD_LONGS + FIRST, first);
+    set(inodes, parent * RECORD_LONGS + COUNT, -1L - children.size());
+    return first;
+  }
+
+  private long add(long parent, INode node) {
+    if (node instanceof INodeFileUnderConstruction) {
+      throw new IllegalArgumentException(
+          "Files under construction are not supported.");
+    }
+    long id = numINodes;
+    long base = id * RECORD_LONGS;
+    ensureCapacity(inodes, base + RECORD_LONGS);
+    set(inodes, base + PARENT, parent);
+    set(inodes, base + PERMISSION, node.getPermissionLong());
+    set(inodes, base + MTIME, node.getModificationTime());
+    set(inodes, base + NAME, addName(node.getLocalNameBytes()));
+    if (node.isDirectory()) {
+      // directories have no access time
+      set(inodes, base + ATIME, node.getDsQuota());
+      set(inodes, base + HEADER, node.getNsQuota());
+      set(inodes, base + FIRST, -1L);
+      set(inodes, base + COUNT, -1L);
+    } else {
+      INodeFile file = (INodeFile)node;
+      set(inodes, base + ATIME, file.getAccessTime());
+      BlockInfo[] fileBlocks = file.getBlocks();
+      int numBlocks = fileBlocks == null ? 0 : fileBlocks.length;
+      set(inodes, base + HEADER, file.header);
+      set(inodes, base + FIRST, numBlockLongs);
+      set(inodes, base + COUNT, numBlocks);
+      for (int i = 0; i < numBlocks; i++) {
+        addLong(fileBlocks[i].getBlockId());
+        addLong(fileBlocks[i].getNumBytes());
+        addLong(fileBlocks[i].getGenerationStamp());
+      }
+    }
+    numINodes++;
+    return id;
+  }
+
+  private void addLong(long value) {
+    long index = numBlockLongs++;
+    ensureCapacity(blocks, numBlockLongs);
+    set(blocks, index, value);
+  }
+
+  private long addName(byte[] name) {
+    int needed = 2 + name.length;
+    int chunk = (int)(nameBytes / BYTE_CHUNK_SIZE);
+    int pos = (int)(nameBytes % BYTE_CHUNK_SIZE);
+    if (chunk == names.size() || pos + needed > BYTE_CHUNK_SIZE) {
+      // names never cross chunk boundaries
+      if (chunk < names.size()) {
+        chunk++;
+        pos = 0;
+      }
+      names.add(offHeap ? ByteBuffer.allocateDirect(BYTE_CHUNK_SIZE)
+                        : ByteBuffer.allocate(BYTE_CHUNK_SIZE));
+    }
+    ByteBuffer buf = names.get(chunk);
+    buf.putShort(pos, (short)name.length);
+    for (int i = 0; i < name.length; i++) {
+      buf.put(pos + 2 + i, name[i]);
+    }
+    long offset = (long)chunk * BYTE_CHUNK_SIZE + pos;
+    nameBytes = offset + needed;
+    return offset;
+  }
+
+  private void ensureCapacity(List<LongBuffer> store, long size) {
+    while (((long)store.size() << CHUNK_SHIFT) < size) {
+      int longs = 1 << CHUNK_SHIFT;
+      store.add(offHeap ? ByteBuffer.allocateDirect(longs * 8).asLongBuffer()
+                        : LongBuffer.allocate(longs));
+    }
+  }
+
+  private static long get(List<LongBuffer> store, long index) {
+    return store.get((int)(index >>> CHUNK_SHIFT))
+        .get((int)(index & ((1 << CHUNK_SHIFT) - 1)));
+  }
+
+  private static void set(List<LongBuffer> store, long index, long value) {
+    store.get((int)(index >>> CHUNK_SHIFT))
+        .put((int)(index & ((1 << CHUNK_SHIFT) - 1)), value);
+  }
+
+  private void checkId(long id) {
+    if (id < 0 || id >= numINodes) {
+      throw new IllegalArgumentException("Invalid inode id " + id);
+    }
+  }
+
+  private long field(long id, int field) {
+    checkId(id);
+    return get(inodes, id * RECORD_LONGS + field);
+  }
+
+  boolean isDirectory(long id) {
+    return field(id, COUNT) < 0;
+  }
+
+  /** @return the id of the parent, or -1 for the root */
+  long getParent(long id) {
+    return field(id, PARENT);
+  }
+
+  byte[] getLocalNameBytes(long id) {
+    long offset = field(id, NAME);
+    ByteBuffer buf = names.get((int)(offset / BYTE_CHUNK_SIZE));
+    int pos = (int)(offset % BYTE_CHUNK_SIZE);
+    byte[] name = new byte[buf.getShort(pos)];
+    for (int i = 0; i < name.length; i++) {
+      name[i] = buf.get(pos + 2 + i);
+    }
+    return name;
+  }
+
+  long getModificationTime(long id) {
+    return field(id, MTIME);
+  }
+
+  long getAccessTime(long id) {
+    return isDirectory(id) ? 0 : field(id, ATIME);
+  }
+
+  void setAccessTime(long id, long atime) {
+    if (isDirectory(id)) {
+      throw new IllegalArgumentException(id + " is not a file.");
+    }
+    set(inodes, id * RECORD_LONGS + ATIME, atime);
+  }
+
+  short getReplication(long id) {
+    return (short)((field(id, HEADER) & INodeFile.HEADERMASK)
+        >> INodeFile.BLOCKBITS);
+  }
+
+  long getPreferredBlockSize(long id) {
+    return field(id, HEADER) & ~INodeFile.HEADERMASK;
+  }
+
+  /** @return the number of blocks of a file */
+  int getNumBlocks(long id) {
+    if (isDirectory(id)) {
+      throw new IllegalArgumentException(id + " is not a file.");
+    }
+    return (int)field(id, COUNT);
+  }
+
+  /** @return the i-th block of a file */
+  Block getBlock(long id, int i) {
+    if (i < 0 || i >= getNumBlocks(id)) {
+      throw new IndexOutOfBoundsException("Block " + i + " of " + id);
+    }
+    long index = field(id, FIRST) + (long)i * LONGS_PER_BLOCK;
+    return new Block(get(blocks, index), get(blocks, index + 1),
+                     get(blocks, index + 2));
+  }
+
+  /** @return the number of children of a directory */
+  int getChildrenCount(long id) {
+    if (!isDirectory(id)) {
+      throw new IllegalArgumentException(id + " is not a directory.");
+    }
+    return (int)(-1L - field(id, COUNT));
+  }
+
+  /** @return the id of the i-th child of a directory */
+  long getChild(long id, int i) {
+    if (i < 0 || i >= getChildrenCount(id)) {
+      throw new IndexOutOfBoundsException("Child " + i + " of " + id);
+    }
+    return field(id, FIRST) + i;
+  }
+
+  /**
+   * Find a child by name.
+   * @return the id of the child, or -1 if there is no such child
+   */
+  long getChild(long id, byte[] name) {
+    int low = 0;
+    int high = getChildrenCount(id) - 1;
+    long first = high < 0 ? 0 : field(id, FIRST);
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = INode.compareBytes(getLocalNameBytes(first + mid), name);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return first + mid;
+      }
+    }
+    return -1L;
+  }
+
+  /**
+   * Resolve an absolute path.
+   * @return the id of the inode, or -1 if the path does not exist
+   */
+  long getId(String path) {
+    byte[][] components = INode.getPathComponents(path);
+    long id = 0;
+    for (int i = 1; i < components.length && id >= 0; i++) {
+      if (!isDirectory(id)) {
+        return -1L;
+      }
+      id = getChild(id, components[i]);
+    }
+    return id;
+  }
+
+  /**
+   * Materialise an inode. Directories are returned without children.
+   */
+  INode getINode(long id) {
+    long base = id * RECORD_LONGS;
+    checkId(id);
+    long permission = get(inodes, base + PERMISSION);
+    long mtime = get(inodes, base + MTIME);
+    INode node;
+    if (isDirectory(id)) {
+      long nsQuota = get(inodes, base + HEADER);
+      long dsQuota = get(inodes, base + ATIME);
+      if (nsQuota >= 0 || dsQuota >= 0) {
+        node = new INodeDirectoryWithQuota(
+            INode.toPermissionStatus(permission), mtime, nsQuota, dsQuota);
+      } else {
+        node = new INodeDirectory(INode.toPermissionStatus(permission), mtime);
+      }
+    } else {
+      short replication = getReplication(id);
+      int numBlocks = getNumBlocks(id);
+      BlockInfo[] fileBlocks = new BlockInfo[numBlocks];
+      for (int i = 0; i < numBlocks; i++) {
+        fileBlocks[i] = new BlockInfo(getBlock(id, i), replication);
+      }
+      INodeFile file = new INodeFile(INode.toPermissionStatus(permission),
+          fileBlocks, replication, mtime, get(inodes, base + ATIME),
+          getPreferredBlockSize(id));
+      for (BlockInfo b : fileBlocks) {
+        b.setINode(file);
+      }
+      node = file;
+    }
+    node.setLocalName(getLocalNameBytes(id));
+    return node;
+  }
+
+  /**
+   * @return the full path of an inode
+   */
+  String getFullPathName(long id) {
+    if (getParent(id) < 0) {
+      return Path.SEPARATOR;
+    }
+    StringBuilder path = new StringBuilder();
+    for (; getParent(id) >= 0; id = getParent(id)) {
+      path.insert(0, DFSUtil.bytes2String(getLocalNameBytes(id)));
+      path.insert(0, Path.SEPARATOR);
+    }
+    return path.toString();
+  }
+}
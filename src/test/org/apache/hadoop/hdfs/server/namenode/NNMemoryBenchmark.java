@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.common.GenerationStamp;
+import org.apache.hadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
+
+/**
+ * Benchmark for the memory used by the name-node per file.
+ *
+ * The benchmark loads a synthetic image with a given number of
+ * directories, files per directory and blocks per file. The inodes are
+ * produced directory by directory in the order {@link FSImage} stores
+ * them and loaded either into the regular object representation
+ * (INode tree plus {@link BlocksMap}) or into a {@link CompactINodeStore}
+ * on or off the heap. The heap growth, the off-heap allocation and the
+ * resulting bytes per file are reported.
+ *
+ * Synopsis:
+ *   NNMemoryBenchmark [-store objects|heap|offheap] [-dirs N]
+ *                     [-files N] [-blocks N]
+ *   -files is the number of files per directory and -blocks the number
+ *   of blocks per file.
+ */
+public class NNMemoryBenchmark {
+  private static final Log LOG = LogFactory.getLog(NNMemoryBenchmark.class);
+
+  private static final PermissionStatus PERM = new PermissionStatus(
+      "joeDoe", "people", new FsPermission((short)0644));
+  private static final short REPLICATION = 3;
+  private static final long BLOCK_SIZE = 128L * 1024 * 1024;
+
+  private String store = "objects";
+  private int numDirs = 1000;
+  private int filesPerDir = 1000;
+  private int blocksPerFile = 2;
+  private long nextBlockId = 1;
+
+  // keep the loaded namespace reachable until it is measured
+  private Object namespace;
+
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  private static byte[] name(String prefix, int i) {
+    return DFSUtil.string2Bytes(String.format("%s%08d", prefix, i));
+  }
+
+  /** Generate the next file of the synthetic image */
+  private INodeFile newFile(int i, long now) {
+    BlockInfo[] blocks = new BlockInfo[blocksPerFile];
+    for (int j = 0; j < blocksPerFile; j++) {
+      blocks[j] = new BlockInfo(new Block(nextBlockId++, BLOCK_SIZE,
+          GenerationStamp.FIRST_VALID_STAMP), REPLICATION);
+    }
+    INodeFile file = new INodeFile(PERM, blocks, REPLICATION, now, now,
+                                   BLOCK_SIZE);
+    file.setLocalName(name("file", i));
+    return file;
+  }
+
+  private INodeDirectory newDirectory(int i, long now) {
+    INodeDirectory dir = new INodeDirectory(PERM, now);
+    dir.setLocalName(name("dir", i));
+    return dir;
+  }
+
+  private void loadObjects(long now) {
+    BlocksMap blocksMap = new BlocksMap(
+        Math.max(16, numDirs * filesPerDir * blocksPerFile), 0.75f);
+    INodeDirectory root = new INodeDirectory(INodeDirectory.ROOT_NAME, PERM);
+    for (int i = 0; i < numDirs; i++) {
+      root.addChild(newDirectory(i, now), false);
+    }
+    for (INode dir : root.getChildren()) {
+      for (int i = 0; i < filesPerDir; i++) {
+        INodeFile file = newFile(i, now);
+        BlockInfo[] blocks = file.getBlocks();
+        for (int j = 0; j < blocks.length; j++) {
+          file.setBlock(j, blocksMap.addINode(blocks[j], file));
+        }
+        ((INodeDirectory)dir).addChild(file, false);
+      }
+    }
+    namespace = new Object[] {root, blocksMap};
+  }
+
+  private CompactINodeStore loadCompact(boolean offHeap, long now) {
+    CompactINodeStore compact = new CompactINodeStore(offHeap);
+    long root = compact.addRoot(
+        new INodeDirectory(INodeDirectory.ROOT_NAME, PERM));
+    List<INode> children = new ArrayList<INode>(numDirs);
+    for (int i = 0; i < numDirs; i++) {
+      children.add(newDirectory(i, now));
+    }
+    long firstDir = compact.addChildren(root, children);
+    children = new ArrayList<INode>(filesPerDir);
+    for (int d = 0; d < numDirs; d++) {
+      children.clear();
+      for (int i = 0; i < filesPerDir; i++) {
+        children.add(newFile(i, now));
+      }
+      compact.addChildren(firstDir + d, children);
+    }
+    namespace = compact;
+    return compact;
+  }
+
+  void run() {
+    long numFiles = (long)numDirs * filesPerDir;
+    long now = System.currentTimeMillis();
+    long heapBefore = usedHeap();
+    long start = System.currentTimeMillis();
+    long offHeapBytes = 0;
+    if ("objects".equals(store)) {
+      loadObjects(now);
+    } else if ("heap".equals(store) || "offheap".equals(store)) {
+      CompactINodeStore compact = loadCompact("offheap".equals(store), now);
+      if ("offheap".equals(store)) {
+        offHeapBytes = compact.getAllocatedBytes();
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown store " + store);
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    long heapBytes = usedHeap() - heapBefore;
+
+    LOG.info("--- NNMemoryBenchmark store = " + store + " ---");
+    LOG.info("# directories: " + numDirs);
+    LOG.info("# files: " + numFiles);
+    LOG.info("# blocks: " + numFiles * blocksPerFile);
+    LOG.info("Load time(msec): " + elapsed);
+    LOG.info("Heap used(bytes): " + heapBytes);
+    LOG.info("Off-heap allocated(bytes): " + offHeapBytes);
+    LOG.info("Bytes per file: "
+        + (numFiles == 0 ? 0 : (heapBytes + offHeapBytes) / numFiles));
+    if (namespace == null) {
+      throw new IllegalStateException("Nothing was loaded");
+    }
+  }
+
+  private static void printUsage() {
+    System.err.println("Usage: NNMemoryBenchmark"
+        + " [-store objects|heap|offheap] [-dirs N] [-files N] [-blocks N]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) {
+    NNMemoryBenchmark bench = new NNMemoryBenchmark();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (i + 1 == args.length) {
+          printUsage();
+        }
+        if (args[i].equals("-store")) {
+          bench.store = args[++i];
+        } else if (args[i].equals("-dirs")) {
+          bench.numDirs = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-files")) {
+          bench.filesPerDir = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-blocks")) {
+          bench.blocksPerFile = Integer.parseInt(args[++i]);
+        } else {
+          printUsage();
+        }
+      }
+    } catch (NumberFormatException e) {
+      printUsage();
+    }
+    bench.run();
+  }
+}
@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.namenode.BlocksMap.BlockInfo;
+import org.junit.Test;
+
+public class TestCompactINodeStore {
+  private static final PermissionStatus PERM = new PermissionStatus(
+      "user", "group", new FsPermission((short)0750));
+
+  private static INodeFile file(String name, int numBlocks, long firstId) {
+    BlockInfo[] blocks = new BlockInfo[numBlocks];
+    for (int i = 0; i < numBlocks; i++) {
+      blocks[i] = new BlockInfo(new Block(firstId + i, 100 + i, 1000 + i), 3);
+    }
+    INodeFile f = new INodeFile(PERM, blocks, (short)3, 10L, 20L, 1024L);
+    f.setLocalName(name);
+    return f;
+  }
+
+  private static INodeDirectory dir(String name) {
+    INodeDirectory d = new INodeDirectory(PERM, 30L);
+    d.setLocalName(name);
+    return d;
+  }
+
+  private void testStore(boolean offHeap) {
+    CompactINodeStore store = new CompactINodeStore(offHeap);
+    long root = store.addRoot(new INodeDirectory(INodeDirectory.ROOT_NAME,
+                                                 PERM));
+    assertEquals(0, root);
+
+    List<INode> children = new ArrayList<INode>();
+    children.add(dir("a"));
+    children.add(file("b", 2, 1));
+    INodeDirectoryWithQuota quota =
+      new INodeDirectoryWithQuota(PERM, 40L, 100L, 2000L);
+    quota.setLocalName("c");
+    children.add(quota);
+    long first = store.addChildren(root, children);
+    assertEquals(3, store.getChildrenCount(root));
+
+    // many files to span several chunks of the inode store
+    int numFiles = 3 * (1 << CompactINodeStore.CHUNK_SHIFT)
+        / CompactINodeStore.RECORD_LONGS;
+    children = new ArrayList<INode>();
+    for (int i = 0; i < numFiles; i++) {
+      children.add(file(String.format("f%08d", i), i % 3, 100L * i));
+    }
+    store.addChildren(first, children);
+    assertEquals(4 + numFiles, store.size());
+
+    assertEquals(first + 1, store.getId("/b"));
+    assertEquals(-1L, store.getId("/d"));
+    assertEquals(-1L, store.getId("/b/x"));
+    long last = store.getId(String.format("/a/f%08d", numFiles - 1));
+    assertEquals(store.size() - 1, last);
+    assertEquals(String.format("/a/f%08d", numFiles - 1),
+                 store.getFullPathName(last));
+    assertEquals("/", store.getFullPathName(root));
+
+    // file attributes
+    long b = store.getId("/b");
+    assertFalse(store.isDirectory(b));
+    assertEquals(3, store.getReplication(b));
+    assertEquals(1024L, store.getPreferredBlockSize(b));
+    assertEquals(2, store.getNumBlocks(b));
+    assertEquals(new Block(2, 101, 1001), store.getBlock(b, 1));
+    assertEquals(1001, store.getBlock(b, 1).getGenerationStamp());
+    store.setAccessTime(b, 50L);
+    assertEquals(50L, store.getAccessTime(b));
+
+    INodeFile fileNode = (INodeFile)store.getINode(b);
+    assertEquals("b", fileNode.getLocalName());
+    assertEquals("user", fileNode.getUserName());
+    assertEquals("group", fileNode.getGroupName());
+    assertEquals((short)0640, fileNode.getFsPermissionShort());
+    assertEquals(10L, fileNode.getModificationTime());
+    assertEquals(50L, fileNode.getAccessTime());
+    assertEquals(2, fileNode.getBlocks().length);
+    assertSame(fileNode, fileNode.getBlocks()[0].getINode());
+
+    // directories
+    INode dirNode = store.getINode(store.getId("/a"));
+    assertTrue(dirNode.isDirectory());
+    assertEquals((short)0750, dirNode.getFsPermissionShort());
+    assertEquals(30L, dirNode.getModificationTime());
+    INode quotaNode = store.getINode(store.getId("/c"));
+    assertEquals(100L, quotaNode.getNsQuota());
+    assertEquals(2000L, quotaNode.getDsQuota());
+    assertEquals(-1L, dirNode.getNsQuota());
+
+    long f = store.getId("/a/f00000004");
+    assertEquals(1, store.getNumBlocks(f));
+    assertEquals(new Block(400, 100, 1000), store.getBlock(f, 0));
+    assertTrue(store.getAllocatedBytes() > 0);
+  }
+
+  @Test
+  public void testHeapStore() {
+    testStore(false);
+  }
+
+  @Test
+  public void testOffHeapStore() {
+    testStore(true);
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void testChildrenAddedOnce() {
+    CompactINodeStore store = new CompactINodeStore(false);
+    long root = store.addRoot(new INodeDirectory(INodeDirectory.ROOT_NAME,
+                                                 PERM));
+    List<INode> children = new ArrayList<INode>();
+    children.add(dir("a"));
+    store.addChildren(root, children);
+    store.addChildren(root, children);
+  }
+
+  @Test
+  public void testNames() {
+    CompactINodeStore store = new CompactINodeStore(false);
+    long root = store.addRoot(new INodeDirectory(INodeDirectory.ROOT_NAME,
+                                                 PERM));
+    // long names must not cross the chunks of the name store
+    List<INode> children = new ArrayList<INode>();
+    StringBuilder name = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      name.append('x');
+    }
+    int numChildren = 2 * CompactINodeStore.BYTE_CHUNK_SIZE / 200;
+    for (int i = 0; i < numChildren; i++) {
+      children.add(dir(String.format("%s%08d", name, i)));
+    }
+    long first = store.addChildren(root, children);
+    for (int i = 0; i < numChildren; i += 997) {
+      assertEquals(String.format("%s%08d", name, i),
+          DFSUtil.bytes2String(store.getLocalNameBytes(first + i)));
+    }
+  }
+}
@@ -48,4 +48,32 @@ public class TestDatanodeDescriptor extends TestCase {
     bc = dd.getInvalidateBlocks(MAX_LIMIT);
     assertEquals(bc.getBlocks().length, REMAINING_BLOCKS);
   }
+
+  /**
+   * Test that the blocks changed between two slices of a block report
+   * are recorded.
+   */
+  public void testChangedDuringReport() throws Exception {
+    DatanodeDescriptor dd = new DatanodeDescriptor();
+    BlocksMap.BlockInfo added = new BlocksMap.BlockInfo(
+        new Block(1, 0, GenerationStamp.FIRST_VALID_STAMP), 1);
+    BlocksMap.BlockInfo removed = new BlocksMap.BlockInfo(
+        new Block(2, 0, GenerationStamp.FIRST_VALID_STAMP), 1);
+    BlocksMap.BlockInfo reported = new BlocksMap.BlockInfo(
+        new Block(3, 0, GenerationStamp.FIRST_VALID_STAMP), 1);
+    assertTrue(dd.addBlock(removed));
+
+    dd.startTrackingChanges();
+    assertTrue(dd.addBlock(added));
+    assertTrue(dd.removeBlock(removed));
+    dd.stopTrackingChanges();
+    // the changes made by the block report itself are not recorded
+    assertTrue(dd.addBlock(reported));
+
+    assertTrue(dd.changedDuringReport(new Block(1, 0, 0)));
+    assertTrue(dd.changedDuringReport(removed));
+    assertFalse(dd.changedDuringReport(reported));
+    dd.clearChangedDuringReport();
+    assertFalse(dd.changedDuringReport(added));
+  }
 }
@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DirectoryLockManager} and for namespace operations
+ * running under fine grained locking.
+ */
+public class TestDirectoryLockManager {
+
+  private static String[] names(String path) {
+    return INode.getPathNames(path);
+  }
+
+  /**
+   * Lock the set in a separate thread and report whether it got the lock
+   * within the timeout.
+   */
+  private static boolean tryLockFromOtherThread(
+      final DirectoryLockManager.LockSet locks) throws Exception {
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread t = new Thread() {
+      public void run() {
+        locks.lock();
+        acquired.countDown();
+        locks.unlock();
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+    return acquired.await(2, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testStripeCount() {
+    assertEquals(1024, new DirectoryLockManager(1000).getNumStripes());
+    assertEquals(1, new DirectoryLockManager(1).getNumStripes());
+  }
+
+  @Test
+  public void testSharedAncestors() throws Exception {
+    DirectoryLockManager dlm = new DirectoryLockManager(1 << 16);
+    DirectoryLockManager.LockSet a =
+      dlm.newLockSet().addPathForWrite(names("/user/a/f1"));
+    a.lock();
+    try {
+      // a sibling directory only shares the ancestors
+      assertTrue(tryLockFromOtherThread(
+          dlm.newLockSet().addPathForWrite(names("/user/b/f1"))));
+      // the same parent is locked exclusive
+      assertFalse(tryLockFromOtherThread(
+          dlm.newLockSet().addPathForWrite(names("/user/a/f2"))));
+    } finally {
+      a.unlock();
+    }
+  }
+
+  @Test
+  public void testSubtreeExclusive() throws Exception {
+    DirectoryLockManager dlm = new DirectoryLockManager(1 << 16);
+    // deleting /user/a holds /user/a exclusive
+    DirectoryLockManager.LockSet del =
+      dlm.newLockSet().addPathForWrite(names("/user/a"));
+    del.lock();
+    try {
+      assertFalse(tryLockFromOtherThread(
+          dlm.newLockSet().addPathForWrite(names("/user/a/b/c/f"))));
+    } finally {
+      del.unlock();
+    }
+  }
+
+  @Test
+  public void testMultiplePathsNoDeadlock() throws Exception {
+    final DirectoryLockManager dlm = new DirectoryLockManager(64);
+    final int iterations = 2000;
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      final boolean reverse = i % 2 == 0;
+      threads.add(new Thread() {
+        public void run() {
+          for (int j = 0; j < iterations; j++) {
+            String[] x = names("/x/d" + (j % 7) + "/f");
+            String[] y = names("/y/d" + (j % 5) + "/f");
+            DirectoryLockManager.LockSet locks = dlm.newLockSet();
+            if (reverse) {
+              locks.addPathForWrite(y).addPathForWrite(x);
+            } else {
+              locks.addPathForWrite(x).addPathForWrite(y);
+            }
+            locks.lock();
+            locks.unlock();
+          }
+        }
+      });
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join(60000);
+      assertFalse("deadlock", t.isAlive());
+    }
+  }
+
+  @Test
+  public void testConcurrentNamespaceOperations() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setBoolean("dfs.namenode.fine.grained.locking", true);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      final FileSystem fs = cluster.getFileSystem();
+      final int numThreads = 8;
+      final int filesPerThread = 50;
+      final List<Throwable> errors = new ArrayList<Throwable>();
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < numThreads; i++) {
+        final Path base = new Path("/test/t" + i);
+        threads.add(new Thread() {
+          public void run() {
+            try {
+              for (int j = 0; j < filesPerThread; j++) {
+                Path dir = new Path(base, "d" + j);
+                assertTrue(fs.mkdirs(new Path(dir, "sub")));
+                fs.create(new Path(dir, "f")).close();
+                assertTrue(fs.rename(new Path(dir, "f"),
+                                     new Path(dir, "g")));
+                if (j % 2 == 0) {
+                  assertTrue(fs.delete(dir, true));
+                }
+              }
+            } catch (Throwable t) {
+              synchronized (errors) {
+                errors.add(t);
+              }
+            }
+          }
+        });
+      }
+      for (Thread t : threads) {
+        t.start();
+      }
+      for (Thread t : threads) {
+        t.join();
+      }
+      assertTrue("errors: " + errors, errors.isEmpty());
+
+      for (int i = 0; i < numThreads; i++) {
+        Path base = new Path("/test/t" + i);
+        assertEquals(filesPerThread / 2, fs.listStatus(base).length);
+        for (int j = 1; j < filesPerThread; j += 2) {
+          assertTrue(fs.exists(new Path(base, "d" + j + "/g")));
+          assertTrue(fs.exists(new Path(base, "d" + j + "/sub")));
+        }
+      }
+
+      // the namespace must survive a restart from the edit log
+      cluster.restartNameNode(0);
+      FileSystem fs2 = cluster.getFileSystem();
+      for (int i = 0; i < numThreads; i++) {
+        assertEquals(filesPerThread / 2,
+                     fs2.listStatus(new Path("/test/t" + i)).length);
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -84,6 +84,21 @@ public class TestEditLog extends TestCase {
    * Tests transaction logging in dfs.
    */
   public void testEditLog() throws IOException {
+    testEditLog(false);
+  }
+
+  /**
+   * Tests transaction logging with all syncs done by the sync thread.
+   */
+  public void testAsyncEditLog() throws IOException {
+    try {
+      testEditLog(true);
+    } finally {
+      FSEditLog.setAsyncSync(false);
+    }
+  }
+
+  private void testEditLog(boolean asyncSync) throws IOException {
 
     // start a cluster 
 
@@ -117,6 +132,7 @@ public class TestEditLog extends TestCase {
 
     // set small size of flush buffer
     editLog.setBufferCapacity(2048);
+    FSEditLog.setAsyncSync(asyncSync);
     editLog.close();
     editLog.open();
   
@@ -365,7 +365,79 @@ public class TestStartup extends TestCase {
     namenode.stop();
     namenode.join();
   }
-  
+
+  public void testSectionedImage() throws Exception {
+    LOG.info("Test sectioned image.");
+    Configuration conf = new Configuration();
+    FileSystem.setDefaultUri(conf, "hdfs://localhost:0");
+    conf.set("dfs.http.address", "127.0.0.1:0");
+    File base_dir = new File(System.getProperty("test.build.data", "build/test/data"), "dfs/");
+    conf.set("dfs.name.dir", new File(base_dir, "name").getPath());
+    conf.setBoolean("dfs.permissions", false);
+    // small sections so that directories are split across sections
+    conf.setInt(HdfsConstants.DFS_IMAGE_SECTION_INODES_KEY, 7);
+    conf.setInt(HdfsConstants.DFS_IMAGE_THREADS_KEY, 3);
+
+    NameNode.format(conf);
+
+    // create the namespace and store it in the old format
+    LOG.info("Create a non-sectioned fsimage");
+    NameNode namenode = new NameNode(conf);
+    PermissionStatus perm =
+      new PermissionStatus("hairong", null, FsPermission.getDefault());
+    for (int i = 0; i < 10; i++) {
+      namenode.getNamesystem().mkdirs("/test/dir" + i + "/sub", perm);
+    }
+    for (int i = 0; i < 30; i++) {
+      namenode.create("/test/dir0/file" + i, FsPermission.getDefault(),
+          "client", true, (short)1, blockSize);
+      namenode.complete("/test/dir0/file" + i, "client");
+    }
+    // left under construction
+    namenode.create("/test/dir1/open", FsPermission.getDefault(),
+        "client", true, (short)1, blockSize);
+    namenode.setSafeMode(SafeModeAction.SAFEMODE_ENTER);
+    namenode.saveNamespace(false, false);
+    namenode.stop();
+    namenode.join();
+
+    LOG.info("Read a non-sectioned image and store it sectioned.");
+    conf.setBoolean(HdfsConstants.DFS_IMAGE_SECTIONS_KEY, true);
+    checkSectionedNameSpace(conf);
+
+    LOG.info("Read a sectioned image and store it sectioned and compressed.");
+    conf.setBoolean(HdfsConstants.DFS_IMAGE_COMPRESS_KEY, true);
+    checkSectionedNameSpace(conf);
+
+    LOG.info("Read a sectioned compressed image and store it sectioned.");
+    conf.setBoolean(HdfsConstants.DFS_IMAGE_COMPRESS_KEY, false);
+    checkSectionedNameSpace(conf);
+
+    LOG.info("Read a sectioned image and store it non-sectioned.");
+    conf.setBoolean(HdfsConstants.DFS_IMAGE_SECTIONS_KEY, false);
+    checkSectionedNameSpace(conf);
+    checkSectionedNameSpace(conf);
+  }
+
+  private void checkSectionedNameSpace(Configuration conf) throws IOException {
+    NameNode namenode = new NameNode(conf);
+    assertEquals(10, namenode.getListing("/test").length);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(namenode.getFileInfo("/test/dir" + i + "/sub").isDir());
+    }
+    // 30 files and the sub directory
+    assertEquals(31, namenode.getListing("/test/dir0").length);
+    for (int i = 0; i < 30; i++) {
+      assertFalse(namenode.getFileInfo("/test/dir0/file" + i).isDir());
+    }
+    assertNotNull(namenode.getNamesystem().leaseManager.getLeaseByPath(
+        "/test/dir1/open"));
+    namenode.setSafeMode(SafeModeAction.SAFEMODE_ENTER);
+    namenode.saveNamespace(false, false);
+    namenode.stop();
+    namenode.join();
+  }
+
   
   public void testImageChecksum() throws Exception {
     LOG.info("Test uncompressed image checksum");
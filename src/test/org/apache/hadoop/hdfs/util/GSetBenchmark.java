@@ -0,0 +1,247 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hdfs.util.LightWeightGSet.LinkedElement;
+
+/**
+ * Micro benchmark of the get/put/remove throughput of
+ * {@link ConcurrentLightWeightGSet} against {@link LightWeightGSet}
+ * guarded by a single lock, which is how the blocks map is used under
+ * the namesystem lock.
+ *
+ * For every number of threads (1, 2, 4, ... up to -maxThreads) and every
+ * implementation the benchmark runs -warmup warm-up iterations followed
+ * by -iterations measured iterations of -time milliseconds each, and
+ * reports the mean and the best throughput in operations per second.
+ * Each operation is a get, put or remove of a random key in a set
+ * pre-filled with -size elements, in the proportion given by
+ * -getPercent and -putPercent; the rest are removes.
+ *
+ * Synopsis:
+ *   GSetBenchmark [-size N] [-maxThreads N] [-stripes N]
+ *                 [-getPercent N] [-putPercent N]
+ *                 [-warmup N] [-iterations N] [-time msec]
+ */
+public class GSetBenchmark {
+  private int size = 1 << 20;
+  private int maxThreads = 64;
+  private int numStripes = 1024;
+  private int getPercent = 90;
+  private int putPercent = 5;
+  private int warmup = 2;
+  private int iterations = 5;
+  private long time = 1000;
+
+  /** An element of the benchmarked sets. */
+  static class LongElement implements LinkedElement {
+    private final long id;
+    private LinkedElement next;
+
+    LongElement(long id) {
+      this.id = id;
+    }
+
+    public void setNext(LinkedElement next) {
+      this.next = next;
+    }
+
+    public LinkedElement getNext() {
+      return next;
+    }
+
+    public int hashCode() {
+      return (int)(id ^ (id >>> 32));
+    }
+
+    public boolean equals(Object o) {
+      return o instanceof LongElement && ((LongElement)o).id == id;
+    }
+
+    public String toString() {
+      return Long.toString(id);
+    }
+  }
+
+  /** {@link LightWeightGSet} with every operation under one lock */
+  static class SynchronizedGSet implements GSet<LongElement, LongElement> {
+    private final LightWeightGSet<LongElement, LongElement> set;
+
+    SynchronizedGSet(int capacity) {
+      set = new LightWeightGSet<LongElement, LongElement>(capacity);
+    }
+
+    public synchronized int size() {
+      return set.size();
+    }
+
+    public synchronized boolean contains(LongElement key) {
+      return set.contains(key);
+    }
+
+    public synchronized LongElement get(LongElement key) {
+      return set.get(key);
+    }
+
+    public synchronized LongElement put(LongElement element) {
+      return set.put(element);
+    }
+
+    public synchronized LongElement remove(LongElement key) {
+      return set.remove(key);
+    }
+
+    public Iterator<LongElement> iterator() {
+      return set.iterator();
+    }
+  }
+
+  private GSet<LongElement, LongElement> newSet(boolean concurrent) {
+    GSet<LongElement, LongElement> set = concurrent
+      ? new ConcurrentLightWeightGSet<LongElement, LongElement>(size, numStripes)
+      : new SynchronizedGSet(size);
+    for (int i = 0; i < size; i++) {
+      set.put(new LongElement(i));
+    }
+    return set;
+  }
+
+  /**
+   * Run one iteration.
+   * @return operations per second
+   */
+  private double runIteration(final GSet<LongElement, LongElement> set,
+                              int numThreads) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicLong ops = new AtomicLong();
+    final long keyRange = 2L * size;
+    final long[] endTime = new long[1];
+    Thread[] threads = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      final long seed = t;
+      threads[t] = new Thread() {
+        public void run() {
+          Random r = new Random(seed);
+          long n = 0;
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          while (System.currentTimeMillis() < endTime[0]) {
+            // check the time every few operations only
+            for (int i = 0; i < 100; i++, n++) {
+              LongElement e = new LongElement((long)(r.nextDouble() * keyRange));
+              int op = r.nextInt(100);
+              if (op < getPercent) {
+                set.get(e);
+              } else if (op < getPercent + putPercent) {
+                set.put(e);
+              } else {
+                set.remove(e);
+              }
+            }
+          }
+          ops.addAndGet(n);
+        }
+      };
+      threads[t].start();
+    }
+    long begin = System.currentTimeMillis();
+    endTime[0] = begin + time;
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    long elapsed = System.currentTimeMillis() - begin;
+    return ops.get() * 1000.0 / elapsed;
+  }
+
+  void run() throws InterruptedException {
+    System.out.println(String.format("%-12s %8s %16s %16s",
+        "set", "threads", "mean ops/sec", "best ops/sec"));
+    for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+      for (boolean concurrent : new boolean[] {false, true}) {
+        GSet<LongElement, LongElement> set = newSet(concurrent);
+        for (int i = 0; i < warmup; i++) {
+          runIteration(set, numThreads);
+        }
+        double total = 0;
+        double best = 0;
+        for (int i = 0; i < iterations; i++) {
+          double rate = runIteration(set, numThreads);
+          total += rate;
+          best = Math.max(best, rate);
+        }
+        System.out.println(String.format("%-12s %8d %16.0f %16.0f",
+            concurrent ? "concurrent" : "synchronized", numThreads,
+            total / iterations, best));
+      }
+    }
+  }
+
+  private static void printUsage() {
+    System.err.println("Usage: GSetBenchmark [-size N] [-maxThreads N]"
+        + " [-stripes N] [-getPercent N] [-putPercent N]"
+        + " [-warmup N] [-iterations N] [-time msec]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    GSetBenchmark bench = new GSetBenchmark();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (i + 1 == args.length) {
+          printUsage();
+        }
+        String arg = args[i];
+        int value = Integer.parseInt(args[++i]);
+        if (arg.equals("-size")) {
+          bench.size = value;
+        } else if (arg.equals("-maxThreads")) {
+          bench.maxThreads = value;
+        } else if (arg.equals("-stripes")) {
+          bench.numStripes = value;
+        } else if (arg.equals("-getPercent")) {
+          bench.getPercent = value;
+        } else if (arg.equals("-putPercent")) {
+          bench.putPercent = value;
+        } else if (arg.equals("-warmup")) {
+          bench.warmup = value;
+        } else if (arg.equals("-iterations")) {
+          bench.iterations = value;
+        } else if (arg.equals("-time")) {
+          bench.time = value;
+        } else {
+          printUsage();
+        }
+      }
+    } catch (NumberFormatException e) {
+      printUsage();
+    }
+    if (bench.getPercent + bench.putPercent > 100) {
+      printUsage();
+    }
+    bench.run();
+  }
+}
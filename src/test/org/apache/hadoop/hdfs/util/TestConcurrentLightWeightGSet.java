@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.hdfs.util.GSetBenchmark.LongElement;
+import org.junit.Test;
+
+public class TestConcurrentLightWeightGSet {
+
+  @Test
+  public void testOperations() {
+    ConcurrentLightWeightGSet<LongElement, LongElement> set =
+      new ConcurrentLightWeightGSet<LongElement, LongElement>(16, 4);
+    // more elements than entries, so that the chains are long
+    for (int i = 0; i < 100; i++) {
+      assertNull(set.put(new LongElement(i)));
+    }
+    assertEquals(100, set.size());
+    LongElement e = new LongElement(42);
+    assertNotSame(e, set.get(e));
+    assertNotNull(set.put(e));
+    assertSame(e, set.get(new LongElement(42)));
+    assertEquals(100, set.size());
+
+    for (int i = 0; i < 100; i += 2) {
+      assertNotNull(set.remove(new LongElement(i)));
+    }
+    assertNull(set.remove(new LongElement(0)));
+    assertEquals(50, set.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i % 2 == 1, set.contains(new LongElement(i)));
+    }
+
+    Set<LongElement> iterated = new HashSet<LongElement>();
+    for (LongElement x : set) {
+      assertTrue(iterated.add(x));
+    }
+    assertEquals(50, iterated.size());
+  }
+
+  @Test
+  public void testConcurrentAccess() throws Exception {
+    final ConcurrentLightWeightGSet<LongElement, LongElement> set =
+      new ConcurrentLightWeightGSet<LongElement, LongElement>(1 << 10, 16);
+    // stable elements which must always be found
+    final int numStable = 1000;
+    for (int i = 0; i < numStable; i++) {
+      set.put(new LongElement(i));
+    }
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      final int id = t;
+      threads.add(new Thread() {
+        public void run() {
+          try {
+            for (int i = 0; i < 20000; i++) {
+              // churn elements that share the chains of the stable ones
+              long key = numStable + id * 20000 + i;
+              LongElement churn = new LongElement(key);
+              set.put(churn);
+              assertSame(churn, set.get(new LongElement(key)));
+              assertNotNull(set.get(new LongElement(i % numStable)));
+              assertSame(churn, set.remove(churn));
+            }
+          } catch (Throwable t) {
+            synchronized (errors) {
+              errors.add(t);
+            }
+          }
+        }
+      });
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertTrue("errors: " + errors, errors.isEmpty());
+    assertEquals(numStable, set.size());
+  }
+}
@@ -0,0 +1,214 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.net.NetUtils;
+
+/**
+ * Micro benchmark of the RPC calls per second and of the memory allocated
+ * per call, for small and large responses.
+ *
+ * For every response size the benchmark starts an RPC server and runs
+ * -threads client threads calling it in a loop for -time milliseconds,
+ * after a warm-up of the same duration. It reports the calls per second,
+ * the bytes allocated per call by all the threads of the JVM (server
+ * handlers, readers and responder as well as the clients) and the bytes
+ * allocated by the buffer pools of the server. Use -pool 0 to disable
+ * the buffer pools of the server.
+ *
+ * Synopsis:
+ *   RPCCallBenchmark [-threads N] [-handlers N] [-time msec]
+ *                    [-sizes size,size,...] [-pool bytes]
+ */
+public class RPCCallBenchmark {
+  private int numThreads = 8;
+  private int numHandlers = 8;
+  private long time = 5000;
+  private int[] sizes = {100, 100 * 1024};
+  private long poolBytes = Server.IPC_SERVER_BUFFER_POOL_MAX_BYTES_DEFAULT;
+
+  public interface BenchmarkProtocol extends VersionedProtocol {
+    public static final long versionID = 1L;
+
+    /** @return a response of the given size */
+    BytesWritable get(int size) throws IOException;
+  }
+
+  static class BenchmarkImpl implements BenchmarkProtocol {
+    private volatile BytesWritable response = new BytesWritable();
+
+    public long getProtocolVersion(String protocol, long clientVersion) {
+      return versionID;
+    }
+
+    public ProtocolSignature getProtocolSignature(String protocol,
+        long clientVersion, int clientMethodsHash) throws IOException {
+      return ProtocolSignature.getProtocolSignature(
+          this, protocol, clientVersion, clientMethodsHash);
+    }
+
+    public BytesWritable get(int size) {
+      BytesWritable r = response;
+      if (r.getLength() != size) {
+        r = new BytesWritable(new byte[size]);
+        response = r;
+      }
+      return r;
+    }
+  }
+
+  /** @return the bytes allocated so far by the live threads */
+  private static long allocatedBytes() {
+    com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long total = 0;
+    for (long allocated : threads.getThreadAllocatedBytes(
+                              threads.getAllThreadIds())) {
+      if (allocated > 0) {
+        total += allocated;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Run the clients for the configured time.
+   * @return the calls per second and the bytes allocated per call
+   */
+  private double[] runClients(final BenchmarkProtocol proxy, final int size)
+      throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(numThreads);
+    final CountDownLatch exit = new CountDownLatch(1);
+    final AtomicLong calls = new AtomicLong();
+    final AtomicBoolean stop = new AtomicBoolean(false);
+    Thread[] threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          long n = 0;
+          try {
+            start.await();
+            while (!stop.get()) {
+              proxy.get(size);
+              n++;
+            }
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+          calls.addAndGet(n);
+          done.countDown();
+          // stay alive until the allocation of the threads is measured
+          try {
+            exit.await();
+          } catch (InterruptedException ie) {
+          }
+        }
+      };
+      threads[i].start();
+    }
+    long allocatedBefore = allocatedBytes();
+    long begin = System.currentTimeMillis();
+    start.countDown();
+    Thread.sleep(time);
+    stop.set(true);
+    done.await();
+    long elapsed = System.currentTimeMillis() - begin;
+    long allocated = allocatedBytes() - allocatedBefore;
+    exit.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    long n = Math.max(1, calls.get());
+    return new double[] {calls.get() * 1000.0 / elapsed,
+                         (double)allocated / n};
+  }
+
+  void run() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong(Server.IPC_SERVER_BUFFER_POOL_MAX_BYTES_KEY, poolBytes);
+    System.out.println(String.format("%12s %14s %18s %18s",
+        "size", "calls/sec", "allocated/call", "pool allocated"));
+    for (int size : sizes) {
+      Server server = RPC.getServer(new BenchmarkImpl(), "0.0.0.0", 0,
+                                    numHandlers, false, conf);
+      server.start();
+      InetSocketAddress addr = NetUtils.getConnectAddress(server);
+      BenchmarkProtocol proxy = (BenchmarkProtocol)RPC.getProxy(
+          BenchmarkProtocol.class, BenchmarkProtocol.versionID, addr, conf,
+          NetUtils.getDefaultSocketFactory(conf));
+      try {
+        runClients(proxy, size);               // warm up
+        long poolBefore = server.getPoolAllocatedBytes();
+        double[] result = runClients(proxy, size);
+        System.out.println(String.format("%12d %14.0f %18.0f %18d",
+            size, result[0], result[1],
+            server.getPoolAllocatedBytes() - poolBefore));
+      } finally {
+        RPC.stopProxy(proxy);
+        server.stop();
+      }
+    }
+  }
+
+  private static void printUsage() {
+    System.err.println("Usage: RPCCallBenchmark [-threads N] [-handlers N]"
+        + " [-time msec] [-sizes size,size,...] [-pool bytes]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    RPCCallBenchmark bench = new RPCCallBenchmark();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (i + 1 == args.length) {
+          printUsage();
+        }
+        if (args[i].equals("-threads")) {
+          bench.numThreads = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-handlers")) {
+          bench.numHandlers = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-time")) {
+          bench.time = Long.parseLong(args[++i]);
+        } else if (args[i].equals("-sizes")) {
+          String[] values = args[++i].split(",");
+          bench.sizes = new int[values.length];
+          for (int j = 0; j < values.length; j++) {
+            bench.sizes[j] = Integer.parseInt(values[j]);
+          }
+        } else if (args[i].equals("-pool")) {
+          bench.poolBytes = Long.parseLong(args[++i]);
+        } else {
+          printUsage();
+        }
+      }
+    } catch (NumberFormatException e) {
+      printUsage();
+    }
+    bench.run();
+  }
+}
@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/** Unit tests for {@link BufferPool}. */
+public class TestBufferPool extends TestCase {
+
+  public void testSizeClasses() {
+    assertEquals(0, BufferPool.getSizeClass(1));
+    assertEquals(0, BufferPool.getSizeClass(BufferPool.MIN_BUFFER_SIZE));
+    assertEquals(1, BufferPool.getSizeClass(BufferPool.MIN_BUFFER_SIZE + 1));
+    assertEquals(1, BufferPool.getSizeClass(2 * BufferPool.MIN_BUFFER_SIZE));
+    assertEquals(10, BufferPool.getSizeClass(1024 * 1024));
+  }
+
+  public void testReuse() {
+    BufferPool pool = new BufferPool(true, 64 * 1024, 8 * 1024);
+    ByteBuffer b = pool.get(3000);
+    assertTrue(b.isDirect());
+    assertEquals(4096, b.capacity());
+    assertEquals(0, b.position());
+    assertEquals(3000, b.limit());
+    assertEquals(4096, pool.getAllocatedBytes());
+
+    b.put((byte)1);
+    pool.put(b);
+    assertEquals(4096, pool.getPooledBytes());
+    ByteBuffer c = pool.get(2100);
+    assertSame(b, c);
+    assertEquals(0, c.position());
+    assertEquals(2100, c.limit());
+    assertEquals(0, pool.getPooledBytes());
+    assertEquals(4096, pool.getAllocatedBytes());
+
+    // the pool keeps at most 8KB
+    ByteBuffer d = pool.get(8192);
+    ByteBuffer e = pool.get(10);
+    pool.put(d);
+    pool.put(c);
+    pool.put(e);
+    assertEquals(8192, pool.getPooledBytes());
+    assertNotSame(c, pool.get(4096));
+
+    // too large to be pooled
+    ByteBuffer large = pool.get(100 * 1024);
+    assertEquals(100 * 1024, large.capacity());
+    pool.put(large);
+    assertEquals(8192, pool.getPooledBytes());
+
+    // buffers which were not obtained from the pool are ignored
+    pool.put(ByteBuffer.allocate(1024));
+    assertEquals(8192, pool.getPooledBytes());
+  }
+}
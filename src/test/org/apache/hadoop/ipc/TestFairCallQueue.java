@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.net.NetUtils;
+
+/** Unit tests for {@link FairCallQueue}. */
+public class TestFairCallQueue extends TestCase {
+
+  private static class FakeCall implements Schedulable {
+    private final String identity;
+    private int level = -1;
+
+    FakeCall(String identity) {
+      this.identity = identity;
+    }
+
+    public String getIdentity() {
+      return identity;
+    }
+
+    public void setPriorityLevel(int level) {
+      this.level = level;
+    }
+
+    public int getPriorityLevel() {
+      return level;
+    }
+  }
+
+  private static FairCallQueue<FakeCall> newQueue(int capacity, int levels) {
+    Configuration conf = new Configuration();
+    conf.setInt(FairCallQueue.IPC_CALLQUEUE_LEVELS_KEY, levels);
+    return new FairCallQueue<FakeCall>(capacity, conf);
+  }
+
+  public void testDemotion() throws Exception {
+    FairCallQueue<FakeCall> queue = newQueue(100, 4);
+    assertEquals(4, queue.getNumLevels());
+    // a single caller makes all the calls
+    for (int i = 0; i < 10; i++) {
+      FakeCall call = new FakeCall("heavy");
+      queue.put(call);
+      assertEquals(3, call.getPriorityLevel());
+    }
+    // light callers keep the highest priority
+    for (int i = 0; i < 10; i++) {
+      FakeCall call = new FakeCall("light" + i);
+      queue.put(call);
+      assertEquals(0, call.getPriorityLevel());
+    }
+    assertEquals(20, queue.size());
+    assertEquals(10, queue.size(0));
+    assertEquals(10, queue.size(3));
+  }
+
+  public void testWeightedRoundRobin() throws Exception {
+    FairCallQueue<FakeCall> queue = newQueue(100, 2);
+    for (int i = 0; i < 10; i++) {
+      queue.put(new FakeCall("heavy"));
+    }
+    for (int i = 0; i < 4; i++) {
+      queue.put(new FakeCall("light"));
+    }
+    // two calls from the top level for one from the other
+    String[] expected = {"light", "light", "heavy", "light", "light",
+                         "heavy", "heavy", "heavy"};
+    for (String identity : expected) {
+      assertEquals(identity, queue.take().getIdentity());
+    }
+    assertEquals(6, queue.size());
+    List<FakeCall> drained = new ArrayList<FakeCall>();
+    assertEquals(6, queue.drainTo(drained));
+    assertNull(queue.poll());
+    assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    assertEquals(0, queue.size());
+  }
+
+  public void testCapacity() throws Exception {
+    FairCallQueue<FakeCall> queue = newQueue(4, 2);
+    // the heavy caller only gets its share of the capacity
+    assertTrue(queue.offer(new FakeCall("heavy")));
+    assertTrue(queue.offer(new FakeCall("heavy")));
+    assertFalse(queue.offer(new FakeCall("heavy")));
+    assertTrue(queue.offer(new FakeCall("light")));
+    assertEquals(3, queue.size());
+    assertEquals(1, queue.remainingCapacity());
+  }
+
+  private static class EchoServer extends Server {
+    EchoServer(Configuration conf) throws IOException {
+      super("0.0.0.0", 0, LongWritable.class, 2, conf);
+    }
+
+    @Override
+    public Writable call(Class<?> protocol, Writable param, long receiveTime)
+        throws IOException {
+      return param;
+    }
+  }
+
+  public void testServerWithFairCallQueue() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setClass(Server.IPC_SERVER_CALLQUEUE_IMPL_KEY, FairCallQueue.class,
+                  java.util.concurrent.BlockingQueue.class);
+    Server server = new EchoServer(conf);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+    Client client = new Client(LongWritable.class, conf);
+    try {
+      assertEquals(FairCallQueue.IPC_CALLQUEUE_LEVELS_DEFAULT,
+                   server.getNumCallQueueLevels());
+      assertNotNull(server.rpcMetrics.callQueueWaitTime);
+      for (int i = 0; i < 100; i++) {
+        LongWritable param = new LongWritable(i);
+        assertEquals(param, client.call(param, addr, null, null, 0));
+      }
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
+}
@@ -26,6 +26,8 @@ import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.net.NetUtils;
 
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.io.DataInput;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -293,6 +295,53 @@ public class TestIPC extends TestCase {
         addr, null, null, 3*PING_INTERVAL+MIN_SLEEP_TIME);
   }
 
+  public void testAsyncCalls() throws Exception {
+    Server server = new TestServer(2, false);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+
+    Client client = new Client(LongWritable.class, conf);
+    try {
+      // a single thread keeps all the calls outstanding at once
+      final int count = 20000;
+      LongWritable[] params = new LongWritable[count];
+      @SuppressWarnings("unchecked")
+      Future<Writable>[] values = new Future[count];
+      for (int i = 0; i < count; i++) {
+        params[i] = new LongWritable(RANDOM.nextLong());
+        values[i] = client.callAsync(params[i], addr, null, null, 0);
+      }
+      for (int i = 0; i < count; i++) {
+        assertEquals(params[i], values[i].get());
+        assertTrue(values[i].isDone());
+      }
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
+
+  public void testAsyncCallError() throws Exception {
+    Server server = new TestServer(1, false);
+    InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+
+    Client client = new Client(LongErrorWritable.class, conf);
+    try {
+      Future<Writable> value = client.callAsync(
+          new LongErrorWritable(RANDOM.nextLong()), addr, null, null, 0);
+      value.get();
+      fail("Expected an exception to have been thrown");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause().getCause();
+      assertTrue(cause instanceof IOException);
+      assertEquals(LongErrorWritable.ERR_MSG, cause.getMessage());
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
+
 	public static void main(String[] args) throws Exception {
 
     //new TestIPC("test").testSerial(5, false, 2, 10, 1000);
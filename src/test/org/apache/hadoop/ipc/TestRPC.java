@@ -26,6 +26,8 @@ import java.lang.reflect.Method;
 import junit.framework.TestCase;
 
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.*;
 
 import org.apache.commons.logging.*;
@@ -326,6 +328,42 @@ public class TestRPC extends TestCase {
     }
   }
   
+  public void testAsyncProxy() throws Exception {
+    Server server = RPC.getServer(new TestImpl(), ADDRESS, 0, conf);
+    TestProtocol proxy = null;
+    try {
+      server.start();
+      InetSocketAddress addr = NetUtils.getConnectAddress(server);
+      proxy = RPC.getAsyncProxy(
+          TestProtocol.class, TestProtocol.versionID, addr, conf);
+
+      // the calls return at once with a default value
+      assertNull(proxy.echo("foo"));
+      Future<String> echo = RPC.getAsyncReturn();
+      assertEquals(0, proxy.add(1, 2));
+      Future<Integer> add = RPC.getAsyncReturn();
+      proxy.error();
+      Future<Integer> error = RPC.getAsyncReturn();
+      assertNull(RPC.getAsyncReturn());
+
+      assertEquals("foo", echo.get());
+      assertEquals(3, add.get().intValue());
+      try {
+        error.get();
+        fail("Expected an exception to have been thrown");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof RemoteException);
+      }
+
+      // the methods of VersionedProtocol remain synchronous
+      assertEquals(TestProtocol.versionID, proxy.getProtocolVersion(
+          TestProtocol.class.getName(), TestProtocol.versionID));
+    } finally {
+      server.stop();
+      if (proxy != null) RPC.stopProxy(proxy);
+    }
+  }
+
   public void testStandaloneClient() throws IOException {
     try {
       RPC.waitForProxy(TestProtocol.class,
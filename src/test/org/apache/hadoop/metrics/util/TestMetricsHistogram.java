@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.metrics.util;
+
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.spi.NullContext;
+import org.junit.Test;
+
+public class TestMetricsHistogram {
+
+  @Test
+  public void testBuckets() {
+    assertEquals(0, MetricsHistogram.getBucket(0));
+    assertEquals(0, MetricsHistogram.getBucket(1));
+    assertEquals(1, MetricsHistogram.getBucket(2));
+    assertEquals(2, MetricsHistogram.getBucket(3));
+    assertEquals(3, MetricsHistogram.getBucket(10));
+    assertEquals(4, MetricsHistogram.getBucket(11));
+    assertEquals(MetricsHistogram.BOUNDS.length,
+                 MetricsHistogram.getBucket(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testPercentiles() {
+    MetricsRegistry registry = new MetricsRegistry();
+    MetricsHistogram histogram = new MetricsHistogram("test", registry);
+    MetricsRecord record = new NullContext().createRecord("test");
+
+    histogram.pushMetric(record);
+    assertEquals(0, histogram.getPreviousIntervalPercentile(50));
+    assertEquals(0, histogram.getPreviousIntervalPercentile(99));
+
+    // 89 fast operations, 10 slower ones and a very slow one
+    for (int i = 0; i < 89; i++) {
+      histogram.inc(1);
+    }
+    histogram.inc(10, 10 * 40);
+    histogram.inc(3000);
+    histogram.pushMetric(record);
+    assertEquals(100, histogram.getPreviousIntervalNumOps());
+    assertEquals(1, histogram.getMinTime());
+    assertEquals(3000, histogram.getMaxTime());
+    assertEquals(1, histogram.getPreviousIntervalPercentile(50));
+    assertEquals(50, histogram.getPreviousIntervalPercentile(90));
+    assertEquals(50, histogram.getPreviousIntervalPercentile(99));
+
+    histogram.inc(3000);
+    histogram.pushMetric(record);
+    assertEquals(5000, histogram.getPreviousIntervalPercentile(50));
+    assertEquals(5000, histogram.getPreviousIntervalPercentile(99));
+
+    // the counts are reset at each interval
+    histogram.pushMetric(record);
+    assertEquals(0, histogram.getPreviousIntervalNumOps());
+    assertEquals(0, histogram.getPreviousIntervalPercentile(90));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testUntrackedPercentile() {
+    new MetricsHistogram("test", new MetricsRegistry())
+        .getPreviousIntervalPercentile(75);
+  }
+}
@@ -0,0 +1,265 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.net.unix;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the UNIX domain sockets. The tests pass trivially when the native
+ * hadoop library is not loaded.
+ */
+public class TestDomainSocket extends TestCase {
+  static final Log LOG = LogFactory.getLog(TestDomainSocket.class);
+
+  private static final File TEST_DIR = new File(
+      System.getProperty("test.build.data", "/tmp"), "TestDomainSocket");
+
+  private File socketFile;
+
+  protected void setUp() throws Exception {
+    TEST_DIR.mkdirs();
+    socketFile = new File(TEST_DIR, "sock");
+  }
+
+  private boolean skip() {
+    if (!DomainSocket.isAvailable()) {
+      LOG.info("Skipping test: UNIX domain sockets are not available");
+      return true;
+    }
+    return false;
+  }
+
+  public void testEffectivePath() {
+    assertEquals("/var/run/dn.50010",
+        DomainSocket.getEffectivePath("/var/run/dn._PORT", 50010));
+    assertEquals("/var/run/dn",
+        DomainSocket.getEffectivePath("/var/run/dn", 50010));
+  }
+
+  public void testPathSecurity() throws Exception {
+    if (skip()) {
+      return;
+    }
+    File dir = new File(TEST_DIR, "insecure");
+    dir.mkdirs();
+    assertTrue(dir.setWritable(true, false));
+    try {
+      DomainSocket.validateSocketPathSecurity(
+          new File(dir, "sock").getPath());
+      fail("A socket in a directory writable by everyone was accepted");
+    } catch (IOException e) {
+      LOG.info("Expected exception", e);
+    }
+    try {
+      DomainSocket.validateSocketPathSecurity(
+          new File(dir, "missing/sock").getPath());
+      fail("A socket in a missing directory was accepted");
+    } catch (IOException e) {
+      LOG.info("Expected exception", e);
+    }
+  }
+
+  public void testStreams() throws Exception {
+    if (skip()) {
+      return;
+    }
+    final DomainSocket server =
+      DomainSocket.bindAndListen(socketFile.getPath(), 4);
+    Thread echo = new Thread() {
+      public void run() {
+        try {
+          DomainSocket peer = server.accept();
+          DataInputStream in = new DataInputStream(peer.getInputStream());
+          DataOutputStream out = new DataOutputStream(peer.getOutputStream());
+          byte[] b = new byte[in.readInt()];
+          in.readFully(b);
+          out.writeInt(b.length);
+          out.write(b);
+          peer.close();
+        } catch (IOException e) {
+          LOG.error("echo failed", e);
+        }
+      }
+    };
+    echo.start();
+    DomainSocket client = DomainSocket.connect(socketFile.getPath());
+    try {
+      // larger than the copy buffer of the native code
+      byte[] data = new byte[100 * 1024];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte)i;
+      }
+      DataOutputStream out = new DataOutputStream(client.getOutputStream());
+      out.writeInt(data.length);
+      out.write(data);
+      DataInputStream in = new DataInputStream(client.getInputStream());
+      byte[] b = new byte[in.readInt()];
+      in.readFully(b);
+      assertTrue(java.util.Arrays.equals(data, b));
+      assertEquals(-1, in.read());
+    } finally {
+      client.close();
+      echo.join();
+      server.closeAndUnlink();
+    }
+    assertFalse(socketFile.exists());
+  }
+
+  public void testPassFileDescriptors() throws Exception {
+    if (skip()) {
+      return;
+    }
+    final File file = new File(TEST_DIR, "data");
+    FileOutputStream fos = new FileOutputStream(file);
+    fos.write("hello domain socket".getBytes());
+    fos.close();
+
+    final DomainSocket server =
+      DomainSocket.bindAndListen(socketFile.getPath(), 4);
+    Thread sender = new Thread() {
+      public void run() {
+        try {
+          DomainSocket peer = server.accept();
+          FileInputStream fis = new FileInputStream(file);
+          peer.sendFileDescriptors(new FileDescriptor[] {fis.getFD()},
+                                   new byte[] {42}, 0, 1);
+          // the peer keeps its own copy of the descriptor
+          fis.close();
+          peer.close();
+        } catch (IOException e) {
+          LOG.error("sender failed", e);
+        }
+      }
+    };
+    sender.start();
+    DomainSocket client = DomainSocket.connect(socketFile.getPath());
+    try {
+      FileDescriptor[] fds = new FileDescriptor[2];
+      byte[] b = new byte[1];
+      assertEquals(1, client.receiveFileDescriptors(fds, b, 0, 1));
+      assertEquals(42, b[0]);
+      assertNotNull(fds[0]);
+      assertNull(fds[1]);
+      sender.join();
+      assertTrue(file.delete());
+      // the descriptor stays readable after the file is removed
+      FileInputStream in = new FileInputStream(fds[0]);
+      byte[] data = new byte[100];
+      int n = in.read(data);
+      assertEquals("hello domain socket", new String(data, 0, n));
+      in.close();
+    } finally {
+      client.close();
+      server.closeAndUnlink();
+    }
+  }
+
+  public void testTimeoutAndClose() throws Exception {
+    if (skip()) {
+      return;
+    }
+    final DomainSocket server =
+      DomainSocket.bindAndListen(socketFile.getPath(), 4);
+    DomainSocket client = DomainSocket.connect(socketFile.getPath());
+    DomainSocket peer = server.accept();
+    try {
+      client.setTimeout(100);
+      try {
+        client.getInputStream().read(new byte[1], 0, 1);
+        fail("Expected a timeout");
+      } catch (SocketTimeoutException e) {
+        LOG.info("Got expected " + e);
+      }
+    } finally {
+      client.close();
+      peer.close();
+    }
+
+    // closing a listening socket wakes up the thread accepting on it
+    Thread closer = new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(100);
+          server.closeAndUnlink();
+        } catch (Exception e) {
+          LOG.error("close failed", e);
+        }
+      }
+    };
+    closer.start();
+    try {
+      server.accept();
+      fail("Expected accept to fail on a closed socket");
+    } catch (IOException e) {
+      LOG.info("Got expected " + e);
+    }
+    closer.join();
+  }
+
+  public void testCloseWhileReading() throws Exception {
+    if (skip()) {
+      return;
+    }
+    DomainSocket server =
+      DomainSocket.bindAndListen(socketFile.getPath(), 4);
+    final DomainSocket client = DomainSocket.connect(socketFile.getPath());
+    DomainSocket peer = server.accept();
+    final int[] result = new int[] {-2};
+    Thread reader = new Thread() {
+      public void run() {
+        try {
+          result[0] = client.getInputStream().read(new byte[1], 0, 1);
+        } catch (IOException e) {
+          LOG.info("Got expected " + e);
+          result[0] = -1;
+        }
+      }
+    };
+    try {
+      reader.start();
+      Thread.sleep(100);
+      // wakes up the reader, which then closes the fd
+      client.close();
+      reader.join(10000);
+      assertFalse(reader.isAlive());
+      assertEquals(-1, result[0]);
+      try {
+        client.getInputStream().read(new byte[1], 0, 1);
+        fail("Expected a read on a closed socket to fail");
+      } catch (IOException e) {
+        LOG.info("Got expected " + e);
+      }
+      assertEquals(-1, peer.getInputStream().read());
+    } finally {
+      peer.close();
+      server.closeAndUnlink();
+    }
+  }
+}
@@ -27,6 +27,8 @@ import org.apache.hadoop.mapred.SortValidator;
 import org.apache.hadoop.mapred.TestMapRed;
 import org.apache.hadoop.mapred.TestSequenceFileInputFormat;
 import org.apache.hadoop.mapred.TestTextInputFormat;
+import org.apache.hadoop.hdfs.BenchmarkSingleStreamRead;
+import org.apache.hadoop.hdfs.BenchmarkSingleStreamWrite;
 import org.apache.hadoop.hdfs.BenchmarkThroughput;
 import org.apache.hadoop.hdfs.NNBench;
 import org.apache.hadoop.fs.DistributedFSCheck;
@@ -75,6 +77,10 @@ public class AllTestDriver {
       pgd.addClass("filebench", FileBench.class, "Benchmark SequenceFile(Input|Output)Format (block,record compressed and uncompressed), Text(Input|Output)Format (compressed and uncompressed)");
       pgd.addClass("dfsthroughput", BenchmarkThroughput.class, 
                    "measure hdfs throughput");
+      pgd.addClass("singlestreamwrite", BenchmarkSingleStreamWrite.class,
+                   "measure the throughput of a single hdfs output stream");
+      pgd.addClass("singlestreamread", BenchmarkSingleStreamRead.class,
+                   "measure the throughput of a single hdfs input stream");
       pgd.addClass("MRReliabilityTest", ReliabilityTest.class,
           "A program that tests the reliability of the MR framework by " +
           "injecting faults/failures");
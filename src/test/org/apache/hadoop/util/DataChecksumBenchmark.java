@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Benchmark of the verification of the checksums of a packet.
+ *
+ * A packet of -packet bytes with one checksum of -type (CRC32 or CRC32C)
+ * per -bpc bytes is verified until -total MB have been checked, the way
+ * BlockReceiver and BlockSender verify the packets they receive and send:
+ * <ul>
+ * <li>a chunk at a time through update() and compare(), with the JDK CRC32
+ *     and PureJavaCrc32, or with PureJavaCrc32C, which is what they used
+ *     to do;</li>
+ * <li>with DataChecksum.verifyChunkedSums() on byte arrays and on direct
+ *     buffers, natively for CRC32C if the native-hadoop library is loaded
+ *     and in Java otherwise; CRC32 uses the JDK CRC32, which is faster
+ *     than the native code where the JVM compiles it to CRC
+ *     instructions.</li>
+ * </ul>
+ * Each is run twice and the second run is reported, in MB/s.
+ *
+ * Synopsis:
+ *   DataChecksumBenchmark [-type CRC32|CRC32C] [-packet bytes] [-bpc bytes]
+ *                         [-total MB]
+ */
+public class DataChecksumBenchmark {
+  private int checksumType = DataChecksum.CHECKSUM_CRC32;
+  private int packetSize = 64 * 1024;
+  private int bytesPerChecksum = 512;
+  private long totalMB = 2048;
+
+  private byte[] data;
+  private byte[] sums;
+
+  private interface Verifier {
+    void verify() throws Exception;
+  }
+
+  private void runVerifier(String name, Verifier verifier) throws Exception {
+    long packets = totalMB * 1024 * 1024 / packetSize;
+    long elapsed = 0;
+    for (int run = 0; run < 2; run++) {
+      long start = System.nanoTime();
+      for (long p = 0; p < packets; p++) {
+        verifier.verify();
+      }
+      elapsed = System.nanoTime() - start;
+    }
+    System.out.println(String.format("%-36s %10.1f", name,
+        (double) packets * packetSize / (1024 * 1024) * 1e9 / elapsed));
+  }
+
+  /** The loop BlockReceiver and BlockSender used to run. */
+  private Verifier perChunk(Checksum summer) {
+    final DataChecksum checksum = DataChecksum.newDataChecksum(
+        checksumType, bytesPerChecksum, summer);
+    return new Verifier() {
+      public void verify() throws Exception {
+        int sumOff = 0;
+        for (int off = 0; off < packetSize; off += bytesPerChecksum) {
+          checksum.reset();
+          checksum.update(data, off,
+                          Math.min(bytesPerChecksum, packetSize - off));
+          if (!checksum.compare(sums, sumOff)) {
+            throw new Exception("Checksum mismatch at " + off);
+          }
+          sumOff += checksum.getChecksumSize();
+        }
+      }
+    };
+  }
+
+  void run() throws Exception {
+    int numChunks = (packetSize + bytesPerChecksum - 1) / bytesPerChecksum;
+    final DataChecksum checksum = DataChecksum.newDataChecksum(
+        checksumType, bytesPerChecksum);
+    data = new byte[packetSize];
+    new Random(0).nextBytes(data);
+    sums = new byte[numChunks * checksum.getChecksumSize()];
+    checksum.calculateChunkedSums(data, 0, data.length, sums, 0);
+
+    final ByteBuffer directData = ByteBuffer.allocateDirect(data.length);
+    directData.put(data).flip();
+    final ByteBuffer directSums = ByteBuffer.allocateDirect(sums.length);
+    directSums.put(sums).flip();
+
+    System.out.println(DataChecksum.getChecksumTypeName(checksumType)
+        + ", packet " + packetSize + " bytes, bytesPerChecksum "
+        + bytesPerChecksum + ", native chunked checksums "
+        + (NativeCrc32.isAvailable() ? "enabled" : "disabled"));
+    System.out.println(String.format("%-36s %10s", "method", "MB/s"));
+    if (checksumType == DataChecksum.CHECKSUM_CRC32) {
+      runVerifier("per chunk, CRC32", perChunk(new CRC32()));
+      runVerifier("per chunk, PureJavaCrc32", perChunk(new PureJavaCrc32()));
+    } else {
+      // newDataChecksum always uses PureJavaCrc32C for CRC32C
+      runVerifier("per chunk, PureJavaCrc32C", perChunk(null));
+    }
+    runVerifier("verifyChunkedSums, byte[]", new Verifier() {
+      public void verify() throws Exception {
+        checksum.verifyChunkedSums(data, 0, data.length, sums, 0, "bench", 0);
+      }
+    });
+    runVerifier("verifyChunkedSums, direct buffers", new Verifier() {
+      public void verify() throws Exception {
+        checksum.verifyChunkedSums(directData, directSums, "bench", 0);
+      }
+    });
+  }
+
+  private static void printUsage() {
+    System.err.println("Usage: DataChecksumBenchmark [-type CRC32|CRC32C]"
+        + " [-packet bytes] [-bpc bytes] [-total MB]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    DataChecksumBenchmark bench = new DataChecksumBenchmark();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (i + 1 == args.length) {
+          printUsage();
+        }
+        if (args[i].equals("-type")) {
+          bench.checksumType = DataChecksum.getChecksumTypeByName(args[++i]);
+        } else if (args[i].equals("-packet")) {
+          bench.packetSize = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-bpc")) {
+          bench.bytesPerChecksum = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-total")) {
+          bench.totalMB = Long.parseLong(args[++i]);
+        } else {
+          printUsage();
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      printUsage();
+    }
+    bench.run();
+  }
+}
@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.ChecksumException;
+
+/** Unit tests for the chunked checksums of {@link DataChecksum}. */
+public class TestDataChecksum extends TestCase {
+  private static final int BYTES_PER_CHECKSUM = 512;
+  // two full chunks and a partial one
+  private static final int DATA_LENGTH = 2 * BYTES_PER_CHECKSUM + 100;
+  private static final int NUM_CHUNKS = 3;
+
+  private final Random random = new Random(0xcafe);
+
+  private DataChecksum newChecksum() {
+    return DataChecksum.newDataChecksum(DataChecksum.CHECKSUM_CRC32,
+                                        BYTES_PER_CHECKSUM);
+  }
+
+  private byte[] randomData() {
+    byte[] data = new byte[DATA_LENGTH];
+    random.nextBytes(data);
+    return data;
+  }
+
+  /** The checksums computed a chunk at a time through update(). */
+  private byte[] expectedSums(byte[] data) throws Exception {
+    DataChecksum checksum = newChecksum();
+    byte[] sums = new byte[NUM_CHUNKS * checksum.getChecksumSize()];
+    for (int i = 0; i < NUM_CHUNKS; i++) {
+      int off = i * BYTES_PER_CHECKSUM;
+      checksum.update(data, off, Math.min(BYTES_PER_CHECKSUM,
+                                          data.length - off));
+      checksum.writeValue(sums, i * checksum.getChecksumSize(), true);
+    }
+    return sums;
+  }
+
+  public void testByteArrays() throws Exception {
+    DataChecksum checksum = newChecksum();
+    byte[] data = randomData();
+    byte[] expected = expectedSums(data);
+
+    // compute at an offset in both arrays
+    byte[] buf = new byte[7 + DATA_LENGTH];
+    System.arraycopy(data, 0, buf, 7, DATA_LENGTH);
+    byte[] sums = new byte[3 + expected.length];
+    checksum.calculateChunkedSums(buf, 7, DATA_LENGTH, sums, 3);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], sums[3 + i]);
+    }
+    checksum.verifyChunkedSums(buf, 7, DATA_LENGTH, sums, 3, "file", 0);
+
+    // corrupt the last chunk
+    buf[7 + 2 * BYTES_PER_CHECKSUM + 1]++;
+    try {
+      checksum.verifyChunkedSums(buf, 7, DATA_LENGTH, sums, 3, "file", 4096);
+      fail("corruption not detected");
+    } catch (ChecksumException ce) {
+      assertEquals(4096 + 2 * BYTES_PER_CHECKSUM, ce.getPos());
+    }
+  }
+
+  public void testInvalidOffsets() throws Exception {
+    DataChecksum checksum = DataChecksum.newDataChecksum(
+        DataChecksum.CHECKSUM_CRC32C, BYTES_PER_CHECKSUM);
+    byte[] data = randomData();
+    byte[] sums = new byte[NUM_CHUNKS * checksum.getChecksumSize()];
+    try {
+      // the checksums before the array would fit in its length
+      checksum.calculateChunkedSums(data, 0, DATA_LENGTH,
+                                    new byte[2 * sums.length], -4);
+      fail("negative offset of the checksums accepted");
+    } catch (IndexOutOfBoundsException e) {
+    }
+    try {
+      checksum.verifyChunkedSums(data, 0, DATA_LENGTH, sums, -1, "file", 0);
+      fail("negative offset of the checksums accepted");
+    } catch (IndexOutOfBoundsException e) {
+    }
+    try {
+      checksum.calculateChunkedSums(data, -1, DATA_LENGTH, sums, 0);
+      fail("negative offset of the data accepted");
+    } catch (IndexOutOfBoundsException e) {
+    }
+  }
+
+  private void checkByteBuffers(ByteBuffer data, ByteBuffer sums,
+                                byte[] expected) throws Exception {
+    DataChecksum checksum = newChecksum();
+    checksum.calculateChunkedSums(data, sums);
+    assertEquals(0, data.position());
+    assertEquals(0, sums.position());
+    byte[] computed = new byte[expected.length];
+    sums.duplicate().get(computed);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], computed[i]);
+    }
+    checksum.verifyChunkedSums(data, sums, "file", 0);
+
+    sums.put(4, (byte) (sums.get(4) + 1));
+    try {
+      checksum.verifyChunkedSums(data, sums, "file", 0);
+      fail("corruption not detected");
+    } catch (ChecksumException ce) {
+      assertEquals(BYTES_PER_CHECKSUM, ce.getPos());
+    }
+  }
+
+  public void testByteBuffers() throws Exception {
+    byte[] data = randomData();
+    byte[] expected = expectedSums(data);
+
+    checkByteBuffers(ByteBuffer.wrap(data),
+                     ByteBuffer.allocate(expected.length), expected);
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(DATA_LENGTH);
+    direct.put(data).flip();
+    checkByteBuffers(direct, ByteBuffer.allocateDirect(expected.length),
+                     expected);
+
+    // a direct buffer with heap checksums
+    checkByteBuffers(direct, ByteBuffer.allocate(expected.length), expected);
+  }
+
+  public void testRunningChecksumUnchanged() throws Exception {
+    DataChecksum checksum = newChecksum();
+    byte[] data = randomData();
+    checksum.update(data, 0, 10);
+    long value = checksum.getValue();
+    byte[] sums = new byte[NUM_CHUNKS * checksum.getChecksumSize()];
+    checksum.calculateChunkedSums(data, 0, DATA_LENGTH, sums, 0);
+    checksum.verifyChunkedSums(data, 0, DATA_LENGTH, sums, 0, "file", 0);
+    assertEquals(value, checksum.getValue());
+    assertEquals(10, checksum.getNumBytesInSum());
+  }
+
+  public void testNullChecksum() throws Exception {
+    DataChecksum checksum = DataChecksum.newDataChecksum(
+        DataChecksum.CHECKSUM_NULL, BYTES_PER_CHECKSUM);
+    byte[] data = randomData();
+    checksum.calculateChunkedSums(data, 0, DATA_LENGTH, new byte[0], 0);
+    checksum.verifyChunkedSums(data, 0, DATA_LENGTH, new byte[0], 0,
+                               "file", 0);
+  }
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test of the pure-Java CRC32C against known values and against
+ * DataChecksum's chunked checksums, which are native when the
+ * native-hadoop library is loaded.
+ */
+public class TestPureJavaCrc32C {
+
+  private static long crc(byte[] b) {
+    PureJavaCrc32C crc = new PureJavaCrc32C();
+    crc.update(b, 0, b.length);
+    return crc.getValue();
+  }
+
+  @Test
+  public void testKnownValues() throws Exception {
+    // the check value of CRC-32C and the examples of RFC 3720, B.4
+    Assert.assertEquals(0xE3069283L, crc("123456789".getBytes("US-ASCII")));
+    byte[] b = new byte[32];
+    Assert.assertEquals(0x8A9136AAL, crc(b));
+    Arrays.fill(b, (byte) 0xff);
+    Assert.assertEquals(0x62A8AB43L, crc(b));
+    for (int i = 0; i < b.length; i++) {
+      b[i] = (byte) i;
+    }
+    Assert.assertEquals(0x46DD794EL, crc(b));
+  }
+
+  @Test
+  public void testUpdateByteAndArray() {
+    Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      byte[] b = new byte[random.nextInt(2048)];
+      random.nextBytes(b);
+      PureJavaCrc32C bytewise = new PureJavaCrc32C();
+      for (byte x : b) {
+        bytewise.update(x);
+      }
+      Assert.assertEquals(crc(b), bytewise.getValue());
+    }
+  }
+
+  @Test
+  public void testChunkedSums() throws Exception {
+    int bytesPerChecksum = 512;
+    byte[] data = new byte[10 * bytesPerChecksum + 17];
+    new Random(1).nextBytes(data);
+    DataChecksum checksum = DataChecksum.newDataChecksum(
+        DataChecksum.CHECKSUM_CRC32C, bytesPerChecksum);
+    byte[] sums = new byte[11 * checksum.getChecksumSize()];
+    checksum.calculateChunkedSums(data, 0, data.length, sums, 0);
+    for (int i = 0; i < 11; i++) {
+      int off = i * bytesPerChecksum;
+      checksum.reset();
+      checksum.update(data, off, Math.min(bytesPerChecksum, data.length - off));
+      Assert.assertTrue(checksum.compare(sums, i * 4));
+    }
+    checksum.verifyChunkedSums(data, 0, data.length, sums, 0, "file", 0);
+  }
+}
@@ -26,10 +26,12 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Stack;
 import java.util.StringTokenizer;
@@ -44,6 +46,7 @@ import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FilterFileSystem;
 import org.apache.hadoop.fs.FsShell;
+import org.apache.hadoop.fs.MD5MD5CRC32FileChecksum;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hdfs.DFSClient;
@@ -69,6 +72,7 @@ import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.SequenceFileRecordReader;
 import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.util.DataChecksum;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -431,6 +435,7 @@ public class DistCp implements Tool {
     private byte[] buffer = null;
     private JobConf job;
     private boolean skipCRCCheck = false;
+    private CrcTypePreservingFileSystems crcTypeFileSys = null;
 
     // stats
     private int failcount = 0;
@@ -463,8 +468,9 @@ public class DistCp implements Tool {
       if (destFileSys.exists(f)) {
         destFileSys.delete(f, false);
       }
+      FileSystem fs = crcTypeFileSys.get(srcstat);
       if (!preserve_status) {
-        return destFileSys.create(f, true, sizeBuf, reporter);
+        return fs.create(f, true, sizeBuf, reporter);
       }
 
       FsPermission permission = preserved.contains(FileAttribute.PERMISSION)?
@@ -473,7 +479,7 @@ public class DistCp implements Tool {
           srcstat.getReplication(): destFileSys.getDefaultReplication();
       long blockSize = preserved.contains(FileAttribute.BLOCK_SIZE)?
           srcstat.getBlockSize(): destFileSys.getDefaultBlockSize();
-      return destFileSys.create(f, permission, true, sizeBuf, replication,
+      return fs.create(f, permission, true, sizeBuf, replication,
           blockSize, reporter);
     }
 
@@ -634,6 +640,8 @@ public class DistCp implements Tool {
       update = job.getBoolean(Options.UPDATE.propertyname, false);
       overwrite = !update && job.getBoolean(Options.OVERWRITE.propertyname, false);
       skipCRCCheck = job.getBoolean(Options.SKIPCRC.propertyname, false);
+      crcTypeFileSys = new CrcTypePreservingFileSystems(job, destPath,
+          destFileSys, skipCRCCheck);
       this.job = job;
     }
 
@@ -682,6 +690,7 @@ public class DistCp implements Tool {
     }
 
     public void close() throws IOException {
+      crcTypeFileSys.close();
       if (0 == failcount || ignoreReadFailures) {
         return;
       }
@@ -706,6 +715,7 @@ public class DistCp implements Tool {
     private byte[] buffer = null;
     private JobConf job;
     private boolean skipCRCCheck = false;
+    private CrcTypePreservingFileSystems crcTypeFileSys = null;
 
     // stats
     private int failcount = 0;
@@ -738,8 +748,9 @@ public class DistCp implements Tool {
       if (destFileSys.exists(f)) {
         destFileSys.delete(f, false);
       }
+      FileSystem fs = crcTypeFileSys.get(srcstat);
       if (!preserve_status) {
-        return destFileSys.create(f, true, sizeBuf, reporter);
+        return fs.create(f, true, sizeBuf, reporter);
       }
 
       FsPermission permission = preserved.contains(FileAttribute.PERMISSION)?
@@ -748,7 +759,7 @@ public class DistCp implements Tool {
           srcstat.getReplication(): destFileSys.getDefaultReplication();
       long blockSize = preserved.contains(FileAttribute.BLOCK_SIZE)?
           srcstat.getBlockSize(): destFileSys.getDefaultBlockSize();
-      return destFileSys.create(f, permission, true, sizeBuf, replication,
+      return fs.create(f, permission, true, sizeBuf, replication,
           blockSize, reporter);
     }
 
@@ -904,6 +915,8 @@ public class DistCp implements Tool {
       update = job.getBoolean(Options.UPDATE.propertyname, false);
       overwrite = !update && job.getBoolean(Options.OVERWRITE.propertyname, false);
       skipCRCCheck = job.getBoolean(Options.SKIPCRC.propertyname, false);
+      crcTypeFileSys = new CrcTypePreservingFileSystems(job, destPath,
+          destFileSys, skipCRCCheck);
       this.job = job;
     }
 
@@ -957,6 +970,7 @@ public class DistCp implements Tool {
     }
 
     public void close() throws IOException {
+      crcTypeFileSys.close();
       if (0 == failcount || ignoreReadFailures) {
         return;
       }
@@ -2273,7 +2287,8 @@ public class DistCp implements Tool {
    * 
    * If the files have the same sizes, the file checksums will be compared.
    * 
-   * When file checksum is not supported in any of file systems,
+   * When file checksum is not supported in any of file systems, or the
+   * checksums are of different CRC types and cannot be compared,
    * two files are considered as the same if they have the same size.
    */
   static private boolean sameFile(FileSystem srcfs, FileStatus srcstatus,
@@ -2317,12 +2332,96 @@ public class DistCp implements Tool {
       final FileChecksum dstcs = dstfs.getFileChecksum(dststatus.getPath());
       //return true if checksum is not supported
       //(i.e. some of the checksums is null)
-      return srccs == null || dstcs == null || srccs.equals(dstcs);
+      if (srccs == null || dstcs == null) {
+        return true;
+      }
+      //the checksums of CRC32 and CRC32C files cannot be compared
+      if (srccs instanceof MD5MD5CRC32FileChecksum &&
+          dstcs instanceof MD5MD5CRC32FileChecksum &&
+          ((MD5MD5CRC32FileChecksum)srccs).getCrcType() !=
+          ((MD5MD5CRC32FileChecksum)dstcs).getCrcType()) {
+        LOG.debug("Checksums " + srccs + " and " + dstcs +
+                  " are of different types, comparing the lengths only");
+        return true;
+      }
+      return srccs.equals(dstcs);
     } catch(FileNotFoundException fnfe) {
       return false;
     }
   }
   
+  /**
+   * The file systems the mappers write the destination files with, so
+   * that a file is written with the CRC type of its source. The checksums
+   * of the copies can then be compared with the ones of the sources by a
+   * later update. The CRC type is known for the sources in HDFS only; the
+   * other files are written with the type of the destination file system.
+   */
+  static class CrcTypePreservingFileSystems {
+    private final JobConf job;
+    private final Path destPath;
+    private final FileSystem destFileSys;
+    private final boolean skipCRCCheck;
+    private final Map<Integer, FileSystem> fileSysByCrcType =
+      new HashMap<Integer, FileSystem>();
+    // the chunks of a file are usually copied one after the other
+    private Path lastSrc = null;
+    private int lastCrcType = -1;
+
+    CrcTypePreservingFileSystems(JobConf job, Path destPath,
+        FileSystem destFileSys, boolean skipCRCCheck) {
+      this.job = job;
+      this.destPath = destPath;
+      this.destFileSys = destFileSys;
+      this.skipCRCCheck = skipCRCCheck;
+    }
+
+    /**
+     * @return the file system to write the copy of the given file with:
+     * the destination file system if the source has no CRC checksum or the
+     * CRC check is skipped
+     */
+    FileSystem get(FileStatus srcstat) throws IOException {
+      int crcType = skipCRCCheck ? -1 : getCrcType(srcstat.getPath());
+      if (crcType < 0) {
+        return destFileSys;
+      }
+      FileSystem fs = fileSysByCrcType.get(crcType);
+      if (fs == null) {
+        JobConf conf = new JobConf(job);
+        conf.set("dfs.checksum.type",
+            DataChecksum.getChecksumTypeName(crcType));
+        fs = FileSystem.newInstance(destPath.toUri(), conf);
+        fileSysByCrcType.put(crcType, fs);
+      }
+      return fs;
+    }
+
+    /** @return the CRC type of the source file, -1 if it is not known */
+    private int getCrcType(Path src) throws IOException {
+      if (!src.equals(lastSrc)) {
+        FileSystem srcfs = src.getFileSystem(job);
+        lastCrcType = -1;
+        if (srcfs instanceof DistributedFileSystem) {
+          // from the first block only, not from the whole file
+          try {
+            lastCrcType = ((DistributedFileSystem)srcfs).getFileCrcType(src);
+          } catch (FileNotFoundException fnfe) {
+          }
+        }
+        lastSrc = src;
+      }
+      return lastCrcType;
+    }
+
+    void close() throws IOException {
+      for (FileSystem fs : fileSysByCrcType.values()) {
+        fs.close();
+      }
+      fileSysByCrcType.clear();
+    }
+  }
+
   /** Delete the dst files/dirs which do not exist in src */
   static private void deleteNonexisting(
       FileSystem dstfs, FileStatus dstroot, Path dstsorted,